@@ -0,0 +1,86 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.internet.MimeMessage;
+
+import org.apache.mailet.base.test.FakeMail;
+import org.apache.mailet.base.test.FakeMailetConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of parsing a classification answer and attaching one header per recipient.
+ *
+ * A fresh mail is built on each invocation so that headers do not pile up; its cost is included but does not
+ * depend on the recipient count.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class AddHeadersBenchmark {
+
+    @Param({"1", "10", "100", "1000", "10000"})
+    public int recipientCount;
+
+    private GuessClassificationMailet mailet;
+    private MimeMessage mimeMessage;
+    private String classificationResponse;
+
+    @Setup
+    public void setUp() throws Exception {
+        mailet = new GuessClassificationMailet();
+        mailet.init(FakeMailetConfig.builder()
+            .setProperty(GuessClassificationMailet.SERVICE_URL, "http://localhost:8080/email/classification/predict")
+            .setProperty(GuessClassificationMailet.SERVICE_USERNAME, "username")
+            .setProperty(GuessClassificationMailet.SERVICE_PASSWORD, "password")
+            .build());
+        mimeMessage = MessageCorpus.PLAIN.mimeMessage();
+        classificationResponse = StubClassificationServer.classificationResponse(MessageCorpus.recipients(recipientCount));
+    }
+
+    @TearDown
+    public void tearDown() {
+        mailet.destroy();
+    }
+
+    @Benchmark
+    public FakeMail addHeaders() throws Exception {
+        FakeMail mail = FakeMail.builder()
+            .mimeMessage(mimeMessage)
+            .build();
+        mailet.addHeaders(mail, classificationResponse);
+        return mail;
+    }
+}
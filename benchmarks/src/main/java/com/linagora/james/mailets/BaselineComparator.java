@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Compares a JMH JSON result file with a checked-in baseline.
+ *
+ * Usage: BaselineComparator baseline.json result.json [tolerancePercent]
+ *
+ * Exits with status 1 when the throughput of a benchmark dropped, or its allocated bytes per operation grew,
+ * by more than tolerancePercent (default 10).
+ */
+public class BaselineComparator {
+
+    private static final double DEFAULT_TOLERANCE_PERCENT = 10;
+    private static final String ALLOCATION_METRIC = "gc.alloc.rate.norm";
+
+    private static class Measure {
+        private final double score;
+        private final Optional<Double> bytesPerOperation;
+
+        private Measure(double score, Optional<Double> bytesPerOperation) {
+            this.score = score;
+            this.bytesPerOperation = bytesPerOperation;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: BaselineComparator baseline.json result.json [tolerancePercent]");
+            System.exit(2);
+        }
+        double tolerancePercent = args.length > 2 ? Double.parseDouble(args[2]) : DEFAULT_TOLERANCE_PERCENT;
+        Map<String, Measure> baseline = read(new File(args[0]));
+        Map<String, Measure> current = read(new File(args[1]));
+
+        boolean regression = false;
+        for (Map.Entry<String, Measure> entry : current.entrySet()) {
+            Measure baselineMeasure = baseline.get(entry.getKey());
+            if (baselineMeasure == null) {
+                System.out.println("NEW        " + entry.getKey());
+                continue;
+            }
+            double throughputChange = percentChange(baselineMeasure.score, entry.getValue().score);
+            Optional<Double> allocationChange = baselineMeasure.bytesPerOperation.flatMap(baselineBytes ->
+                entry.getValue().bytesPerOperation.map(currentBytes -> percentChange(baselineBytes, currentBytes)));
+            boolean benchmarkRegression = throughputChange < -tolerancePercent
+                || allocationChange.map(change -> change > tolerancePercent).orElse(false);
+            regression |= benchmarkRegression;
+            System.out.println(String.format("%-10s %s throughput %+.1f%% bytes/op %s",
+                benchmarkRegression ? "REGRESSION" : "OK",
+                entry.getKey(),
+                throughputChange,
+                allocationChange.map(change -> String.format("%+.1f%%", change)).orElse("n/a")));
+        }
+        System.exit(regression ? 1 : 0);
+    }
+
+    private static double percentChange(double baseline, double current) {
+        if (baseline == 0) {
+            return 0;
+        }
+        return (current - baseline) * 100 / baseline;
+    }
+
+    private static Map<String, Measure> read(File file) throws IOException {
+        Map<String, Measure> measures = new TreeMap<>();
+        for (JsonNode result : new ObjectMapper().readTree(file)) {
+            measures.put(key(result), new Measure(
+                result.path("primaryMetric").path("score").asDouble(),
+                bytesPerOperation(result.path("secondaryMetrics"))));
+        }
+        return measures;
+    }
+
+    private static Optional<Double> bytesPerOperation(JsonNode secondaryMetrics) {
+        ImmutableMap.Builder<String, JsonNode> metrics = ImmutableMap.builder();
+        secondaryMetrics.fields().forEachRemaining(field -> metrics.put(field.getKey(), field.getValue()));
+        return metrics.build().entrySet().stream()
+            .filter(metric -> metric.getKey().endsWith(ALLOCATION_METRIC))
+            .map(metric -> metric.getValue().path("score").asDouble())
+            .findFirst();
+    }
+
+    private static String key(JsonNode result) {
+        Map<String, String> params = new TreeMap<>();
+        result.path("params").fields().forEachRemaining(param -> params.put(param.getKey(), param.getValue().asText()));
+        if (params.isEmpty()) {
+            return result.path("benchmark").asText();
+        }
+        return result.path("benchmark").asText() + " " + Joiner.on(',').withKeyValueSeparator("=").join(params);
+    }
+}
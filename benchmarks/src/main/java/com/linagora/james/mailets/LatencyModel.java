@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Delay the stub classification webservice waits before answering a request.
+ *
+ * Models are given on the load test command line as:
+ * <pre><code>
+ * none
+ * fixed:&lt;delayInMs&gt;
+ * lognormal:&lt;medianInMs&gt;:&lt;sigma&gt;
+ * bursty:&lt;medianInMs&gt;:&lt;sigma&gt;:&lt;stallProbability&gt;:&lt;stallInMs&gt;
+ * </code></pre>
+ *
+ * Bursty adds, with the given probability, a stall to a lognormal delay, mimicking a model server pausing for GC or
+ * reloading its model.
+ */
+@FunctionalInterface
+public interface LatencyModel {
+
+    LatencyModel NONE = random -> 0;
+
+    static LatencyModel fixed(long delayInMs) {
+        Preconditions.checkArgument(delayInMs >= 0, "'delayInMs' should be positive");
+        return random -> delayInMs;
+    }
+
+    static LatencyModel logNormal(long medianInMs, double sigma) {
+        Preconditions.checkArgument(medianInMs >= 0, "'medianInMs' should be positive");
+        Preconditions.checkArgument(sigma >= 0, "'sigma' should be positive");
+        return random -> Math.round(medianInMs * Math.exp(sigma * random.nextGaussian()));
+    }
+
+    static LatencyModel bursty(long medianInMs, double sigma, double stallProbability, long stallInMs) {
+        Preconditions.checkArgument(stallProbability >= 0 && stallProbability <= 1, "'stallProbability' should be between 0 and 1");
+        Preconditions.checkArgument(stallInMs >= 0, "'stallInMs' should be positive");
+        LatencyModel base = logNormal(medianInMs, sigma);
+        return random -> {
+            long delay = base.nextDelayInMs(random);
+            if (random.nextDouble() < stallProbability) {
+                return delay + stallInMs;
+            }
+            return delay;
+        };
+    }
+
+    /**
+     * Samples uniformly among recorded delays, reproducing their distribution without assuming its shape.
+     */
+    static LatencyModel empirical(List<Long> delaysInMs) {
+        Preconditions.checkArgument(!delaysInMs.isEmpty(), "at least one delay is needed");
+        ImmutableList<Long> delays = ImmutableList.copyOf(delaysInMs);
+        return random -> delays.get(random.nextInt(delays.size()));
+    }
+
+    static LatencyModel parse(String value) {
+        List<String> parts = Splitter.on(':').trimResults().splitToList(value);
+        try {
+            switch (parts.get(0).toLowerCase()) {
+                case "none":
+                    checkArity(value, parts, 1);
+                    return NONE;
+                case "fixed":
+                    checkArity(value, parts, 2);
+                    return fixed(Long.parseLong(parts.get(1)));
+                case "lognormal":
+                    checkArity(value, parts, 3);
+                    return logNormal(Long.parseLong(parts.get(1)), Double.parseDouble(parts.get(2)));
+                case "bursty":
+                    checkArity(value, parts, 5);
+                    return bursty(Long.parseLong(parts.get(1)), Double.parseDouble(parts.get(2)),
+                        Double.parseDouble(parts.get(3)), Long.parseLong(parts.get(4)));
+                default:
+                    throw new IllegalArgumentException("Unknown latency model '" + value + "'");
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid latency model '" + value + "'", e);
+        }
+    }
+
+    static void checkArity(String value, List<String> parts, int expected) {
+        Preconditions.checkArgument(parts.size() == expected, "Invalid latency model '" + value + "'");
+    }
+
+    long nextDelayInMs(Random random);
+
+    default long nextDelayInMs() {
+        return Math.max(0, nextDelayInMs(ThreadLocalRandom.current()));
+    }
+}
@@ -0,0 +1,373 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.http.pool.PoolStats;
+import org.apache.mailet.base.test.FakeMail;
+import org.apache.mailet.base.test.FakeMailetConfig;
+
+import com.github.steveash.guavate.Guavate;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Drives GuessClassificationMailet.service() from N concurrent spooler threads against {@link StubClassificationServer},
+ * to size spooler threads and connection pools before a rollout.
+ *
+ * Contrary to the JMH benchmarks, the classifier answers with a realistic latency and error rate, and the report
+ * focuses on what a deployment sees: sustained mails per second, service() latency percentiles, heap and GC behaviour.
+ *
+ * Options:
+ * <pre><code>
+ * --threads &lt;count&gt;            spooler threads calling service(), defaults to 16
+ * --warmup &lt;seconds&gt;           run discarded before measuring, defaults to 10
+ * --duration &lt;seconds&gt;         measured run, defaults to 60
+ * --message &lt;corpus&gt;           MessageCorpus entry sent by every thread, defaults to PLAIN
+ * --capture &lt;file&gt;             replays a TrafficCapture instead: its mails, latencies and server errors
+ * --latency &lt;model&gt;            LatencyModel of the stub, see its syntax, defaults to none
+ * --error-rate &lt;ratio&gt;         share of requests answered with a 503 by the stub, defaults to 0
+ * --mailet &lt;name=value&gt;        mailet parameter, can be repeated, for instance --mailet maxConnections=64
+ * </code></pre>
+ *
+ * Explicit --latency and --error-rate take precedence over the ones of a capture.
+ *
+ * Nagle's algorithm is disabled on the sockets of the stub, as for {@link ServiceBenchmark}: the JDK HTTP server
+ * sends the headers and the body of an answer in separate writes, and the body would otherwise wait for the delayed
+ * acknowledgement of the headers, adding about 40 ms to every reported latency.
+ */
+public class LoadTest {
+
+    private static final int DEFAULT_THREADS = 16;
+    private static final long DEFAULT_WARMUP_IN_SECONDS = 10;
+    private static final long DEFAULT_DURATION_IN_SECONDS = 60;
+    private static final long POOL_SAMPLING_INTERVAL_IN_MS = 100;
+    private static final List<Double> PERCENTILES = ImmutableList.of(50.0, 90.0, 99.0, 99.9);
+    private static final String NO_DELAY_PROPERTY = "sun.net.httpserver.nodelay";
+
+    @FunctionalInterface
+    interface MailSource {
+        FakeMail next() throws MessagingException;
+    }
+
+    static class Options {
+        private int threads = DEFAULT_THREADS;
+        private long warmupInSeconds = DEFAULT_WARMUP_IN_SECONDS;
+        private long durationInSeconds = DEFAULT_DURATION_IN_SECONDS;
+        private MessageCorpus message = MessageCorpus.PLAIN;
+        private Optional<String> capture = Optional.empty();
+        private Optional<LatencyModel> latency = Optional.empty();
+        private Optional<Double> errorRate = Optional.empty();
+        private final ImmutableMap.Builder<String, String> mailetProperties = ImmutableMap.builder();
+
+        static Options parse(String[] args) {
+            Preconditions.checkArgument(args.length % 2 == 0, "Every option expects a value: " + Arrays.toString(args));
+            Options options = new Options();
+            for (int i = 0; i < args.length; i += 2) {
+                options.set(args[i], args[i + 1]);
+            }
+            return options;
+        }
+
+        private void set(String option, String value) {
+            switch (option) {
+                case "--threads":
+                    threads = Integer.parseInt(value);
+                    Preconditions.checkArgument(threads > 0, "'--threads' should be strictly positive");
+                    break;
+                case "--warmup":
+                    warmupInSeconds = Long.parseLong(value);
+                    break;
+                case "--duration":
+                    durationInSeconds = Long.parseLong(value);
+                    Preconditions.checkArgument(durationInSeconds > 0, "'--duration' should be strictly positive");
+                    break;
+                case "--message":
+                    message = MessageCorpus.valueOf(value.trim().toUpperCase());
+                    break;
+                case "--capture":
+                    capture = Optional.of(value);
+                    break;
+                case "--latency":
+                    latency = Optional.of(LatencyModel.parse(value));
+                    break;
+                case "--error-rate":
+                    errorRate = Optional.of(Double.parseDouble(value));
+                    break;
+                case "--mailet":
+                    List<String> property = Splitter.on('=').limit(2).trimResults().splitToList(value);
+                    Preconditions.checkArgument(property.size() == 2, "'--mailet' expects name=value, got " + value);
+                    mailetProperties.put(property.get(0), property.get(1));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + option);
+            }
+        }
+    }
+
+    /**
+     * service() latencies of one spooler thread, in microseconds, kept unsampled so that percentiles are exact.
+     */
+    static class LatencyRecorder {
+        private long[] latencies = new long[1024];
+        private int size;
+
+        void record(long latencyInMicros) {
+            if (size == latencies.length) {
+                latencies = Arrays.copyOf(latencies, size * 2);
+            }
+            latencies[size++] = latencyInMicros;
+        }
+
+        static long[] sortedMerge(List<LatencyRecorder> recorders) {
+            long[] merged = new long[recorders.stream().mapToInt(recorder -> recorder.size).sum()];
+            int offset = 0;
+            for (LatencyRecorder recorder : recorders) {
+                System.arraycopy(recorder.latencies, 0, merged, offset, recorder.size);
+                offset += recorder.size;
+            }
+            Arrays.sort(merged);
+            return merged;
+        }
+
+        static long percentile(long[] sorted, double percentile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+        }
+    }
+
+    static class SpoolerThread extends Thread {
+        private final GuessClassificationMailet mailet;
+        private final MailSource mailSource;
+        private final long deadlineInNanos;
+        private final LatencyRecorder recorder;
+        private final AtomicLong unclassified;
+        private final AtomicLong allocatedBytes;
+
+        SpoolerThread(int index, GuessClassificationMailet mailet, MailSource mailSource, long deadlineInNanos, AtomicLong unclassified, AtomicLong allocatedBytes) {
+            super("spooler-" + index);
+            this.mailet = mailet;
+            this.mailSource = mailSource;
+            this.deadlineInNanos = deadlineInNanos;
+            this.recorder = new LatencyRecorder();
+            this.unclassified = unclassified;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        @Override
+        public void run() {
+            long allocatedAtStart = allocatedBytes();
+            try {
+                while (System.nanoTime() < deadlineInNanos) {
+                    FakeMail mail = mailSource.next();
+                    long start = System.nanoTime();
+                    mailet.service(mail);
+                    recorder.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+                    if (mail.getPerRecipientSpecificHeaders().getRecipientsWithSpecificHeaders().isEmpty()) {
+                        unclassified.incrementAndGet();
+                    }
+                }
+            } catch (MessagingException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                allocatedBytes.addAndGet(allocatedBytes() - allocatedAtStart);
+            }
+        }
+
+        private long allocatedBytes() {
+            ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+            if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+                return ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(getId());
+            }
+            return 0;
+        }
+    }
+
+    static class Run {
+        private final long[] sortedLatencies;
+        private final long durationInNanos;
+        private final long unclassified;
+        private final long allocatedBytes;
+        private final int maxLeasedConnections;
+        private final int maxPendingConnections;
+
+        Run(long[] sortedLatencies, long durationInNanos, long unclassified, long allocatedBytes, int maxLeasedConnections, int maxPendingConnections) {
+            this.sortedLatencies = sortedLatencies;
+            this.durationInNanos = durationInNanos;
+            this.unclassified = unclassified;
+            this.allocatedBytes = allocatedBytes;
+            this.maxLeasedConnections = maxLeasedConnections;
+            this.maxPendingConnections = maxPendingConnections;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty(NO_DELAY_PROPERTY, "true");
+        Options options = Options.parse(args);
+        Optional<TrafficCapture> capture = options.capture.isPresent()
+            ? Optional.of(TrafficCapture.load(Paths.get(options.capture.get())))
+            : Optional.empty();
+
+        try (StubClassificationServer server = startServer(options, capture)) {
+            GuessClassificationMailet mailet = new GuessClassificationMailet();
+            mailet.init(mailetConfig(options, server));
+            try {
+                MailSource mailSource = mailSource(options, capture);
+                if (options.warmupInSeconds > 0) {
+                    run(mailet, mailSource, options.threads, options.warmupInSeconds);
+                }
+                long requestsBefore = server.getRequestCount();
+                long errorsBefore = server.getErrorCount();
+                Map<String, long[]> gcBefore = gcCounters();
+                List<MemoryPoolMXBean> heapPools = heapPools();
+                heapPools.forEach(MemoryPoolMXBean::resetPeakUsage);
+
+                Run run = run(mailet, mailSource, options.threads, options.durationInSeconds);
+
+                report(options, run, server.getRequestCount() - requestsBefore, server.getErrorCount() - errorsBefore,
+                    gcBefore, heapPools);
+            } finally {
+                mailet.destroy();
+            }
+        }
+    }
+
+    private static StubClassificationServer startServer(Options options, Optional<TrafficCapture> capture) throws Exception {
+        StubClassificationServer.Builder server = StubClassificationServer.builder();
+        Optional<LatencyModel> latency = options.latency.isPresent() ? options.latency : capture.map(TrafficCapture::latencyModel);
+        Optional<Double> errorRate = options.errorRate.isPresent() ? options.errorRate : capture.map(TrafficCapture::errorRate);
+        latency.ifPresent(server::latency);
+        errorRate.ifPresent(server::errorRate);
+        return server.start();
+    }
+
+    private static FakeMailetConfig mailetConfig(Options options, StubClassificationServer server) {
+        FakeMailetConfig.Builder config = FakeMailetConfig.builder()
+            .setProperty(GuessClassificationMailet.SERVICE_URL, server.getServiceUrl())
+            .setProperty(GuessClassificationMailet.SERVICE_USERNAME, "username")
+            .setProperty(GuessClassificationMailet.SERVICE_PASSWORD, "password");
+        options.mailetProperties.build().forEach(config::setProperty);
+        return config.build();
+    }
+
+    private static MailSource mailSource(Options options, Optional<TrafficCapture> capture) throws MessagingException {
+        if (capture.isPresent()) {
+            return capture.get()::nextMail;
+        }
+        MimeMessage mimeMessage = options.message.mimeMessage();
+        ImmutableList<org.apache.james.core.MailAddress> recipients = options.message.mailRecipients();
+        return () -> FakeMail.builder()
+            .mimeMessage(mimeMessage)
+            .recipients(recipients)
+            .build();
+    }
+
+    private static Run run(GuessClassificationMailet mailet, MailSource mailSource, int threads, long durationInSeconds) throws InterruptedException {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(durationInSeconds);
+        AtomicLong unclassified = new AtomicLong();
+        AtomicLong allocatedBytes = new AtomicLong();
+        AtomicLong maxLeased = new AtomicLong();
+        AtomicLong maxPending = new AtomicLong();
+
+        ScheduledExecutorService poolSampler = Executors.newSingleThreadScheduledExecutor();
+        poolSampler.scheduleAtFixedRate(() -> {
+            PoolStats stats = mailet.getConnectionPoolStats();
+            maxLeased.accumulateAndGet(stats.getLeased(), Math::max);
+            maxPending.accumulateAndGet(stats.getPending(), Math::max);
+        }, 0, POOL_SAMPLING_INTERVAL_IN_MS, TimeUnit.MILLISECONDS);
+
+        ImmutableList.Builder<SpoolerThread> spoolerThreads = ImmutableList.builder();
+        for (int i = 0; i < threads; i++) {
+            spoolerThreads.add(new SpoolerThread(i, mailet, mailSource, deadline, unclassified, allocatedBytes));
+        }
+        ImmutableList<SpoolerThread> started = spoolerThreads.build();
+        started.forEach(Thread::start);
+        for (SpoolerThread thread : started) {
+            thread.join();
+        }
+        long duration = System.nanoTime() - start;
+        poolSampler.shutdownNow();
+
+        return new Run(LatencyRecorder.sortedMerge(started.stream()
+                .map(thread -> thread.recorder)
+                .collect(Guavate.toImmutableList())),
+            duration, unclassified.get(), allocatedBytes.get(), (int) maxLeased.get(), (int) maxPending.get());
+    }
+
+    private static List<MemoryPoolMXBean> heapPools() {
+        return ManagementFactory.getMemoryPoolMXBeans().stream()
+            .filter(pool -> pool.getType() == MemoryType.HEAP)
+            .collect(Guavate.toImmutableList());
+    }
+
+    private static Map<String, long[]> gcCounters() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream()
+            .collect(Guavate.toImmutableMap(GarbageCollectorMXBean::getName,
+                gc -> new long[] {gc.getCollectionCount(), gc.getCollectionTime()}));
+    }
+
+    private static void report(Options options, Run run, long requests, long serverErrors, Map<String, long[]> gcBefore, List<MemoryPoolMXBean> heapPools) {
+        long mails = run.sortedLatencies.length;
+        double seconds = run.durationInNanos / 1e9;
+
+        System.out.println("Threads:            " + options.threads);
+        System.out.println("Traffic:            " + options.capture.map(file -> "capture " + file).orElse("corpus " + options.message));
+        System.out.println("Duration:           " + String.format("%.1f s", seconds));
+        System.out.println("Mails:              " + mails + " (" + run.unclassified + " unclassified)");
+        System.out.println("Throughput:         " + String.format("%.1f mails/s", mails / seconds));
+        System.out.println("Requests:           " + requests + " (" + serverErrors + " injected errors)");
+        for (double percentile : PERCENTILES) {
+            System.out.println(String.format("Latency p%-10s %.2f ms", percentile + ":", LatencyRecorder.percentile(run.sortedLatencies, percentile) / 1000.0));
+        }
+        System.out.println(String.format("Latency max:        %.2f ms", LatencyRecorder.percentile(run.sortedLatencies, 100) / 1000.0));
+        System.out.println("Connections:        max " + run.maxLeasedConnections + " leased, max " + run.maxPendingConnections + " pending");
+        if (mails > 0 && run.allocatedBytes > 0) {
+            System.out.println("Allocated:          " + run.allocatedBytes / mails + " bytes/mail in spooler threads");
+        }
+        System.out.println("Peak heap:          " + heapPools.stream().mapToLong(pool -> pool.getPeakUsage().getUsed()).sum() / (1024 * 1024) + " MB");
+        ManagementFactory.getGarbageCollectorMXBeans().forEach(gc -> {
+            long[] before = Optional.ofNullable(gcBefore.get(gc.getName())).orElse(new long[] {0, 0});
+            System.out.println("GC " + gc.getName() + ": " + (gc.getCollectionCount() - before[0]) + " collections, "
+                + (gc.getCollectionTime() - before[1]) + " ms");
+        });
+    }
+}
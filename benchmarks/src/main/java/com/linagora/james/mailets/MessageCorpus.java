@@ -0,0 +1,151 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.io.UnsupportedEncodingException;
+import java.util.stream.IntStream;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.james.core.MailAddress;
+import org.apache.mailet.base.test.FakeMail;
+import org.apache.mailet.base.test.MimeMessageBuilder;
+
+import com.github.steveash.guavate.Guavate;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Deterministic messages covering the shapes the classification hot path has to handle.
+ */
+public enum MessageCorpus {
+    PLAIN {
+        @Override
+        MimeMessage mimeMessage() throws MessagingException {
+            return baseMessage()
+                .setText(Strings.repeat(SENTENCE, 40))
+                .build();
+        }
+    },
+    HTML_HEAVY {
+        @Override
+        MimeMessage mimeMessage() throws MessagingException {
+            return baseMessage()
+                .setText(htmlNewsletter(), "text/html; charset=UTF-8")
+                .build();
+        }
+    },
+    MULTIPART_WITH_ATTACHMENTS {
+        @Override
+        MimeMessage mimeMessage() throws MessagingException {
+            return baseMessage()
+                .setMultipartWithBodyParts(
+                    MimeMessageBuilder.bodyPartBuilder()
+                        .data(Strings.repeat(SENTENCE, 40))
+                        .build(),
+                    MimeMessageBuilder.bodyPartBuilder()
+                        .data(new byte[ATTACHMENT_SIZE_IN_BYTES])
+                        .type("application/pdf")
+                        .disposition("attachment")
+                        .filename("report.pdf")
+                        .build(),
+                    MimeMessageBuilder.bodyPartBuilder()
+                        .data(new byte[ATTACHMENT_SIZE_IN_BYTES])
+                        .type("image/png")
+                        .disposition("attachment")
+                        .filename("chart.png")
+                        .build())
+                .build();
+        }
+    },
+    MANY_RECIPIENTS {
+        @Override
+        MimeMessage mimeMessage() throws MessagingException {
+            return baseMessage()
+                .addToRecipient(recipients(MANY_RECIPIENTS_COUNT).stream()
+                    .map(MailAddress::asString)
+                    .toArray(String[]::new))
+                .setText(Strings.repeat(SENTENCE, 40))
+                .build();
+        }
+
+        @Override
+        ImmutableList<MailAddress> mailRecipients() throws AddressException {
+            return recipients(MANY_RECIPIENTS_COUNT);
+        }
+    };
+
+    public static final int MANY_RECIPIENTS_COUNT = 500;
+    private static final int ATTACHMENT_SIZE_IN_BYTES = 2 * 1024 * 1024;
+    private static final String SENTENCE = "The quarterly report is attached, please review the figures before the meeting. ";
+
+    public static ImmutableList<MailAddress> recipients(int count) {
+        return IntStream.range(0, count)
+            .mapToObj(i -> "user" + i + "@james.org")
+            .map(MessageCorpus::mailAddress)
+            .collect(Guavate.toImmutableList());
+    }
+
+    private static MailAddress mailAddress(String address) {
+        try {
+            return new MailAddress(address);
+        } catch (AddressException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    private static MimeMessageBuilder baseMessage() throws MessagingException {
+        try {
+            return MimeMessageBuilder.mimeMessageBuilder()
+                .addFrom(new InternetAddress("newsletter@james.org", "Newsletter"))
+                .addToRecipient("user0@james.org")
+                .setSubject("Your weekly digest")
+                .addHeader("Date", "Wed, 24 May 2017 06:23:11 -0700");
+        } catch (UnsupportedEncodingException e) {
+            throw new MessagingException("Invalid sender", e);
+        }
+    }
+
+    public static String htmlNewsletter() {
+        StringBuilder html = new StringBuilder("<html><head><style>td { padding: 4px; } .promo { color: red; }</style>"
+            + "<script>var tracking = {id: 42};</script></head><body><table>");
+        for (int row = 0; row < 200; row++) {
+            html.append("<tr><td class=\"promo\"><a href=\"https://james.org/offer/").append(row).append("\">")
+                .append("Offer &amp; discount n&deg;").append(row).append("</a></td><td>")
+                .append(SENTENCE).append("</td></tr>");
+        }
+        return html.append("</table></body></html>").toString();
+    }
+
+    abstract MimeMessage mimeMessage() throws MessagingException;
+
+    ImmutableList<MailAddress> mailRecipients() throws AddressException {
+        return ImmutableList.of(new MailAddress("user0@james.org"));
+    }
+
+    public FakeMail mail() throws MessagingException {
+        return FakeMail.builder()
+            .mimeMessage(mimeMessage())
+            .recipients(mailRecipients())
+            .build();
+    }
+}
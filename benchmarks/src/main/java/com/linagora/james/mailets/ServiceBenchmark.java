@@ -0,0 +1,89 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.internet.MimeMessage;
+
+import org.apache.mailet.base.test.FakeMail;
+import org.apache.mailet.base.test.FakeMailetConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End to end cost of GuessClassificationMailet.service() against an in-process stub of the classification webservice
+ * answering immediately: request body creation, HTTP round trip over loopback, answer parsing and headers.
+ *
+ * The JDK HTTP server sends the headers and the body of an answer in separate writes: forks disable Nagle's algorithm
+ * on its sockets, otherwise each answer body waits for the delayed acknowledgement of its headers, about 40 ms.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = "-Dsun.net.httpserver.nodelay=true")
+public class ServiceBenchmark {
+
+    @Param
+    public MessageCorpus message;
+
+    private StubClassificationServer server;
+    private GuessClassificationMailet mailet;
+    private MimeMessage mimeMessage;
+
+    @Setup
+    public void setUp() throws Exception {
+        server = StubClassificationServer.start();
+        mailet = new GuessClassificationMailet();
+        mailet.init(FakeMailetConfig.builder()
+            .setProperty(GuessClassificationMailet.SERVICE_URL, server.getServiceUrl())
+            .setProperty(GuessClassificationMailet.SERVICE_USERNAME, "username")
+            .setProperty(GuessClassificationMailet.SERVICE_PASSWORD, "password")
+            .build());
+        mimeMessage = message.mimeMessage();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mailet.destroy();
+        server.close();
+    }
+
+    @Benchmark
+    public FakeMail service() throws Exception {
+        FakeMail mail = FakeMail.builder()
+            .mimeMessage(mimeMessage)
+            .recipients(message.mailRecipients())
+            .build();
+        mailet.service(mail);
+        return mail;
+    }
+}
@@ -0,0 +1,266 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.james.core.MailAddress;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.github.steveash.guavate.Guavate;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process stand-in for the classification webservice, bound to an ephemeral loopback port.
+ *
+ * It answers every request with a guess for each recipient given as query parameter, or in the mailRecipients field
+ * of JSON bodies, so that benchmarks measure the mailet and not a remote model. Load tests can make it slower and less
+ * reliable than a real deployment: each answer is delayed according to a {@link LatencyModel} and a share of them are
+ * replaced by 503 errors.
+ */
+public class StubClassificationServer implements AutoCloseable {
+
+    private static final String PATH = "/email/classification/predict";
+    private static final int THREAD_COUNT = 16;
+    private static final double NO_ERROR = 0;
+    private static final JsonFactory JSON_FACTORY = new JsonFactory().disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+
+    public static class Builder {
+        private Optional<LatencyModel> latency;
+        private Optional<Double> errorRate;
+
+        private Builder() {
+            latency = Optional.empty();
+            errorRate = Optional.empty();
+        }
+
+        public Builder latency(LatencyModel latency) {
+            this.latency = Optional.of(latency);
+            return this;
+        }
+
+        public Builder errorRate(double errorRate) {
+            Preconditions.checkArgument(errorRate >= 0 && errorRate <= 1, "'errorRate' should be between 0 and 1");
+            this.errorRate = Optional.of(errorRate);
+            return this;
+        }
+
+        /**
+         * Answers on a cached thread pool as soon as a latency is simulated: delayed answers hold their thread, which
+         * should not limit the concurrency the mailet sees.
+         */
+        public StubClassificationServer start() throws IOException {
+            HttpServer httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+            ExecutorService executor = latency.isPresent() ? Executors.newCachedThreadPool() : Executors.newFixedThreadPool(THREAD_COUNT);
+            StubClassificationServer server = new StubClassificationServer(httpServer, executor,
+                latency.orElse(LatencyModel.NONE), errorRate.orElse(NO_ERROR));
+            httpServer.createContext(PATH, server::handle);
+            httpServer.setExecutor(executor);
+            httpServer.start();
+            return server;
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static StubClassificationServer start() throws IOException {
+        return builder().start();
+    }
+
+    public static String classificationResponse(Collection<MailAddress> recipients) {
+        return classificationResponseOf(recipients.stream()
+            .map(MailAddress::asString)
+            .collect(Guavate.toImmutableList()));
+    }
+
+    private static String classificationResponseOf(List<String> recipients) {
+        StringBuilder response = new StringBuilder("{\"results\":{");
+        for (int i = 0; i < recipients.size(); i++) {
+            if (i > 0) {
+                response.append(',');
+            }
+            response.append('"').append(recipients.get(i)).append("\":{")
+                .append("\"mailboxId\":\"cfe49390-f391-11e6-88e7-ddd22b16a7b9\",")
+                .append("\"mailboxName\":\"JAMES\",")
+                .append("\"confidence\":50.07615280151367}");
+        }
+        return response.append("},\"errors\":{}}").toString();
+    }
+
+    private final HttpServer httpServer;
+    private final ExecutorService executor;
+    private final LatencyModel latency;
+    private final double errorRate;
+    private final AtomicLong requestCount;
+    private final AtomicLong errorCount;
+
+    private StubClassificationServer(HttpServer httpServer, ExecutorService executor, LatencyModel latency, double errorRate) {
+        this.httpServer = httpServer;
+        this.executor = executor;
+        this.latency = latency;
+        this.errorRate = errorRate;
+        this.requestCount = new AtomicLong();
+        this.errorCount = new AtomicLong();
+    }
+
+    public String getServiceUrl() {
+        return "http://localhost:" + httpServer.getAddress().getPort() + PATH;
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public long getErrorCount() {
+        return errorCount.get();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requestCount.incrementAndGet();
+        List<String> recipients;
+        try (InputStream requestBody = exchange.getRequestBody()) {
+            recipients = recipients(exchange, requestBody);
+            ByteStreams.copy(requestBody, ByteStreams.nullOutputStream());
+        }
+        if (!delay()) {
+            exchange.close();
+            return;
+        }
+        if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+            errorCount.incrementAndGet();
+            exchange.sendResponseHeaders(503, -1);
+            exchange.close();
+            return;
+        }
+        byte[] response = classificationResponseOf(recipients).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(200, response.length);
+        try (OutputStream responseBody = exchange.getResponseBody()) {
+            responseBody.write(response);
+        }
+    }
+
+    private boolean delay() {
+        long delayInMs = latency.nextDelayInMs();
+        if (delayInMs == 0) {
+            return true;
+        }
+        try {
+            Thread.sleep(delayInMs);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private List<String> recipients(HttpExchange exchange, InputStream requestBody) throws IOException {
+        List<String> recipients = queryRecipients(exchange);
+        if (!recipients.isEmpty() || !isJson(exchange)) {
+            return recipients;
+        }
+        return bodyRecipients(decoded(exchange, requestBody));
+    }
+
+    private List<String> queryRecipients(HttpExchange exchange) {
+        return Optional.ofNullable(exchange.getRequestURI().getRawQuery())
+            .map(query -> Arrays.stream(query.split("&"))
+                .filter(parameter -> parameter.startsWith("recipients="))
+                .map(parameter -> decode(parameter.substring("recipients=".length())))
+                .collect(Guavate.toImmutableList()))
+            .orElse(ImmutableList.of());
+    }
+
+    private boolean isJson(HttpExchange exchange) {
+        return Optional.ofNullable(exchange.getRequestHeaders().getFirst("Content-Type"))
+            .map(contentType -> contentType.startsWith("application/json"))
+            .orElse(false);
+    }
+
+    private InputStream decoded(HttpExchange exchange, InputStream requestBody) throws IOException {
+        String contentEncoding = Optional.ofNullable(exchange.getRequestHeaders().getFirst("Content-Encoding")).orElse("");
+        switch (contentEncoding) {
+            case "gzip":
+                return new GZIPInputStream(requestBody);
+            case "deflate":
+                return new InflaterInputStream(requestBody);
+            default:
+                return requestBody;
+        }
+    }
+
+    private List<String> bodyRecipients(InputStream body) throws IOException {
+        try (JsonParser parser = JSON_FACTORY.createParser(body)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return ImmutableList.of();
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                if (parser.nextToken() == JsonToken.START_ARRAY && field.equals("mailRecipients")) {
+                    ImmutableList.Builder<String> recipients = ImmutableList.builder();
+                    while (parser.nextToken() == JsonToken.VALUE_STRING) {
+                        recipients.add(parser.getText());
+                    }
+                    return recipients.build();
+                }
+                parser.skipChildren();
+            }
+            return ImmutableList.of();
+        }
+    }
+
+    private String decode(String value) {
+        try {
+            return URLDecoder.decode(value, StandardCharsets.UTF_8.name());
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        httpServer.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,179 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.james.core.MailAddress;
+import org.apache.mailet.base.test.FakeMail;
+import org.apache.mailet.base.test.MimeMessageBuilder;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.steveash.guavate.Guavate;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Recorded, anonymized exchanges with the classification webservice, replayed by {@link LoadTest}.
+ *
+ * A capture is a JSON lines file, one exchange per line:
+ * <pre><code>
+ * {"from":"a1@example.com","to":["b2@example.com"],"cc":[],"subject":"...","textBody":"...","htmlBody":"...",
+ *  "latencyInMs":37,"status":200}
+ * </code></pre>
+ *
+ * htmlBody, cc and status (200) are optional. Mails are rebuilt from the request side of the exchanges, in order,
+ * while the stub server reproduces the recorded latency distribution and server error rate.
+ */
+public class TrafficCapture {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final int OK = 200;
+    private static final int SERVER_ERROR = 500;
+
+    public static class Exchange {
+        private final MailAddress sender;
+        private final ImmutableList<MailAddress> recipients;
+        private final MimeMessage mimeMessage;
+        private final long latencyInMs;
+        private final int status;
+
+        private Exchange(MailAddress sender, ImmutableList<MailAddress> recipients, MimeMessage mimeMessage, long latencyInMs, int status) {
+            this.sender = sender;
+            this.recipients = recipients;
+            this.mimeMessage = mimeMessage;
+            this.latencyInMs = latencyInMs;
+            this.status = status;
+        }
+
+        public long getLatencyInMs() {
+            return latencyInMs;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public FakeMail mail() throws MessagingException {
+            return FakeMail.builder()
+                .mimeMessage(mimeMessage)
+                .sender(sender)
+                .recipients(recipients)
+                .build();
+        }
+    }
+
+    public static TrafficCapture load(Path path) throws IOException, MessagingException {
+        ImmutableList.Builder<Exchange> exchanges = ImmutableList.builder();
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    exchanges.add(exchange(OBJECT_MAPPER.readTree(line)));
+                }
+            }
+        }
+        return new TrafficCapture(exchanges.build());
+    }
+
+    private static Exchange exchange(JsonNode json) throws MessagingException {
+        ImmutableList<MailAddress> to = addresses(json.path("to"));
+        ImmutableList<MailAddress> cc = addresses(json.path("cc"));
+        MimeMessageBuilder message = MimeMessageBuilder.mimeMessageBuilder()
+            .addFrom(new InternetAddress(json.path("from").asText()))
+            .setSubject(json.path("subject").asText());
+        if (!to.isEmpty()) {
+            message.addToRecipient(asStrings(to));
+        }
+        if (!cc.isEmpty()) {
+            message.addCcRecipient(asStrings(cc));
+        }
+        Optional<String> htmlBody = Optional.ofNullable(json.get("htmlBody")).map(JsonNode::asText);
+        if (htmlBody.isPresent()) {
+            message.setText(htmlBody.get(), "text/html; charset=UTF-8");
+        } else {
+            message.setText(json.path("textBody").asText());
+        }
+        ImmutableList<MailAddress> recipients = ImmutableList.<MailAddress>builder().addAll(to).addAll(cc).build();
+        Preconditions.checkArgument(!recipients.isEmpty(), "Captured exchange without recipients: " + json);
+        return new Exchange(new MailAddress(json.path("from").asText()), recipients, message.build(),
+            json.path("latencyInMs").asLong(), json.path("status").asInt(OK));
+    }
+
+    private static ImmutableList<MailAddress> addresses(JsonNode json) throws AddressException {
+        ImmutableList.Builder<MailAddress> addresses = ImmutableList.builder();
+        for (JsonNode address : json) {
+            addresses.add(new MailAddress(address.asText()));
+        }
+        return addresses.build();
+    }
+
+    private static String[] asStrings(ImmutableList<MailAddress> addresses) {
+        return addresses.stream()
+            .map(MailAddress::asString)
+            .toArray(String[]::new);
+    }
+
+    private final ImmutableList<Exchange> exchanges;
+    private final AtomicInteger next;
+
+    private TrafficCapture(ImmutableList<Exchange> exchanges) {
+        Preconditions.checkArgument(!exchanges.isEmpty(), "The capture should contain at least one exchange");
+        this.exchanges = exchanges;
+        this.next = new AtomicInteger();
+    }
+
+    public ImmutableList<Exchange> getExchanges() {
+        return exchanges;
+    }
+
+    /**
+     * Cycles over the captured exchanges, in recording order, from any number of threads.
+     */
+    public FakeMail nextMail() throws MessagingException {
+        return exchanges.get(Math.floorMod(next.getAndIncrement(), exchanges.size())).mail();
+    }
+
+    public LatencyModel latencyModel() {
+        return LatencyModel.empirical(exchanges.stream()
+            .map(Exchange::getLatencyInMs)
+            .collect(Guavate.toImmutableList()));
+    }
+
+    /**
+     * Only server errors are replayed: client errors denote requests the current mailet would not send.
+     */
+    public double errorRate() {
+        return (double) exchanges.stream()
+            .filter(exchange -> exchange.getStatus() >= SERVER_ERROR)
+            .count() / exchanges.size();
+    }
+}
@@ -0,0 +1,149 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+package com.linagora.james.mailets.json;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.linagora.james.mailets.MessageCorpus;
+import com.linagora.james.mailets.StubClassificationServer;
+
+/**
+ * Encoding and decoding of request bodies and classification answers in each {@link WireFormat}, on both the mailet
+ * and the classification webservice sides.
+ *
+ * Running this class as a main program prints the payload sizes instead, which do not vary between runs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class WireFormatBenchmark {
+
+    private static final int[] RECIPIENT_COUNTS = {1, 100, 10000};
+
+    @State(Scope.Benchmark)
+    public static class Request {
+        @Param
+        public MessageCorpus message;
+
+        private ClassificationRequestBody body;
+        private byte[] encoded;
+
+        @Setup
+        public void setUp(WireFormatBenchmark benchmark) throws Exception {
+            body = requestBody(message);
+            encoded = encode(body, benchmark.wireFormat);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Response {
+        @Param({"1", "100", "10000"})
+        public int recipientCount;
+
+        private JsonNode tree;
+        private byte[] encoded;
+
+        @Setup
+        public void setUp(WireFormatBenchmark benchmark) throws Exception {
+            tree = responseTree(recipientCount);
+            encoded = benchmark.objectMapper.writeValueAsBytes(tree);
+        }
+    }
+
+    @Param
+    public WireFormat wireFormat;
+
+    private ObjectMapper objectMapper;
+
+    @Setup
+    public void setUp() {
+        objectMapper = wireFormat.newObjectMapper();
+    }
+
+    @Benchmark
+    public byte[] encodeRequest(Request request) throws Exception {
+        return encode(request.body, wireFormat);
+    }
+
+    @Benchmark
+    public JsonNode decodeRequest(Request request) throws Exception {
+        return objectMapper.readTree(request.encoded);
+    }
+
+    @Benchmark
+    public byte[] encodeResponse(Response response) throws Exception {
+        return objectMapper.writeValueAsBytes(response.tree);
+    }
+
+    @Benchmark
+    public ClassificationGuesses decodeResponse(Response response) throws Exception {
+        return new ClassificationGuessesReader(objectMapper, false).read(new ByteArrayInputStream(response.encoded));
+    }
+
+    private static ClassificationRequestBody requestBody(MessageCorpus message) throws Exception {
+        return new ClassificationRequestBodySerializer(message.mail(), new FixedUUIDGenerator()).toRequestBody();
+    }
+
+    private static JsonNode responseTree(int recipientCount) throws IOException {
+        return new ObjectMapper().readTree(StubClassificationServer.classificationResponse(MessageCorpus.recipients(recipientCount)));
+    }
+
+    private static byte[] encode(ClassificationRequestBody body, WireFormat wireFormat) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        ClassificationRequestBodySerializer.writeTo(body, outputStream, wireFormat);
+        return outputStream.toByteArray();
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.out.println(String.format("%-28s %10s %10s %10s", "payload", "JSON", "SMILE", "CBOR"));
+        for (MessageCorpus message : MessageCorpus.values()) {
+            ClassificationRequestBody body = requestBody(message);
+            System.out.println(String.format("%-28s %10d %10d %10d", "request " + message,
+                encode(body, WireFormat.JSON).length,
+                encode(body, WireFormat.SMILE).length,
+                encode(body, WireFormat.CBOR).length));
+        }
+        for (int recipientCount : RECIPIENT_COUNTS) {
+            JsonNode tree = responseTree(recipientCount);
+            System.out.println(String.format("%-28s %10d %10d %10d", "response " + recipientCount + " recipients",
+                WireFormat.JSON.newObjectMapper().writeValueAsBytes(tree).length,
+                WireFormat.SMILE.newObjectMapper().writeValueAsBytes(tree).length,
+                WireFormat.CBOR.newObjectMapper().writeValueAsBytes(tree).length));
+        }
+    }
+}
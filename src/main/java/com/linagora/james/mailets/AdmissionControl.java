@@ -0,0 +1,151 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.util.Optional;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.primitives.Ints;
+
+/**
+ * Global budget of bytes held by in-flight classifications.
+ *
+ * While classified, a mail is held as its raw MIME content, its parsed form, the extracted text (two bytes per
+ * character) and its request body: its working set is estimated to {@link #WORKING_SET_FACTOR} times its size.
+ * Mails are admitted while the sum of working sets stays below maxInFlightBytes, possibly after waiting for other
+ * classifications to complete. Mails larger than the whole budget are admitted alone.
+ *
+ * The budget is accounted in kilobytes.
+ */
+public class AdmissionControl {
+
+    public static final int WORKING_SET_FACTOR = 4;
+    private static final int UNIT_IN_BYTES = 1024;
+
+    public static long estimatedWorkingSet(long messageSizeInBytes) {
+        return Math.max(messageSizeInBytes, 0) * WORKING_SET_FACTOR;
+    }
+
+    public class Permit {
+        private final int units;
+        private final AtomicBoolean released;
+
+        private Permit(int units) {
+            this.units = units;
+            this.released = new AtomicBoolean(false);
+        }
+
+        /**
+         * Gives the bytes back to the budget. Only the first call has an effect.
+         */
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                semaphore.release(units);
+            }
+        }
+    }
+
+    private final int totalUnits;
+    private final Semaphore semaphore;
+    private final ClassificationMetrics metrics;
+    private final AtomicLong admittedCount;
+    private final AtomicLong waitCount;
+    private final AtomicLong rejectedCount;
+
+    public AdmissionControl(long maxInFlightBytes, ClassificationMetrics metrics) {
+        Preconditions.checkArgument(maxInFlightBytes > 0, "'maxInFlightBytes' should be strictly positive");
+        this.totalUnits = toUnits(maxInFlightBytes, Integer.MAX_VALUE);
+        this.semaphore = new Semaphore(totalUnits, true);
+        this.metrics = metrics;
+        this.admittedCount = new AtomicLong();
+        this.waitCount = new AtomicLong();
+        this.rejectedCount = new AtomicLong();
+    }
+
+    private static int toUnits(long bytes, int maxUnits) {
+        return Math.max(1, Math.min(Ints.saturatedCast((bytes + UNIT_IN_BYTES - 1) / UNIT_IN_BYTES), maxUnits));
+    }
+
+    /**
+     * Admits the given working set, waiting at most waitInMs for enough in-flight bytes to be released. Working sets
+     * are admitted in arrival order: a small one does not overtake a larger one waiting for the budget, even when
+     * there is room for it.
+     *
+     * @return the permit to release once the classification completes, or empty when the budget stayed exhausted
+     */
+    public Optional<Permit> tryAcquire(long workingSetInBytes, long waitInMs) throws InterruptedException {
+        int units = toUnits(workingSetInBytes, totalUnits);
+        if (!semaphore.tryAcquire(units, 0, TimeUnit.MILLISECONDS)) {
+            waitCount.incrementAndGet();
+            metrics.onAdmissionWait();
+            if (!semaphore.tryAcquire(units, waitInMs, TimeUnit.MILLISECONDS)) {
+                rejectedCount.incrementAndGet();
+                metrics.onAdmissionRejected();
+                return Optional.empty();
+            }
+        }
+        admittedCount.incrementAndGet();
+        metrics.onAdmitted();
+        return Optional.of(new Permit(units));
+    }
+
+    public long getInFlightBytes() {
+        return (long) (totalUnits - semaphore.availablePermits()) * UNIT_IN_BYTES;
+    }
+
+    public long getMaxInFlightBytes() {
+        return (long) totalUnits * UNIT_IN_BYTES;
+    }
+
+    /**
+     * Count of working sets admitted, with or without waiting.
+     */
+    public long getAdmittedCount() {
+        return admittedCount.get();
+    }
+
+    /**
+     * Count of working sets that had to wait for in-flight bytes to be released.
+     */
+    public long getWaitCount() {
+        return waitCount.get();
+    }
+
+    /**
+     * Count of working sets not admitted within the wait delay.
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    @VisibleForTesting
+    int availableUnits() {
+        return semaphore.availablePermits();
+    }
+
+    @VisibleForTesting
+    int waitingCount() {
+        return semaphore.getQueueLength();
+    }
+}
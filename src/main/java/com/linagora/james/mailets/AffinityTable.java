@@ -0,0 +1,258 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.james.core.MailAddress;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
+import com.linagora.james.mailets.json.ClassificationGuess;
+
+/**
+ * Bounded table of the mailboxes mails from a given sender to a given recipient were classified in, learned from
+ * the classification webservice answers.
+ *
+ * An affinity is trusted once the same mailbox was guessed minHitStreak times in a row with at least minConfidence.
+ * Mails whose recipients all have a trusted affinity can then be classified locally. A verificationPercentage of
+ * them is still sent to the classification webservice, so that affinities keep being confirmed or contradicted.
+ *
+ * Entries are evicted in least recently used order once maxEntries is reached, or after ttlInMs without being
+ * learned again. All entries are invalidated when the model version reported by the classification webservice
+ * changes.
+ */
+public class AffinityTable {
+
+    static class Key {
+        private final String sender;
+        private final String recipient;
+
+        Key(String sender, String recipient) {
+            this.sender = sender;
+            this.recipient = recipient;
+        }
+
+        @Override
+        public final boolean equals(Object o) {
+            if (o instanceof Key) {
+                Key that = (Key) o;
+
+                return Objects.equals(this.sender, that.sender)
+                    && Objects.equals(this.recipient, that.recipient);
+            }
+            return false;
+        }
+
+        @Override
+        public final int hashCode() {
+            return Objects.hash(sender, recipient);
+        }
+    }
+
+    public static class Affinity {
+        private final String mailboxId;
+        private final String mailboxName;
+        private final double confidence;
+        private final int hitStreak;
+
+        private Affinity(String mailboxId, String mailboxName, double confidence, int hitStreak) {
+            this.mailboxId = mailboxId;
+            this.mailboxName = mailboxName;
+            this.confidence = confidence;
+            this.hitStreak = hitStreak;
+        }
+
+        private Affinity next(ClassificationGuess guess) {
+            if (Objects.equals(mailboxId, guess.getMailboxId())) {
+                return new Affinity(guess.getMailboxId(), guess.getMailboxName(), guess.getConfidence(), hitStreak + 1);
+            }
+            return from(guess);
+        }
+
+        private static Affinity from(ClassificationGuess guess) {
+            return new Affinity(guess.getMailboxId(), guess.getMailboxName(), guess.getConfidence(), 1);
+        }
+
+        public String getMailboxId() {
+            return mailboxId;
+        }
+
+        public String getMailboxName() {
+            return mailboxName;
+        }
+
+        public double getConfidence() {
+            return confidence;
+        }
+
+        public int getHitStreak() {
+            return hitStreak;
+        }
+
+        private ClassificationGuess asGuess() {
+            return ClassificationGuess.builder()
+                .mailboxId(mailboxId)
+                .mailboxName(mailboxName)
+                .confidence(confidence)
+                .build();
+        }
+    }
+
+    private final Cache<Key, Affinity> affinities;
+    private final int minHitStreak;
+    private final double minConfidence;
+    private final int verificationPercentage;
+    private final AtomicLong hitCount;
+    private final AtomicLong verificationCount;
+    private final AtomicLong contradictionCount;
+    private final AtomicReference<Optional<String>> modelVersion;
+
+    public AffinityTable(long maxEntries, long ttlInMs, int minHitStreak, double minConfidence, int verificationPercentage) {
+        Preconditions.checkArgument(minHitStreak > 0, "'minHitStreak' should be strictly positive");
+        Preconditions.checkArgument(verificationPercentage >= 0 && verificationPercentage <= 100, "'verificationPercentage' should be a percentage");
+        this.affinities = CacheBuilder.newBuilder()
+            .maximumSize(maxEntries)
+            .expireAfterWrite(ttlInMs, TimeUnit.MILLISECONDS)
+            .build();
+        this.minHitStreak = minHitStreak;
+        this.minConfidence = minConfidence;
+        this.verificationPercentage = verificationPercentage;
+        this.hitCount = new AtomicLong();
+        this.verificationCount = new AtomicLong();
+        this.contradictionCount = new AtomicLong();
+        this.modelVersion = new AtomicReference<>(Optional.empty());
+    }
+
+    /**
+     * The guesses of all the given recipients, when each of them has a trusted affinity with the sender.
+     */
+    public Optional<Map<String, ClassificationGuess>> guess(MailAddress sender, Collection<MailAddress> recipients) {
+        if (recipients.isEmpty()) {
+            return Optional.empty();
+        }
+        ImmutableMap.Builder<String, ClassificationGuess> result = ImmutableMap.builder();
+        for (MailAddress recipient : recipients) {
+            Affinity affinity = affinities.getIfPresent(new Key(sender.asString(), recipient.asString()));
+            if (affinity == null || !isTrusted(affinity)) {
+                return Optional.empty();
+            }
+            result.put(recipient.asString(), affinity.asGuess());
+        }
+        return Optional.of(result.build());
+    }
+
+    /**
+     * Whether a mail that could be classified locally should be sent to the classification webservice anyway.
+     * Local classifications are counted as hits, the others as verifications.
+     */
+    public boolean shouldVerify() {
+        if (verificationPercentage > 0 && ThreadLocalRandom.current().nextInt(100) < verificationPercentage) {
+            verificationCount.incrementAndGet();
+            return true;
+        }
+        hitCount.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Records the guesses of the classification webservice for mails of the given sender.
+     *
+     * @return the number of trusted affinities these guesses contradicted
+     */
+    public int learn(MailAddress sender, Map<String, ClassificationGuess> classificationGuesses) {
+        int contradictions = 0;
+        for (Map.Entry<String, ClassificationGuess> entry : classificationGuesses.entrySet()) {
+            if (learn(new Key(sender.asString(), entry.getKey()), entry.getValue())) {
+                contradictions++;
+            }
+        }
+        contradictionCount.addAndGet(contradictions);
+        return contradictions;
+    }
+
+    private boolean learn(Key key, ClassificationGuess guess) {
+        AtomicBoolean contradicted = new AtomicBoolean(false);
+        affinities.asMap().compute(key, (k, affinity) -> {
+            if (affinity == null) {
+                return Affinity.from(guess);
+            }
+            contradicted.set(isTrusted(affinity) && !Objects.equals(affinity.mailboxId, guess.getMailboxId()));
+            return affinity.next(guess);
+        });
+        return contradicted.get();
+    }
+
+    private boolean isTrusted(Affinity affinity) {
+        return affinity.hitStreak >= minHitStreak && affinity.confidence >= minConfidence;
+    }
+
+    public Optional<Affinity> get(MailAddress sender, MailAddress recipient) {
+        return Optional.ofNullable(affinities.getIfPresent(new Key(sender.asString(), recipient.asString())));
+    }
+
+    /**
+     * Invalidates all affinities when the given model version differs from the last one seen.
+     */
+    public void onModelVersion(String version) {
+        Optional<String> previousVersion = modelVersion.getAndSet(Optional.of(version));
+        if (previousVersion.isPresent() && !previousVersion.get().equals(version)) {
+            invalidateAll();
+        }
+    }
+
+    public void invalidateAll() {
+        affinities.invalidateAll();
+    }
+
+    /**
+     * Count of mails classified locally.
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Count of mails that could have been classified locally, but were sampled for verification.
+     */
+    public long getVerificationCount() {
+        return verificationCount.get();
+    }
+
+    /**
+     * Count of trusted affinities contradicted by the classification webservice.
+     */
+    public long getContradictionCount() {
+        return contradictionCount.get();
+    }
+
+    public long size() {
+        return affinities.size();
+    }
+}
@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import javax.inject.Inject;
+import javax.mail.MessagingException;
+
+import org.apache.james.metrics.api.MetricFactory;
+import org.apache.james.metrics.api.NoopMetricFactory;
+import org.apache.mailet.Mail;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.linagora.james.mailets.json.UUIDGenerator;
+
+/**
+ * This mailet starts the classification of the mail without waiting for the classification webservice answer.
+ *
+ * The guess classification headers are added later by an {@link AwaitClassificationMailet} placed further down
+ * the processor, so that other mailets can run while the classification webservice is computing its answer.
+ *
+ * It accepts the same configuration as {@link GuessClassificationMailet}. Slow classifications are not reported, as
+ * the mail has moved on when the answer is received.
+ *
+ * The classification is referenced by the {@link InFlightClassifications#CLASSIFICATION_ID_ATTRIBUTE} attribute of
+ * the mail, which mailets in between must keep.
+ *
+ * <pre>
+ * <code>
+ * &lt;mailet match="RecipientIsLocal" class="AsyncGuessClassificationMailet"&gt;
+ *    &lt;serviceUrl&gt;http://localhost:9000/email/classification/predict&lt;/serviceUrl&gt;
+ *    &lt;serviceUsername&gt;username&lt;/serviceUsername&gt;
+ *    &lt;servicePassword&gt;password&lt;/servicePassword&gt;
+ * &lt;/mailet&gt;
+ * &lt;mailet match="RecipientIsLocal" class="RecipientRewriteTable"/&gt;
+ * &lt;mailet match="RecipientIsLocal" class="Sieve"/&gt;
+ * &lt;mailet match="RecipientIsLocal" class="AwaitClassificationMailet"/&gt;
+ * </code>
+ * </pre>
+ */
+public class AsyncGuessClassificationMailet extends GuessClassificationMailet {
+
+    private final InFlightClassifications inFlightClassifications;
+
+    public AsyncGuessClassificationMailet() {
+        this(new NoopMetricFactory());
+    }
+
+    @Inject
+    public AsyncGuessClassificationMailet(MetricFactory metricFactory) {
+        this(new UUIDGenerator(), metricFactory, InFlightClassifications.getInstance());
+    }
+
+    @VisibleForTesting
+    AsyncGuessClassificationMailet(UUIDGenerator uuidGenerator, InFlightClassifications inFlightClassifications) {
+        this(uuidGenerator, new NoopMetricFactory(), inFlightClassifications);
+    }
+
+    private AsyncGuessClassificationMailet(UUIDGenerator uuidGenerator, MetricFactory metricFactory, InFlightClassifications inFlightClassifications) {
+        super(uuidGenerator, metricFactory);
+        this.inFlightClassifications = inFlightClassifications;
+    }
+
+    @Override
+    public String getMailetInfo() {
+        return "AsyncGuessClassificationMailet Mailet";
+    }
+
+    @Override
+    public void service(Mail mail) throws MessagingException {
+        try {
+            inFlightClassifications.register(mail, classify(mail), this);
+        } catch (Exception e) {
+            logFailure(e);
+        }
+    }
+}
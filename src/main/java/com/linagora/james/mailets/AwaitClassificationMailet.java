@@ -0,0 +1,87 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+
+import javax.mail.MessagingException;
+
+import org.apache.mailet.Mail;
+import org.apache.mailet.base.GenericMailet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.linagora.james.mailets.InFlightClassifications.InFlightClassification;
+
+/**
+ * This mailet waits for the classification started by {@link AsyncGuessClassificationMailet} and adds the guess
+ * classification headers to the mail.
+ *
+ * It waits at most for the timeoutInMs configured on the {@link AsyncGuessClassificationMailet}. Mails without
+ * classification in progress are left untouched.
+ *
+ * <pre>
+ * <code>
+ * &lt;mailet match="RecipientIsLocal" class="AwaitClassificationMailet"/&gt;
+ * </code>
+ * </pre>
+ */
+public class AwaitClassificationMailet extends GenericMailet {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AwaitClassificationMailet.class);
+
+    private final InFlightClassifications inFlightClassifications;
+
+    public AwaitClassificationMailet() {
+        this(InFlightClassifications.getInstance());
+    }
+
+    @VisibleForTesting
+    AwaitClassificationMailet(InFlightClassifications inFlightClassifications) {
+        this.inFlightClassifications = inFlightClassifications;
+    }
+
+    @Override
+    public String getMailetInfo() {
+        return "AwaitClassificationMailet Mailet";
+    }
+
+    @Override
+    public void service(Mail mail) throws MessagingException {
+        Optional<InFlightClassification> inFlightClassification = inFlightClassifications.retrieve(mail);
+        if (!inFlightClassification.isPresent()) {
+            LOGGER.debug("No classification in progress for " + mail.getName());
+            return;
+        }
+        await(mail, inFlightClassification.get());
+    }
+
+    private void await(Mail mail, InFlightClassification inFlightClassification) {
+        try {
+            inFlightClassification.addHeaders(mail, inFlightClassification.getClassificationGuesses().get());
+        } catch (ExecutionException e) {
+            inFlightClassification.logFailure(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            inFlightClassification.logFailure(e);
+        }
+    }
+}
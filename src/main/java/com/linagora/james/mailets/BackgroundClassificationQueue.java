@@ -0,0 +1,378 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.primitives.Longs;
+
+/**
+ * Classification jobs waiting for a background worker.
+ *
+ * Up to capacity jobs are held in memory. When an overflow directory is given, further jobs are written there, one
+ * file per job, and read back once the memory queue is drained. Jobs still in memory when the queue is closed are
+ * written there too, and files left by a previous run are picked up on startup, so that a restart loses no job.
+ * Without overflow directory, jobs exceeding capacity are dropped: their mails stay unclassified.
+ *
+ * Overflow files are named after their creation time so that older jobs are processed first. They are written
+ * under a temporary name then renamed, hence a crash never leaves a partial job behind. The pending files are
+ * indexed in memory, from a single listing of the directory on startup. While both memory and overflow hold jobs,
+ * they are served in turns, so that incoming mail does not starve overflowed jobs.
+ *
+ * Failed jobs can be {@link #retry(ClassificationJob, long) queued again} not to be served before a delay, which
+ * keeps workers busy with other jobs meanwhile. Up to capacity jobs wait for their retry in memory, and are written
+ * to the overflow directory on close.
+ *
+ * An overflowed job handed to a worker is renamed as in progress, and only deleted once the worker
+ * {@link #acknowledge(ClassificationJob) acknowledges} it. In progress files left by a crash are queued again on
+ * startup: jobs are classified at least once.
+ */
+public class BackgroundClassificationQueue {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BackgroundClassificationQueue.class);
+    private static final String JOB_SUFFIX = ".json";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    private static final String CORRUPTED_SUFFIX = ".corrupted";
+    private static final String IN_PROGRESS_SUFFIX = ".processing";
+
+    private static class DelayedJob implements Delayed {
+        private final ClassificationJob job;
+        private final long notBeforeInNanos;
+
+        private DelayedJob(ClassificationJob job, long delayInMs) {
+            this.job = job;
+            this.notBeforeInNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayInMs);
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(notBeforeInNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Longs.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+        }
+    }
+
+    private final int capacity;
+    private final BlockingQueue<ClassificationJob> memoryQueue;
+    private final DelayQueue<DelayedJob> retries;
+    private final Optional<Path> overflowDirectory;
+    private final ClassificationMetrics metrics;
+    private final PriorityBlockingQueue<Path> overflowFiles;
+    private final AtomicLong sequence;
+    private final AtomicLong droppedCount;
+    private final AtomicLong pollCount;
+    private final Map<ClassificationJob, Path> inProgressFiles;
+
+    public BackgroundClassificationQueue(int capacity, Optional<Path> overflowDirectory, ClassificationMetrics metrics) throws IOException {
+        Preconditions.checkArgument(capacity > 0, "'capacity' should be strictly positive");
+        this.capacity = capacity;
+        this.memoryQueue = new ArrayBlockingQueue<>(capacity);
+        this.retries = new DelayQueue<>();
+        this.overflowDirectory = overflowDirectory;
+        this.metrics = metrics;
+        this.sequence = new AtomicLong();
+        this.droppedCount = new AtomicLong();
+        this.pollCount = new AtomicLong();
+        this.inProgressFiles = new ConcurrentHashMap<>();
+        if (overflowDirectory.isPresent()) {
+            Files.createDirectories(overflowDirectory.get());
+            resumeInProgressFiles(overflowDirectory.get());
+        }
+        this.overflowFiles = new PriorityBlockingQueue<>();
+        this.overflowFiles.addAll(listOverflowFiles());
+        if (!overflowFiles.isEmpty()) {
+            LOGGER.info("Resuming " + overflowFiles.size() + " classification jobs from " + overflowDirectory.get());
+        }
+    }
+
+    private void resumeInProgressFiles(Path directory) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + JOB_SUFFIX + IN_PROGRESS_SUFFIX)) {
+            for (Path file : files) {
+                Files.move(file, pendingFile(file), StandardCopyOption.ATOMIC_MOVE);
+            }
+        }
+    }
+
+    /**
+     * @return false when the job was dropped
+     */
+    public boolean offer(ClassificationJob job) {
+        if (memoryQueue.offer(job)) {
+            metrics.onBackgroundEnqueued();
+            return true;
+        }
+        if (overflowDirectory.isPresent() && overflow(overflowDirectory.get(), job)) {
+            metrics.onBackgroundEnqueued();
+            metrics.onBackgroundOverflowed();
+            return true;
+        }
+        droppedCount.incrementAndGet();
+        metrics.onBackgroundDropped();
+        LOGGER.warn("Background classification queue is full, " + job.getMailName() + " will not be classified");
+        return false;
+    }
+
+    private boolean overflow(Path directory, ClassificationJob job) {
+        String name = String.format("%019d-%019d", System.currentTimeMillis(), sequence.incrementAndGet());
+        Path temporaryFile = directory.resolve(name + TEMPORARY_SUFFIX);
+        try {
+            try (OutputStream outputStream = Files.newOutputStream(temporaryFile)) {
+                job.writeTo(outputStream);
+            }
+            Path file = directory.resolve(name + JOB_SUFFIX);
+            Files.move(temporaryFile, file, StandardCopyOption.ATOMIC_MOVE);
+            overflowFiles.add(file);
+            return true;
+        } catch (IOException e) {
+            LOGGER.error("Could not write classification job of " + job.getMailName() + " to " + directory, e);
+            deleteQuietly(temporaryFile);
+            return false;
+        }
+    }
+
+    /**
+     * Queues a failed job again, not to be served before delayInMs. When capacity jobs already wait for their retry,
+     * it is {@link #offer(ClassificationJob) offered} like a new job instead.
+     *
+     * @return false when the job was dropped
+     */
+    public boolean retry(ClassificationJob job, long delayInMs) {
+        synchronized (retries) {
+            if (retries.size() < capacity) {
+                retries.offer(new DelayedJob(job, delayInMs));
+                return true;
+            }
+        }
+        return offer(job);
+    }
+
+    /**
+     * Writes a job interrupted by the shutdown straight to the overflow directory, so that the next run classifies it.
+     *
+     * @return false when the job was lost, because there is no overflow directory or it could not be written
+     */
+    public boolean persist(ClassificationJob job) {
+        if (overflowDirectory.isPresent() && overflow(overflowDirectory.get(), job)) {
+            return true;
+        }
+        LOGGER.warn("Background classification of " + job.getMailName() + " was interrupted by the shutdown and is lost");
+        return false;
+    }
+
+    /**
+     * Waits at most timeoutInMs for a job. Jobs whose retry is due are served first, then memory and overflowed jobs
+     * in turns.
+     */
+    public Optional<ClassificationJob> poll(long timeoutInMs) throws InterruptedException {
+        Optional<ClassificationJob> retriedJob = pollRetry();
+        if (retriedJob.isPresent()) {
+            return retriedJob;
+        }
+        boolean overflowTurn = pollCount.getAndIncrement() % 2 == 1;
+        if (overflowTurn) {
+            Optional<ClassificationJob> overflowedJob = pollOverflow();
+            if (overflowedJob.isPresent()) {
+                return overflowedJob;
+            }
+        }
+        ClassificationJob job = memoryQueue.poll();
+        if (job != null) {
+            return Optional.of(job);
+        }
+        if (!overflowTurn) {
+            Optional<ClassificationJob> overflowedJob = pollOverflow();
+            if (overflowedJob.isPresent()) {
+                return overflowedJob;
+            }
+        }
+        Optional<ClassificationJob> awaitedJob = Optional.ofNullable(memoryQueue.poll(waitInNanos(timeoutInMs), TimeUnit.NANOSECONDS));
+        if (awaitedJob.isPresent()) {
+            return awaitedJob;
+        }
+        return pollRetry();
+    }
+
+    /**
+     * Waiting for a memory job stops when the next retry is due.
+     */
+    private long waitInNanos(long timeoutInMs) {
+        long timeoutInNanos = TimeUnit.MILLISECONDS.toNanos(timeoutInMs);
+        DelayedJob nextRetry = retries.peek();
+        if (nextRetry == null) {
+            return timeoutInNanos;
+        }
+        return Math.max(0, Math.min(timeoutInNanos, nextRetry.getDelay(TimeUnit.NANOSECONDS)));
+    }
+
+    private Optional<ClassificationJob> pollRetry() {
+        return Optional.ofNullable(retries.poll())
+            .map(delayedJob -> delayedJob.job);
+    }
+
+    private Optional<ClassificationJob> pollOverflow() {
+        for (Path file = overflowFiles.poll(); file != null; file = overflowFiles.poll()) {
+            Path pendingFile = file;
+            Optional<ClassificationJob> job = markInProgress(pendingFile)
+                .flatMap(inProgressFile -> read(inProgressFile, pendingFile));
+            if (job.isPresent()) {
+                return job;
+            }
+        }
+        return Optional.empty();
+    }
+
+    private Optional<Path> markInProgress(Path file) {
+        Path inProgressFile = file.resolveSibling(file.getFileName() + IN_PROGRESS_SUFFIX);
+        try {
+            Files.move(file, inProgressFile, StandardCopyOption.ATOMIC_MOVE);
+            return Optional.of(inProgressFile);
+        } catch (IOException e) {
+            LOGGER.error("Could not mark classification job " + file + " as in progress", e);
+            return Optional.empty();
+        }
+    }
+
+    private Path pendingFile(Path inProgressFile) {
+        String name = inProgressFile.getFileName().toString();
+        return inProgressFile.resolveSibling(name.substring(0, name.length() - IN_PROGRESS_SUFFIX.length()));
+    }
+
+    /**
+     * Forgets a job returned by {@link #poll(long)} once it was applied, or given up. Its overflow file, if any, is
+     * deleted. Jobs not acknowledged before a crash are classified again after the restart.
+     */
+    public void acknowledge(ClassificationJob job) {
+        Path inProgressFile = inProgressFiles.remove(job);
+        if (inProgressFile != null) {
+            deleteQuietly(inProgressFile);
+        }
+    }
+
+    private Optional<ClassificationJob> read(Path inProgressFile, Path file) {
+        try (InputStream inputStream = Files.newInputStream(inProgressFile)) {
+            ClassificationJob job = ClassificationJob.readFrom(inputStream);
+            inProgressFiles.put(job, inProgressFile);
+            return Optional.of(job);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.error("Could not read classification job " + file + ", setting it aside", e);
+            try {
+                Files.move(inProgressFile, file.resolveSibling(file.getFileName() + CORRUPTED_SUFFIX), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException moveError) {
+                LOGGER.error("Could not set " + file + " aside", moveError);
+            }
+            return Optional.empty();
+        }
+    }
+
+    private List<Path> listOverflowFiles() {
+        if (!overflowDirectory.isPresent()) {
+            return Collections.emptyList();
+        }
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> directory = Files.newDirectoryStream(overflowDirectory.get(), "*" + JOB_SUFFIX)) {
+            directory.forEach(files::add);
+        } catch (IOException e) {
+            LOGGER.error("Could not list classification jobs of " + overflowDirectory.get(), e);
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    private void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOGGER.warn("Could not delete " + file, e);
+        }
+    }
+
+    /**
+     * Writes the jobs still in memory, including those waiting for their retry, to the overflow directory, if any, so
+     * that the next run processes them.
+     *
+     * @return the number of jobs lost because there was no overflow directory, or it could not be written
+     */
+    public int close() {
+        List<ClassificationJob> pending = new ArrayList<>();
+        memoryQueue.drainTo(pending);
+        for (DelayedJob delayedJob : retries) {
+            if (retries.remove(delayedJob)) {
+                pending.add(delayedJob.job);
+            }
+        }
+        int lost = 0;
+        for (ClassificationJob job : pending) {
+            if (!overflowDirectory.isPresent() || !overflow(overflowDirectory.get(), job)) {
+                lost++;
+            }
+        }
+        if (lost > 0) {
+            LOGGER.warn(lost + " background classification jobs lost on shutdown");
+        }
+        return lost;
+    }
+
+    public int getMemorySize() {
+        return memoryQueue.size();
+    }
+
+    public int getRetrySize() {
+        return retries.size();
+    }
+
+    public long getOverflowSize() {
+        return overflowFiles.size();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    @VisibleForTesting
+    List<Path> getOverflowFiles() {
+        return listOverflowFiles();
+    }
+}
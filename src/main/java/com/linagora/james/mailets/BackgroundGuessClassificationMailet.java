@@ -0,0 +1,273 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.mail.MessagingException;
+
+import org.apache.james.metrics.api.MetricFactory;
+import org.apache.james.metrics.api.NoopMetricFactory;
+import org.apache.mailet.Mail;
+import org.apache.mailet.MailetException;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.linagora.james.mailets.json.ClassificationGuess;
+import com.linagora.james.mailets.json.UUIDGenerator;
+
+/**
+ * This mailet lets the mail be delivered right away and classifies it afterwards, so that the delivery latency does
+ * not depend on the classification webservice.
+ *
+ * It only extracts what the classification needs (mail name, recipients, text body) and queues it. Background
+ * workers send queued jobs to the classification webservice and hand the guesses to a {@link ClassificationSink},
+ * for instance moving the delivered mail to the guessed mailbox. No header is added to the mail.
+ *
+ * It accepts the same configuration as {@link GuessClassificationMailet}, plus:
+ * <pre><code>
+ * - classificationSink: class name of the {@link ClassificationSink} applying the guesses, mandatory.
+ * - backgroundQueueCapacity: number of jobs kept in memory, defaults to 1000.
+ * - backgroundOverflowDirectory: directory jobs exceeding backgroundQueueCapacity are written to, and jobs still
+ *   queued on shutdown, so that they are classified after a restart. Jobs exceeding the capacity are dropped when
+ *   not given.
+ * - backgroundWorkers: number of jobs classified concurrently, defaults to 4.
+ * - backgroundMaxAttempts: number of times a job is classified before being given up, defaults to 3.
+ * - backgroundRetryDelayInMs: delay before the first retry of a failed job, doubled at each further retry,
+ *   defaults to 1000.
+ * </code></pre>
+ *
+ * <pre>
+ * <code>
+ * &lt;mailet match="RecipientIsLocal" class="BackgroundGuessClassificationMailet"&gt;
+ *    &lt;serviceUrl&gt;http://localhost:9000/email/classification/predict&lt;/serviceUrl&gt;
+ *    &lt;serviceUsername&gt;username&lt;/serviceUsername&gt;
+ *    &lt;servicePassword&gt;password&lt;/servicePassword&gt;
+ *    &lt;classificationSink&gt;com.example.MoveToGuessedMailboxSink&lt;/classificationSink&gt;
+ *    &lt;backgroundOverflowDirectory&gt;/var/james/classification-jobs&lt;/backgroundOverflowDirectory&gt;
+ * &lt;/mailet&gt;
+ * &lt;mailet match="RecipientIsLocal" class="LocalDelivery"/&gt;
+ * </code>
+ * </pre>
+ */
+public class BackgroundGuessClassificationMailet extends GuessClassificationMailet {
+
+    static final String CLASSIFICATION_SINK = "classificationSink";
+    static final String BACKGROUND_QUEUE_CAPACITY = "backgroundQueueCapacity";
+    static final String BACKGROUND_OVERFLOW_DIRECTORY = "backgroundOverflowDirectory";
+    static final String BACKGROUND_WORKERS = "backgroundWorkers";
+    static final String BACKGROUND_MAX_ATTEMPTS = "backgroundMaxAttempts";
+    static final String BACKGROUND_RETRY_DELAY_IN_MS = "backgroundRetryDelayInMs";
+    static final int DEFAULT_BACKGROUND_QUEUE_CAPACITY = 1000;
+    static final int DEFAULT_BACKGROUND_WORKERS = 4;
+    static final int DEFAULT_BACKGROUND_MAX_ATTEMPTS = 3;
+    static final int DEFAULT_BACKGROUND_RETRY_DELAY_IN_MS = 1000;
+    private static final long POLL_INTERVAL_IN_MS = 100;
+
+    private final Optional<ClassificationSink> injectedSink;
+    private ClassificationSink sink;
+    private BackgroundClassificationQueue queue;
+    private ExecutorService workers;
+    private int maxAttempts;
+    private int retryDelayInMs;
+    private volatile boolean stopped;
+
+    public BackgroundGuessClassificationMailet() {
+        this(new NoopMetricFactory());
+    }
+
+    @Inject
+    public BackgroundGuessClassificationMailet(MetricFactory metricFactory) {
+        this(new UUIDGenerator(), metricFactory, Optional.empty());
+    }
+
+    @VisibleForTesting
+    BackgroundGuessClassificationMailet(UUIDGenerator uuidGenerator, ClassificationSink sink) {
+        this(uuidGenerator, new NoopMetricFactory(), Optional.of(sink));
+    }
+
+    private BackgroundGuessClassificationMailet(UUIDGenerator uuidGenerator, MetricFactory metricFactory, Optional<ClassificationSink> injectedSink) {
+        super(uuidGenerator, metricFactory);
+        this.injectedSink = injectedSink;
+    }
+
+    @Override
+    public void init() throws MessagingException {
+        super.init();
+        int queueCapacity = parseStrictlyPositiveInteger(BACKGROUND_QUEUE_CAPACITY, DEFAULT_BACKGROUND_QUEUE_CAPACITY);
+        int workerCount = parseStrictlyPositiveInteger(BACKGROUND_WORKERS, DEFAULT_BACKGROUND_WORKERS);
+        maxAttempts = parseStrictlyPositiveInteger(BACKGROUND_MAX_ATTEMPTS, DEFAULT_BACKGROUND_MAX_ATTEMPTS);
+        retryDelayInMs = parseStrictlyPositiveInteger(BACKGROUND_RETRY_DELAY_IN_MS, DEFAULT_BACKGROUND_RETRY_DELAY_IN_MS);
+        Optional<Path> overflowDirectory = Optional.ofNullable(Strings.emptyToNull(getInitParameter(BACKGROUND_OVERFLOW_DIRECTORY)))
+            .map(Paths::get);
+        sink = injectedSink.isPresent() ? injectedSink.get() : createSink();
+        try {
+            queue = new BackgroundClassificationQueue(queueCapacity, overflowDirectory, metrics);
+        } catch (IOException e) {
+            throw new MailetException("Could not use " + overflowDirectory.get() + " as " + BACKGROUND_OVERFLOW_DIRECTORY, e);
+        }
+        stopped = false;
+        workers = Executors.newFixedThreadPool(workerCount, new ThreadFactoryBuilder()
+            .setNameFormat("BackgroundGuessClassificationMailet-%d")
+            .setDaemon(true)
+            .build());
+        for (int i = 0; i < workerCount; i++) {
+            workers.submit(this::drain);
+        }
+    }
+
+    private ClassificationSink createSink() throws MessagingException {
+        String className = getInitParameter(CLASSIFICATION_SINK);
+        if (Strings.isNullOrEmpty(className)) {
+            throw new MailetException("'" + CLASSIFICATION_SINK + "' is mandatory");
+        }
+        try {
+            return Class.forName(className.trim(), true, getClass().getClassLoader())
+                .asSubclass(ClassificationSink.class)
+                .newInstance();
+        } catch (ClassNotFoundException | ClassCastException | InstantiationException | IllegalAccessException e) {
+            throw new MailetException("Could not instantiate " + CLASSIFICATION_SINK + " " + className, e);
+        }
+    }
+
+    @Override
+    public String getMailetInfo() {
+        return "BackgroundGuessClassificationMailet Mailet";
+    }
+
+    @Override
+    public void service(Mail mail) throws MessagingException {
+        try {
+            toClassificationJob(mail).ifPresent(queue::offer);
+        } catch (Exception e) {
+            logFailure(e);
+        }
+    }
+
+    private void drain() {
+        while (!stopped) {
+            try {
+                Optional<ClassificationJob> job = queue.poll(POLL_INTERVAL_IN_MS);
+                if (job.isPresent()) {
+                    process(job.get());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * A failed job is queued again, not to be served before a delay growing with its attempts, until maxAttempts is
+     * reached: the worker classifies other jobs meanwhile. A job interrupted by the shutdown is written to the
+     * overflow directory with its attempt count, and logged as lost without one. The polled job is acknowledged
+     * last, so that a crash leaves its overflow file to the next run.
+     */
+    private void process(ClassificationJob job) throws InterruptedException {
+        try {
+            if (tryProcess(job)) {
+                return;
+            }
+            ClassificationJob attempt = job.withFailedAttempt();
+            if (attempt.getAttempts() >= maxAttempts) {
+                metrics.onBackgroundFailed();
+                LOGGER.warn("Giving up the background classification of " + job.getMailName() + " after " + attempt.getAttempts() + " attempts");
+                return;
+            }
+            if (stopped) {
+                queue.persist(attempt);
+                return;
+            }
+            metrics.onBackgroundRetried();
+            queue.retry(attempt, retryDelay(attempt));
+        } catch (InterruptedException e) {
+            queue.persist(job);
+            throw e;
+        } finally {
+            queue.acknowledge(job);
+        }
+    }
+
+    private boolean tryProcess(ClassificationJob job) throws InterruptedException {
+        try {
+            Map<String, ClassificationGuess> classificationGuesses = classify(job).get();
+            metrics.onSuccess();
+            sink.apply(job, classificationGuesses);
+            metrics.onBackgroundApplied();
+            return true;
+        } catch (ExecutionException e) {
+            logFailure(e.getCause());
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            logFailure(e);
+        }
+        return false;
+    }
+
+    private long retryDelay(ClassificationJob job) {
+        return (long) retryDelayInMs << Math.min(job.getAttempts() - 1, 16);
+    }
+
+    /**
+     * Workers get timeoutInMs to finish the classification in progress, then queued jobs are written to the
+     * overflow directory.
+     */
+    @Override
+    public void destroy() {
+        stopped = true;
+        if (workers != null) {
+            workers.shutdown();
+            try {
+                if (!workers.awaitTermination(timeoutInMs.orElse(DEFAULT_TIME) + POLL_INTERVAL_IN_MS, TimeUnit.MILLISECONDS)) {
+                    workers.shutdownNow();
+                    workers.awaitTermination(POLL_INTERVAL_IN_MS, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                workers.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (queue != null) {
+            queue.close();
+        }
+        super.destroy();
+    }
+
+    @VisibleForTesting
+    BackgroundClassificationQueue getQueue() {
+        return queue;
+    }
+
+    @VisibleForTesting
+    ClassificationSink getSink() {
+        return sink;
+    }
+}
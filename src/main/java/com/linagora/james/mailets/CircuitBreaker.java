@@ -0,0 +1,287 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.time.Clock;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Count based circuit breaker protecting calls to the classification webservice.
+ *
+ * While CLOSED, the outcome of the last windowSize calls is recorded. Once at least minimumCalls were recorded,
+ * the breaker goes OPEN when either the failure rate or the slow call rate reaches its threshold. While OPEN,
+ * calls are rejected without being attempted. After openDurationInMs, the breaker goes HALF_OPEN and lets
+ * halfOpenCalls probe calls through: it closes again if their failure and slow call rates are below thresholds,
+ * and opens again otherwise.
+ *
+ * Each state transition starts a new generation. Outcomes of calls permitted in an older generation are ignored, so
+ * that slow calls started while CLOSED do not count as HALF_OPEN probes.
+ */
+public class CircuitBreaker {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    @FunctionalInterface
+    public interface StateTransitionListener {
+        void onTransition(State from, State to);
+    }
+
+    /**
+     * Permits one call, in the generation it was acquired in.
+     */
+    public static class Permission {
+        private final long generation;
+
+        private Permission(long generation) {
+            this.generation = generation;
+        }
+    }
+
+    public static class CallNotPermittedException extends Exception {
+        public CallNotPermittedException() {
+            super("Circuit breaker is open, the classification webservice is not called");
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private Optional<Integer> failureRateThreshold = Optional.empty();
+        private Optional<Integer> slowCallRateThreshold = Optional.empty();
+        private Optional<Long> slowCallDurationInMs = Optional.empty();
+        private Optional<Integer> windowSize = Optional.empty();
+        private Optional<Integer> minimumCalls = Optional.empty();
+        private Optional<Long> openDurationInMs = Optional.empty();
+        private Optional<Integer> halfOpenCalls = Optional.empty();
+        private Clock clock = Clock.systemUTC();
+
+        public Builder failureRateThreshold(int failureRateThresholdInPercent) {
+            this.failureRateThreshold = Optional.of(failureRateThresholdInPercent);
+            return this;
+        }
+
+        public Builder slowCallRateThreshold(int slowCallRateThresholdInPercent) {
+            this.slowCallRateThreshold = Optional.of(slowCallRateThresholdInPercent);
+            return this;
+        }
+
+        public Builder slowCallDurationInMs(long slowCallDurationInMs) {
+            this.slowCallDurationInMs = Optional.of(slowCallDurationInMs);
+            return this;
+        }
+
+        public Builder windowSize(int windowSize) {
+            this.windowSize = Optional.of(windowSize);
+            return this;
+        }
+
+        public Builder minimumCalls(int minimumCalls) {
+            this.minimumCalls = Optional.of(minimumCalls);
+            return this;
+        }
+
+        public Builder openDurationInMs(long openDurationInMs) {
+            this.openDurationInMs = Optional.of(openDurationInMs);
+            return this;
+        }
+
+        public Builder halfOpenCalls(int halfOpenCalls) {
+            this.halfOpenCalls = Optional.of(halfOpenCalls);
+            return this;
+        }
+
+        public Builder clock(Clock clock) {
+            this.clock = clock;
+            return this;
+        }
+
+        public CircuitBreaker build() {
+            Preconditions.checkState(failureRateThreshold.isPresent(), "failureRateThreshold is mandatory");
+            Preconditions.checkState(slowCallRateThreshold.isPresent(), "slowCallRateThreshold is mandatory");
+            Preconditions.checkState(slowCallDurationInMs.isPresent(), "slowCallDurationInMs is mandatory");
+            Preconditions.checkState(windowSize.isPresent(), "windowSize is mandatory");
+            Preconditions.checkState(minimumCalls.isPresent(), "minimumCalls is mandatory");
+            Preconditions.checkState(openDurationInMs.isPresent(), "openDurationInMs is mandatory");
+            Preconditions.checkState(halfOpenCalls.isPresent(), "halfOpenCalls is mandatory");
+            Preconditions.checkState(minimumCalls.get() <= windowSize.get(), "minimumCalls should not exceed windowSize");
+
+            return new CircuitBreaker(failureRateThreshold.get(), slowCallRateThreshold.get(), slowCallDurationInMs.get(),
+                windowSize.get(), minimumCalls.get(), openDurationInMs.get(), halfOpenCalls.get(), clock);
+        }
+    }
+
+    private static class Outcomes {
+        private final boolean[] failures;
+        private final boolean[] slowCalls;
+        private int next;
+        private int count;
+        private int failureCount;
+        private int slowCallCount;
+
+        private Outcomes(int size) {
+            this.failures = new boolean[size];
+            this.slowCalls = new boolean[size];
+        }
+
+        private void record(boolean failure, boolean slowCall) {
+            if (count == failures.length) {
+                failureCount -= failures[next] ? 1 : 0;
+                slowCallCount -= slowCalls[next] ? 1 : 0;
+            } else {
+                count++;
+            }
+            failures[next] = failure;
+            slowCalls[next] = slowCall;
+            failureCount += failure ? 1 : 0;
+            slowCallCount += slowCall ? 1 : 0;
+            next = (next + 1) % failures.length;
+        }
+
+        private int failureRate() {
+            return failureCount * 100 / count;
+        }
+
+        private int slowCallRate() {
+            return slowCallCount * 100 / count;
+        }
+    }
+
+    private final int failureRateThreshold;
+    private final int slowCallRateThreshold;
+    private final long slowCallDurationInMs;
+    private final int windowSize;
+    private final int minimumCalls;
+    private final long openDurationInMs;
+    private final int halfOpenCalls;
+    private final Clock clock;
+    private final List<StateTransitionListener> listeners;
+    private State state;
+    private long generation;
+    private Outcomes outcomes;
+    private long openedAt;
+    private int permittedHalfOpenCalls;
+
+    private CircuitBreaker(int failureRateThreshold, int slowCallRateThreshold, long slowCallDurationInMs, int windowSize,
+                           int minimumCalls, long openDurationInMs, int halfOpenCalls, Clock clock) {
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.slowCallDurationInMs = slowCallDurationInMs;
+        this.windowSize = windowSize;
+        this.minimumCalls = minimumCalls;
+        this.openDurationInMs = openDurationInMs;
+        this.halfOpenCalls = halfOpenCalls;
+        this.clock = clock;
+        this.listeners = new CopyOnWriteArrayList<>();
+        this.state = State.CLOSED;
+        this.outcomes = new Outcomes(windowSize);
+    }
+
+    public void addListener(StateTransitionListener listener) {
+        listeners.add(listener);
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return the permission to attempt the call, if any. Each permitted call should then be recorded with
+     * {@link #onSuccess(Permission, long, TimeUnit)} or {@link #onError(Permission, long, TimeUnit)}.
+     */
+    public synchronized Optional<Permission> tryAcquirePermission() {
+        if (state == State.OPEN && clock.millis() - openedAt >= openDurationInMs) {
+            transitionTo(State.HALF_OPEN);
+        }
+        switch (state) {
+            case CLOSED:
+                return Optional.of(new Permission(generation));
+            case HALF_OPEN:
+                if (permittedHalfOpenCalls < halfOpenCalls) {
+                    permittedHalfOpenCalls++;
+                    return Optional.of(new Permission(generation));
+                }
+                return Optional.empty();
+            default:
+                return Optional.empty();
+        }
+    }
+
+    /**
+     * Gives back a permission acquired for a call that was finally not attempted.
+     */
+    public synchronized void releasePermission(Permission permission) {
+        if (permission.generation == generation && state == State.HALF_OPEN && permittedHalfOpenCalls > 0) {
+            permittedHalfOpenCalls--;
+        }
+    }
+
+    public void onSuccess(Permission permission, long duration, TimeUnit unit) {
+        record(permission, false, unit.toMillis(duration) >= slowCallDurationInMs);
+    }
+
+    public void onError(Permission permission, long duration, TimeUnit unit) {
+        record(permission, true, unit.toMillis(duration) >= slowCallDurationInMs);
+    }
+
+    private synchronized void record(Permission permission, boolean failure, boolean slowCall) {
+        if (permission.generation != generation || state == State.OPEN) {
+            return;
+        }
+        outcomes.record(failure, slowCall);
+        if (state == State.CLOSED && outcomes.count >= minimumCalls && thresholdsReached()) {
+            transitionTo(State.OPEN);
+        } else if (state == State.HALF_OPEN && outcomes.count >= halfOpenCalls) {
+            transitionTo(thresholdsReached() ? State.OPEN : State.CLOSED);
+        }
+    }
+
+    private boolean thresholdsReached() {
+        return outcomes.failureRate() >= failureRateThreshold
+            || outcomes.slowCallRate() >= slowCallRateThreshold;
+    }
+
+    private void transitionTo(State newState) {
+        State previousState = state;
+        state = newState;
+        generation++;
+        outcomes = new Outcomes(newState == State.HALF_OPEN ? halfOpenCalls : windowSize);
+        permittedHalfOpenCalls = 0;
+        if (newState == State.OPEN) {
+            openedAt = clock.millis();
+        }
+        LOGGER.warn("Classification circuit breaker transition from " + previousState + " to " + newState);
+        listeners.forEach(listener -> listener.onTransition(previousState, newState));
+    }
+}
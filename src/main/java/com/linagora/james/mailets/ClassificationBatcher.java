@@ -0,0 +1,138 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.github.steveash.guavate.Guavate;
+import com.google.common.base.Preconditions;
+import com.linagora.james.mailets.json.ClassificationGuesses;
+import com.linagora.james.mailets.json.ClassificationRequestBody;
+
+/**
+ * Gathers classification requests submitted by concurrent spooler threads and sends them as a single request
+ * once batchSize requests are pending or windowInMs elapsed since the first one, whichever comes first.
+ *
+ * Results are dispatched back to each submitter using the messageId of its request.
+ */
+public class ClassificationBatcher {
+
+    @FunctionalInterface
+    public interface BatchSender {
+        Map<String, ClassificationGuesses> send(List<ClassificationRequestBody> batch) throws Exception;
+    }
+
+    private static class PendingRequest {
+        private final ClassificationRequestBody body;
+        private final CompletableFuture<ClassificationGuesses> result;
+
+        private PendingRequest(ClassificationRequestBody body, CompletableFuture<ClassificationGuesses> result) {
+            this.body = body;
+            this.result = result;
+        }
+    }
+
+    private final int batchSize;
+    private final long windowInMs;
+    private final BatchSender sender;
+    private final ScheduledExecutorService scheduler;
+    private final Executor sendExecutor;
+    private List<PendingRequest> pending;
+    private Optional<ScheduledFuture<?>> scheduledFlush;
+
+    public ClassificationBatcher(int batchSize, long windowInMs, BatchSender sender, ScheduledExecutorService scheduler, Executor sendExecutor) {
+        Preconditions.checkArgument(batchSize > 0, "'batchSize' should be strictly positive");
+        Preconditions.checkArgument(windowInMs > 0, "'windowInMs' should be strictly positive");
+        this.batchSize = batchSize;
+        this.windowInMs = windowInMs;
+        this.sender = sender;
+        this.scheduler = scheduler;
+        this.sendExecutor = sendExecutor;
+        this.pending = new ArrayList<>(batchSize);
+        this.scheduledFlush = Optional.empty();
+    }
+
+    public CompletableFuture<ClassificationGuesses> submit(ClassificationRequestBody body) {
+        CompletableFuture<ClassificationGuesses> result = new CompletableFuture<>();
+        List<PendingRequest> fullBatch = null;
+        synchronized (this) {
+            pending.add(new PendingRequest(body, result));
+            if (pending.size() >= batchSize) {
+                fullBatch = drain();
+            } else if (pending.size() == 1) {
+                scheduledFlush = Optional.of(scheduler.schedule(this::flush, windowInMs, TimeUnit.MILLISECONDS));
+            }
+        }
+        if (fullBatch != null) {
+            dispatch(fullBatch);
+        }
+        return result;
+    }
+
+    public void flush() {
+        List<PendingRequest> batch;
+        synchronized (this) {
+            batch = drain();
+        }
+        if (!batch.isEmpty()) {
+            dispatch(batch);
+        }
+    }
+
+    private List<PendingRequest> drain() {
+        scheduledFlush.ifPresent(flush -> flush.cancel(false));
+        scheduledFlush = Optional.empty();
+        List<PendingRequest> batch = pending;
+        pending = new ArrayList<>(batchSize);
+        return batch;
+    }
+
+    private void dispatch(List<PendingRequest> batch) {
+        sendExecutor.execute(() -> send(batch));
+    }
+
+    private void send(List<PendingRequest> batch) {
+        try {
+            Map<String, ClassificationGuesses> results = sender.send(batch.stream()
+                .map(request -> request.body)
+                .collect(Guavate.toImmutableList()));
+            batch.forEach(request -> complete(request, results));
+        } catch (Exception e) {
+            batch.forEach(request -> request.result.completeExceptionally(e));
+        }
+    }
+
+    private void complete(PendingRequest request, Map<String, ClassificationGuesses> results) {
+        String messageId = request.body.getMessageId().toString();
+        Optional<ClassificationGuesses> guesses = Optional.ofNullable(results.get(messageId));
+        if (guesses.isPresent()) {
+            request.result.complete(guesses.get());
+        } else {
+            request.result.completeExceptionally(new IllegalStateException("No classification result for message " + messageId));
+        }
+    }
+}
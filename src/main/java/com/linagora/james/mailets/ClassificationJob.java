@@ -0,0 +1,135 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonPOJOBuilder;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.linagora.james.mailets.json.ClassificationRequestBody;
+
+/**
+ * What {@link BackgroundGuessClassificationMailet} keeps of a delivered mail until it is classified: its name, the
+ * recipients to classify it for, and the request body holding the extracted text. The mail itself is not retained.
+ * It also counts the failed classification attempts, so that the retry limit survives a restart.
+ *
+ * Jobs are serialized as JSON when they overflow to disk.
+ */
+@JsonDeserialize(builder=ClassificationJob.Builder.class)
+public class ClassificationJob {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper()
+        .registerModules(new JavaTimeModule(), new Jdk8Module())
+        .configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false)
+        .configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    @JsonPOJOBuilder(withPrefix="")
+    public static class Builder {
+        private String mailName;
+        private List<String> recipients;
+        private ClassificationRequestBody body;
+        private int attempts;
+
+        public Builder mailName(String mailName) {
+            this.mailName = mailName;
+            return this;
+        }
+
+        public Builder recipients(List<String> recipients) {
+            this.recipients = recipients;
+            return this;
+        }
+
+        public Builder body(ClassificationRequestBody body) {
+            this.body = body;
+            return this;
+        }
+
+        public Builder attempts(int attempts) {
+            this.attempts = attempts;
+            return this;
+        }
+
+        public ClassificationJob build() {
+            Preconditions.checkState(mailName != null, "mailName is mandatory");
+            Preconditions.checkState(recipients != null, "recipients is mandatory");
+            Preconditions.checkState(body != null, "body is mandatory");
+            Preconditions.checkState(attempts >= 0, "attempts should be positive");
+
+            return new ClassificationJob(mailName, ImmutableList.copyOf(recipients), body, attempts);
+        }
+    }
+
+    public static ClassificationJob readFrom(InputStream inputStream) throws IOException {
+        return OBJECT_MAPPER.readValue(inputStream, ClassificationJob.class);
+    }
+
+    private final String mailName;
+    private final List<String> recipients;
+    private final ClassificationRequestBody body;
+    private final int attempts;
+
+    private ClassificationJob(String mailName, List<String> recipients, ClassificationRequestBody body, int attempts) {
+        this.mailName = mailName;
+        this.recipients = recipients;
+        this.body = body;
+        this.attempts = attempts;
+    }
+
+    public String getMailName() {
+        return mailName;
+    }
+
+    public List<String> getRecipients() {
+        return recipients;
+    }
+
+    public ClassificationRequestBody getBody() {
+        return body;
+    }
+
+    /**
+     * @return the number of failed classification attempts
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public ClassificationJob withFailedAttempt() {
+        return new ClassificationJob(mailName, recipients, body, attempts + 1);
+    }
+
+    public void writeTo(OutputStream outputStream) throws IOException {
+        OBJECT_MAPPER.writeValue(outputStream, this);
+    }
+}
@@ -0,0 +1,317 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.util.List;
+
+import org.apache.http.HttpHost;
+import org.apache.james.metrics.api.Metric;
+import org.apache.james.metrics.api.MetricFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.linagora.james.mailets.json.ClassificationRequestBody;
+
+/**
+ * Metrics published by GuessClassificationMailet through the James metric API.
+ *
+ * Timers cover each phase of a classification, counters its outcomes and the work done by each optional mode, and
+ * histograms the size of what is sent. Each metric name constant documents what it measures.
+ */
+public class ClassificationMetrics {
+
+    /** Timer of the extraction of headers and text parts from the MIME message. */
+    public static final String MIME_EXTRACTION = ClassificationRequestBody.MIME_EXTRACTION_METRIC;
+    /** Timer of the conversion of HTML text parts to plain text. */
+    public static final String HTML_CONVERSION = ClassificationRequestBody.HTML_CONVERSION_METRIC;
+    /** Timer of the serialization of the request body. */
+    public static final String SERIALIZATION = "classification-serialization";
+    /** Timer of the HTTP round trip, until the answer status line is received, request body streaming included. */
+    public static final String HTTP_ROUND_TRIP = "classification-httpRoundTrip";
+    /** Timer of the parsing of the answer. */
+    public static final String RESPONSE_PARSING = "classification-responseParsing";
+    /** Timer of the attachment of the per recipient headers. */
+    public static final String HEADER_ATTACHMENT = "classification-headerAttachment";
+    /** Mails classified, counted per mail. */
+    public static final String SUCCESS = "classification-success";
+    /** Mails whose classification timed out, counted per mail. */
+    public static final String TIMEOUT = "classification-timeout";
+    /** Answers with an error status, counted per answer, which covers several mails when batching. */
+    public static final String HTTP_ERROR = "classification-httpError";
+    /** Answers that could not be parsed, counted per answer too. */
+    public static final String PARSE_ERROR = "classification-parseError";
+    /** Recipients not classified because they are not local. */
+    public static final String SKIPPED_RECIPIENTS = "classification-skippedRecipients";
+    /** Mails classified locally from the {@link AffinityTable}. */
+    public static final String AFFINITY_HIT = "classification-affinityHit";
+    /** Mails that could have been classified locally, sampled to verify the affinities against the webservice. */
+    public static final String AFFINITY_VERIFICATION = "classification-affinityVerification";
+    /** Trusted affinities contradicted by the classification webservice. */
+    public static final String AFFINITY_CONTRADICTION = "classification-affinityContradiction";
+    /** Duplicate requests sent to another endpoint. */
+    public static final String HEDGE = "classification-hedge";
+    /** Duplicate requests answering first. */
+    public static final String HEDGE_WON = "classification-hedgeWon";
+    /** Duplicate requests not sent because the hedging budget was exhausted. */
+    public static final String HEDGE_BUDGET_EXHAUSTED = "classification-hedgeBudgetExhausted";
+    /** Mails admitted within the in-flight byte budget. */
+    public static final String ADMITTED = "classification-admitted";
+    /** Mails that had to wait for in-flight bytes to be released before being admitted. */
+    public static final String ADMISSION_WAIT = "classification-admissionWait";
+    /** Mails that could not be admitted within their wait delay. */
+    public static final String ADMISSION_REJECTED = "classification-admissionRejected";
+    /** Mails classified in the cheaper downgraded mode. */
+    public static final String DOWNGRADED = "classification-downgraded";
+    /** Classification jobs queued after delivery. */
+    public static final String BACKGROUND_ENQUEUED = "classification-backgroundEnqueued";
+    /** Classification jobs written to the overflow directory. */
+    public static final String BACKGROUND_OVERFLOWED = "classification-backgroundOverflowed";
+    /** Classification jobs dropped because the queue was full. */
+    public static final String BACKGROUND_DROPPED = "classification-backgroundDropped";
+    /** Classification jobs whose guesses were applied. */
+    public static final String BACKGROUND_APPLIED = "classification-backgroundApplied";
+    /** Classification job attempts retried after a failure. */
+    public static final String BACKGROUND_RETRIED = "classification-backgroundRetried";
+    /** Classification jobs given up once their attempts were exhausted. */
+    public static final String BACKGROUND_FAILED = "classification-backgroundFailed";
+    /** Hashed feature requests rejected by the classification webservice and sent again as text. */
+    public static final String FEATURE_PAYLOAD_REJECTED = "classification-featurePayloadRejected";
+    /** Requests in a binary wire format rejected by the classification webservice and sent again as JSON. */
+    public static final String WIRE_FORMAT_REJECTED = "classification-wireFormatRejected";
+    /** Latency timer of each endpoint, see {@link ServiceEndpoint}. */
+    public static final String ENDPOINT_LATENCY = "classification-endpointLatency";
+    /** Failed requests of each endpoint, see {@link ServiceEndpoint}. */
+    public static final String ENDPOINT_FAILURE = "classification-endpointFailure";
+    /** Ejections of each endpoint, see {@link ServiceEndpoint}. */
+    public static final String ENDPOINT_EJECTION = "classification-endpointEjection";
+    /** Histogram of request body sizes, in bytes. */
+    public static final String REQUEST_PAYLOAD_SIZE = "classification-requestPayloadSize";
+    /** Histogram of text body lengths, in characters. */
+    public static final String TEXT_BODY_LENGTH = "classification-textBodyLength";
+    /** Histogram of classified recipients per mail. */
+    public static final String RECIPIENTS_PER_MAIL = "classification-recipientsPerMail";
+
+    /**
+     * Per endpoint metrics are suffixed with the endpoint host and port, e.g.
+     * classification-endpointLatency-classifier1:9000.
+     */
+    public static String forEndpoint(String name, HttpHost host) {
+        return name + "-" + host.toHostString();
+    }
+
+    /**
+     * The James metric API has no histogram: values are counted in power of two buckets, each of them published
+     * as a counter named after its inclusive upper bound, e.g. classification-textBodyLength-le-1024. Larger
+     * values are counted by the -le-inf counter.
+     */
+    public static class Histogram {
+        private final List<Long> upperBounds;
+        private final List<Metric> buckets;
+        private final Metric overflow;
+
+        Histogram(MetricFactory metricFactory, String name, long firstUpperBound, int bucketCount) {
+            Preconditions.checkArgument(firstUpperBound > 0, "'firstUpperBound' should be strictly positive");
+            Preconditions.checkArgument(bucketCount > 0, "'bucketCount' should be strictly positive");
+            ImmutableList.Builder<Long> upperBounds = ImmutableList.builder();
+            ImmutableList.Builder<Metric> buckets = ImmutableList.builder();
+            for (int i = 0; i < bucketCount; i++) {
+                long upperBound = firstUpperBound << i;
+                upperBounds.add(upperBound);
+                buckets.add(metricFactory.generate(name + "-le-" + upperBound));
+            }
+            this.upperBounds = upperBounds.build();
+            this.buckets = buckets.build();
+            this.overflow = metricFactory.generate(name + "-le-inf");
+        }
+
+        public void record(long value) {
+            for (int i = 0; i < upperBounds.size(); i++) {
+                if (value <= upperBounds.get(i)) {
+                    buckets.get(i).increment();
+                    return;
+                }
+            }
+            overflow.increment();
+        }
+    }
+
+    private final Metric success;
+    private final Metric timeout;
+    private final Metric httpError;
+    private final Metric parseError;
+    private final Metric skippedRecipients;
+    private final Metric affinityHit;
+    private final Metric affinityVerification;
+    private final Metric affinityContradiction;
+    private final Metric hedge;
+    private final Metric hedgeWon;
+    private final Metric hedgeBudgetExhausted;
+    private final Metric admitted;
+    private final Metric admissionWait;
+    private final Metric admissionRejected;
+    private final Metric downgraded;
+    private final Metric backgroundEnqueued;
+    private final Metric backgroundOverflowed;
+    private final Metric backgroundDropped;
+    private final Metric backgroundApplied;
+    private final Metric backgroundRetried;
+    private final Metric backgroundFailed;
+    private final Metric featurePayloadRejected;
+    private final Metric wireFormatRejected;
+    private final Histogram requestPayloadSize;
+    private final Histogram textBodyLength;
+    private final Histogram recipientsPerMail;
+
+    public ClassificationMetrics(MetricFactory metricFactory) {
+        this.success = metricFactory.generate(SUCCESS);
+        this.timeout = metricFactory.generate(TIMEOUT);
+        this.httpError = metricFactory.generate(HTTP_ERROR);
+        this.parseError = metricFactory.generate(PARSE_ERROR);
+        this.skippedRecipients = metricFactory.generate(SKIPPED_RECIPIENTS);
+        this.affinityHit = metricFactory.generate(AFFINITY_HIT);
+        this.affinityVerification = metricFactory.generate(AFFINITY_VERIFICATION);
+        this.affinityContradiction = metricFactory.generate(AFFINITY_CONTRADICTION);
+        this.hedge = metricFactory.generate(HEDGE);
+        this.hedgeWon = metricFactory.generate(HEDGE_WON);
+        this.hedgeBudgetExhausted = metricFactory.generate(HEDGE_BUDGET_EXHAUSTED);
+        this.admitted = metricFactory.generate(ADMITTED);
+        this.admissionWait = metricFactory.generate(ADMISSION_WAIT);
+        this.admissionRejected = metricFactory.generate(ADMISSION_REJECTED);
+        this.downgraded = metricFactory.generate(DOWNGRADED);
+        this.backgroundEnqueued = metricFactory.generate(BACKGROUND_ENQUEUED);
+        this.backgroundOverflowed = metricFactory.generate(BACKGROUND_OVERFLOWED);
+        this.backgroundDropped = metricFactory.generate(BACKGROUND_DROPPED);
+        this.backgroundApplied = metricFactory.generate(BACKGROUND_APPLIED);
+        this.backgroundRetried = metricFactory.generate(BACKGROUND_RETRIED);
+        this.backgroundFailed = metricFactory.generate(BACKGROUND_FAILED);
+        this.featurePayloadRejected = metricFactory.generate(FEATURE_PAYLOAD_REJECTED);
+        this.wireFormatRejected = metricFactory.generate(WIRE_FORMAT_REJECTED);
+        this.requestPayloadSize = new Histogram(metricFactory, REQUEST_PAYLOAD_SIZE, 1024, 15);
+        this.textBodyLength = new Histogram(metricFactory, TEXT_BODY_LENGTH, 256, 15);
+        this.recipientsPerMail = new Histogram(metricFactory, RECIPIENTS_PER_MAIL, 1, 13);
+    }
+
+    public void onSuccess() {
+        success.increment();
+    }
+
+    public void onTimeout() {
+        timeout.increment();
+    }
+
+    public void onHttpError() {
+        httpError.increment();
+    }
+
+    public void onParseError() {
+        parseError.increment();
+    }
+
+    public void onSkippedRecipients(int count) {
+        if (count > 0) {
+            skippedRecipients.add(count);
+        }
+    }
+
+    public void onAffinityHit() {
+        affinityHit.increment();
+    }
+
+    public void onAffinityVerification() {
+        affinityVerification.increment();
+    }
+
+    public void onAffinityContradictions(int count) {
+        if (count > 0) {
+            affinityContradiction.add(count);
+        }
+    }
+
+    public void onHedge() {
+        hedge.increment();
+    }
+
+    public void onHedgeWon() {
+        hedgeWon.increment();
+    }
+
+    public void onHedgeBudgetExhausted() {
+        hedgeBudgetExhausted.increment();
+    }
+
+    public void onAdmitted() {
+        admitted.increment();
+    }
+
+    public void onAdmissionWait() {
+        admissionWait.increment();
+    }
+
+    public void onAdmissionRejected() {
+        admissionRejected.increment();
+    }
+
+    public void onDowngraded() {
+        downgraded.increment();
+    }
+
+    public void onBackgroundEnqueued() {
+        backgroundEnqueued.increment();
+    }
+
+    public void onBackgroundOverflowed() {
+        backgroundOverflowed.increment();
+    }
+
+    public void onBackgroundDropped() {
+        backgroundDropped.increment();
+    }
+
+    public void onBackgroundApplied() {
+        backgroundApplied.increment();
+    }
+
+    public void onBackgroundRetried() {
+        backgroundRetried.increment();
+    }
+
+    public void onBackgroundFailed() {
+        backgroundFailed.increment();
+    }
+
+    public void onFeaturePayloadRejected() {
+        featurePayloadRejected.increment();
+    }
+
+    public void onWireFormatRejected() {
+        wireFormatRejected.increment();
+    }
+
+    public void recordRequestPayloadSize(long sizeInBytes) {
+        requestPayloadSize.record(sizeInBytes);
+    }
+
+    public void recordTextBodyLength(int length) {
+        textBodyLength.record(length);
+    }
+
+    public void recordRecipientsPerMail(int count) {
+        recipientsPerMail.record(count);
+    }
+}
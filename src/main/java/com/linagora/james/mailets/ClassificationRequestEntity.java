@@ -0,0 +1,151 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+
+import com.google.common.io.CountingOutputStream;
+
+/**
+ * Request entity writing its JSON content straight to the connection output stream, compressing it on the fly
+ * when requested. The request body is never materialized as a String or byte array, so that the memory cost of
+ * a request is bounded by the generator and socket buffers rather than by the size of the text body.
+ *
+ * The content length is unknown before writing, hence streamed requests are sent using chunked transfer encoding.
+ * As some servers and proxies reject chunked request bodies, small requests are rather buffered, once, when their
+ * length is first asked for, and sent with a Content-Length.
+ */
+public class ClassificationRequestEntity extends AbstractHttpEntity {
+
+    @FunctionalInterface
+    public interface ContentWriter {
+        void writeTo(OutputStream outputStream) throws IOException;
+    }
+
+    @FunctionalInterface
+    interface SizeListener {
+        void onWritten(long uncompressedBytes, long writtenBytes);
+    }
+
+    private static class NonClosingOutputStream extends FilterOutputStream {
+        private NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    private final ContentWriter contentWriter;
+    private final RequestCompression.Algorithm algorithm;
+    private final SizeListener sizeListener;
+    private byte[] bufferedContent;
+
+    ClassificationRequestEntity(ContentWriter contentWriter, RequestCompression.Algorithm algorithm, SizeListener sizeListener) {
+        this(contentWriter, algorithm, sizeListener, true);
+    }
+
+    ClassificationRequestEntity(ContentWriter contentWriter, RequestCompression.Algorithm algorithm, SizeListener sizeListener, boolean chunked) {
+        this.contentWriter = contentWriter;
+        this.algorithm = algorithm;
+        this.sizeListener = sizeListener;
+        setContentType(ContentType.APPLICATION_JSON.toString());
+        algorithm.contentEncoding().ifPresent(this::setContentEncoding);
+        setChunked(chunked);
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    /**
+     * When the content cannot be buffered, -1 is returned so that the request falls back to chunked transfer
+     * encoding, and the failure is reported when writing it.
+     */
+    @Override
+    public long getContentLength() {
+        if (isChunked()) {
+            return -1;
+        }
+        try {
+            return bufferedContent().length;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        if (!isChunked()) {
+            return new ByteArrayInputStream(bufferedContent());
+        }
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        write(content, (uncompressedBytes, writtenBytes) -> { });
+        return new ByteArrayInputStream(content.toByteArray());
+    }
+
+    @Override
+    public void writeTo(OutputStream outputStream) throws IOException {
+        if (!isChunked()) {
+            outputStream.write(bufferedContent());
+            return;
+        }
+        write(outputStream, sizeListener);
+    }
+
+    private synchronized byte[] bufferedContent() throws IOException {
+        if (bufferedContent == null) {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            write(content, sizeListener);
+            bufferedContent = content.toByteArray();
+        }
+        return bufferedContent;
+    }
+
+    private void write(OutputStream outputStream, SizeListener sizeListener) throws IOException {
+        CountingOutputStream written = new CountingOutputStream(new NonClosingOutputStream(outputStream));
+        CountingOutputStream uncompressed;
+        try (OutputStream encoded = algorithm.wrap(written)) {
+            uncompressed = new CountingOutputStream(encoded);
+            contentWriter.writeTo(uncompressed);
+        }
+        sizeListener.onWritten(uncompressed.getCount(), written.getCount());
+    }
+}
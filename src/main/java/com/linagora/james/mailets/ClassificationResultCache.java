@@ -0,0 +1,189 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.james.core.MailAddress;
+
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.linagora.james.mailets.json.ClassificationGuess;
+import com.linagora.james.mailets.json.ClassificationRequestBody;
+import com.linagora.james.mailets.json.Emailer;
+
+/**
+ * Bounded cache of classification results, keyed by a fingerprint of the content sent to the classification
+ * webservice and of the envelope recipients.
+ *
+ * Concurrent lookups of the same fingerprint share a single in-flight call. Entries are evicted in least recently
+ * used order once maxWeightInBytes is reached, or after ttlInMs. All entries are invalidated when the model version
+ * reported by the classification webservice changes.
+ */
+public class ClassificationResultCache {
+
+    private static final int ENTRY_OVERHEAD_IN_BYTES = 64;
+    private static final int FINGERPRINT_SIZE_IN_BYTES = 32;
+
+    @FunctionalInterface
+    public interface Loader {
+        CompletableFuture<Map<String, ClassificationGuess>> load() throws Exception;
+    }
+
+    public static HashCode fingerprint(ClassificationRequestBody body, Collection<MailAddress> mailRecipients) {
+        Hasher hasher = Hashing.sha256().newHasher();
+        putEmailers(hasher, body.getFrom());
+        putEmailers(hasher, body.getRecipients().getTo());
+        putEmailers(hasher, body.getRecipients().getCc());
+        putEmailers(hasher, body.getRecipients().getBcc());
+        hasher.putInt(body.getSubject().size());
+        body.getSubject().forEach(subject -> putString(hasher, subject));
+        putString(hasher, body.getTextBody());
+        hasher.putInt(mailRecipients.size());
+        mailRecipients.forEach(mailRecipient -> putString(hasher, mailRecipient.asString()));
+        return hasher.hash();
+    }
+
+    private static void putEmailers(Hasher hasher, List<Emailer> emailers) {
+        hasher.putInt(emailers.size());
+        emailers.forEach(emailer -> {
+            putString(hasher, emailer.getName());
+            putString(hasher, emailer.getAddress());
+        });
+    }
+
+    private static void putString(Hasher hasher, String value) {
+        String nonNullValue = Objects.toString(value, "");
+        hasher.putInt(nonNullValue.length());
+        hasher.putString(nonNullValue, StandardCharsets.UTF_8);
+    }
+
+    private static int weigh(HashCode fingerprint, Map<String, ClassificationGuess> classificationGuesses) {
+        return FINGERPRINT_SIZE_IN_BYTES + classificationGuesses.entrySet()
+            .stream()
+            .mapToInt(entry -> ENTRY_OVERHEAD_IN_BYTES
+                + 2 * entry.getKey().length()
+                + 2 * Strings.nullToEmpty(entry.getValue().getMailboxId()).length()
+                + 2 * Strings.nullToEmpty(entry.getValue().getMailboxName()).length())
+            .sum();
+    }
+
+    private final Cache<HashCode, Map<String, ClassificationGuess>> results;
+    private final ConcurrentHashMap<HashCode, CompletableFuture<Map<String, ClassificationGuess>>> inFlight;
+    private final AtomicLong coalescedCount;
+    private final AtomicLong generation;
+    private final AtomicReference<Optional<String>> modelVersion;
+
+    public ClassificationResultCache(long maxWeightInBytes, long ttlInMs) {
+        this.results = CacheBuilder.newBuilder()
+            .maximumWeight(maxWeightInBytes)
+            .weigher(ClassificationResultCache::weigh)
+            .expireAfterWrite(ttlInMs, TimeUnit.MILLISECONDS)
+            .recordStats()
+            .build();
+        this.inFlight = new ConcurrentHashMap<>();
+        this.coalescedCount = new AtomicLong();
+        this.generation = new AtomicLong();
+        this.modelVersion = new AtomicReference<>(Optional.empty());
+    }
+
+    public CompletableFuture<Map<String, ClassificationGuess>> get(HashCode fingerprint, Loader loader) {
+        Map<String, ClassificationGuess> cachedResult = results.getIfPresent(fingerprint);
+        if (cachedResult != null) {
+            return CompletableFuture.completedFuture(cachedResult);
+        }
+        CompletableFuture<Map<String, ClassificationGuess>> newCall = new CompletableFuture<>();
+        CompletableFuture<Map<String, ClassificationGuess>> existingCall = inFlight.putIfAbsent(fingerprint, newCall);
+        if (existingCall != null) {
+            coalescedCount.incrementAndGet();
+            return existingCall;
+        }
+        load(fingerprint, loader, newCall);
+        return newCall;
+    }
+
+    private void load(HashCode fingerprint, Loader loader, CompletableFuture<Map<String, ClassificationGuess>> call) {
+        long loadGeneration = generation.get();
+        try {
+            loader.load().whenComplete((result, error) -> {
+                inFlight.remove(fingerprint, call);
+                if (error != null) {
+                    call.completeExceptionally(error);
+                    return;
+                }
+                if (!result.isEmpty() && loadGeneration == generation.get()) {
+                    results.put(fingerprint, ImmutableMap.copyOf(result));
+                }
+                call.complete(result);
+            });
+        } catch (Exception e) {
+            inFlight.remove(fingerprint, call);
+            call.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Invalidates all cached results when the given model version differs from the last one seen.
+     */
+    public void onModelVersion(String version) {
+        Optional<String> previousVersion = modelVersion.getAndSet(Optional.of(version));
+        if (previousVersion.isPresent() && !previousVersion.get().equals(version)) {
+            invalidateAll();
+        }
+    }
+
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        results.invalidateAll();
+    }
+
+    /**
+     * Hit, miss and eviction counts.
+     */
+    public CacheStats getStats() {
+        return results.stats();
+    }
+
+    /**
+     * Count of lookups served by joining an identical in-flight call.
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    public long size() {
+        return results.size();
+    }
+}
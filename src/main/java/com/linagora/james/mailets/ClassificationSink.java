@@ -0,0 +1,39 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.util.Map;
+
+import javax.mail.MessagingException;
+
+import com.linagora.james.mailets.json.ClassificationGuess;
+
+/**
+ * Applies the classification of an already delivered mail, computed in the background by
+ * {@link BackgroundGuessClassificationMailet}, for instance by moving it to the guessed mailbox or annotating it.
+ *
+ * Implementations need a public no argument constructor, and are called concurrently by the background workers.
+ */
+public interface ClassificationSink {
+
+    /**
+     * @param classificationGuesses guesses indexed by recipient address, recipients without guess are absent
+     */
+    void apply(ClassificationJob job, Map<String, ClassificationGuess> classificationGuesses) throws MessagingException;
+}
@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.james.metrics.api.Metric;
+import org.apache.james.metrics.api.MetricFactory;
+import org.apache.james.metrics.api.TimeMetric;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Phase durations of the classification of a single mail.
+ *
+ * Timers are published to the underlying MetricFactory as usual, and their durations are also kept here so that
+ * slow mails can be reported individually. Phases may run on the spooler thread as well as on the HTTP threads.
+ * A phase run several times, e.g. once per recipient chunk, accumulates its durations.
+ */
+public class ClassificationTrace implements MetricFactory {
+
+    private static final String METRIC_PREFIX = "classification-";
+    private static final List<String> PHASES = ImmutableList.of(
+        ClassificationMetrics.MIME_EXTRACTION,
+        ClassificationMetrics.HTML_CONVERSION,
+        ClassificationMetrics.SERIALIZATION,
+        ClassificationMetrics.HTTP_ROUND_TRIP,
+        ClassificationMetrics.RESPONSE_PARSING,
+        ClassificationMetrics.HEADER_ATTACHMENT);
+
+    private final MetricFactory metricFactory;
+    private final Ticker ticker;
+    private final long startNanos;
+    private final Map<String, Long> durationsInNanos;
+    private final AtomicInteger textBodyLength;
+
+    public ClassificationTrace(MetricFactory metricFactory) {
+        this(metricFactory, Ticker.systemTicker());
+    }
+
+    ClassificationTrace(MetricFactory metricFactory, Ticker ticker) {
+        this.metricFactory = metricFactory;
+        this.ticker = ticker;
+        this.startNanos = ticker.read();
+        this.durationsInNanos = new ConcurrentHashMap<>();
+        this.textBodyLength = new AtomicInteger(-1);
+    }
+
+    @Override
+    public Metric generate(String name) {
+        return metricFactory.generate(name);
+    }
+
+    @Override
+    public TimeMetric timer(String name) {
+        TimeMetric timer = metricFactory.timer(name);
+        long phaseStartNanos = ticker.read();
+        return new TimeMetric() {
+            @Override
+            public String name() {
+                return timer.name();
+            }
+
+            @Override
+            public long stopAndPublish() {
+                durationsInNanos.merge(name, ticker.read() - phaseStartNanos, Long::sum);
+                return timer.stopAndPublish();
+            }
+        };
+    }
+
+    public void recordTextBodyLength(int length) {
+        textBodyLength.set(length);
+    }
+
+    /**
+     * -1 when the request body was not built.
+     */
+    public int getTextBodyLength() {
+        return textBodyLength.get();
+    }
+
+    public long elapsed(TimeUnit unit) {
+        return unit.convert(ticker.read() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Durations of the phases that ran, in milliseconds, in phase order. Keys are the timer names without
+     * their classification- prefix, e.g. httpRoundTrip.
+     */
+    public Map<String, Long> getDurationsInMs() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        PHASES.stream()
+            .filter(durationsInNanos::containsKey)
+            .forEach(phase -> result.put(shortName(phase), TimeUnit.NANOSECONDS.toMillis(durationsInNanos.get(phase))));
+        durationsInNanos.keySet().stream()
+            .filter(phase -> !PHASES.contains(phase))
+            .sorted()
+            .forEach(phase -> result.put(shortName(phase), TimeUnit.NANOSECONDS.toMillis(durationsInNanos.get(phase))));
+        return result;
+    }
+
+    private static String shortName(String phase) {
+        if (phase.startsWith(METRIC_PREFIX)) {
+            return phase.substring(METRIC_PREFIX.length());
+        }
+        return phase;
+    }
+}
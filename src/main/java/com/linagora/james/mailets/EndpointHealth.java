@@ -0,0 +1,135 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+
+/**
+ * Health of a single classification webservice endpoint.
+ *
+ * An endpoint is ejected for ejectionDurationInMs after consecutiveFailuresToEject failed calls in a row (passive
+ * checks), and while its health check fails (active checks). Once readmitted, its weight grows linearly from
+ * {@link #MIN_WEIGHT} to 1 over slowStartInMs, so that it is not flooded with requests right away.
+ */
+public class EndpointHealth {
+
+    public static final double MIN_WEIGHT = 0.1;
+
+    private final int consecutiveFailuresToEject;
+    private final long ejectionDurationInNanos;
+    private final long slowStartInNanos;
+    private final Ticker ticker;
+    private int consecutiveFailures;
+    private long ejectedUntil;
+    private long readmittedAt;
+    private boolean failingHealthCheck;
+    private long ejectionCount;
+
+    public EndpointHealth(int consecutiveFailuresToEject, long ejectionDurationInMs, long slowStartInMs) {
+        this(consecutiveFailuresToEject, ejectionDurationInMs, slowStartInMs, Ticker.systemTicker());
+    }
+
+    @VisibleForTesting
+    EndpointHealth(int consecutiveFailuresToEject, long ejectionDurationInMs, long slowStartInMs, Ticker ticker) {
+        Preconditions.checkArgument(consecutiveFailuresToEject > 0, "'consecutiveFailuresToEject' should be strictly positive");
+        Preconditions.checkArgument(ejectionDurationInMs >= 0, "'ejectionDurationInMs' should be positive");
+        Preconditions.checkArgument(slowStartInMs >= 0, "'slowStartInMs' should be positive");
+        this.consecutiveFailuresToEject = consecutiveFailuresToEject;
+        this.ejectionDurationInNanos = TimeUnit.MILLISECONDS.toNanos(ejectionDurationInMs);
+        this.slowStartInNanos = TimeUnit.MILLISECONDS.toNanos(slowStartInMs);
+        this.ticker = ticker;
+        long now = ticker.read();
+        this.ejectedUntil = now;
+        this.readmittedAt = now - slowStartInNanos;
+    }
+
+    public synchronized boolean isAvailable() {
+        return !failingHealthCheck && !isEjected(ticker.read());
+    }
+
+    private boolean isEjected(long now) {
+        return now - ejectedUntil < 0;
+    }
+
+    /**
+     * 0 while ejected, then growing from {@link #MIN_WEIGHT} to 1 during slow start.
+     */
+    public synchronized double weight() {
+        long now = ticker.read();
+        if (failingHealthCheck || isEjected(now)) {
+            return 0;
+        }
+        long sinceReadmission = now - readmittedAt;
+        if (sinceReadmission >= slowStartInNanos) {
+            return 1;
+        }
+        return Math.max(MIN_WEIGHT, (double) sinceReadmission / slowStartInNanos);
+    }
+
+    public synchronized void onSuccess() {
+        consecutiveFailures = 0;
+    }
+
+    /**
+     * Failures of calls issued before the endpoint got ejected are ignored.
+     *
+     * @return true when this failure ejects the endpoint
+     */
+    public synchronized boolean onFailure() {
+        long now = ticker.read();
+        if (isEjected(now)) {
+            return false;
+        }
+        consecutiveFailures++;
+        if (consecutiveFailures < consecutiveFailuresToEject) {
+            return false;
+        }
+        consecutiveFailures = 0;
+        ejectedUntil = now + ejectionDurationInNanos;
+        readmittedAt = ejectedUntil;
+        ejectionCount++;
+        return true;
+    }
+
+    /**
+     * @return true when the health check result changes the endpoint availability
+     */
+    public synchronized boolean onHealthCheck(boolean healthy) {
+        if (healthy == !failingHealthCheck) {
+            return false;
+        }
+        long now = ticker.read();
+        failingHealthCheck = !healthy;
+        if (healthy) {
+            consecutiveFailures = 0;
+            readmittedAt = isEjected(now) ? ejectedUntil : now;
+        } else {
+            ejectionCount++;
+        }
+        return true;
+    }
+
+    public synchronized long getEjectionCount() {
+        return ejectionCount;
+    }
+}
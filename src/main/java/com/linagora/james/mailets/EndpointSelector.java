@@ -0,0 +1,138 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.http.pool.PoolStats;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Client side load balancing between the replicas of the classification webservice.
+ *
+ * Uses power of two choices: two available endpoints are picked at random, and the one with the fewer outstanding
+ * requests wins. Slow starting endpoints count as more loaded than they are. When no endpoint is available, all of
+ * them are considered, so that a fully ejected set of endpoints does not stop classification altogether.
+ */
+public class EndpointSelector implements Closeable {
+
+    private final List<ServiceEndpoint> endpoints;
+
+    public EndpointSelector(List<ServiceEndpoint> endpoints) {
+        Preconditions.checkArgument(!endpoints.isEmpty(), "'endpoints' should not be empty");
+        this.endpoints = ImmutableList.copyOf(endpoints);
+    }
+
+    public ServiceEndpoint select() {
+        if (endpoints.size() == 1) {
+            return endpoints.get(0);
+        }
+        return select(availableEndpoints());
+    }
+
+    /**
+     * Selects another endpoint than the given one, typically for a duplicate request. Returns the given endpoint
+     * when it is the only one.
+     */
+    public ServiceEndpoint selectOtherThan(ServiceEndpoint excluded) {
+        if (endpoints.size() == 1) {
+            return endpoints.get(0);
+        }
+        List<ServiceEndpoint> candidates = new ArrayList<>(availableEndpoints());
+        candidates.remove(excluded);
+        if (candidates.isEmpty()) {
+            return excluded;
+        }
+        return select(candidates);
+    }
+
+    private ServiceEndpoint select(List<ServiceEndpoint> candidates) {
+        if (candidates.size() == 1) {
+            return candidates.get(0);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(candidates.size());
+        int second = random.nextInt(candidates.size() - 1);
+        if (second >= first) {
+            second++;
+        }
+        ServiceEndpoint firstEndpoint = candidates.get(first);
+        ServiceEndpoint secondEndpoint = candidates.get(second);
+        if (secondEndpoint.load() < firstEndpoint.load()) {
+            return secondEndpoint;
+        }
+        return firstEndpoint;
+    }
+
+    private List<ServiceEndpoint> availableEndpoints() {
+        List<ServiceEndpoint> result = new ArrayList<>(endpoints.size());
+        for (ServiceEndpoint endpoint : endpoints) {
+            if (endpoint.isAvailable()) {
+                result.add(endpoint);
+            }
+        }
+        if (result.isEmpty()) {
+            return endpoints;
+        }
+        return result;
+    }
+
+    public List<ServiceEndpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     * Connection pool statistics summed over all endpoints.
+     */
+    public PoolStats getConnectionPoolStats() {
+        int leased = 0;
+        int pending = 0;
+        int available = 0;
+        int max = 0;
+        for (ServiceEndpoint endpoint : endpoints) {
+            PoolStats stats = endpoint.getConnectionPoolStats();
+            leased += stats.getLeased();
+            pending += stats.getPending();
+            available += stats.getAvailable();
+            max += stats.getMax();
+        }
+        return new PoolStats(leased, pending, available, max);
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (ServiceEndpoint endpoint : endpoints) {
+            try {
+                endpoint.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
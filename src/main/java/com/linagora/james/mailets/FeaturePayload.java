@@ -0,0 +1,66 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.util.Arrays;
+import java.util.Optional;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.linagora.james.mailets.json.ClassificationRequestBody;
+import com.linagora.james.mailets.json.FeatureHasher;
+import com.linagora.james.mailets.json.FeatureRequestBody;
+
+/**
+ * Negotiates hashed feature request bodies with the classification webservice: features are sent with the versioned
+ * {@link FeatureHasher#MEDIA_TYPE} media type, falling back to text when it is rejected.
+ */
+public class FeaturePayload extends MediaTypeNegotiation {
+
+    public enum Mode {
+        TEXT,
+        FEATURES;
+
+        public static Optional<Mode> parse(String value) {
+            return Arrays.stream(values())
+                .filter(mode -> mode.name().equalsIgnoreCase(value.trim()))
+                .findFirst();
+        }
+    }
+
+    private final FeatureHasher featureHasher;
+
+    public FeaturePayload(FeatureHasher featureHasher, long retryIntervalInMs) {
+        this(featureHasher, retryIntervalInMs, Ticker.systemTicker());
+    }
+
+    @VisibleForTesting
+    FeaturePayload(FeatureHasher featureHasher, long retryIntervalInMs, Ticker ticker) {
+        super(retryIntervalInMs, ticker);
+        this.featureHasher = featureHasher;
+    }
+
+    public FeatureRequestBody toRequestBody(ClassificationRequestBody body) {
+        return FeatureRequestBody.from(body, featureHasher);
+    }
+
+    public FeatureHasher getFeatureHasher() {
+        return featureHasher;
+    }
+}
@@ -18,25 +18,69 @@
 
 package com.linagora.james.mailets;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
+import javax.inject.Inject;
 import javax.mail.MessagingException;
 import javax.mail.internet.AddressException;
 
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.StatusLine;
+import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
-import org.apache.http.client.fluent.Executor;
-import org.apache.http.client.fluent.Request;
+import org.apache.http.client.AuthCache;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.client.utils.URIBuilder;
-import org.apache.http.entity.ContentType;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.impl.auth.BasicScheme;
+import org.apache.http.impl.client.BasicAuthCache;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.util.EntityUtils;
 import org.apache.james.core.MailAddress;
+import org.apache.james.metrics.api.MetricFactory;
+import org.apache.james.metrics.api.NoopMetricFactory;
+import org.apache.james.metrics.api.TimeMetric;
 import org.apache.mailet.Mail;
 import org.apache.mailet.MailetException;
 import org.apache.mailet.PerRecipientHeaders;
@@ -46,29 +90,119 @@ import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.steveash.guavate.Guavate;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.CountingOutputStream;
 import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.linagora.james.mailets.json.ClassificationGuess;
 import com.linagora.james.mailets.json.ClassificationGuesses;
+import com.linagora.james.mailets.json.ClassificationGuessesReader;
+import com.linagora.james.mailets.json.ClassificationRequestBody;
 import com.linagora.james.mailets.json.ClassificationRequestBodySerializer;
+import com.linagora.james.mailets.json.Emailer;
+import com.linagora.james.mailets.json.FeatureHasher;
+import com.linagora.james.mailets.json.FeatureRequestBody;
+import com.linagora.james.mailets.json.HtmlTextExtractorType;
 import com.linagora.james.mailets.json.UUIDGenerator;
+import com.linagora.james.mailets.json.WireFormat;
 
 /**
  * This mailet adds a header to the mail which specify the guess classification of this message.
  *
  * The guess classification is taken from a webservice.
  *
+ * Per-phase timers, outcome counters and size histograms are published through the James MetricFactory,
+ * see {@link ClassificationMetrics}.
+ *
  * <pre>
  * <code>
  * &lt;mailet match="All" class="GuessClassificationMailet"&gt;
- *    &lt;serviceUrl&gt; <i>The URL of the classification webservice</i> &lt;/serviceUrl&gt;
+ *    &lt;serviceUrl&gt; <i>The URL of the classification webservice. Several comma separated URLs can be given, one per
+ *        replica: requests are then balanced between them, see {@link EndpointSelector}.</i> &lt;/serviceUrl&gt;
  *    &lt;serviceUsername&gt; <i>The username to use for authentication with the classification webservice</i> &lt;/serviceUsername&gt;
  *    &lt;servicePassword&gt; <i>The password to use for authentication with the classification webservice</i> &lt;/servicePassword&gt;
  *    &lt;headerName&gt; <i>The classification message header name, default=X-Classification-Guess</i> &lt;/headerName&gt;
- *    &lt;threadCount&gt; <i>The number of threads used for the timeout</i> &lt;/threadCount&gt;
- *    &lt;timeoutInMs&gt; <i>The timeout in milliseconds the code will wait for answer of the prediction API. If not specified, infinite.</i> &lt;/timeoutInMs&gt;
+ *    &lt;threadCount&gt; <i>The number of threads used for the timeout, default=maxConnections</i> &lt;/threadCount&gt;
+ *    &lt;timeoutInMs&gt; <i>The timeout in milliseconds the code will wait for answer of the prediction API, default=30000.
+ *        It covers connection pool acquisition, connection, sending the request and reading the whole answer.</i> &lt;/timeoutInMs&gt;
+ *    &lt;maxConnections&gt; <i>The maximum number of pooled connections to each endpoint of the classification webservice, default=20</i> &lt;/maxConnections&gt;
+ *    &lt;maxConnectionsPerRoute&gt; <i>The maximum number of pooled connections per route, default=maxConnections</i> &lt;/maxConnectionsPerRoute&gt;
+ *    &lt;keepAliveInMs&gt; <i>How long an idle connection is kept alive when the server does not specify it, default=30000</i> &lt;/keepAliveInMs&gt;
+ *    &lt;connectionTtlInMs&gt; <i>The maximum lifetime of a pooled connection. If not specified, infinite.</i> &lt;/connectionTtlInMs&gt;
+ *    &lt;maxIdleTimeInMs&gt; <i>Idle connections older than this are evicted from the pool, default=keepAliveInMs</i> &lt;/maxIdleTimeInMs&gt;
+ *    &lt;connectionRequestTimeoutInMs&gt; <i>The timeout in milliseconds to wait for a pooled connection, default=timeoutInMs</i> &lt;/connectionRequestTimeoutInMs&gt;
+ *    &lt;batchSize&gt; <i>The maximum number of mails classified with a single request, default=1 (no batching)</i> &lt;/batchSize&gt;
+ *    &lt;batchWindowInMs&gt; <i>How long a mail may wait for other mails to be batched with, default=10</i> &lt;/batchWindowInMs&gt;
+ *    &lt;batchServiceUrl&gt; <i>The comma separated URLs of the classification webservice handling batches, default=serviceUrl</i> &lt;/batchServiceUrl&gt;
+ *    &lt;endpointEjectionConsecutiveFailures&gt; <i>The number of failed calls in a row ejecting an endpoint, default=5</i> &lt;/endpointEjectionConsecutiveFailures&gt;
+ *    &lt;endpointEjectionDurationInMs&gt; <i>How long an endpoint is ejected after consecutive failures, default=30000</i> &lt;/endpointEjectionDurationInMs&gt;
+ *    &lt;endpointSlowStartInMs&gt; <i>How long a readmitted endpoint takes to get its full share of requests, default=30000</i> &lt;/endpointSlowStartInMs&gt;
+ *    &lt;healthCheckPath&gt; <i>The path endpoints are checked on with a GET request. Endpoints not answering with a 2xx status
+ *        are ejected until they do. If not specified, endpoints are only ejected on failed calls.</i> &lt;/healthCheckPath&gt;
+ *    &lt;healthCheckIntervalInMs&gt; <i>The delay between two health checks of an endpoint, default=10000</i> &lt;/healthCheckIntervalInMs&gt;
+ *    &lt;hedging&gt; <i>none, fixed or p95. When no answer arrived after the hedge delay, a duplicate request is sent, to another
+ *        endpoint when several are configured, and the first answer is used. fixed waits hedgeDelayInMs, p95 the observed 95th
+ *        percentile of answer latencies. Batched requests are never hedged, default=none</i> &lt;/hedging&gt;
+ *    &lt;hedgeDelayInMs&gt; <i>The fixed hedge delay, also used by p95 until enough latencies were observed, default=100</i> &lt;/hedgeDelayInMs&gt;
+ *    &lt;hedgeBudgetPercentage&gt; <i>The maximum percentage of requests that can be duplicated, default=10</i> &lt;/hedgeBudgetPercentage&gt;
+ *    &lt;circuitBreakerEnabled&gt; <i>Stop calling the classification webservice while it is failing, default=true</i> &lt;/circuitBreakerEnabled&gt;
+ *    &lt;circuitBreakerFailureRateThreshold&gt; <i>The percentage of failed calls opening the circuit, default=50</i> &lt;/circuitBreakerFailureRateThreshold&gt;
+ *    &lt;circuitBreakerSlowCallRateThreshold&gt; <i>The percentage of slow calls opening the circuit, default=80</i> &lt;/circuitBreakerSlowCallRateThreshold&gt;
+ *    &lt;circuitBreakerSlowCallDurationInMs&gt; <i>Calls lasting longer are slow calls, default=timeoutInMs</i> &lt;/circuitBreakerSlowCallDurationInMs&gt;
+ *    &lt;circuitBreakerWindowSize&gt; <i>The number of last calls the rates are computed on, default=100</i> &lt;/circuitBreakerWindowSize&gt;
+ *    &lt;circuitBreakerMinimumCalls&gt; <i>The number of calls needed before computing rates, default=20</i> &lt;/circuitBreakerMinimumCalls&gt;
+ *    &lt;circuitBreakerOpenDurationInMs&gt; <i>How long the circuit stays open before probing, default=30000</i> &lt;/circuitBreakerOpenDurationInMs&gt;
+ *    &lt;circuitBreakerHalfOpenCalls&gt; <i>The number of probe calls deciding whether to close the circuit, default=5</i> &lt;/circuitBreakerHalfOpenCalls&gt;
+ *    &lt;cacheMaxWeightInBytes&gt; <i>The maximum size of cached results of identical content. If not specified, no cache is used.</i> &lt;/cacheMaxWeightInBytes&gt;
+ *    &lt;cacheTtlInMs&gt; <i>How long a result is cached, default=3600000</i> &lt;/cacheTtlInMs&gt;
+ *    &lt;maxTextBodyLength&gt; <i>The maximum number of characters of the text body sent for classification. If not specified, the whole text body is sent.</i> &lt;/maxTextBodyLength&gt;
+ *    &lt;htmlTextExtractor&gt; <i>jsoup or streaming, how HTML bodies are converted to text. streaming avoids building a document tree, default=jsoup</i> &lt;/htmlTextExtractor&gt;
+ *    &lt;requestCompression&gt; <i>none, gzip or deflate, default=none</i> &lt;/requestCompression&gt;
+ *    &lt;requestCompressionThresholdInBytes&gt; <i>Request bodies smaller than this size are not compressed, default=1024</i> &lt;/requestCompressionThresholdInBytes&gt;
+ *    &lt;requestChunkingThresholdInBytes&gt; <i>Request bodies smaller than this size are buffered and sent with a Content-Length, larger ones are streamed using chunked transfer encoding, default=65536</i> &lt;/requestChunkingThresholdInBytes&gt;
+ *    &lt;requestPayload&gt; <i>text or features. features sends the subject and text body as a sparse vector of hashed features,
+ *        see {@link com.linagora.james.mailets.json.FeatureHasher}, instead of raw text. Servers not supporting it answer 415 and
+ *        are sent text instead. Batched requests always carry text, default=text</i> &lt;/requestPayload&gt;
+ *    &lt;featureDimension&gt; <i>The size of the hashed feature vector, a power of two, default=262144</i> &lt;/featureDimension&gt;
+ *    &lt;featureRetryIntervalInMs&gt; <i>How long text is sent after features were rejected, before trying them again, default=3600000</i> &lt;/featureRetryIntervalInMs&gt;
+ *    &lt;wireFormat&gt; <i>json, smile or cbor. The binary formats spare the JSON text encoding and decoding: requests are sent
+ *        in that format, and answers are asked for in it, JSON being accepted too. Servers not supporting it answer 415 and
+ *        are sent JSON instead. Batched requests and hashed features are always sent as JSON, default=json</i> &lt;/wireFormat&gt;
+ *    &lt;wireFormatRetryIntervalInMs&gt; <i>How long JSON is sent after the wire format was rejected, before trying it again, default=3600000</i> &lt;/wireFormatRetryIntervalInMs&gt;
+ *    &lt;transport&gt; <i>http1 or http2. http2 multiplexes the concurrent classification requests over a few connections, using h2c
+ *        for http URLs and h2 for https ones, see {@link Http2Transport}. Batches and health checks keep using HTTP/1.1, default=http1</i> &lt;/transport&gt;
+ *    &lt;http2MaxConnectionsPerEndpoint&gt; <i>The maximum number of HTTP/2 connections to each endpoint, additional ones being opened
+ *        only when the server limit of concurrent streams is reached, default=2</i> &lt;/http2MaxConnectionsPerEndpoint&gt;
+ *    &lt;maxInFlightBytes&gt; <i>The maximum estimated working set of mails being classified at once, see {@link AdmissionControl}.
+ *        Mails exceeding it wait admissionWaitInMs, then are classified in a cheaper downgraded mode. If not specified, all mails are admitted.</i> &lt;/maxInFlightBytes&gt;
+ *    &lt;admissionWaitInMs&gt; <i>How long a mail waits for in-flight bytes to be released before being downgraded, default=100</i> &lt;/admissionWaitInMs&gt;
+ *    &lt;downgradedTextBodyLength&gt; <i>The maximum number of characters of the text body of downgraded mails, whose HTML is
+ *        converted with the streaming extractor, default=4096</i> &lt;/downgradedTextBodyLength&gt;
+ *    &lt;recipientsInBody&gt; <i>Send envelope recipients in the request body rather than as query parameters. They are
+ *        sent in the body anyway when the query parameters would make the URL longer than 2048 characters, default=false</i> &lt;/recipientsInBody&gt;
+ *    &lt;recipientChunkSize&gt; <i>Recipient sets larger than this are split into chunks classified in parallel. Batched
+ *        requests are never split. If not specified, all recipients are classified with a single request.</i> &lt;/recipientChunkSize&gt;
+ *    &lt;onlyLocalRecipients&gt; <i>Only classify the mail for recipients local to this server, default=false</i> &lt;/onlyLocalRecipients&gt;
+ *    &lt;slowClassificationThresholdInMs&gt; <i>Mails whose classification takes longer are logged with their per-phase durations.
+ *        If not specified, slow classifications are not reported.</i> &lt;/slowClassificationThresholdInMs&gt;
+ *    &lt;slowClassificationLogsPerSecond&gt; <i>The maximum rate of slow classification log lines, default=1</i> &lt;/slowClassificationLogsPerSecond&gt;
+ *    &lt;slowClassificationAttribute&gt; <i>The mail attribute the per-phase durations of slow classifications are stored in.
+ *        If not specified, they are only logged.</i> &lt;/slowClassificationAttribute&gt;
+ *    &lt;affinityMaxEntries&gt; <i>The maximum number of (sender, recipient) affinities learned from previous answers. Mails whose
+ *        recipients all have a trusted affinity with the sender are classified locally. If not specified, no affinity is learned.</i> &lt;/affinityMaxEntries&gt;
+ *    &lt;affinityTtlInMs&gt; <i>How long an affinity is kept without being learned again, default=86400000</i> &lt;/affinityTtlInMs&gt;
+ *    &lt;affinityMinHitStreak&gt; <i>The number of consecutive identical guesses needed to trust an affinity, default=3</i> &lt;/affinityMinHitStreak&gt;
+ *    &lt;affinityMinConfidence&gt; <i>The minimum confidence of the last guess needed to trust an affinity, as a percentage, default=90</i> &lt;/affinityMinConfidence&gt;
+ *    &lt;affinityVerificationPercentage&gt; <i>The percentage of locally classifiable mails still sent to the classification
+ *        webservice to verify affinities, default=5</i> &lt;/affinityVerificationPercentage&gt;
+ *    &lt;modelVersionHeader&gt; <i>The answer header carrying the model version. Cached results and affinities are dropped when it changes.</i> &lt;/modelVersionHeader&gt;
  * &lt;/mailet&gt;
  * </code>
  * </pre>
@@ -93,37 +227,193 @@ public class GuessClassificationMailet extends GenericMailet {
     @VisibleForTesting static final String JSON_CONTENT_TYPE_UTF8 = "application/json; charset=UTF-8";
 
     static final int DEFAULT_TIME = Ints.checkedCast(TimeUnit.SECONDS.toMillis(30));
+    private static final int ESTIMATED_BYTES_PER_FEATURE = 12;
     static final String SERVICE_URL = "serviceUrl";
     static final String SERVICE_USERNAME = "serviceUsername";
     static final String SERVICE_PASSWORD = "servicePassword";
     static final String HEADER_NAME = "headerName";
     static final String TIMEOUT_IN_MS = "timeoutInMs";
     static final String THREAD_COUNT = "threadCount";
+    static final String MAX_CONNECTIONS = "maxConnections";
+    static final String MAX_CONNECTIONS_PER_ROUTE = "maxConnectionsPerRoute";
+    static final String KEEP_ALIVE_IN_MS = "keepAliveInMs";
+    static final String CONNECTION_TTL_IN_MS = "connectionTtlInMs";
+    static final String MAX_IDLE_TIME_IN_MS = "maxIdleTimeInMs";
+    static final String CONNECTION_REQUEST_TIMEOUT_IN_MS = "connectionRequestTimeoutInMs";
+    static final String BATCH_SIZE = "batchSize";
+    static final String BATCH_WINDOW_IN_MS = "batchWindowInMs";
+    static final String BATCH_SERVICE_URL = "batchServiceUrl";
+    static final String ENDPOINT_EJECTION_CONSECUTIVE_FAILURES = "endpointEjectionConsecutiveFailures";
+    static final String ENDPOINT_EJECTION_DURATION_IN_MS = "endpointEjectionDurationInMs";
+    static final String ENDPOINT_SLOW_START_IN_MS = "endpointSlowStartInMs";
+    static final String HEALTH_CHECK_PATH = "healthCheckPath";
+    static final String HEALTH_CHECK_INTERVAL_IN_MS = "healthCheckIntervalInMs";
+    static final String HEDGING = "hedging";
+    static final String HEDGE_DELAY_IN_MS = "hedgeDelayInMs";
+    static final String HEDGE_BUDGET_PERCENTAGE = "hedgeBudgetPercentage";
+    static final String CIRCUIT_BREAKER_ENABLED = "circuitBreakerEnabled";
+    static final String CIRCUIT_BREAKER_FAILURE_RATE_THRESHOLD = "circuitBreakerFailureRateThreshold";
+    static final String CIRCUIT_BREAKER_SLOW_CALL_RATE_THRESHOLD = "circuitBreakerSlowCallRateThreshold";
+    static final String CIRCUIT_BREAKER_SLOW_CALL_DURATION_IN_MS = "circuitBreakerSlowCallDurationInMs";
+    static final String CIRCUIT_BREAKER_WINDOW_SIZE = "circuitBreakerWindowSize";
+    static final String CIRCUIT_BREAKER_MINIMUM_CALLS = "circuitBreakerMinimumCalls";
+    static final String CIRCUIT_BREAKER_OPEN_DURATION_IN_MS = "circuitBreakerOpenDurationInMs";
+    static final String CIRCUIT_BREAKER_HALF_OPEN_CALLS = "circuitBreakerHalfOpenCalls";
+    static final String CACHE_MAX_WEIGHT_IN_BYTES = "cacheMaxWeightInBytes";
+    static final String CACHE_TTL_IN_MS = "cacheTtlInMs";
+    static final String MODEL_VERSION_HEADER = "modelVersionHeader";
+    static final String REQUEST_COMPRESSION = "requestCompression";
+    static final String MAX_TEXT_BODY_LENGTH = "maxTextBodyLength";
+    static final String HTML_TEXT_EXTRACTOR = "htmlTextExtractor";
+    static final String REQUEST_COMPRESSION_THRESHOLD_IN_BYTES = "requestCompressionThresholdInBytes";
+    static final String REQUEST_CHUNKING_THRESHOLD_IN_BYTES = "requestChunkingThresholdInBytes";
+    static final String REQUEST_PAYLOAD = "requestPayload";
+    static final String FEATURE_DIMENSION = "featureDimension";
+    static final String FEATURE_RETRY_INTERVAL_IN_MS = "featureRetryIntervalInMs";
+    static final String WIRE_FORMAT = "wireFormat";
+    static final String WIRE_FORMAT_RETRY_INTERVAL_IN_MS = "wireFormatRetryIntervalInMs";
+    static final String TRANSPORT = "transport";
+    static final String HTTP2_MAX_CONNECTIONS_PER_ENDPOINT = "http2MaxConnectionsPerEndpoint";
+    static final String MAX_IN_FLIGHT_BYTES = "maxInFlightBytes";
+    static final String ADMISSION_WAIT_IN_MS = "admissionWaitInMs";
+    static final String DOWNGRADED_TEXT_BODY_LENGTH = "downgradedTextBodyLength";
+    static final String RECIPIENTS_IN_BODY = "recipientsInBody";
+    static final String RECIPIENT_CHUNK_SIZE = "recipientChunkSize";
+    static final String ONLY_LOCAL_RECIPIENTS = "onlyLocalRecipients";
+    static final String SLOW_CLASSIFICATION_THRESHOLD_IN_MS = "slowClassificationThresholdInMs";
+    static final String SLOW_CLASSIFICATION_LOGS_PER_SECOND = "slowClassificationLogsPerSecond";
+    static final String SLOW_CLASSIFICATION_ATTRIBUTE = "slowClassificationAttribute";
+    static final String AFFINITY_MAX_ENTRIES = "affinityMaxEntries";
+    static final String AFFINITY_TTL_IN_MS = "affinityTtlInMs";
+    static final String AFFINITY_MIN_HIT_STREAK = "affinityMinHitStreak";
+    static final String AFFINITY_MIN_CONFIDENCE = "affinityMinConfidence";
+    static final String AFFINITY_VERIFICATION_PERCENTAGE = "affinityVerificationPercentage";
     static final String HEADER_NAME_DEFAULT_VALUE = "X-Classification-Guess";
+    /**
+     * Longer URLs are rejected by many proxies and servers, so recipients that would not fit in it are sent in the body.
+     */
+    static final int MAX_URL_LENGTH = 2048;
+    static final int DEFAULT_MAX_CONNECTIONS = 20;
+    static final int DEFAULT_KEEP_ALIVE_IN_MS = Ints.checkedCast(TimeUnit.SECONDS.toMillis(30));
+    static final int DEFAULT_BATCH_SIZE = 1;
+    static final int DEFAULT_BATCH_WINDOW_IN_MS = 10;
+    static final int DEFAULT_ENDPOINT_EJECTION_CONSECUTIVE_FAILURES = 5;
+    static final int DEFAULT_ENDPOINT_EJECTION_DURATION_IN_MS = Ints.checkedCast(TimeUnit.SECONDS.toMillis(30));
+    static final int DEFAULT_ENDPOINT_SLOW_START_IN_MS = Ints.checkedCast(TimeUnit.SECONDS.toMillis(30));
+    static final int DEFAULT_HEALTH_CHECK_INTERVAL_IN_MS = Ints.checkedCast(TimeUnit.SECONDS.toMillis(10));
+    static final int DEFAULT_HEDGE_DELAY_IN_MS = 100;
+    static final int DEFAULT_HEDGE_BUDGET_PERCENTAGE = 10;
+    static final int DEFAULT_CIRCUIT_BREAKER_FAILURE_RATE_THRESHOLD = 50;
+    static final int DEFAULT_CIRCUIT_BREAKER_SLOW_CALL_RATE_THRESHOLD = 80;
+    static final int DEFAULT_CIRCUIT_BREAKER_WINDOW_SIZE = 100;
+    static final int DEFAULT_CIRCUIT_BREAKER_MINIMUM_CALLS = 20;
+    static final int DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION_IN_MS = Ints.checkedCast(TimeUnit.SECONDS.toMillis(30));
+    static final int DEFAULT_CIRCUIT_BREAKER_HALF_OPEN_CALLS = 5;
+    static final int DEFAULT_CACHE_TTL_IN_MS = Ints.checkedCast(TimeUnit.HOURS.toMillis(1));
+    static final int DEFAULT_REQUEST_COMPRESSION_THRESHOLD_IN_BYTES = 1024;
+    static final int DEFAULT_REQUEST_CHUNKING_THRESHOLD_IN_BYTES = 64 * 1024;
+    static final int DEFAULT_SLOW_CLASSIFICATION_LOGS_PER_SECOND = 1;
+    static final int DEFAULT_MEDIA_TYPE_RETRY_INTERVAL_IN_MS = Ints.checkedCast(TimeUnit.HOURS.toMillis(1));
+    static final int DEFAULT_HTTP2_MAX_CONNECTIONS_PER_ENDPOINT = 2;
+    static final int DEFAULT_ADMISSION_WAIT_IN_MS = 100;
+    static final int DEFAULT_DOWNGRADED_TEXT_BODY_LENGTH = 4096;
+    static final int DEFAULT_AFFINITY_TTL_IN_MS = Ints.checkedCast(TimeUnit.DAYS.toMillis(1));
+    static final int DEFAULT_AFFINITY_MIN_HIT_STREAK = 3;
+    static final double DEFAULT_AFFINITY_MIN_CONFIDENCE = 90.0;
+    static final int DEFAULT_AFFINITY_VERIFICATION_PERCENTAGE = 5;
 
     @VisibleForTesting String serviceUrl;
     @VisibleForTesting String serviceUsername;
     @VisibleForTesting String servicePassword;
     @VisibleForTesting String headerName;
     @VisibleForTesting Optional<Integer> timeoutInMs;
+    @VisibleForTesting Optional<Integer> maxTextBodyLength;
+    @VisibleForTesting HtmlTextExtractorType htmlTextExtractorType;
+    @VisibleForTesting int maxConnections;
+    @VisibleForTesting int maxConnectionsPerRoute;
+    @VisibleForTesting int keepAliveInMs;
+    @VisibleForTesting Optional<Integer> connectionTtlInMs;
+    @VisibleForTesting int maxIdleTimeInMs;
+    @VisibleForTesting int connectionRequestTimeoutInMs;
+    @VisibleForTesting int threadCount;
+    @VisibleForTesting int batchSize;
+    @VisibleForTesting int batchWindowInMs;
+    @VisibleForTesting String batchServiceUrl;
+    @VisibleForTesting int endpointEjectionConsecutiveFailures;
+    @VisibleForTesting int endpointEjectionDurationInMs;
+    @VisibleForTesting int endpointSlowStartInMs;
+    @VisibleForTesting Optional<String> healthCheckPath;
+    @VisibleForTesting int healthCheckIntervalInMs;
+    @VisibleForTesting int admissionWaitInMs;
+    @VisibleForTesting int downgradedTextBodyLength;
+    @VisibleForTesting boolean recipientsInBody;
+    @VisibleForTesting Optional<Integer> recipientChunkSize;
+    @VisibleForTesting boolean onlyLocalRecipients;
     private final UUIDGenerator uuidGenerator;
     private final ObjectMapper objectMapper;
-    private Executor executor;
+    private final Map<WireFormat, ObjectMapper> responseObjectMappers;
+    private final MetricFactory metricFactory;
+    final ClassificationMetrics metrics;
+    private EndpointSelector serviceEndpoints;
+    private EndpointSelector batchServiceEndpoints;
+    private ExecutorService timeoutExecutor;
+    private ScheduledExecutorService scheduler;
+    private Optional<ClassificationBatcher> batcher;
+    private Optional<CircuitBreaker> circuitBreaker;
+    private Optional<Hedging> hedging;
+    private Optional<AdmissionControl> admissionControl;
+    private Optional<ClassificationResultCache> resultCache;
+    private Optional<AffinityTable> affinityTable;
+    private Optional<String> modelVersionHeader;
+    private RequestCompression requestCompression;
+    private Optional<FeaturePayload> featurePayload;
+    private WireFormat wireFormat;
+    private MediaTypeNegotiation wireFormatNegotiation;
+    private Optional<Http2Transport> http2Transport = Optional.empty();
+    private Optional<SlowClassificationLog> slowClassificationLog;
 
     public GuessClassificationMailet() {
-        this(new UUIDGenerator());
+        this(new NoopMetricFactory());
+    }
+
+    @Inject
+    public GuessClassificationMailet(MetricFactory metricFactory) {
+        this(new UUIDGenerator(), metricFactory);
     }
 
     @VisibleForTesting
     GuessClassificationMailet(UUIDGenerator uuidGenerator) {
+        this(uuidGenerator, new NoopMetricFactory());
+    }
+
+    @VisibleForTesting
+    GuessClassificationMailet(UUIDGenerator uuidGenerator, MetricFactory metricFactory) {
         this.uuidGenerator = uuidGenerator;
         this.objectMapper = new ObjectMapper();
+        this.responseObjectMappers = Maps.toMap(Arrays.asList(WireFormat.values()),
+            wireFormat -> wireFormat == WireFormat.JSON ? objectMapper : wireFormat.newObjectMapper());
+        this.metricFactory = metricFactory;
+        this.metrics = new ClassificationMetrics(metricFactory);
     }
 
     @Override
     public void init() throws MessagingException {
         LOGGER.debug("init GuessClassificationMailet");
-        timeoutInMs = parseTimeout();
+        timeoutInMs = parseOptionalStrictlyPositiveInteger(TIMEOUT_IN_MS);
+        maxConnections = parseStrictlyPositiveInteger(MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS);
+        maxConnectionsPerRoute = parseStrictlyPositiveInteger(MAX_CONNECTIONS_PER_ROUTE, maxConnections);
+        keepAliveInMs = parseStrictlyPositiveInteger(KEEP_ALIVE_IN_MS, DEFAULT_KEEP_ALIVE_IN_MS);
+        connectionTtlInMs = parseOptionalStrictlyPositiveInteger(CONNECTION_TTL_IN_MS);
+        maxIdleTimeInMs = parseStrictlyPositiveInteger(MAX_IDLE_TIME_IN_MS, keepAliveInMs);
+        connectionRequestTimeoutInMs = parseStrictlyPositiveInteger(CONNECTION_REQUEST_TIMEOUT_IN_MS, timeoutInMs.orElse(DEFAULT_TIME));
+        threadCount = parseStrictlyPositiveInteger(THREAD_COUNT, maxConnections);
+        batchSize = parseStrictlyPositiveInteger(BATCH_SIZE, DEFAULT_BATCH_SIZE);
+        batchWindowInMs = parseStrictlyPositiveInteger(BATCH_WINDOW_IN_MS, DEFAULT_BATCH_WINDOW_IN_MS);
+        endpointEjectionConsecutiveFailures = parseStrictlyPositiveInteger(ENDPOINT_EJECTION_CONSECUTIVE_FAILURES, DEFAULT_ENDPOINT_EJECTION_CONSECUTIVE_FAILURES);
+        endpointEjectionDurationInMs = parseStrictlyPositiveInteger(ENDPOINT_EJECTION_DURATION_IN_MS, DEFAULT_ENDPOINT_EJECTION_DURATION_IN_MS);
+        endpointSlowStartInMs = parseStrictlyPositiveInteger(ENDPOINT_SLOW_START_IN_MS, DEFAULT_ENDPOINT_SLOW_START_IN_MS);
+        healthCheckPath = Optional.ofNullable(Strings.emptyToNull(getInitParameter(HEALTH_CHECK_PATH)));
+        healthCheckIntervalInMs = parseStrictlyPositiveInteger(HEALTH_CHECK_INTERVAL_IN_MS, DEFAULT_HEALTH_CHECK_INTERVAL_IN_MS);
 
         serviceUrl = getInitParameter(SERVICE_URL);
         if (LOGGER.isDebugEnabled()) {
@@ -154,32 +444,411 @@ public class GuessClassificationMailet extends GenericMailet {
             throw new MailetException("'headerName' is mandatory");
         }
 
-        executor = createHttpExecutor();
+        batchServiceUrl = getInitParameter(BATCH_SERVICE_URL, serviceUrl);
+        maxTextBodyLength = parseOptionalStrictlyPositiveInteger(MAX_TEXT_BODY_LENGTH);
+        String htmlTextExtractor = getInitParameter(HTML_TEXT_EXTRACTOR, HtmlTextExtractorType.JSOUP.name());
+        htmlTextExtractorType = HtmlTextExtractorType.parse(htmlTextExtractor)
+            .orElseThrow(() -> new MailetException("Expecting " + HTML_TEXT_EXTRACTOR + " to be one of jsoup or streaming. Got " + htmlTextExtractor));
+        requestCompression = createRequestCompression();
+        featurePayload = createFeaturePayload();
+        wireFormat = parseWireFormat();
+        wireFormatNegotiation = new MediaTypeNegotiation(
+            parseStrictlyPositiveInteger(WIRE_FORMAT_RETRY_INTERVAL_IN_MS, DEFAULT_MEDIA_TYPE_RETRY_INTERVAL_IN_MS));
+        admissionControl = parseOptionalStrictlyPositiveInteger(MAX_IN_FLIGHT_BYTES)
+            .map(maxInFlightBytes -> new AdmissionControl(maxInFlightBytes, metrics));
+        admissionWaitInMs = parseStrictlyPositiveInteger(ADMISSION_WAIT_IN_MS, DEFAULT_ADMISSION_WAIT_IN_MS);
+        downgradedTextBodyLength = parseStrictlyPositiveInteger(DOWNGRADED_TEXT_BODY_LENGTH, DEFAULT_DOWNGRADED_TEXT_BODY_LENGTH);
+        recipientsInBody = getInitParameter(RECIPIENTS_IN_BODY, false);
+        recipientChunkSize = parseOptionalStrictlyPositiveInteger(RECIPIENT_CHUNK_SIZE);
+        onlyLocalRecipients = getInitParameter(ONLY_LOCAL_RECIPIENTS, false);
+
+        serviceEndpoints = createEndpoints(serviceUrl, SERVICE_URL);
+        if (batchServiceUrl.equals(serviceUrl)) {
+            batchServiceEndpoints = serviceEndpoints;
+        } else {
+            batchServiceEndpoints = createEndpoints(batchServiceUrl, BATCH_SERVICE_URL);
+        }
+        timeoutExecutor = Executors.newFixedThreadPool(threadCount, new ThreadFactoryBuilder()
+            .setNameFormat("GuessClassificationMailet-%d")
+            .setDaemon(true)
+            .build());
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("GuessClassificationMailet-scheduler-%d")
+            .setDaemon(true)
+            .build());
+        http2Transport = createHttp2Transport();
+        if (healthCheckPath.isPresent()) {
+            scheduler.scheduleWithFixedDelay(this::checkEndpointsHealth, healthCheckIntervalInMs, healthCheckIntervalInMs, TimeUnit.MILLISECONDS);
+        }
+        batcher = createBatcher();
+        hedging = createHedging();
+        circuitBreaker = createCircuitBreaker();
+        resultCache = createResultCache();
+        affinityTable = createAffinityTable();
+        modelVersionHeader = Optional.ofNullable(Strings.emptyToNull(getInitParameter(MODEL_VERSION_HEADER)));
+        slowClassificationLog = createSlowClassificationLog();
     }
 
-    private Executor createHttpExecutor() throws MailetException {
+    private RequestCompression createRequestCompression() throws MessagingException {
+        String algorithm = getInitParameter(REQUEST_COMPRESSION, RequestCompression.Algorithm.NONE.name());
+        return new RequestCompression(
+            RequestCompression.Algorithm.parse(algorithm)
+                .orElseThrow(() -> new MailetException("Expecting " + REQUEST_COMPRESSION + " to be one of none, gzip or deflate. Got " + algorithm)),
+            parseStrictlyPositiveInteger(REQUEST_COMPRESSION_THRESHOLD_IN_BYTES, DEFAULT_REQUEST_COMPRESSION_THRESHOLD_IN_BYTES),
+            parseStrictlyPositiveInteger(REQUEST_CHUNKING_THRESHOLD_IN_BYTES, DEFAULT_REQUEST_CHUNKING_THRESHOLD_IN_BYTES));
+    }
+
+    private Optional<FeaturePayload> createFeaturePayload() throws MessagingException {
+        String value = getInitParameter(REQUEST_PAYLOAD, FeaturePayload.Mode.TEXT.name());
+        FeaturePayload.Mode mode = FeaturePayload.Mode.parse(value)
+            .orElseThrow(() -> new MailetException("Expecting " + REQUEST_PAYLOAD + " to be one of text or features. Got " + value));
+        if (mode == FeaturePayload.Mode.TEXT) {
+            return Optional.empty();
+        }
+        int dimension = parseStrictlyPositiveInteger(FEATURE_DIMENSION, FeatureHasher.DEFAULT_DIMENSION);
+        if (Integer.bitCount(dimension) != 1) {
+            throw new MailetException("Expecting " + FEATURE_DIMENSION + " to be a power of two. Got " + dimension);
+        }
+        return Optional.of(new FeaturePayload(new FeatureHasher(dimension),
+            parseStrictlyPositiveInteger(FEATURE_RETRY_INTERVAL_IN_MS, DEFAULT_MEDIA_TYPE_RETRY_INTERVAL_IN_MS)));
+    }
+
+    private Optional<Http2Transport> createHttp2Transport() throws MessagingException {
+        String value = getInitParameter(TRANSPORT, Http2Transport.Protocol.HTTP1.name());
+        Http2Transport.Protocol protocol = Http2Transport.Protocol.parse(value)
+            .orElseThrow(() -> new MailetException("Expecting " + TRANSPORT + " to be one of http1 or http2. Got " + value));
+        if (protocol == Http2Transport.Protocol.HTTP1) {
+            return Optional.empty();
+        }
+        int maxConnectionsPerEndpoint = parseStrictlyPositiveInteger(HTTP2_MAX_CONNECTIONS_PER_ENDPOINT, DEFAULT_HTTP2_MAX_CONNECTIONS_PER_ENDPOINT);
         try {
-            URIBuilder uriBuilder = new URIBuilder(serviceUrl);
-            HttpHost host = new HttpHost(uriBuilder.getHost(), uriBuilder.getPort(), uriBuilder.getScheme());
+            return Optional.of(new Http2Transport(maxConnectionsPerEndpoint, timeoutInMs.orElse(DEFAULT_TIME),
+                serviceUsername, servicePassword, timeoutExecutor));
+        } catch (Exception e) {
+            throw new MailetException("Could not start the HTTP/2 client", e);
+        }
+    }
 
-            return Executor.newInstance()
-                .authPreemptive(host)
-                .auth(host, new UsernamePasswordCredentials(serviceUsername, servicePassword));
+    private WireFormat parseWireFormat() throws MessagingException {
+        String value = getInitParameter(WIRE_FORMAT, WireFormat.JSON.name());
+        return WireFormat.parse(value)
+            .orElseThrow(() -> new MailetException("Expecting " + WIRE_FORMAT + " to be one of json, smile or cbor. Got " + value));
+    }
+
+    private Optional<SlowClassificationLog> createSlowClassificationLog() throws MessagingException {
+        Optional<Integer> thresholdInMs = parseOptionalStrictlyPositiveInteger(SLOW_CLASSIFICATION_THRESHOLD_IN_MS);
+        int logsPerSecond = parseStrictlyPositiveInteger(SLOW_CLASSIFICATION_LOGS_PER_SECOND, DEFAULT_SLOW_CLASSIFICATION_LOGS_PER_SECOND);
+        Optional<String> attributeName = Optional.ofNullable(Strings.emptyToNull(getInitParameter(SLOW_CLASSIFICATION_ATTRIBUTE)));
+        return thresholdInMs.map(threshold -> new SlowClassificationLog(threshold, logsPerSecond, attributeName));
+    }
+
+    private Optional<ClassificationResultCache> createResultCache() throws MessagingException {
+        Optional<Integer> maxWeightInBytes = parseOptionalStrictlyPositiveInteger(CACHE_MAX_WEIGHT_IN_BYTES);
+        int ttlInMs = parseStrictlyPositiveInteger(CACHE_TTL_IN_MS, DEFAULT_CACHE_TTL_IN_MS);
+        return maxWeightInBytes.map(maxWeight -> new ClassificationResultCache(maxWeight, ttlInMs));
+    }
+
+    private Optional<AffinityTable> createAffinityTable() throws MessagingException {
+        Optional<Integer> maxEntries = parseOptionalStrictlyPositiveInteger(AFFINITY_MAX_ENTRIES);
+        if (!maxEntries.isPresent()) {
+            return Optional.empty();
+        }
+        return Optional.of(new AffinityTable(maxEntries.get(),
+            parseStrictlyPositiveInteger(AFFINITY_TTL_IN_MS, DEFAULT_AFFINITY_TTL_IN_MS),
+            parseStrictlyPositiveInteger(AFFINITY_MIN_HIT_STREAK, DEFAULT_AFFINITY_MIN_HIT_STREAK),
+            parseConfidence(AFFINITY_MIN_CONFIDENCE, DEFAULT_AFFINITY_MIN_CONFIDENCE),
+            parsePercentageOrZero(AFFINITY_VERIFICATION_PERCENTAGE, DEFAULT_AFFINITY_VERIFICATION_PERCENTAGE)));
+    }
+
+    private Optional<CircuitBreaker> createCircuitBreaker() throws MessagingException {
+        if (!getInitParameter(CIRCUIT_BREAKER_ENABLED, true)) {
+            return Optional.empty();
+        }
+        int windowSize = parseStrictlyPositiveInteger(CIRCUIT_BREAKER_WINDOW_SIZE, DEFAULT_CIRCUIT_BREAKER_WINDOW_SIZE);
+        int minimumCalls = parseStrictlyPositiveInteger(CIRCUIT_BREAKER_MINIMUM_CALLS, Math.min(DEFAULT_CIRCUIT_BREAKER_MINIMUM_CALLS, windowSize));
+        if (minimumCalls > windowSize) {
+            throw new MailetException("'" + CIRCUIT_BREAKER_MINIMUM_CALLS + "' should not exceed '" + CIRCUIT_BREAKER_WINDOW_SIZE + "'");
+        }
+        return Optional.of(CircuitBreaker.builder()
+            .failureRateThreshold(parsePercentage(CIRCUIT_BREAKER_FAILURE_RATE_THRESHOLD, DEFAULT_CIRCUIT_BREAKER_FAILURE_RATE_THRESHOLD))
+            .slowCallRateThreshold(parsePercentage(CIRCUIT_BREAKER_SLOW_CALL_RATE_THRESHOLD, DEFAULT_CIRCUIT_BREAKER_SLOW_CALL_RATE_THRESHOLD))
+            .slowCallDurationInMs(parseStrictlyPositiveInteger(CIRCUIT_BREAKER_SLOW_CALL_DURATION_IN_MS, timeoutInMs.orElse(DEFAULT_TIME)))
+            .windowSize(windowSize)
+            .minimumCalls(minimumCalls)
+            .openDurationInMs(parseStrictlyPositiveInteger(CIRCUIT_BREAKER_OPEN_DURATION_IN_MS, DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION_IN_MS))
+            .halfOpenCalls(parseStrictlyPositiveInteger(CIRCUIT_BREAKER_HALF_OPEN_CALLS, DEFAULT_CIRCUIT_BREAKER_HALF_OPEN_CALLS))
+            .build());
+    }
+
+    private Optional<ClassificationBatcher> createBatcher() {
+        if (batchSize == 1) {
+            return Optional.empty();
+        }
+        return Optional.of(new ClassificationBatcher(batchSize, batchWindowInMs, this::sendBatch, scheduler, timeoutExecutor));
+    }
+
+    private Optional<Hedging> createHedging() throws MessagingException {
+        String value = getInitParameter(HEDGING, Hedging.Mode.NONE.name());
+        Hedging.Mode mode = Hedging.Mode.parse(value)
+            .orElseThrow(() -> new MailetException("Expecting " + HEDGING + " to be one of none, fixed or p95. Got " + value));
+        if (mode == Hedging.Mode.NONE) {
+            return Optional.empty();
+        }
+        return Optional.of(new Hedging(mode,
+            parseStrictlyPositiveInteger(HEDGE_DELAY_IN_MS, DEFAULT_HEDGE_DELAY_IN_MS),
+            parsePercentage(HEDGE_BUDGET_PERCENTAGE, DEFAULT_HEDGE_BUDGET_PERCENTAGE),
+            scheduler,
+            metrics));
+    }
+
+    private EndpointSelector createEndpoints(String urls, String parameterName) throws MailetException {
+        List<String> endpointUrls = Splitter.on(',').trimResults().omitEmptyStrings().splitToList(urls);
+        if (endpointUrls.isEmpty()) {
+            throw new MailetException("'" + parameterName + "' is mandatory");
+        }
+        ImmutableList.Builder<ServiceEndpoint> endpoints = ImmutableList.builder();
+        for (String url : endpointUrls) {
+            endpoints.add(createEndpoint(url, parameterName));
+        }
+        return new EndpointSelector(endpoints.build());
+    }
+
+    private ServiceEndpoint createEndpoint(String url, String parameterName) throws MailetException {
+        HttpHost host = toHttpHost(url, parameterName);
+        PoolingHttpClientConnectionManager connectionManager = createConnectionManager();
+        return new ServiceEndpoint(url, host, connectionManager, createHttpClient(host, connectionManager),
+            new EndpointHealth(endpointEjectionConsecutiveFailures, endpointEjectionDurationInMs, endpointSlowStartInMs),
+            metricFactory);
+    }
+
+    private CloseableHttpClient createHttpClient(HttpHost host, PoolingHttpClientConnectionManager connectionManager) {
+        int requestTimeout = timeoutInMs.orElse(DEFAULT_TIME);
+        BasicCredentialsProvider credentialsProvider = new BasicCredentialsProvider();
+        credentialsProvider.setCredentials(new AuthScope(host), new UsernamePasswordCredentials(serviceUsername, servicePassword));
+
+        return HttpClients.custom()
+            .setConnectionManager(connectionManager)
+            .setKeepAliveStrategy(keepAliveStrategy())
+            .addInterceptorFirst(requestCompression.responseInterceptor())
+            .setDefaultCredentialsProvider(credentialsProvider)
+            .setDefaultRequestConfig(RequestConfig.custom()
+                .setConnectionRequestTimeout(connectionRequestTimeoutInMs)
+                .setConnectTimeout(requestTimeout)
+                .setSocketTimeout(requestTimeout)
+                .build())
+            .evictExpiredConnections()
+            .evictIdleConnections(Long.valueOf(maxIdleTimeInMs), TimeUnit.MILLISECONDS)
+            .build();
+    }
+
+    private HttpHost toHttpHost(String url, String parameterName) throws MailetException {
+        try {
+            URIBuilder uriBuilder = new URIBuilder(url);
+            return new HttpHost(uriBuilder.getHost(), uriBuilder.getPort(), uriBuilder.getScheme());
         } catch (URISyntaxException e) {
-            throw new MailetException("invalid 'serviceUrl'", e);
+            throw new MailetException("invalid '" + parameterName + "'", e);
+        }
+    }
+
+    private PoolingHttpClientConnectionManager createConnectionManager() {
+        PoolingHttpClientConnectionManager result = connectionTtlInMs
+            .map(ttl -> new PoolingHttpClientConnectionManager(ttl, TimeUnit.MILLISECONDS))
+            .orElseGet(PoolingHttpClientConnectionManager::new);
+        result.setMaxTotal(maxConnections);
+        result.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        return result;
+    }
+
+    private ConnectionKeepAliveStrategy keepAliveStrategy() {
+        return (response, context) -> {
+            long serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            if (serverKeepAlive > 0) {
+                return Math.min(serverKeepAlive, keepAliveInMs);
+            }
+            return keepAliveInMs;
+        };
+    }
+
+    private int parsePercentage(String parameterName, int defaultValue) throws MessagingException {
+        int result = parseStrictlyPositiveInteger(parameterName, defaultValue);
+        if (result > 100) {
+            throw new MessagingException("Expecting " + parameterName + " to be a percentage. Got " + result);
+        }
+        return result;
+    }
+
+    private int parsePercentageOrZero(String parameterName, int defaultValue) throws MessagingException {
+        try {
+            int result = Optional.ofNullable(getInitParameter(parameterName))
+                .map(Integer::valueOf)
+                .orElse(defaultValue);
+            if (result < 0 || result > 100) {
+                throw new MessagingException("Expecting " + parameterName + " to be a percentage. Got " + result);
+            }
+            return result;
+        } catch (NumberFormatException e) {
+            throw new MessagingException("Expecting " + parameterName + " to be a percentage. Got " + getInitParameter(parameterName));
+        }
+    }
+
+    private double parseConfidence(String parameterName, double defaultValue) throws MessagingException {
+        try {
+            double result = Optional.ofNullable(getInitParameter(parameterName))
+                .map(Double::valueOf)
+                .orElse(defaultValue);
+            if (result < 0 || result > 100) {
+                throw new MessagingException("Expecting " + parameterName + " to be a percentage. Got " + result);
+            }
+            return result;
+        } catch (NumberFormatException e) {
+            throw new MessagingException("Expecting " + parameterName + " to be a percentage. Got " + getInitParameter(parameterName));
         }
     }
 
-    private Optional<Integer> parseTimeout() throws MessagingException {
+    int parseStrictlyPositiveInteger(String parameterName, int defaultValue) throws MessagingException {
+        return parseOptionalStrictlyPositiveInteger(parameterName).orElse(defaultValue);
+    }
+
+    Optional<Integer> parseOptionalStrictlyPositiveInteger(String parameterName) throws MessagingException {
         try {
-            Optional<Integer> result = Optional.ofNullable(getInitParameter(TIMEOUT_IN_MS))
+            Optional<Integer> result = Optional.ofNullable(getInitParameter(parameterName))
                 .map(Integer::valueOf);
             if (result.filter(value -> value < 1).isPresent()) {
-                throw new MessagingException("Non strictly positive timeout for " + TIMEOUT_IN_MS + ". Got " + getInitParameter(TIMEOUT_IN_MS));
+                throw new MessagingException("Non strictly positive value for " + parameterName + ". Got " + getInitParameter(parameterName));
             }
             return result;
         } catch (NumberFormatException e) {
-            throw new MessagingException("Expecting " + TIMEOUT_IN_MS + " to be a strictly positive integer. Got " + getInitParameter(TIMEOUT_IN_MS));
+            throw new MessagingException("Expecting " + parameterName + " to be a strictly positive integer. Got " + getInitParameter(parameterName));
+        }
+    }
+
+    /**
+     * The circuit breaker guarding calls to the classification webservice, if enabled. Its state can be read, and
+     * listeners can be registered to be notified of its transitions.
+     */
+    public Optional<CircuitBreaker> getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Hedged requests settings, if enabled, along with the count of duplicate requests sent.
+     */
+    public Optional<Hedging> getHedging() {
+        return hedging;
+    }
+
+    /**
+     * The in-flight byte budget mails are admitted in, if enabled, along with admission counts.
+     */
+    public Optional<AdmissionControl> getAdmissionControl() {
+        return admissionControl;
+    }
+
+    /**
+     * The cache of classification results of identical content, if enabled. It exposes hit, miss and eviction counts,
+     * and can be invalidated.
+     */
+    public Optional<ClassificationResultCache> getResultCache() {
+        return resultCache;
+    }
+
+    /**
+     * The table of (sender, recipient) affinities mails are classified locally with, if enabled. It exposes hit,
+     * verification and contradiction counts, and can be invalidated.
+     */
+    public Optional<AffinityTable> getAffinityTable() {
+        return affinityTable;
+    }
+
+    /**
+     * Present when hashed features are sent instead of text, see the requestPayload parameter.
+     */
+    public Optional<FeaturePayload> getFeaturePayload() {
+        return featurePayload;
+    }
+
+    public Optional<Http2Transport> getHttp2Transport() {
+        return http2Transport;
+    }
+
+    public WireFormat getWireFormat() {
+        return wireFormat;
+    }
+
+    /**
+     * Tracks whether the classification webservice accepts requests in the configured binary wire format.
+     */
+    public MediaTypeNegotiation getWireFormatNegotiation() {
+        return wireFormatNegotiation;
+    }
+
+    /**
+     * Request body compression settings, along with the achieved compression ratio.
+     */
+    public RequestCompression getRequestCompression() {
+        return requestCompression;
+    }
+
+    /**
+     * Statistics of the connection pools used to reach the classification webservice, summed over its endpoints:
+     * leased, pending, available and max connections.
+     */
+    public PoolStats getConnectionPoolStats() {
+        PoolStats stats = serviceEndpoints.getConnectionPoolStats();
+        if (batchServiceEndpoints == serviceEndpoints) {
+            return stats;
+        }
+        PoolStats batchStats = batchServiceEndpoints.getConnectionPoolStats();
+        return new PoolStats(stats.getLeased() + batchStats.getLeased(),
+            stats.getPending() + batchStats.getPending(),
+            stats.getAvailable() + batchStats.getAvailable(),
+            stats.getMax() + batchStats.getMax());
+    }
+
+    /**
+     * The endpoints of the classification webservice, batch ones included. Each of them exposes its health,
+     * outstanding requests and connection pool statistics.
+     */
+    public List<ServiceEndpoint> getServiceEndpoints() {
+        if (batchServiceEndpoints == serviceEndpoints) {
+            return serviceEndpoints.getEndpoints();
+        }
+        return ImmutableList.<ServiceEndpoint>builder()
+            .addAll(serviceEndpoints.getEndpoints())
+            .addAll(batchServiceEndpoints.getEndpoints())
+            .build();
+    }
+
+    @Override
+    public void destroy() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        if (timeoutExecutor != null) {
+            timeoutExecutor.shutdownNow();
+        }
+        http2Transport.ifPresent(this::closeHttp2Transport);
+        closeEndpoints(serviceEndpoints);
+        if (batchServiceEndpoints != serviceEndpoints) {
+            closeEndpoints(batchServiceEndpoints);
+        }
+    }
+
+    private void closeHttp2Transport(Http2Transport transport) {
+        try {
+            transport.close();
+        } catch (Exception e) {
+            LOGGER.warn("Error while closing classification HTTP/2 client", e);
+        }
+    }
+
+    private void closeEndpoints(EndpointSelector endpoints) {
+        if (endpoints != null) {
+            try {
+                endpoints.close();
+            } catch (IOException e) {
+                LOGGER.warn("Error while closing classification HTTP client", e);
+            }
         }
     }
 
@@ -190,59 +859,714 @@ public class GuessClassificationMailet extends GenericMailet {
 
     @Override
     public void service(Mail mail) throws MessagingException {
+        ClassificationTrace trace = new ClassificationTrace(metricFactory);
+        boolean success = false;
         try {
-            String classificationGuess = executor.execute(
-                    Request.Post(serviceUrlWithQueryParameters(mail.getRecipients()))
-                            .socketTimeout(timeoutInMs.orElse(DEFAULT_TIME))
-                            .bodyString(asJson(mail), ContentType.APPLICATION_JSON))
-                    .returnContent().asString(StandardCharsets.UTF_8);
-            addHeaders(mail, classificationGuess);
+            Map<String, ClassificationGuess> classificationGuesses = classify(mail, trace).get();
+            metrics.onSuccess();
+            TimeMetric headerAttachment = trace.timer(ClassificationMetrics.HEADER_ATTACHMENT);
+            try {
+                addHeaders(mail, classificationGuesses);
+            } finally {
+                headerAttachment.stopAndPublish();
+            }
+            success = true;
+        } catch (ExecutionException e) {
+            logFailure(e.getCause());
         } catch (Exception e) {
+            logFailure(e);
+        } finally {
+            if (slowClassificationLog.isPresent()) {
+                slowClassificationLog.get().onClassified(mail, trace, success);
+            }
+        }
+    }
+
+    /**
+     * Serializes the mail in the calling thread, then sends it to the classification webservice without blocking.
+     *
+     * The returned future fails with a TimeoutException when no answer is received within timeoutInMs.
+     */
+    CompletableFuture<Map<String, ClassificationGuess>> classify(Mail mail) throws MessagingException, IOException, URISyntaxException {
+        return classify(mail, new ClassificationTrace(metricFactory));
+    }
+
+    private CompletableFuture<Map<String, ClassificationGuess>> classify(Mail mail, ClassificationTrace trace) throws MessagingException, IOException, URISyntaxException {
+        Collection<MailAddress> recipients = recipientsToClassify(mail);
+        metrics.recordRecipientsPerMail(mail.getRecipients().size());
+        metrics.onSkippedRecipients(mail.getRecipients().size() - recipients.size());
+        if (onlyLocalRecipients && recipients.isEmpty()) {
+            LOGGER.debug("No local recipient to classify " + mail.getName() + " for");
+            return CompletableFuture.completedFuture(ImmutableMap.of());
+        }
+        if (affinityTable.isPresent() && mail.getSender() != null) {
+            return classifyWithAffinity(affinityTable.get(), mail, recipients, trace);
+        }
+        return classifyRemotely(mail, recipients, trace, answer -> { });
+    }
+
+    private CompletableFuture<Map<String, ClassificationGuess>> classifyWithAffinity(AffinityTable affinityTable, Mail mail, Collection<MailAddress> recipients, ClassificationTrace trace) throws MessagingException, IOException, URISyntaxException {
+        MailAddress sender = mail.getSender();
+        Optional<Map<String, ClassificationGuess>> localGuesses = affinityTable.guess(sender, recipients);
+        if (localGuesses.isPresent()) {
+            if (!affinityTable.shouldVerify()) {
+                metrics.onAffinityHit();
+                LOGGER.debug("Classified " + mail.getName() + " from sender affinities");
+                return CompletableFuture.completedFuture(localGuesses.get());
+            }
+            metrics.onAffinityVerification();
+        }
+        return classifyRemotely(mail, recipients, trace,
+            answer -> metrics.onAffinityContradictions(affinityTable.learn(sender, answer)));
+    }
+
+    /**
+     * freshAnswerListener is only given the answers of actual webservice calls: answers served by the result cache,
+     * or shared with an identical in-flight call, are not fresh evidence.
+     */
+    private CompletableFuture<Map<String, ClassificationGuess>> classifyRemotely(Mail mail, Collection<MailAddress> recipients, ClassificationTrace trace,
+                                                                                Consumer<Map<String, ClassificationGuess>> freshAnswerListener) throws MessagingException, IOException, URISyntaxException {
+        if (!admissionControl.isPresent()) {
+            return classifyRemotely(mail, recipients, trace, false, freshAnswerListener);
+        }
+        Optional<AdmissionControl.Permit> permit = admit(admissionControl.get(), mail);
+        if (!permit.isPresent()) {
+            LOGGER.debug("In-flight byte budget exhausted, classifying " + mail.getName() + " in downgraded mode");
+            metrics.onDowngraded();
+            return classifyRemotely(mail, recipients, trace, true, freshAnswerListener);
+        }
+        try {
+            return classifyRemotely(mail, recipients, trace, false, freshAnswerListener)
+                .whenComplete((result, error) -> permit.get().release());
+        } catch (MessagingException | IOException | URISyntaxException | RuntimeException e) {
+            permit.get().release();
+            throw e;
+        }
+    }
+
+    private Optional<AdmissionControl.Permit> admit(AdmissionControl admissionControl, Mail mail) throws MessagingException {
+        try {
+            return admissionControl.tryAcquire(AdmissionControl.estimatedWorkingSet(mail.getMessageSize()), admissionWaitInMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted while waiting for classification admission", e);
+        }
+    }
+
+    private CompletableFuture<Map<String, ClassificationGuess>> classifyRemotely(Mail mail, Collection<MailAddress> recipients, ClassificationTrace trace, boolean downgraded,
+                                                                                Consumer<Map<String, ClassificationGuess>> freshAnswerListener) throws MessagingException, IOException, URISyntaxException {
+        if (resultCache.isPresent()) {
+            ClassificationRequestBody body = requestBody(mail, trace, downgraded);
+            return resultCache.get().get(ClassificationResultCache.fingerprint(body, recipients),
+                () -> withCircuitBreaker(() -> send(body, recipients, trace)).thenApply(notifying(freshAnswerListener)));
+        }
+        return withCircuitBreaker(() -> send(requestBody(mail, trace, downgraded), recipients, trace))
+            .thenApply(notifying(freshAnswerListener));
+    }
+
+    private Function<Map<String, ClassificationGuess>, Map<String, ClassificationGuess>> notifying(Consumer<Map<String, ClassificationGuess>> freshAnswerListener) {
+        return answer -> {
+            freshAnswerListener.accept(answer);
+            return answer;
+        };
+    }
+
+    /**
+     * Extracts what classifying the mail later needs, in the calling thread. Empty when no recipient needs a
+     * classification.
+     */
+    Optional<ClassificationJob> toClassificationJob(Mail mail) throws MessagingException, IOException {
+        Collection<MailAddress> recipients = recipientsToClassify(mail);
+        metrics.recordRecipientsPerMail(mail.getRecipients().size());
+        metrics.onSkippedRecipients(mail.getRecipients().size() - recipients.size());
+        if (onlyLocalRecipients && recipients.isEmpty()) {
+            LOGGER.debug("No local recipient to classify " + mail.getName() + " for");
+            return Optional.empty();
+        }
+        return Optional.of(ClassificationJob.builder()
+            .mailName(mail.getName())
+            .recipients(recipients.stream()
+                .map(MailAddress::asString)
+                .collect(Guavate.toImmutableList()))
+            .body(requestBody(mail, new ClassificationTrace(metricFactory), false))
+            .build());
+    }
+
+    /**
+     * Classifies a job built by {@link #toClassificationJob(Mail)}. Affinities and admission control are skipped:
+     * the mail has already been delivered and only its extracted text is kept.
+     */
+    CompletableFuture<Map<String, ClassificationGuess>> classify(ClassificationJob job) throws MessagingException, IOException, URISyntaxException {
+        ClassificationTrace trace = new ClassificationTrace(metricFactory);
+        ImmutableList<MailAddress> recipients = job.getRecipients().stream()
+            .map(this::toMailAddress)
+            .collect(Guavate.toImmutableList());
+        if (resultCache.isPresent()) {
+            return resultCache.get().get(ClassificationResultCache.fingerprint(job.getBody(), recipients),
+                () -> withCircuitBreaker(() -> send(job.getBody(), recipients, trace)));
+        }
+        return withCircuitBreaker(() -> send(job.getBody(), recipients, trace));
+    }
+
+    private MailAddress toMailAddress(String address) {
+        try {
+            return new MailAddress(address);
+        } catch (AddressException e) {
+            throw new IllegalArgumentException("Invalid recipient " + address, e);
+        }
+    }
+
+    private Collection<MailAddress> recipientsToClassify(Mail mail) {
+        if (!onlyLocalRecipients) {
+            return mail.getRecipients();
+        }
+        return mail.getRecipients()
+            .stream()
+            .filter(getMailetContext()::isLocalEmail)
+            .collect(Guavate.toImmutableList());
+    }
+
+    @FunctionalInterface
+    private interface ContentReader<T> {
+        T read(InputStream content, WireFormat wireFormat) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface ClassificationCall {
+        CompletableFuture<Map<String, ClassificationGuess>> execute() throws MessagingException, IOException, URISyntaxException;
+    }
+
+    private CompletableFuture<Map<String, ClassificationGuess>> withCircuitBreaker(ClassificationCall call) throws MessagingException, IOException, URISyntaxException {
+        if (!circuitBreaker.isPresent()) {
+            return call.execute();
+        }
+        return withCircuitBreaker(circuitBreaker.get(), call);
+    }
+
+    private CompletableFuture<Map<String, ClassificationGuess>> withCircuitBreaker(CircuitBreaker circuitBreaker, ClassificationCall call) throws MessagingException, IOException, URISyntaxException {
+        Optional<CircuitBreaker.Permission> permission = circuitBreaker.tryAcquirePermission();
+        if (!permission.isPresent()) {
+            CompletableFuture<Map<String, ClassificationGuess>> result = new CompletableFuture<>();
+            result.completeExceptionally(new CircuitBreaker.CallNotPermittedException());
+            return result;
+        }
+        long start = System.nanoTime();
+        try {
+            return call.execute()
+                .whenComplete((result, error) -> {
+                    long duration = System.nanoTime() - start;
+                    if (error == null) {
+                        circuitBreaker.onSuccess(permission.get(), duration, TimeUnit.NANOSECONDS);
+                    } else {
+                        circuitBreaker.onError(permission.get(), duration, TimeUnit.NANOSECONDS);
+                    }
+                });
+        } catch (MessagingException | IOException | URISyntaxException | RuntimeException e) {
+            circuitBreaker.releasePermission(permission.get());
+            throw e;
+        }
+    }
+
+    /**
+     * Downgraded request bodies carry the headers and at most downgradedTextBodyLength characters of text, extracted
+     * without building an HTML document tree, which bounds the memory they need.
+     */
+    private ClassificationRequestBody requestBody(Mail mail, ClassificationTrace trace, boolean downgraded) throws MessagingException, IOException {
+        ClassificationRequestBody body = serializer(mail, trace, downgraded).toRequestBody();
+        metrics.recordTextBodyLength(body.getTextBody().length());
+        trace.recordTextBodyLength(body.getTextBody().length());
+        return body;
+    }
+
+    private ClassificationRequestBodySerializer serializer(Mail mail, ClassificationTrace trace, boolean downgraded) {
+        if (downgraded) {
+            int textBodyLength = Math.min(downgradedTextBodyLength, maxTextBodyLength.orElse(Integer.MAX_VALUE));
+            return new ClassificationRequestBodySerializer(mail, uuidGenerator, Optional.of(textBodyLength), HtmlTextExtractorType.STREAMING, trace);
+        }
+        return new ClassificationRequestBodySerializer(mail, uuidGenerator, maxTextBodyLength, htmlTextExtractorType, trace);
+    }
+
+    private CompletableFuture<Map<String, ClassificationGuess>> send(ClassificationRequestBody body, Collection<MailAddress> recipients, ClassificationTrace trace) throws IOException, URISyntaxException {
+        if (batcher.isPresent()) {
+            return classifyInBatch(batcher.get(), body.withMailRecipients(recipients));
+        }
+        if (recipientChunkSize.isPresent() && recipients.size() > recipientChunkSize.get()) {
+            return sendInChunks(body, Lists.partition(ImmutableList.copyOf(recipients), recipientChunkSize.get()), trace);
+        }
+        return sendChunk(body, recipients, trace);
+    }
+
+    /**
+     * Chunks are sent concurrently, each of them within its own timeoutInMs. They compete for the threadCount
+     * threads and the connection pool like any other request. The classification fails when any chunk fails,
+     * so that partial results are never cached.
+     */
+    private CompletableFuture<Map<String, ClassificationGuess>> sendInChunks(ClassificationRequestBody body, List<List<MailAddress>> chunks, ClassificationTrace trace) throws IOException, URISyntaxException {
+        List<CompletableFuture<Map<String, ClassificationGuess>>> results = new ArrayList<>(chunks.size());
+        for (List<MailAddress> chunk : chunks) {
+            results.add(sendChunk(body, chunk, trace));
+        }
+        return CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[results.size()]))
+            .thenApply(any -> mergeResults(results));
+    }
+
+    private Map<String, ClassificationGuess> mergeResults(List<CompletableFuture<Map<String, ClassificationGuess>>> results) {
+        Map<String, ClassificationGuess> merged = new HashMap<>();
+        results.forEach(result -> merged.putAll(result.join()));
+        return ImmutableMap.copyOf(merged);
+    }
+
+    /**
+     * Optional media types, hashed features then binary wire formats, are tried first. When one of them is rejected
+     * with a 415 answer, the chunk is sent again without it.
+     */
+    private CompletableFuture<Map<String, ClassificationGuess>> sendChunk(ClassificationRequestBody body, Collection<MailAddress> recipients, ClassificationTrace trace) throws IOException, URISyntaxException {
+        WireFormat requestFormat = wireFormat.isBinary() && wireFormatNegotiation.isAccepted() ? wireFormat : WireFormat.JSON;
+        return sendChunk(body, recipients, trace, featurePayload.filter(FeaturePayload::isAccepted), requestFormat);
+    }
+
+    private CompletableFuture<Map<String, ClassificationGuess>> sendChunk(ClassificationRequestBody body, Collection<MailAddress> recipients, ClassificationTrace trace, Optional<FeaturePayload> payload, WireFormat requestFormat) throws IOException, URISyntaxException {
+        Optional<MediaTypeNegotiation> negotiation = negotiation(payload, requestFormat);
+        CompletableFuture<Map<String, ClassificationGuess>> result = sendHedgedChunk(body, recipients, trace, payload, requestFormat);
+        if (!negotiation.isPresent()) {
+            return result;
+        }
+        return result
+            .<CompletableFuture<Map<String, ClassificationGuess>>>handle((guesses, error) -> {
+                if (error == null) {
+                    negotiation.get().onAccepted();
+                    return CompletableFuture.completedFuture(guesses);
+                }
+                if (!isUnsupportedMediaType(unwrap(error))) {
+                    return failedFuture(error);
+                }
+                negotiation.get().onRejected();
+                if (payload.isPresent()) {
+                    metrics.onFeaturePayloadRejected();
+                    LOGGER.warn("Hashed features version " + FeatureHasher.VERSION + " rejected by the classification webservice, sending text");
+                    return resendChunk(body, recipients, trace, Optional.empty(), requestFormat);
+                }
+                metrics.onWireFormatRejected();
+                LOGGER.warn(requestFormat.getMediaType() + " rejected by the classification webservice, sending JSON");
+                return resendChunk(body, recipients, trace, Optional.empty(), WireFormat.JSON);
+            })
+            .thenCompose(resent -> resent);
+    }
+
+    private Optional<MediaTypeNegotiation> negotiation(Optional<FeaturePayload> payload, WireFormat requestFormat) {
+        if (payload.isPresent()) {
+            return Optional.of(payload.get());
+        }
+        if (requestFormat.isBinary()) {
+            return Optional.of(wireFormatNegotiation);
+        }
+        return Optional.empty();
+    }
+
+    private CompletableFuture<Map<String, ClassificationGuess>> resendChunk(ClassificationRequestBody body, Collection<MailAddress> recipients, ClassificationTrace trace, Optional<FeaturePayload> payload, WireFormat requestFormat) {
+        try {
+            return sendChunk(body, recipients, trace, payload, requestFormat);
+        } catch (IOException | URISyntaxException | RuntimeException e) {
+            return failedFuture(e);
+        }
+    }
+
+    private static <T> CompletableFuture<T> failedFuture(Throwable error) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        result.completeExceptionally(error);
+        return result;
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        if (error instanceof CompletionException && error.getCause() != null) {
+            return error.getCause();
+        }
+        return error;
+    }
+
+    private static boolean isUnsupportedMediaType(Throwable error) {
+        return error instanceof HttpResponseException
+            && ((HttpResponseException) error).getStatusCode() == HttpStatus.SC_UNSUPPORTED_MEDIA_TYPE;
+    }
+
+    private CompletableFuture<Map<String, ClassificationGuess>> sendHedgedChunk(ClassificationRequestBody body, Collection<MailAddress> recipients, ClassificationTrace trace, Optional<FeaturePayload> payload, WireFormat requestFormat) throws IOException, URISyntaxException {
+        ServiceEndpoint endpoint = serviceEndpoints.select();
+        CompletableFuture<Map<String, ClassificationGuess>> result = sendChunk(endpoint, body, recipients, trace, payload, requestFormat);
+        if (!hedging.isPresent()) {
+            return result;
+        }
+        return hedging.get().execute(result,
+            () -> sendChunk(serviceEndpoints.selectOtherThan(endpoint), body, recipients, trace, payload, requestFormat));
+    }
+
+    private CompletableFuture<Map<String, ClassificationGuess>> sendChunk(ServiceEndpoint endpoint, ClassificationRequestBody body, Collection<MailAddress> recipients, ClassificationTrace trace, Optional<FeaturePayload> payload, WireFormat requestFormat) throws IOException, URISyntaxException {
+        Optional<URI> urlWithRecipients = urlWithRecipients(endpoint.getUrl(), recipients);
+        HttpPost request;
+        if (urlWithRecipients.isPresent()) {
+            request = new HttpPost(urlWithRecipients.get());
+            request.setEntity(asEntity(body, trace, payload, requestFormat));
+        } else {
+            request = new HttpPost(endpoint.getUrl());
+            request.setEntity(asEntity(body.withMailRecipients(recipients), trace, payload, requestFormat));
+        }
+        if (wireFormat.isBinary()) {
+            request.setHeader(HttpHeaders.ACCEPT, wireFormat.getMediaType() + ", " + WireFormat.JSON.getMediaType() + ";q=0.5");
+        }
+        return executeWithDeadline(request, endpoint, trace);
+    }
+
+    /**
+     * The request is executed on the timeout executor so that the whole exchange (connection pool acquisition,
+     * connection, sending and reading the answer) is bounded by timeoutInMs. Requests missing the deadline, or
+     * whose future is cancelled, are aborted, which releases their connection. A cancelled request, such as the
+     * loser of a hedged race, tells nothing about the endpoint health nor latency.
+     */
+    private CompletableFuture<Map<String, ClassificationGuess>> executeWithDeadline(HttpPost request, ServiceEndpoint endpoint, ClassificationTrace trace) throws IOException {
+        if (http2Transport.isPresent()) {
+            return executeOverHttp2(http2Transport.get(), request, endpoint, trace);
+        }
+        CompletableFuture<Map<String, ClassificationGuess>> response = new CompletableFuture<>();
+        Future<?> execution = timeoutExecutor.submit(() -> {
+            try {
+                TimeMetric roundTrip = trace.timer(ClassificationMetrics.HTTP_ROUND_TRIP);
+                response.complete(endpoint.getHttpClient().execute(request,
+                    httpResponse -> readResponse(httpResponse, roundTrip, trace, this::extractClassificationGuessesPart, ImmutableMap.of()),
+                    authenticatedContext(endpoint.getHost())));
+            } catch (Exception e) {
+                response.completeExceptionally(e);
+            }
+        });
+        TimeMetric latency = endpoint.onRequest();
+        response.whenComplete((result, error) -> {
+            if (error instanceof CancellationException) {
+                endpoint.onCancel();
+                request.abort();
+                execution.cancel(true);
+                return;
+            }
+            endpoint.onResponse(latency, isEndpointFailure(error));
+        });
+        return withDeadline(response, timeoutInMs.orElse(DEFAULT_TIME), () -> {
+            request.abort();
+            execution.cancel(true);
+        });
+    }
+
+    /**
+     * No thread waits for the answer: missing the deadline, or cancelling the returned future, resets the HTTP/2
+     * stream of the request.
+     */
+    private CompletableFuture<Map<String, ClassificationGuess>> executeOverHttp2(Http2Transport transport, HttpPost request, ServiceEndpoint endpoint, ClassificationTrace trace) throws IOException {
+        TimeMetric roundTrip = trace.timer(ClassificationMetrics.HTTP_ROUND_TRIP);
+        CompletableFuture<Map<String, ClassificationGuess>> response = transport.execute(request,
+            httpResponse -> readResponse(httpResponse, roundTrip, trace, this::extractClassificationGuessesPart, ImmutableMap.of()));
+        TimeMetric latency = endpoint.onRequest();
+        response.whenComplete((result, error) -> {
+            if (error instanceof CancellationException) {
+                endpoint.onCancel();
+                return;
+            }
+            endpoint.onResponse(latency, isEndpointFailure(error));
+        });
+        return withDeadline(response, timeoutInMs.orElse(DEFAULT_TIME), () -> { });
+    }
+
+    private <T> CompletableFuture<T> withDeadline(CompletableFuture<T> future, long deadlineInMs, Runnable onTimeout) {
+        ScheduledFuture<?> deadline = scheduler.schedule(() -> {
+            if (future.completeExceptionally(new TimeoutException("no answer within " + deadlineInMs + " ms"))) {
+                onTimeout.run();
+            }
+        }, deadlineInMs, TimeUnit.MILLISECONDS);
+        future.whenComplete((result, error) -> deadline.cancel(false));
+        return future;
+    }
+
+    private CompletableFuture<Map<String, ClassificationGuess>> classifyInBatch(ClassificationBatcher batcher, ClassificationRequestBody body) {
+        return withDeadline(batcher.submit(body), batchWindowInMs + timeoutInMs.orElse(DEFAULT_TIME), () -> { })
+            .thenApply(ClassificationGuesses::getResults);
+    }
+
+    private Map<String, ClassificationGuesses> sendBatch(List<ClassificationRequestBody> batch) throws IOException {
+        ClassificationTrace trace = new ClassificationTrace(metricFactory);
+        ServiceEndpoint endpoint = batchServiceEndpoints.select();
+        HttpPost request = new HttpPost(endpoint.getUrl());
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Batch request body: " + ClassificationRequestBodySerializer.toJsonAsString(batch));
+        }
+        request.setEntity(requestCompression.toEntity(
+            instrumented(outputStream -> ClassificationRequestBodySerializer.writeTo(batch, outputStream), trace),
+            batch.stream().mapToLong(GuessClassificationMailet::estimatedSizeInBytes).sum()));
+        ScheduledFuture<?> deadline = scheduler.schedule(request::abort, timeoutInMs.orElse(DEFAULT_TIME), TimeUnit.MILLISECONDS);
+        TimeMetric latency = endpoint.onRequest();
+        boolean endpointFailure = false;
+        try {
+            TimeMetric roundTrip = trace.timer(ClassificationMetrics.HTTP_ROUND_TRIP);
+            Map<String, ClassificationGuesses> results = endpoint.getHttpClient().execute(request,
+                response -> readResponse(response, roundTrip, trace, (content, responseFormat) -> guessesReader(responseFormat).readBatch(content), ImmutableMap.of()),
+                authenticatedContext(endpoint.getHost()));
+            results.values().forEach(this::logErrors);
+            return results;
+        } catch (IOException | RuntimeException e) {
+            endpointFailure = isEndpointFailure(e);
+            throw e;
+        } finally {
+            deadline.cancel(false);
+            endpoint.onResponse(latency, endpointFailure);
+        }
+    }
+
+    /**
+     * Only failures hinting at an unhealthy endpoint count: timeouts, I/O errors and 5xx answers. Client errors,
+     * unparsable answers and local connection pool exhaustion do not.
+     */
+    private static boolean isEndpointFailure(Throwable error) {
+        if (error == null) {
+            return false;
+        }
+        if (error instanceof HttpResponseException) {
+            return ((HttpResponseException) error).getStatusCode() >= HttpStatus.SC_INTERNAL_SERVER_ERROR;
+        }
+        if (error instanceof JsonProcessingException || error instanceof ConnectionPoolTimeoutException) {
+            return false;
+        }
+        return error instanceof IOException || error instanceof TimeoutException;
+    }
+
+    private void checkEndpointsHealth() {
+        try {
+            getServiceEndpoints().forEach(endpoint -> timeoutExecutor.execute(() -> checkHealth(endpoint)));
+        } catch (RejectedExecutionException e) {
+            LOGGER.debug("Skipping health checks, the mailet is being destroyed");
+        }
+    }
+
+    private void checkHealth(ServiceEndpoint endpoint) {
+        try {
+            HttpGet request = new HttpGet(new URIBuilder(endpoint.getUrl())
+                .setPath(healthCheckPath.get())
+                .removeQuery()
+                .build());
+            int statusCode = endpoint.getHttpClient().execute(request,
+                response -> {
+                    EntityUtils.consume(response.getEntity());
+                    return response.getStatusLine().getStatusCode();
+                },
+                authenticatedContext(endpoint.getHost()));
+            endpoint.onHealthCheck(statusCode < HttpStatus.SC_MULTIPLE_CHOICES);
+        } catch (IOException | URISyntaxException e) {
+            LOGGER.debug("Health check of " + endpoint.getUrl() + " failed", e);
+            endpoint.onHealthCheck(false);
+        }
+    }
+
+    private HttpClientContext authenticatedContext(HttpHost host) {
+        AuthCache authCache = new BasicAuthCache();
+        authCache.put(host, new BasicScheme());
+        HttpClientContext context = HttpClientContext.create();
+        context.setAuthCache(authCache);
+        return context;
+    }
+
+    private <T> T readResponse(HttpResponse response, TimeMetric roundTrip, ClassificationTrace trace, ContentReader<T> contentReader, T noContent) throws IOException {
+        roundTrip.stopAndPublish();
+        recordModelVersion(response);
+        StatusLine statusLine = response.getStatusLine();
+        HttpEntity entity = response.getEntity();
+        if (statusLine.getStatusCode() >= HttpStatus.SC_MULTIPLE_CHOICES) {
+            metrics.onHttpError();
+            EntityUtils.consume(entity);
+            throw new HttpResponseException(statusLine.getStatusCode(), statusLine.getReasonPhrase());
+        }
+        if (entity == null) {
+            return noContent;
+        }
+        TimeMetric responseParsing = trace.timer(ClassificationMetrics.RESPONSE_PARSING);
+        WireFormat responseFormat = WireFormat.fromContentType(Optional.ofNullable(entity.getContentType()).map(Header::getValue));
+        try (InputStream content = entity.getContent()) {
+            return contentReader.read(content, responseFormat);
+        } catch (JsonProcessingException e) {
+            metrics.onParseError();
+            throw e;
+        } finally {
+            responseParsing.stopAndPublish();
+        }
+    }
+
+    private ClassificationGuessesReader guessesReader(WireFormat responseFormat) {
+        return new ClassificationGuessesReader(responseObjectMappers.get(responseFormat), LOGGER.isDebugEnabled());
+    }
+
+    private void recordModelVersion(HttpResponse response) {
+        if (modelVersionHeader.isPresent()) {
+            Optional<String> modelVersion = Optional.ofNullable(response.getFirstHeader(modelVersionHeader.get()))
+                .map(Header::getValue);
+            if (modelVersion.isPresent()) {
+                resultCache.ifPresent(cache -> cache.onModelVersion(modelVersion.get()));
+                affinityTable.ifPresent(table -> table.onModelVersion(modelVersion.get()));
+            }
+        }
+    }
+
+    void logFailure(Throwable e) {
+        if (e instanceof CircuitBreaker.CallNotPermittedException) {
+            LOGGER.debug("Classification API not called: " + e.getMessage());
+        } else if (e instanceof TimeoutException) {
+            metrics.onTimeout();
+            LOGGER.error("Exception while calling Classification API, " + e.getMessage(), e);
+        } else if (e instanceof ConnectionPoolTimeoutException) {
+            LOGGER.error("Exception while calling Classification API, connection pool exhausted: " + getConnectionPoolStats(), e);
+        } else {
             LOGGER.error("Exception while calling Classification API", e);
         }
     }
     
-    private URI serviceUrlWithQueryParameters(Collection<MailAddress> recipients) throws URISyntaxException {
-        URIBuilder uriBuilder = new URIBuilder(serviceUrl);
+    private Optional<URI> urlWithRecipients(String url, Collection<MailAddress> recipients) throws URISyntaxException {
+        if (recipientsInBody) {
+            return Optional.empty();
+        }
+        URI urlWithRecipients = serviceUrlWithQueryParameters(url, recipients);
+        if (urlWithRecipients.toASCIIString().length() > MAX_URL_LENGTH) {
+            return Optional.empty();
+        }
+        return Optional.of(urlWithRecipients);
+    }
+
+    private URI serviceUrlWithQueryParameters(String url, Collection<MailAddress> recipients) throws URISyntaxException {
+        URIBuilder uriBuilder = new URIBuilder(url);
         recipients.forEach(address -> uriBuilder.addParameter("recipients", address.asString()));
         return uriBuilder.build();
     }
 
-    private String asJson(Mail mail) throws MessagingException, IOException {
-        String jsonAsString = new ClassificationRequestBodySerializer(mail, uuidGenerator).toJsonAsString();
+    private HttpEntity asEntity(ClassificationRequestBody body, ClassificationTrace trace, Optional<FeaturePayload> payload, WireFormat requestFormat) throws JsonProcessingException {
+        if (payload.isPresent()) {
+            return asFeatureEntity(payload.get().toRequestBody(body), trace);
+        }
+        return asTextEntity(body, trace, requestFormat);
+    }
+
+    /**
+     * Features are hashed by the calling thread, before the request is handed to the timeout executor.
+     */
+    private HttpEntity asFeatureEntity(FeatureRequestBody body, ClassificationTrace trace) throws JsonProcessingException {
         if (LOGGER.isDebugEnabled()) {
-            LOGGER.debug("Request body: " + jsonAsString);
+            LOGGER.debug("Request body: " + ClassificationRequestBodySerializer.toJsonAsString(body));
         }
-        return jsonAsString;
+        ClassificationRequestEntity entity = requestCompression.toEntity(
+            instrumented(outputStream -> ClassificationRequestBodySerializer.writeTo(body, outputStream), trace),
+            (long) body.getFeatures().size() * ESTIMATED_BYTES_PER_FEATURE);
+        entity.setContentType(FeatureHasher.MEDIA_TYPE);
+        return entity;
     }
 
-    @VisibleForTesting void addHeaders(Mail mail, String classificationGuesses) {
-        Optional.ofNullable(classificationGuesses)
-            .map(this::extractClassificationGuessesPart)
-            .orElse(ImmutableMap.of())
-            .entrySet()
-            .forEach(entry -> addRecipientHeader(mail, entry));
+    private HttpEntity asTextEntity(ClassificationRequestBody body, ClassificationTrace trace, WireFormat requestFormat) throws JsonProcessingException {
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Request body: " + ClassificationRequestBodySerializer.toJsonAsString(body));
+        }
+        ClassificationRequestEntity entity = requestCompression.toEntity(
+            instrumented(outputStream -> ClassificationRequestBodySerializer.writeTo(body, outputStream, requestFormat), trace),
+            estimatedSizeInBytes(body));
+        if (requestFormat.isBinary()) {
+            entity.setContentType(requestFormat.getMediaType());
+        }
+        return entity;
+    }
+
+    /**
+     * As the body is streamed to the connection, serialization time includes writing to the socket.
+     * The payload size is measured before compression.
+     */
+    private ClassificationRequestEntity.ContentWriter instrumented(ClassificationRequestEntity.ContentWriter contentWriter, ClassificationTrace trace) {
+        return outputStream -> {
+            TimeMetric serialization = trace.timer(ClassificationMetrics.SERIALIZATION);
+            CountingOutputStream countingOutputStream = new CountingOutputStream(outputStream);
+            try {
+                contentWriter.writeTo(countingOutputStream);
+            } finally {
+                serialization.stopAndPublish();
+            }
+            metrics.recordRequestPayloadSize(countingOutputStream.getCount());
+        };
     }
 
-    private Map<String, ClassificationGuess> extractClassificationGuessesPart(String classificationGuesses) {
+    /**
+     * Counts the characters of the parts of the body that grow with the mail: the text body and subject, but also the
+     * addresses, which make most of the body of mails sent to many recipients.
+     */
+    @VisibleForTesting
+    static long estimatedSizeInBytes(ClassificationRequestBody body) {
+        return body.getTextBody().length()
+            + body.getSubject().stream().mapToLong(String::length).sum()
+            + estimatedSizeInBytes(body.getFrom())
+            + estimatedSizeInBytes(body.getRecipients().getTo())
+            + estimatedSizeInBytes(body.getRecipients().getCc())
+            + estimatedSizeInBytes(body.getRecipients().getBcc())
+            + Optional.ofNullable(body.getMailRecipients())
+                .map(mailRecipients -> mailRecipients.stream().mapToLong(String::length).sum())
+                .orElse(0L);
+    }
+
+    private static long estimatedSizeInBytes(List<Emailer> emailers) {
+        return emailers.stream()
+            .mapToLong(emailer -> Strings.nullToEmpty(emailer.getName()).length() + Strings.nullToEmpty(emailer.getAddress()).length())
+            .sum();
+    }
+
+    @VisibleForTesting void addHeaders(Mail mail, String classificationGuesses) {
+        if (classificationGuesses == null) {
+            return;
+        }
         try {
-            return objectMapper.readValue(classificationGuesses, ClassificationGuesses.class).getResults();
+            addHeaders(mail, extractClassificationGuessesPart(new ByteArrayInputStream(classificationGuesses.getBytes(StandardCharsets.UTF_8)), WireFormat.JSON));
+        } catch (JsonProcessingException e) {
+            metrics.onParseError();
+            LOGGER.error("Error occurred while deserializing classification guesses", e);
         } catch (IOException e) {
-            LOGGER.error("Error occurred while deserializing classification guesses: " + classificationGuesses, e);
-            return ImmutableMap.of();
+            LOGGER.error("Error occurred while reading classification guesses", e);
+        }
+    }
+
+    /**
+     * Large recipient sets often share a handful of distinct guesses: each of them is serialized once, and the
+     * resulting header is shared by the recipients it applies to.
+     */
+    void addHeaders(Mail mail, Map<String, ClassificationGuess> classificationGuesses) {
+        Map<ClassificationGuess, Optional<PerRecipientHeaders.Header>> headers = new HashMap<>();
+        classificationGuesses.forEach((recipient, guess) -> headers.computeIfAbsent(guess, this::asHeader)
+            .ifPresent(header -> addRecipientHeader(mail, recipient, header)));
+    }
+
+    /**
+     * Unparsable answers are propagated: they are then neither cached nor counted as successful classifications.
+     */
+    private Map<String, ClassificationGuess> extractClassificationGuessesPart(InputStream classificationGuesses, WireFormat responseFormat) throws IOException {
+        ClassificationGuesses guesses = guessesReader(responseFormat).read(classificationGuesses);
+        logErrors(guesses);
+        return guesses.getResults();
+    }
+
+    private void logErrors(ClassificationGuesses guesses) {
+        if (!guesses.getErrors().isEmpty()) {
+            LOGGER.debug("Classification API reported errors: " + guesses.getErrors());
+        }
+    }
+
+    private Optional<PerRecipientHeaders.Header> asHeader(ClassificationGuess guess) {
+        try {
+            return Optional.of(PerRecipientHeaders.Header.builder()
+                .name(headerName)
+                .value(objectMapper.writeValueAsString(guess))
+                .build());
+        } catch (JsonProcessingException e) {
+            LOGGER.error("Failed serializing " + headerName + " : " + guess, e);
+            return Optional.empty();
         }
     }
 
-    private void addRecipientHeader(Mail mail, Map.Entry<String, ClassificationGuess> entry) {
+    private void addRecipientHeader(Mail mail, String recipient, PerRecipientHeaders.Header header) {
         try {
-            mail.addSpecificHeaderForRecipient(
-                    PerRecipientHeaders.Header.builder()
-                        .name(headerName)
-                        .value(objectMapper.writeValueAsString(entry.getValue()))
-                        .build(),
-                    new MailAddress(entry.getKey()));
-        } catch (AddressException | JsonProcessingException e) {
-            LOGGER.error("Failed serializing " + headerName + " for " + entry.getKey() + " : " + entry.getValue(), e);
+            mail.addSpecificHeaderForRecipient(header, new MailAddress(recipient));
+        } catch (AddressException e) {
+            LOGGER.error("Invalid recipient " + recipient + " for " + headerName, e);
         }
     }
 }
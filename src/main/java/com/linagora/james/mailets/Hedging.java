@@ -0,0 +1,272 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+
+/**
+ * Hedged requests to the classification webservice.
+ *
+ * When no answer arrived after the hedge delay, a duplicate request is sent and whichever answer comes first is
+ * used, the other request being cancelled. The hedge delay is either fixed, or the observed 95th percentile of
+ * answer latencies (the fixed delay being used until enough latencies were observed).
+ *
+ * A budget caps the extra load: each request earns budgetPercentage hundredths of a hedge, and a hedge is only
+ * sent when a whole one was earned. When the first request times out, the classification fails without waiting
+ * for the hedge, so that timeoutInMs still bounds it.
+ */
+public class Hedging {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Hedging.class);
+
+    public enum Mode {
+        NONE,
+        FIXED,
+        P95;
+
+        public static Optional<Mode> parse(String value) {
+            return Arrays.stream(values())
+                .filter(mode -> mode.name().equalsIgnoreCase(value.trim()))
+                .findFirst();
+        }
+    }
+
+    @FunctionalInterface
+    public interface Attempt<T> {
+        CompletableFuture<T> start() throws Exception;
+    }
+
+    /**
+     * Earned hedges are counted in hundredths, and at most {@link #MAX_BURST} can be saved up.
+     */
+    @VisibleForTesting
+    static class Budget {
+        static final long HEDGE_COST = 100;
+        static final long MAX_BURST = 10;
+
+        private final int percentage;
+        private final AtomicLong balance;
+
+        Budget(int percentage) {
+            Preconditions.checkArgument(percentage > 0 && percentage <= 100, "'percentage' should be a strictly positive percentage");
+            this.percentage = percentage;
+            this.balance = new AtomicLong();
+        }
+
+        void onRequest() {
+            balance.updateAndGet(value -> Math.min(value + percentage, MAX_BURST * HEDGE_COST));
+        }
+
+        boolean tryAcquire() {
+            while (true) {
+                long value = balance.get();
+                if (value < HEDGE_COST) {
+                    return false;
+                }
+                if (balance.compareAndSet(value, value - HEDGE_COST)) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * The last {@link #SIZE} answer latencies. The percentile is recomputed every {@link #REFRESH_INTERVAL} samples,
+     * and only once {@link #MIN_SAMPLES} were recorded.
+     */
+    @VisibleForTesting
+    static class LatencyWindow {
+        static final int SIZE = 1000;
+        static final int MIN_SAMPLES = 100;
+        static final int REFRESH_INTERVAL = 100;
+
+        private final long[] samples;
+        private int count;
+        private int next;
+        private int sinceRefresh;
+        private OptionalLong percentile;
+
+        LatencyWindow() {
+            this.samples = new long[SIZE];
+            this.percentile = OptionalLong.empty();
+        }
+
+        synchronized void record(long latencyInMs) {
+            samples[next] = latencyInMs;
+            next = (next + 1) % SIZE;
+            count = Math.min(count + 1, SIZE);
+            sinceRefresh++;
+        }
+
+        synchronized OptionalLong p95() {
+            if (count < MIN_SAMPLES) {
+                return OptionalLong.empty();
+            }
+            if (!percentile.isPresent() || sinceRefresh >= REFRESH_INTERVAL) {
+                long[] sorted = Arrays.copyOf(samples, count);
+                Arrays.sort(sorted);
+                percentile = OptionalLong.of(sorted[(int) Math.ceil(count * 0.95) - 1]);
+                sinceRefresh = 0;
+            }
+            return percentile;
+        }
+    }
+
+    private class Race<T> {
+        private final CompletableFuture<T> result;
+        private final CompletableFuture<T> primary;
+        private CompletableFuture<T> hedge;
+        private Throwable primaryError;
+        private boolean hedgeFailed;
+
+        Race(CompletableFuture<T> primary) {
+            this.result = new CompletableFuture<>();
+            this.primary = primary;
+        }
+
+        synchronized void onPrimary(T value, Throwable error) {
+            if (error == null) {
+                result.complete(value);
+                cancel(hedge);
+                return;
+            }
+            primaryError = error;
+            if (hedge == null || hedgeFailed || error instanceof TimeoutException) {
+                result.completeExceptionally(error);
+                cancel(hedge);
+            }
+        }
+
+        synchronized void onHedge(T value, Throwable error) {
+            if (error == null) {
+                if (result.complete(value)) {
+                    metrics.onHedgeWon();
+                }
+                primary.cancel(true);
+                return;
+            }
+            hedgeFailed = true;
+            if (primaryError != null) {
+                result.completeExceptionally(primaryError);
+            }
+        }
+
+        synchronized void startHedge(Attempt<T> attempt) {
+            if (result.isDone() || primaryError != null) {
+                return;
+            }
+            if (!budget.tryAcquire()) {
+                metrics.onHedgeBudgetExhausted();
+                return;
+            }
+            long start = System.nanoTime();
+            try {
+                hedge = attempt.start();
+            } catch (Exception e) {
+                LOGGER.debug("Could not send hedged classification request", e);
+                return;
+            }
+            hedgeCount.incrementAndGet();
+            metrics.onHedge();
+            hedge.whenComplete((value, error) -> {
+                if (error == null) {
+                    recordLatency(start);
+                }
+                onHedge(value, error);
+            });
+        }
+
+        private void cancel(CompletableFuture<T> attempt) {
+            if (attempt != null) {
+                attempt.cancel(true);
+            }
+        }
+    }
+
+    private final Mode mode;
+    private final long delayInMs;
+    private final Budget budget;
+    private final LatencyWindow latencies;
+    private final ScheduledExecutorService scheduler;
+    private final ClassificationMetrics metrics;
+    private final AtomicLong hedgeCount;
+
+    public Hedging(Mode mode, long delayInMs, int budgetPercentage, ScheduledExecutorService scheduler, ClassificationMetrics metrics) {
+        Preconditions.checkArgument(mode != Mode.NONE, "'mode' should not be NONE");
+        Preconditions.checkArgument(delayInMs > 0, "'delayInMs' should be strictly positive");
+        this.mode = mode;
+        this.delayInMs = delayInMs;
+        this.budget = new Budget(budgetPercentage);
+        this.latencies = new LatencyWindow();
+        this.scheduler = scheduler;
+        this.metrics = metrics;
+        this.hedgeCount = new AtomicLong();
+    }
+
+    /**
+     * @param primary the request already sent
+     * @param hedge sends the duplicate request, once the hedge delay elapsed
+     */
+    public <T> CompletableFuture<T> execute(CompletableFuture<T> primary, Attempt<T> hedge) {
+        budget.onRequest();
+        long start = System.nanoTime();
+        Race<T> race = new Race<>(primary);
+        primary.whenComplete((value, error) -> {
+            if (error == null) {
+                recordLatency(start);
+            }
+            race.onPrimary(value, error);
+        });
+        ScheduledFuture<?> hedgeTimer = scheduler.schedule(() -> race.startHedge(hedge), hedgeDelayInMs(), TimeUnit.MILLISECONDS);
+        race.result.whenComplete((value, error) -> hedgeTimer.cancel(false));
+        return race.result;
+    }
+
+    private void recordLatency(long startInNanos) {
+        latencies.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startInNanos));
+    }
+
+    public long hedgeDelayInMs() {
+        if (mode == Mode.P95) {
+            return latencies.p95().orElse(delayInMs);
+        }
+        return delayInMs;
+    }
+
+    /**
+     * Count of duplicate requests sent.
+     */
+    public long getHedgeCount() {
+        return hedgeCount.get();
+    }
+}
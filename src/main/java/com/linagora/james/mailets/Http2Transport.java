@@ -0,0 +1,230 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+package com.linagora.james.mailets;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.client.util.InputStreamResponseListener;
+import org.eclipse.jetty.client.util.OutputStreamContentProvider;
+import org.eclipse.jetty.http.HttpMethod;
+import org.eclipse.jetty.http2.client.HTTP2Client;
+import org.eclipse.jetty.http2.client.http.HttpClientTransportOverHTTP2;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.io.Closeables;
+
+/**
+ * Sends classification requests over HTTP/2, multiplexing all the concurrent calls of a mailet instance over at most
+ * maxConnectionsPerEndpoint connections to each endpoint.
+ *
+ * Neither requests nor answers are buffered: the request entity is written to its stream as the webservice reads
+ * it, and the response handler is called as soon as the answer headers are received, reading the content as it
+ * arrives. Both run on the given executor, never on the threads reading the shared connections, and HTTP/2 flow
+ * control bounds what is held in memory. Abortion, be it on timeout or on cancellation, resets the stream of the
+ * request only: the connection keeps serving the other requests.
+ *
+ * h2c with prior knowledge, used for cleartext URLs, is the supported mode: the classification webservice is
+ * expected to run in an internal cluster. https URLs negotiate h2 through ALPN, which Jetty 9.4.7, the version James
+ * ships, only supports on Java 8 with the alpn-boot jar matching the exact JDK update on the boot classpath
+ * (-Xbootclasspath/p:). No alpn-boot exists for Java 8u252 and later: https endpoints need the HTTP1 transport
+ * there. Server certificates are verified, host name included, as over HTTP/1.1.
+ */
+public class Http2Transport implements AutoCloseable {
+
+    public enum Protocol {
+        HTTP1,
+        HTTP2;
+
+        public static Optional<Protocol> parse(String value) {
+            return Arrays.stream(values())
+                .filter(protocol -> protocol.name().equalsIgnoreCase(value.trim()))
+                .findFirst();
+        }
+    }
+
+    @VisibleForTesting static final ProtocolVersion HTTP_2 = new ProtocolVersion("HTTP", 2, 0);
+    private static final int MAX_QUEUED_REQUESTS_PER_ENDPOINT = 10000;
+
+    private final HttpClient httpClient;
+    private final String authorization;
+    private final long timeoutInMs;
+    private final Executor executor;
+
+    public Http2Transport(int maxConnectionsPerEndpoint, long timeoutInMs, String username, String password, Executor executor) throws Exception {
+        Preconditions.checkArgument(maxConnectionsPerEndpoint > 0, "'maxConnectionsPerEndpoint' should be strictly positive");
+        Preconditions.checkArgument(timeoutInMs > 0, "'timeoutInMs' should be strictly positive");
+        HTTP2Client http2Client = new HTTP2Client();
+        http2Client.setConnectTimeout(timeoutInMs);
+        this.httpClient = new HttpClient(new HttpClientTransportOverHTTP2(http2Client), sslContextFactory());
+        this.httpClient.setMaxConnectionsPerDestination(maxConnectionsPerEndpoint);
+        this.httpClient.setMaxRequestsQueuedPerDestination(MAX_QUEUED_REQUESTS_PER_ENDPOINT);
+        this.httpClient.setConnectTimeout(timeoutInMs);
+        this.httpClient.setFollowRedirects(false);
+        this.httpClient.start();
+        this.authorization = "Basic " + Base64.getEncoder().encodeToString((username + ":" + password).getBytes(StandardCharsets.UTF_8));
+        this.timeoutInMs = timeoutInMs;
+        this.executor = executor;
+    }
+
+    /**
+     * Jetty only checks that the server certificate matches the requested host when an endpoint identification
+     * algorithm is set.
+     */
+    @VisibleForTesting
+    static SslContextFactory sslContextFactory() {
+        SslContextFactory sslContextFactory = new SslContextFactory();
+        sslContextFactory.setEndpointIdentificationAlgorithm("HTTPS");
+        return sslContextFactory;
+    }
+
+    /**
+     * Sends the given request, authenticated preemptively. Completing the returned future exceptionally, or
+     * cancelling it, aborts the request.
+     */
+    public <T> CompletableFuture<T> execute(HttpPost post, ResponseHandler<T> responseHandler) throws IOException {
+        Request request = toRequest(post);
+        HttpEntity entity = post.getEntity();
+        OutputStreamContentProvider content = new OutputStreamContentProvider();
+        if (entity != null) {
+            if (entity.getContentEncoding() != null) {
+                request.header(HttpHeaders.CONTENT_ENCODING, entity.getContentEncoding().getValue());
+            }
+            request.content(content, Optional.ofNullable(entity.getContentType()).map(Header::getValue).orElse(null));
+        }
+        CompletableFuture<T> result = new CompletableFuture<>();
+        request.send(new InputStreamResponseListener() {
+            @Override
+            public void onHeaders(Response response) {
+                super.onHeaders(response);
+                InputStream answer = getInputStream();
+                dispatch(() -> handle(response, answer, responseHandler, result), result);
+            }
+
+            @Override
+            public void onComplete(Result outcome) {
+                super.onComplete(outcome);
+                if (outcome.isFailed()) {
+                    result.completeExceptionally(outcome.getFailure());
+                }
+            }
+        });
+        result.whenComplete((value, error) -> {
+            if (error != null) {
+                request.abort(error);
+            }
+        });
+        if (entity != null) {
+            dispatch(() -> write(entity, content, result), result);
+        }
+        return result;
+    }
+
+    private Request toRequest(HttpPost post) {
+        Request request = httpClient.newRequest(post.getURI())
+            .method(HttpMethod.POST)
+            .header(HttpHeaders.AUTHORIZATION, authorization)
+            .timeout(timeoutInMs, TimeUnit.MILLISECONDS);
+        for (Header header : post.getAllHeaders()) {
+            request.header(header.getName(), header.getValue());
+        }
+        return request;
+    }
+
+    private void dispatch(Runnable task, CompletableFuture<?> result) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * The content is only closed, which ends the stream, once fully written: a failing entity aborts the request
+     * instead of sending it truncated.
+     */
+    private void write(HttpEntity entity, OutputStreamContentProvider content, CompletableFuture<?> result) {
+        try {
+            OutputStream output = content.getOutputStream();
+            entity.writeTo(output);
+            output.close();
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    private <T> void handle(Response response, InputStream answer, ResponseHandler<T> responseHandler, CompletableFuture<T> result) {
+        try {
+            result.complete(responseHandler.handleResponse(toHttpResponse(response, answer)));
+        } catch (Exception e) {
+            result.completeExceptionally(e);
+        } finally {
+            Closeables.closeQuietly(answer);
+        }
+    }
+
+    /**
+     * The answer is handed to the response handler the same way the HTTP/1.1 client would have, without entity when
+     * its content is empty.
+     */
+    @VisibleForTesting
+    static HttpResponse toHttpResponse(Response response, InputStream answer) throws IOException {
+        BasicHttpResponse httpResponse = new BasicHttpResponse(new BasicStatusLine(HTTP_2, response.getStatus(), response.getReason()));
+        response.getHeaders().forEach(field -> httpResponse.addHeader(field.getName(), field.getValue()));
+        PushbackInputStream content = new PushbackInputStream(answer);
+        int firstByte = content.read();
+        if (firstByte != -1) {
+            content.unread(firstByte);
+            InputStreamEntity entity = new InputStreamEntity(content, response.getHeaders().getLongField(HttpHeaders.CONTENT_LENGTH));
+            entity.setContentType(response.getHeaders().get(HttpHeaders.CONTENT_TYPE));
+            httpResponse.setEntity(entity);
+        }
+        return httpResponse;
+    }
+
+    @Override
+    public void close() throws Exception {
+        httpClient.stop();
+    }
+}
@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.mailet.Mail;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.linagora.james.mailets.json.ClassificationGuess;
+
+/**
+ * Classifications started by {@link AsyncGuessClassificationMailet}, waiting to be applied by
+ * {@link AwaitClassificationMailet}. Mailets are instantiated separately by the mailet container, hence this
+ * registry is shared.
+ *
+ * Classifications are indexed by an identifier stored in the {@link #CLASSIFICATION_ID_ATTRIBUTE} attribute of the
+ * mail when dispatched, as mail names are neither unique nor kept when a mail is split. Classifications never
+ * awaited, for instance because the mail left the processor, are dropped after {@link #EXPIRATION_IN_MS}.
+ */
+public class InFlightClassifications {
+
+    public static final String CLASSIFICATION_ID_ATTRIBUTE = "com.linagora.james.mailets.classificationId";
+    static final long EXPIRATION_IN_MS = TimeUnit.MINUTES.toMillis(5);
+    private static final InFlightClassifications INSTANCE = new InFlightClassifications(EXPIRATION_IN_MS);
+
+    public static InFlightClassifications getInstance() {
+        return INSTANCE;
+    }
+
+    public static class InFlightClassification {
+        private final CompletableFuture<Map<String, ClassificationGuess>> classificationGuesses;
+        private final GuessClassificationMailet mailet;
+
+        private InFlightClassification(CompletableFuture<Map<String, ClassificationGuess>> classificationGuesses, GuessClassificationMailet mailet) {
+            this.classificationGuesses = classificationGuesses;
+            this.mailet = mailet;
+        }
+
+        public CompletableFuture<Map<String, ClassificationGuess>> getClassificationGuesses() {
+            return classificationGuesses;
+        }
+
+        public void addHeaders(Mail mail, Map<String, ClassificationGuess> classificationGuesses) {
+            mailet.addHeaders(mail, classificationGuesses);
+        }
+
+        public void logFailure(Throwable throwable) {
+            mailet.logFailure(throwable);
+        }
+    }
+
+    private final Cache<String, InFlightClassification> classifications;
+
+    @VisibleForTesting
+    InFlightClassifications(long expirationInMs) {
+        this.classifications = CacheBuilder.newBuilder()
+            .expireAfterWrite(expirationInMs, TimeUnit.MILLISECONDS)
+            .build();
+    }
+
+    public void register(Mail mail, CompletableFuture<Map<String, ClassificationGuess>> classificationGuesses, GuessClassificationMailet mailet) {
+        String classificationId = UUID.randomUUID().toString();
+        classifications.put(classificationId, new InFlightClassification(classificationGuesses, mailet));
+        mail.setAttribute(CLASSIFICATION_ID_ATTRIBUTE, classificationId);
+    }
+
+    public Optional<InFlightClassification> retrieve(Mail mail) {
+        Optional<String> classificationId = Optional.ofNullable((String) mail.removeAttribute(CLASSIFICATION_ID_ATTRIBUTE));
+        Optional<InFlightClassification> result = classificationId.map(classifications::getIfPresent);
+        classificationId.ifPresent(classifications::invalidate);
+        return result;
+    }
+
+    @VisibleForTesting
+    long size() {
+        return classifications.size();
+    }
+}
@@ -0,0 +1,52 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.common.collect.ImmutableMap;
+import com.linagora.james.mailets.json.ClassificationGuess;
+
+/**
+ * Keeps the applied classifications in memory, indexed by mail name. Stands in for a mailbox backed sink in tests
+ * and local setups.
+ */
+public class InMemoryClassificationSink implements ClassificationSink {
+
+    private final Map<String, Map<String, ClassificationGuess>> classifications;
+
+    public InMemoryClassificationSink() {
+        this.classifications = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public void apply(ClassificationJob job, Map<String, ClassificationGuess> classificationGuesses) {
+        classifications.put(job.getMailName(), ImmutableMap.copyOf(classificationGuesses));
+    }
+
+    public Optional<Map<String, ClassificationGuess>> getClassificationGuesses(String mailName) {
+        return Optional.ofNullable(classifications.get(mailName));
+    }
+
+    public int size() {
+        return classifications.size();
+    }
+}
@@ -0,0 +1,70 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+package com.linagora.james.mailets;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+
+/**
+ * Tracks whether the classification webservice accepts request bodies of an optional media type.
+ *
+ * The media type is used optimistically. A server not supporting it answers 415 Unsupported Media Type: the
+ * rejected request is then sent again in the default media type, and so are the following ones for
+ * retryIntervalInMs, after which the optional media type is tried again, for instance once the servers have been
+ * upgraded.
+ */
+public class MediaTypeNegotiation {
+
+    private final long retryIntervalInNanos;
+    private final Ticker ticker;
+    private boolean rejected;
+    private long rejectedAt;
+    private long rejectionCount;
+
+    public MediaTypeNegotiation(long retryIntervalInMs) {
+        this(retryIntervalInMs, Ticker.systemTicker());
+    }
+
+    @VisibleForTesting
+    MediaTypeNegotiation(long retryIntervalInMs, Ticker ticker) {
+        Preconditions.checkArgument(retryIntervalInMs >= 0, "'retryIntervalInMs' should be positive");
+        this.retryIntervalInNanos = TimeUnit.MILLISECONDS.toNanos(retryIntervalInMs);
+        this.ticker = ticker;
+    }
+
+    public synchronized boolean isAccepted() {
+        return !rejected || ticker.read() - rejectedAt >= retryIntervalInNanos;
+    }
+
+    public synchronized void onRejected() {
+        rejected = true;
+        rejectedAt = ticker.read();
+        rejectionCount++;
+    }
+
+    public synchronized void onAccepted() {
+        rejected = false;
+    }
+
+    public synchronized long getRejectionCount() {
+        return rejectionCount;
+    }
+}
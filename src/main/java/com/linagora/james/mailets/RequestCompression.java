@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponseInterceptor;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Compresses request bodies whose estimated size reaches thresholdInBytes, and keeps track of the achieved compression ratio.
+ * Request bodies whose estimated size reaches chunkingThresholdInBytes are streamed using chunked transfer encoding,
+ * smaller ones are buffered and sent with a Content-Length.
+ *
+ * Compressed responses are decoded by the HTTP client itself, which advertises gzip and deflate support. The
+ * response interceptor only counts how many answers were received compressed.
+ */
+public class RequestCompression {
+
+    public enum Algorithm {
+        NONE(null),
+        GZIP("gzip"),
+        DEFLATE("deflate");
+
+        public static Optional<Algorithm> parse(String value) {
+            return Arrays.stream(values())
+                .filter(algorithm -> algorithm.name().equalsIgnoreCase(value.trim()))
+                .findFirst();
+        }
+
+        private final String contentEncoding;
+
+        Algorithm(String contentEncoding) {
+            this.contentEncoding = contentEncoding;
+        }
+
+        Optional<String> contentEncoding() {
+            return Optional.ofNullable(contentEncoding);
+        }
+
+        OutputStream wrap(OutputStream outputStream) throws IOException {
+            switch (this) {
+                case GZIP:
+                    return new GZIPOutputStream(outputStream);
+                case DEFLATE:
+                    return new DeflaterOutputStream(outputStream);
+                default:
+                    return outputStream;
+            }
+        }
+    }
+
+    private final Algorithm algorithm;
+    private final int thresholdInBytes;
+    private final int chunkingThresholdInBytes;
+    private final AtomicLong compressedRequestCount;
+    private final AtomicLong uncompressedBytes;
+    private final AtomicLong compressedBytes;
+    private final AtomicLong compressedResponseCount;
+
+    /**
+     * Request bodies are always streamed.
+     */
+    public RequestCompression(Algorithm algorithm, int thresholdInBytes) {
+        this(algorithm, thresholdInBytes, 0);
+    }
+
+    public RequestCompression(Algorithm algorithm, int thresholdInBytes, int chunkingThresholdInBytes) {
+        Preconditions.checkArgument(thresholdInBytes >= 0, "'thresholdInBytes' should be positive");
+        Preconditions.checkArgument(chunkingThresholdInBytes >= 0, "'chunkingThresholdInBytes' should be positive");
+        this.algorithm = algorithm;
+        this.thresholdInBytes = thresholdInBytes;
+        this.chunkingThresholdInBytes = chunkingThresholdInBytes;
+        this.compressedRequestCount = new AtomicLong();
+        this.uncompressedBytes = new AtomicLong();
+        this.compressedBytes = new AtomicLong();
+        this.compressedResponseCount = new AtomicLong();
+    }
+
+    /**
+     * The content is written when the request is sent, hence its size is not known yet: whether to compress and
+     * whether to stream it are decided on the given estimation.
+     */
+    public ClassificationRequestEntity toEntity(ClassificationRequestEntity.ContentWriter contentWriter, long estimatedSizeInBytes) {
+        boolean chunked = estimatedSizeInBytes >= chunkingThresholdInBytes;
+        if (algorithm == Algorithm.NONE || estimatedSizeInBytes < thresholdInBytes) {
+            return new ClassificationRequestEntity(contentWriter, Algorithm.NONE, (uncompressed, written) -> { }, chunked);
+        }
+        return new ClassificationRequestEntity(contentWriter, algorithm, this::recordCompressedRequest, chunked);
+    }
+
+    private void recordCompressedRequest(long uncompressed, long compressed) {
+        compressedRequestCount.incrementAndGet();
+        uncompressedBytes.addAndGet(uncompressed);
+        compressedBytes.addAndGet(compressed);
+    }
+
+    HttpResponseInterceptor responseInterceptor() {
+        return (response, context) -> {
+            Optional<Header> contentEncoding = Optional.ofNullable(response.getEntity())
+                .map(HttpEntity::getContentEncoding)
+                .filter(header -> !header.getValue().equalsIgnoreCase("identity"));
+            if (contentEncoding.isPresent()) {
+                compressedResponseCount.incrementAndGet();
+            }
+        };
+    }
+
+    public Algorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    public int getThresholdInBytes() {
+        return thresholdInBytes;
+    }
+
+    public int getChunkingThresholdInBytes() {
+        return chunkingThresholdInBytes;
+    }
+
+    public long getCompressedRequestCount() {
+        return compressedRequestCount.get();
+    }
+
+    public long getUncompressedBytes() {
+        return uncompressedBytes.get();
+    }
+
+    public long getCompressedBytes() {
+        return compressedBytes.get();
+    }
+
+    /**
+     * Compressed size divided by uncompressed size of the compressed request bodies, 1 when nothing was compressed.
+     */
+    public double getCompressionRatio() {
+        long uncompressed = uncompressedBytes.get();
+        if (uncompressed == 0) {
+            return 1;
+        }
+        return (double) compressedBytes.get() / uncompressed;
+    }
+
+    public long getCompressedResponseCount() {
+        return compressedResponseCount.get();
+    }
+}
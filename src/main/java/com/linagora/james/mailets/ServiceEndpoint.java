@@ -0,0 +1,167 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpHost;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.james.metrics.api.Metric;
+import org.apache.james.metrics.api.MetricFactory;
+import org.apache.james.metrics.api.TimeMetric;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One replica of the classification webservice, with its own connection pool, health and metrics.
+ *
+ * Latencies are published as the classification-endpointLatency-&lt;host:port&gt; timer, failures and ejections as
+ * the classification-endpointFailure-&lt;host:port&gt; and classification-endpointEjection-&lt;host:port&gt; counters.
+ */
+public class ServiceEndpoint implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ServiceEndpoint.class);
+
+    private final String url;
+    private final HttpHost host;
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+    private final EndpointHealth health;
+    private final MetricFactory metricFactory;
+    private final String latencyMetricName;
+    private final Metric failureMetric;
+    private final Metric ejectionMetric;
+    private final AtomicInteger outstandingRequests;
+    private final AtomicLong requestCount;
+    private final AtomicLong failureCount;
+
+    public ServiceEndpoint(String url, HttpHost host, PoolingHttpClientConnectionManager connectionManager, CloseableHttpClient httpClient,
+                           EndpointHealth health, MetricFactory metricFactory) {
+        this.url = url;
+        this.host = host;
+        this.connectionManager = connectionManager;
+        this.httpClient = httpClient;
+        this.health = health;
+        this.metricFactory = metricFactory;
+        this.latencyMetricName = ClassificationMetrics.forEndpoint(ClassificationMetrics.ENDPOINT_LATENCY, host);
+        this.failureMetric = metricFactory.generate(ClassificationMetrics.forEndpoint(ClassificationMetrics.ENDPOINT_FAILURE, host));
+        this.ejectionMetric = metricFactory.generate(ClassificationMetrics.forEndpoint(ClassificationMetrics.ENDPOINT_EJECTION, host));
+        this.outstandingRequests = new AtomicInteger();
+        this.requestCount = new AtomicLong();
+        this.failureCount = new AtomicLong();
+    }
+
+    /**
+     * To be called when a request is sent to this endpoint. The returned timer is to be given back to
+     * {@link #onResponse(TimeMetric, boolean)}.
+     */
+    public TimeMetric onRequest() {
+        outstandingRequests.incrementAndGet();
+        requestCount.incrementAndGet();
+        return metricFactory.timer(latencyMetricName);
+    }
+
+    /**
+     * To be called instead of {@link #onResponse(TimeMetric, boolean)} when the request was cancelled before its
+     * answer: neither its latency nor its outcome are recorded.
+     */
+    public void onCancel() {
+        outstandingRequests.decrementAndGet();
+    }
+
+    public void onResponse(TimeMetric latency, boolean failed) {
+        outstandingRequests.decrementAndGet();
+        latency.stopAndPublish();
+        if (!failed) {
+            health.onSuccess();
+            return;
+        }
+        failureCount.incrementAndGet();
+        failureMetric.increment();
+        if (health.onFailure()) {
+            ejectionMetric.increment();
+            LOGGER.warn("Ejecting classification endpoint " + url + " after consecutive failures");
+        }
+    }
+
+    public void onHealthCheck(boolean healthy) {
+        if (!health.onHealthCheck(healthy)) {
+            return;
+        }
+        if (healthy) {
+            LOGGER.info("Readmitting classification endpoint " + url + ", its health check succeeds again");
+        } else {
+            ejectionMetric.increment();
+            LOGGER.warn("Ejecting classification endpoint " + url + ", its health check fails");
+        }
+    }
+
+    public boolean isAvailable() {
+        return health.isAvailable();
+    }
+
+    /**
+     * Lower is better: outstanding requests, inflated while the endpoint is slow starting.
+     */
+    double load() {
+        return (outstandingRequests.get() + 1) / Math.max(health.weight(), EndpointHealth.MIN_WEIGHT);
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public HttpHost getHost() {
+        return host;
+    }
+
+    public CloseableHttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    public EndpointHealth getHealth() {
+        return health;
+    }
+
+    public int getOutstandingRequests() {
+        return outstandingRequests.get();
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    public PoolStats getConnectionPoolStats() {
+        return connectionManager.getTotalStats();
+    }
+
+    @Override
+    public void close() throws IOException {
+        httpClient.close();
+    }
+}
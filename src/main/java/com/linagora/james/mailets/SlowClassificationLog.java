@@ -0,0 +1,104 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.MessagingException;
+
+import org.apache.mailet.Mail;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * Reports mails whose classification took longer than a threshold, with their per-phase breakdown.
+ *
+ * Log lines are rate limited so that an outage of the classification webservice, making every mail slow, does not
+ * flood the logs: lines over the rate are dropped and their count is reported with the next logged line. The
+ * breakdown can also be stored as a mail attribute, which is not rate limited.
+ */
+public class SlowClassificationLog {
+
+    @VisibleForTesting static final Logger LOGGER = LoggerFactory.getLogger(SlowClassificationLog.class);
+    static final String TOTAL = "total";
+
+    private final long thresholdInMs;
+    private final RateLimiter rateLimiter;
+    private final Optional<String> attributeName;
+    private final AtomicLong suppressedCount;
+
+    public SlowClassificationLog(long thresholdInMs, double logsPerSecond, Optional<String> attributeName) {
+        Preconditions.checkArgument(thresholdInMs > 0, "'thresholdInMs' should be strictly positive");
+        Preconditions.checkArgument(logsPerSecond > 0, "'logsPerSecond' should be strictly positive");
+        this.thresholdInMs = thresholdInMs;
+        this.rateLimiter = RateLimiter.create(logsPerSecond);
+        this.attributeName = attributeName;
+        this.suppressedCount = new AtomicLong();
+    }
+
+    public void onClassified(Mail mail, ClassificationTrace trace, boolean success) {
+        long totalInMs = trace.elapsed(TimeUnit.MILLISECONDS);
+        if (totalInMs < thresholdInMs) {
+            return;
+        }
+        LinkedHashMap<String, Long> breakdown = new LinkedHashMap<>();
+        breakdown.put(TOTAL, totalInMs);
+        breakdown.putAll(trace.getDurationsInMs());
+        attributeName.ifPresent(name -> mail.setAttribute(name, breakdown));
+        if (rateLimiter.tryAcquire()) {
+            LOGGER.warn(logLine(mail, trace, success, breakdown, suppressedCount.getAndSet(0)));
+        } else {
+            suppressedCount.incrementAndGet();
+        }
+    }
+
+    private String logLine(Mail mail, ClassificationTrace trace, boolean success, Map<String, Long> breakdown, long suppressed) {
+        StringBuilder result = new StringBuilder("Slow classification:")
+            .append(" mail=").append(mail.getName())
+            .append(" outcome=").append(success ? "success" : "failure")
+            .append(" sizeInBytes=").append(messageSize(mail))
+            .append(" recipients=").append(mail.getRecipients().size())
+            .append(" textLength=").append(trace.getTextBodyLength());
+        breakdown.forEach((phase, durationInMs) -> result.append(' ').append(phase).append("InMs=").append(durationInMs));
+        if (suppressed > 0) {
+            result.append(" suppressed=").append(suppressed);
+        }
+        return result.toString();
+    }
+
+    private long messageSize(Mail mail) {
+        try {
+            return mail.getMessageSize();
+        } catch (MessagingException e) {
+            return -1;
+        }
+    }
+
+    public long getSuppressedCount() {
+        return suppressedCount.get();
+    }
+}
@@ -0,0 +1,150 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets.json;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Reads classification API answers straight from the response stream.
+ *
+ * Guesses are handed to a {@link GuessListener} as soon as they are parsed, so the answer is never held as a whole
+ * in memory. The "errors" subtree is only of interest when debugging: unless readErrors is set, it is skipped
+ * without being materialized.
+ */
+public class ClassificationGuessesReader {
+
+    public interface GuessListener {
+        void onGuess(String recipient, ClassificationGuess guess);
+
+        default void onErrors(Map<String, Object> errors) {
+        }
+    }
+
+    private static final String RESULTS = "results";
+    private static final String ERRORS = "errors";
+    private static final TypeReference<Map<String, Object>> ERRORS_TYPE = new TypeReference<Map<String, Object>>() {};
+
+    private final ObjectMapper objectMapper;
+    private final boolean readErrors;
+
+    public ClassificationGuessesReader(ObjectMapper objectMapper, boolean readErrors) {
+        this.objectMapper = objectMapper;
+        this.readErrors = readErrors;
+    }
+
+    public void read(InputStream inputStream, GuessListener listener) throws IOException {
+        try (JsonParser parser = objectMapper.getFactory().createParser(inputStream)) {
+            expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+            readGuesses(parser, listener);
+        }
+    }
+
+    public ClassificationGuesses read(InputStream inputStream) throws IOException {
+        CollectingListener listener = new CollectingListener();
+        read(inputStream, listener);
+        return listener.toClassificationGuesses();
+    }
+
+    /**
+     * Reads a batch answer: an object whose fields are the messageIds of the batched requests and whose values
+     * are the answers for each of them.
+     */
+    public Map<String, ClassificationGuesses> readBatch(InputStream inputStream) throws IOException {
+        try (JsonParser parser = objectMapper.getFactory().createParser(inputStream)) {
+            expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+            ImmutableMap.Builder<String, ClassificationGuesses> results = ImmutableMap.builder();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String messageId = parser.getCurrentName();
+                expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+                CollectingListener listener = new CollectingListener();
+                readGuesses(parser, listener);
+                results.put(messageId, listener.toClassificationGuesses());
+            }
+            return results.build();
+        }
+    }
+
+    private void readGuesses(JsonParser parser, GuessListener listener) throws IOException {
+        boolean hasResults = false;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if (RESULTS.equals(fieldName)) {
+                expect(parser, value, JsonToken.START_OBJECT);
+                readResults(parser, listener);
+                hasResults = true;
+            } else if (ERRORS.equals(fieldName) && readErrors) {
+                Map<String, Object> errors = objectMapper.readValue(parser, ERRORS_TYPE);
+                listener.onErrors(errors != null ? errors : ImmutableMap.of());
+            } else {
+                parser.skipChildren();
+            }
+        }
+        expect(parser, parser.getCurrentToken(), JsonToken.END_OBJECT);
+        if (!hasResults) {
+            throw new JsonMappingException("results is mandatory", parser.getCurrentLocation());
+        }
+    }
+
+    private void readResults(JsonParser parser, GuessListener listener) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String recipient = parser.getCurrentName();
+            expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+            listener.onGuess(recipient, objectMapper.readValue(parser, ClassificationGuess.class));
+        }
+    }
+
+    private void expect(JsonParser parser, JsonToken actual, JsonToken expected) throws JsonMappingException {
+        if (actual != expected) {
+            throw new JsonMappingException("Expecting " + expected + " but got " + actual, parser.getCurrentLocation());
+        }
+    }
+
+    private static class CollectingListener implements GuessListener {
+        private final Map<String, ClassificationGuess> results = new LinkedHashMap<>();
+        private Map<String, Object> errors = ImmutableMap.of();
+
+        @Override
+        public void onGuess(String recipient, ClassificationGuess guess) {
+            results.put(recipient, guess);
+        }
+
+        @Override
+        public void onErrors(Map<String, Object> errors) {
+            this.errors = errors;
+        }
+
+        ClassificationGuesses toClassificationGuesses() {
+            return ClassificationGuesses.builder()
+                .results(ImmutableMap.copyOf(results))
+                .errors(errors)
+                .build();
+        }
+    }
+}
@@ -17,10 +17,9 @@
  *******************************************************************************/
 package com.linagora.james.mailets.json;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.time.Instant;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
@@ -28,66 +27,171 @@ import java.util.UUID;
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
 
-import org.apache.james.jmap.utils.JsoupHtmlTextExtractor;
-import org.apache.james.mime4j.dom.Message;
-import org.apache.james.mime4j.stream.MimeConfig;
-import org.apache.james.util.mime.MessageContentExtractor;
-import org.apache.james.util.mime.MessageContentExtractor.MessageContent;
+import org.apache.james.core.MailAddress;
+import org.apache.james.jmap.utils.HtmlTextExtractor;
+import org.apache.james.metrics.api.MetricFactory;
+import org.apache.james.metrics.api.NoopMetricFactory;
+import org.apache.james.metrics.api.TimeMetric;
 import org.apache.mailet.Mail;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonPOJOBuilder;
+import com.github.steveash.guavate.Guavate;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
+import com.google.common.primitives.Ints;
+import com.linagora.james.mailets.json.TextContentExtractor.TextContent;
 
+@JsonDeserialize(builder=ClassificationRequestBody.Builder.class)
 public class ClassificationRequestBody {
-    private static final MimeConfig MIME_ENTITY_CONFIG = MimeConfig.custom()
-        .setMaxContentLen(-1)
-        .setMaxHeaderCount(-1)
-        .setMaxHeaderLen(-1)
-        .setMaxLineLen(-1)
-        .build();
-    private static final JsoupHtmlTextExtractor jsoupHtmlTextExtractor = new JsoupHtmlTextExtractor();
+    public static final String MIME_EXTRACTION_METRIC = "classification-mimeExtraction";
+    public static final String HTML_CONVERSION_METRIC = "classification-htmlConversion";
+    private static final int HTML_MARKUP_FACTOR = 10;
 
     public static ClassificationRequestBody from(Mail mail, UUID messageId) throws MessagingException, IOException {
+        return from(mail, messageId, Optional.empty(), HtmlTextExtractorType.JSOUP);
+    }
+
+    /**
+     * When maxTextBodyLength is given, the text body is cut to that many characters and flagged as truncated.
+     * HTML parts are read up to a multiple of that length, to leave room for markup, before being converted.
+     */
+    public static ClassificationRequestBody from(Mail mail, UUID messageId, Optional<Integer> maxTextBodyLength, HtmlTextExtractorType htmlTextExtractorType) throws MessagingException, IOException {
+        return from(mail, messageId, maxTextBodyLength, htmlTextExtractorType, new NoopMetricFactory());
+    }
+
+    /**
+     * Time spent reading the text parts and converting HTML to text is published with the given metricFactory.
+     */
+    public static ClassificationRequestBody from(Mail mail, UUID messageId, Optional<Integer> maxTextBodyLength, HtmlTextExtractorType htmlTextExtractorType,
+                                                 MetricFactory metricFactory) throws MessagingException, IOException {
         MimeMessage message = mail.getMessage();
-        
+        MainText mainText = retrieveTextPart(mail, maxTextBodyLength, htmlTextExtractorType, metricFactory);
+
         return new ClassificationRequestBody(messageId,
                 Emailers.from(message.getFrom()),
                 Recipients.from(message),
                 ImmutableList.of(Optional.ofNullable(message.getSubject()).orElse("")),
-                retrieveTextPart(mail),
-                Optional.ofNullable(message.getSentDate()).map(x -> x.toInstant()));
+                mainText.text,
+                Optional.ofNullable(message.getSentDate()).map(x -> x.toInstant()),
+                null,
+                mainText.truncated ? true : null);
     }
 
-    private static String retrieveTextPart(Mail mail) throws IOException, MessagingException {
-        MessageContent messageContent = new MessageContentExtractor()
-                .extract(toMime4jMessage(mail));
-        return mainTextContent(messageContent).orElse("");
+    public static Builder builder() {
+        return new Builder();
     }
 
-    private static Message toMime4jMessage(Mail mail) throws IOException, MessagingException {
-        ByteArrayOutputStream rawMessage = new ByteArrayOutputStream(getSanitizedMailSize(mail));
-        mail.getMessage().writeTo(rawMessage);
+    /**
+     * Reads back a body serialized by {@link ClassificationRequestBodySerializer}, for instance a classification
+     * job persisted to disk.
+     */
+    @JsonPOJOBuilder(withPrefix="")
+    public static class Builder {
+        private UUID messageId;
+        private List<Emailer> from = ImmutableList.of();
+        private Recipients recipients;
+        private List<String> subject = ImmutableList.of();
+        private String textBody;
+        private Optional<Instant> date = Optional.empty();
+        private List<String> mailRecipients;
+        private Boolean textBodyTruncated;
+
+        public Builder messageId(UUID messageId) {
+            this.messageId = messageId;
+            return this;
+        }
+
+        public Builder from(List<Emailer> from) {
+            this.from = from;
+            return this;
+        }
+
+        public Builder recipients(Recipients recipients) {
+            this.recipients = recipients;
+            return this;
+        }
+
+        public Builder subject(List<String> subject) {
+            this.subject = subject;
+            return this;
+        }
+
+        public Builder textBody(String textBody) {
+            this.textBody = textBody;
+            return this;
+        }
+
+        public Builder date(Optional<Instant> date) {
+            this.date = Optional.ofNullable(date).flatMap(x -> x);
+            return this;
+        }
+
+        public Builder mailRecipients(List<String> mailRecipients) {
+            this.mailRecipients = mailRecipients;
+            return this;
+        }
 
-        return Message.Builder.of()
-                .use(MIME_ENTITY_CONFIG)
-                .parse(new ByteArrayInputStream(rawMessage.toByteArray()))
-                .build();
+        public Builder textBodyTruncated(Boolean textBodyTruncated) {
+            this.textBodyTruncated = textBodyTruncated;
+            return this;
+        }
+
+        public ClassificationRequestBody build() {
+            Preconditions.checkState(messageId != null, "messageId is mandatory");
+            Preconditions.checkState(recipients != null, "recipients is mandatory");
+            Preconditions.checkState(textBody != null, "textBody is mandatory");
+
+            return new ClassificationRequestBody(messageId, from, recipients, subject, textBody, date, mailRecipients, textBodyTruncated);
+        }
     }
 
-    private static int getSanitizedMailSize(Mail mail) throws MessagingException {
-        if (mail.getMessageSize() > 0) {
-            return Long.valueOf(mail.getMessageSize()).intValue();
+    private static class MainText {
+        private final String text;
+        private final boolean truncated;
+
+        private MainText(String text, boolean truncated) {
+            this.text = text;
+            this.truncated = truncated;
         }
-        return 0;
     }
 
-    private static Optional<String> mainTextContent(MessageContent messageContent) {
-        return messageContent.getHtmlBody()
+    private static MainText retrieveTextPart(Mail mail, Optional<Integer> maxTextBodyLength, HtmlTextExtractorType htmlTextExtractorType,
+                                             MetricFactory metricFactory) throws IOException, MessagingException {
+        TimeMetric mimeExtraction = metricFactory.timer(MIME_EXTRACTION_METRIC);
+        TextContent textContent;
+        try {
+            textContent = textContentExtractor(maxTextBodyLength).extract(mail.getMessage());
+        } finally {
+            mimeExtraction.stopAndPublish();
+        }
+        int maxLength = maxTextBodyLength.orElse(Integer.MAX_VALUE);
+        HtmlTextExtractor htmlTextExtractor = htmlTextExtractorType.create(maxLength);
+        Optional<String> htmlText = textContent.getHtmlBody()
             .filter(s -> !Strings.isNullOrEmpty(s))
-            .map(jsoupHtmlTextExtractor::toPlainText)
-            .map(Optional::of)
-            .filter(Optional::isPresent)
-            .orElse(messageContent.getTextBody());
+            .map(html -> toPlainText(htmlTextExtractor, html, metricFactory));
+        if (htmlText.isPresent()) {
+            return new MainText(TextContentExtractor.truncate(htmlText.get(), maxLength),
+                textContent.isHtmlBodyTruncated() || htmlText.get().length() > maxLength);
+        }
+        return new MainText(textContent.getTextBody().orElse(""), textContent.isTextBodyTruncated());
+    }
+
+    private static String toPlainText(HtmlTextExtractor htmlTextExtractor, String html, MetricFactory metricFactory) {
+        TimeMetric htmlConversion = metricFactory.timer(HTML_CONVERSION_METRIC);
+        try {
+            return htmlTextExtractor.toPlainText(html);
+        } finally {
+            htmlConversion.stopAndPublish();
+        }
+    }
+
+    private static TextContentExtractor textContentExtractor(Optional<Integer> maxTextBodyLength) {
+        return maxTextBodyLength
+            .map(maxLength -> new TextContentExtractor(maxLength, Ints.saturatedCast((long) maxLength * HTML_MARKUP_FACTOR)))
+            .orElseGet(TextContentExtractor::new);
     }
 
     private final UUID messageId;
@@ -96,14 +200,30 @@ public class ClassificationRequestBody {
     private final List<String> subject;
     private final String textBody;
     private final Optional<Instant> date;
+    private final List<String> mailRecipients;
+    private final Boolean textBodyTruncated;
 
-    private ClassificationRequestBody(UUID messageId, List<Emailer> from, Recipients recipients, List<String> subject, String textBody, Optional<Instant> date) {
+    private ClassificationRequestBody(UUID messageId, List<Emailer> from, Recipients recipients, List<String> subject, String textBody, Optional<Instant> date, List<String> mailRecipients, Boolean textBodyTruncated) {
         this.messageId = messageId;
         this.from = from;
         this.recipients = recipients;
         this.subject = subject;
         this.textBody = textBody;
         this.date = date;
+        this.mailRecipients = mailRecipients;
+        this.textBodyTruncated = textBodyTruncated;
+    }
+
+    /**
+     * Envelope recipients are usually given as query parameters. They need to be part of the body
+     * when several messages are classified with a single request, or when they are too many to fit in an URL.
+     */
+    public ClassificationRequestBody withMailRecipients(Collection<MailAddress> mailRecipients) {
+        return new ClassificationRequestBody(messageId, from, recipients, subject, textBody, date,
+            mailRecipients.stream()
+                .map(MailAddress::asString)
+                .collect(Guavate.toImmutableList()),
+            textBodyTruncated);
     }
 
     public UUID getMessageId() {
@@ -129,4 +249,17 @@ public class ClassificationRequestBody {
     public Optional<Instant> getDate() {
         return date;
     }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public List<String> getMailRecipients() {
+        return mailRecipients;
+    }
+
+    /**
+     * Only set when the text body was cut to maxTextBodyLength.
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public Boolean getTextBodyTruncated() {
+        return textBodyTruncated;
+    }
 }
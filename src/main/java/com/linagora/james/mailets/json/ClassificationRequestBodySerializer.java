@@ -18,34 +18,127 @@
 package com.linagora.james.mailets.json;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
 
 import javax.mail.MessagingException;
 
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.ser.std.ToStringSerializer;
 import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import org.apache.james.metrics.api.MetricFactory;
+import org.apache.james.metrics.api.NoopMetricFactory;
 import org.apache.mailet.Mail;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
 
 public class ClassificationRequestBodySerializer {
 
-    private static final ObjectMapper mapper = new ObjectMapper()
-        .registerModules(new JavaTimeModule(), new Jdk8Module())
-        .configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
+    private static final ObjectMapper mapper = configure(WireFormat.JSON.newObjectMapper());
+    private static final Map<WireFormat, ObjectMapper> mappers = Maps.toMap(Arrays.asList(WireFormat.values()),
+        wireFormat -> wireFormat == WireFormat.JSON ? mapper : configure(wireFormat.newObjectMapper()));
+
+    /**
+     * Smile and CBOR generators would write UUIDs as raw bytes: they are kept as strings so that every wire format
+     * carries the same content.
+     */
+    private static ObjectMapper configure(ObjectMapper objectMapper) {
+        return objectMapper
+            .registerModules(new JavaTimeModule(), new Jdk8Module(),
+                new SimpleModule().addSerializer(UUID.class, ToStringSerializer.instance))
+            .configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
+    }
 
     private final Mail mail;
     private final UUIDGenerator uuidGenerator;
+    private final Optional<Integer> maxTextBodyLength;
+    private final HtmlTextExtractorType htmlTextExtractorType;
+    private final MetricFactory metricFactory;
 
     public ClassificationRequestBodySerializer(Mail mail, UUIDGenerator uuidGenerator) {
+        this(mail, uuidGenerator, Optional.empty());
+    }
+
+    public ClassificationRequestBodySerializer(Mail mail, UUIDGenerator uuidGenerator, Optional<Integer> maxTextBodyLength) {
+        this(mail, uuidGenerator, maxTextBodyLength, HtmlTextExtractorType.JSOUP);
+    }
+
+    public ClassificationRequestBodySerializer(Mail mail, UUIDGenerator uuidGenerator, Optional<Integer> maxTextBodyLength, HtmlTextExtractorType htmlTextExtractorType) {
+        this(mail, uuidGenerator, maxTextBodyLength, htmlTextExtractorType, new NoopMetricFactory());
+    }
+
+    public ClassificationRequestBodySerializer(Mail mail, UUIDGenerator uuidGenerator, Optional<Integer> maxTextBodyLength, HtmlTextExtractorType htmlTextExtractorType,
+                                               MetricFactory metricFactory) {
         Preconditions.checkNotNull(mail, "'mail' is mandatory");
         Preconditions.checkNotNull(uuidGenerator, "'uuidGenerator' is mandatory");
+        Preconditions.checkNotNull(maxTextBodyLength, "'maxTextBodyLength' is mandatory");
+        Preconditions.checkNotNull(htmlTextExtractorType, "'htmlTextExtractorType' is mandatory");
+        Preconditions.checkNotNull(metricFactory, "'metricFactory' is mandatory");
         this.mail = mail;
         this.uuidGenerator = uuidGenerator;
+        this.maxTextBodyLength = maxTextBodyLength;
+        this.htmlTextExtractorType = htmlTextExtractorType;
+        this.metricFactory = metricFactory;
     }
 
     public String toJsonAsString() throws MessagingException, IOException {
-        return mapper.writeValueAsString(ClassificationRequestBody.from(mail, uuidGenerator.random()));
+        return toJsonAsString(toRequestBody());
+    }
+
+    public static String toJsonAsString(ClassificationRequestBody body) throws JsonProcessingException {
+        return mapper.writeValueAsString(body);
+    }
+
+    public ClassificationRequestBody toRequestBody() throws MessagingException, IOException {
+        return ClassificationRequestBody.from(mail, uuidGenerator.random(), maxTextBodyLength, htmlTextExtractorType, metricFactory);
+    }
+
+    public static String toJsonAsString(List<ClassificationRequestBody> batch) throws JsonProcessingException {
+        return mapper.writeValueAsString(batch);
+    }
+
+    /**
+     * Streams the JSON representation of the body to the given output stream, which is flushed but left open.
+     */
+    public static void writeTo(ClassificationRequestBody body, OutputStream outputStream) throws IOException {
+        write(body, outputStream, WireFormat.JSON);
+    }
+
+    /**
+     * Same as {@link #writeTo(ClassificationRequestBody, OutputStream)}, in the given wire format.
+     */
+    public static void writeTo(ClassificationRequestBody body, OutputStream outputStream, WireFormat wireFormat) throws IOException {
+        write(body, outputStream, wireFormat);
+    }
+
+    public static void writeTo(List<ClassificationRequestBody> batch, OutputStream outputStream) throws IOException {
+        write(batch, outputStream, WireFormat.JSON);
+    }
+
+    public static void writeTo(FeatureRequestBody body, OutputStream outputStream) throws IOException {
+        write(body, outputStream, WireFormat.JSON);
+    }
+
+    public static String toJsonAsString(FeatureRequestBody body) throws JsonProcessingException {
+        return mapper.writeValueAsString(body);
+    }
+
+    private static void write(Object value, OutputStream outputStream, WireFormat wireFormat) throws IOException {
+        ObjectMapper wireFormatMapper = mappers.get(wireFormat);
+        try (JsonGenerator generator = wireFormatMapper.getFactory().createGenerator(outputStream, JsonEncoding.UTF8)) {
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            wireFormatMapper.writeValue(generator, value);
+        }
     }
 }
@@ -19,12 +19,40 @@ package com.linagora.james.mailets.json;
 
 import javax.mail.internet.InternetAddress;
 
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonPOJOBuilder;
+
+@JsonDeserialize(builder=Emailer.Builder.class)
 public class Emailer {
 
     public static Emailer from(InternetAddress address) {
         return new Emailer(address.getPersonal(), address.getAddress());
     }
 
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    @JsonPOJOBuilder(withPrefix="")
+    public static class Builder {
+        private String name;
+        private String address;
+
+        public Builder name(String name) {
+            this.name = name;
+            return this;
+        }
+
+        public Builder address(String address) {
+            this.address = address;
+            return this;
+        }
+
+        public Emailer build() {
+            return new Emailer(name, address);
+        }
+    }
+
     private final String name;
     private final String address;
 
@@ -0,0 +1,108 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets.json;
+
+import java.nio.charset.StandardCharsets;
+import java.text.Normalizer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import com.github.steveash.guavate.Guavate;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Ints;
+
+/**
+ * Turns the subject and text body of a mail into a fixed size sparse vector, so that the classification webservice
+ * receives a few hundred features instead of the whole text and does not need to tokenize it.
+ *
+ * Version 1 of the scheme, which the server has to implement identically:
+ * <ul>
+ *     <li>text is decomposed (NFKD), stripped of combining marks and lower cased</li>
+ *     <li>tokens are the runs of letters and digits, from 2 to 40 characters long</li>
+ *     <li>subject tokens are prefixed with "s:", body tokens with "b:"</li>
+ *     <li>the prefixed token is hashed with 32 bits murmur3 (seed 0) of its UTF-8 bytes: the low bits give the index,
+ *     modulo the dimension, and the high bit the sign (+1 when clear, -1 when set) added to that index</li>
+ * </ul>
+ *
+ * Signed hashing makes colliding tokens cancel out on average instead of piling up. Indices whose value sums to zero
+ * are omitted.
+ */
+public class FeatureHasher {
+
+    public static final int VERSION = 1;
+    public static final String MEDIA_TYPE = "application/vnd.linagora.classification-features.v" + VERSION + "+json";
+    public static final int DEFAULT_DIMENSION = 1 << 18;
+    static final String SUBJECT_PREFIX = "s:";
+    static final String BODY_PREFIX = "b:";
+    private static final int MIN_TOKEN_LENGTH = 2;
+    private static final int MAX_TOKEN_LENGTH = 40;
+    private static final Pattern SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+    private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{M}+");
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_32(0);
+
+    private final int dimension;
+
+    public FeatureHasher(int dimension) {
+        Preconditions.checkArgument(dimension > 0 && Integer.bitCount(dimension) == 1, "'dimension' should be a power of two");
+        this.dimension = dimension;
+    }
+
+    public int getDimension() {
+        return dimension;
+    }
+
+    public HashedFeatures hash(List<String> subject, String textBody) {
+        Map<Integer, Integer> values = new HashMap<>();
+        subject.forEach(value -> add(values, SUBJECT_PREFIX, value));
+        add(values, BODY_PREFIX, textBody);
+
+        int[] indices = Ints.toArray(values.entrySet().stream()
+            .filter(entry -> entry.getValue() != 0)
+            .map(Map.Entry::getKey)
+            .collect(Guavate.toImmutableList()));
+        Arrays.sort(indices);
+        return new HashedFeatures(VERSION, dimension, indices,
+            Arrays.stream(indices).map(values::get).toArray());
+    }
+
+    private void add(Map<Integer, Integer> values, String prefix, String text) {
+        tokens(text).forEach(token -> {
+            int hash = HASH_FUNCTION.hashBytes((prefix + token).getBytes(StandardCharsets.UTF_8)).asInt();
+            int sign = hash < 0 ? -1 : 1;
+            values.merge(hash & (dimension - 1), sign, Integer::sum);
+        });
+    }
+
+    @VisibleForTesting
+    static List<String> tokens(String text) {
+        String normalized = COMBINING_MARKS.matcher(Normalizer.normalize(text, Normalizer.Form.NFKD))
+            .replaceAll("")
+            .toLowerCase(Locale.ROOT);
+        return SEPARATOR.splitAsStream(normalized)
+            .filter(token -> token.length() >= MIN_TOKEN_LENGTH && token.length() <= MAX_TOKEN_LENGTH)
+            .collect(Guavate.toImmutableList());
+    }
+}
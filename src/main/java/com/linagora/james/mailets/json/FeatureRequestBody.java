@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets.json;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * Request body sent with the {@link FeatureHasher#MEDIA_TYPE} media type: the headers of a
+ * {@link ClassificationRequestBody}, its subject and text body being replaced by their hashed features.
+ */
+public class FeatureRequestBody {
+
+    public static FeatureRequestBody from(ClassificationRequestBody body, FeatureHasher featureHasher) {
+        return new FeatureRequestBody(body.getMessageId(), body.getFrom(), body.getRecipients(), body.getDate(),
+            body.getMailRecipients(), featureHasher.hash(body.getSubject(), body.getTextBody()));
+    }
+
+    private final UUID messageId;
+    private final List<Emailer> from;
+    private final Recipients recipients;
+    private final Optional<Instant> date;
+    private final List<String> mailRecipients;
+    private final HashedFeatures features;
+
+    private FeatureRequestBody(UUID messageId, List<Emailer> from, Recipients recipients, Optional<Instant> date, List<String> mailRecipients, HashedFeatures features) {
+        this.messageId = messageId;
+        this.from = from;
+        this.recipients = recipients;
+        this.date = date;
+        this.mailRecipients = mailRecipients;
+        this.features = features;
+    }
+
+    public UUID getMessageId() {
+        return messageId;
+    }
+
+    public List<Emailer> getFrom() {
+        return from;
+    }
+
+    public Recipients getRecipients() {
+        return recipients;
+    }
+
+    public Optional<Instant> getDate() {
+        return date;
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public List<String> getMailRecipients() {
+        return mailRecipients;
+    }
+
+    public HashedFeatures getFeatures() {
+        return features;
+    }
+}
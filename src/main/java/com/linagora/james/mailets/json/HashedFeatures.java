@@ -0,0 +1,63 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets.json;
+
+import java.util.Arrays;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Sparse vector of hashed features: values[i] is the value of dimension indices[i], indices being sorted and
+ * distinct. Dimensions absent from indices are zero.
+ */
+public class HashedFeatures {
+
+    private final int version;
+    private final int dimension;
+    private final int[] indices;
+    private final int[] values;
+
+    public HashedFeatures(int version, int dimension, int[] indices, int[] values) {
+        Preconditions.checkArgument(indices.length == values.length, "indices and values should have the same length");
+        this.version = version;
+        this.dimension = dimension;
+        this.indices = indices;
+        this.values = values;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public int getDimension() {
+        return dimension;
+    }
+
+    public int[] getIndices() {
+        return Arrays.copyOf(indices, indices.length);
+    }
+
+    public int[] getValues() {
+        return Arrays.copyOf(values, values.length);
+    }
+
+    public int size() {
+        return indices.length;
+    }
+}
@@ -0,0 +1,53 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+package com.linagora.james.mailets.json;
+
+import java.util.Arrays;
+import java.util.Optional;
+
+import org.apache.james.jmap.utils.HtmlTextExtractor;
+import org.apache.james.jmap.utils.JsoupHtmlTextExtractor;
+
+/**
+ * The available HTML to text conversions: JSOUP builds a full document tree, STREAMING converts in a single pass
+ * with bounded memory and stops once the text body budget is exceeded.
+ */
+public enum HtmlTextExtractorType {
+    JSOUP {
+        @Override
+        HtmlTextExtractor create(int maxLength) {
+            return JSOUP_HTML_TEXT_EXTRACTOR;
+        }
+    },
+    STREAMING {
+        @Override
+        HtmlTextExtractor create(int maxLength) {
+            return new StreamingHtmlTextExtractor(maxLength);
+        }
+    };
+
+    private static final JsoupHtmlTextExtractor JSOUP_HTML_TEXT_EXTRACTOR = new JsoupHtmlTextExtractor();
+
+    public static Optional<HtmlTextExtractorType> parse(String value) {
+        return Arrays.stream(values())
+            .filter(type -> type.name().equalsIgnoreCase(value.trim()))
+            .findFirst();
+    }
+
+    abstract HtmlTextExtractor create(int maxLength);
+}
@@ -23,8 +23,43 @@ import javax.mail.Message.RecipientType;
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
 
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonPOJOBuilder;
+import com.google.common.collect.ImmutableList;
+
+@JsonDeserialize(builder=Recipients.Builder.class)
 public class Recipients {
 
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    @JsonPOJOBuilder(withPrefix="")
+    public static class Builder {
+        private List<Emailer> to = ImmutableList.of();
+        private List<Emailer> cc = ImmutableList.of();
+        private List<Emailer> bcc = ImmutableList.of();
+
+        public Builder to(List<Emailer> to) {
+            this.to = to;
+            return this;
+        }
+
+        public Builder cc(List<Emailer> cc) {
+            this.cc = cc;
+            return this;
+        }
+
+        public Builder bcc(List<Emailer> bcc) {
+            this.bcc = bcc;
+            return this;
+        }
+
+        public Recipients build() {
+            return new Recipients(to, cc, bcc);
+        }
+    }
+
     public static Recipients from(MimeMessage message) throws MessagingException {
         return new Recipients(getEmailers(message, RecipientType.TO),
                 getEmailers(message, RecipientType.CC),
@@ -0,0 +1,380 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+package com.linagora.james.mailets.json;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+
+import org.apache.james.jmap.utils.HtmlTextExtractor;
+
+import org.jsoup.parser.Parser;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Converts HTML to text in a single pass over the markup, without building a document tree.
+ *
+ * Tags are dropped, script, style and template contents are skipped as raw text, title and head contents are skipped,
+ * character references are decoded with the Jsoup entity table and whitespace is collapsed. Block elements end the
+ * current line, paragraph-like ones leave an empty line.
+ *
+ * As with a tree building parser, the head ends at its end tag, at the body start tag, or at the first text or
+ * element which cannot be part of it, so that documents omitting the head end tag keep their body.
+ * Memory is bounded by a few small buffers and by the output, which stops growing once maxLength characters
+ * were produced.
+ */
+public class StreamingHtmlTextExtractor implements HtmlTextExtractor {
+
+    private static final int MAX_TAG_NAME_LENGTH = 16;
+    private static final int MAX_ENTITY_LENGTH = 32;
+    private static final ImmutableSet<String> SKIPPED_CONTENT_TAGS = ImmutableSet.of("script", "style", "template");
+    private static final ImmutableSet<String> HEAD_CONTENT_TAGS = ImmutableSet.of(
+        "html", "meta", "link", "base", "basefont", "bgsound", "noscript", "script", "style", "template", "title");
+    private static final ImmutableSet<String> LINE_BREAK_TAGS = ImmutableSet.of("br", "tr", "li", "dt", "dd", "option");
+    private static final ImmutableSet<String> PARAGRAPH_TAGS = ImmutableSet.of(
+        "p", "div", "table", "ul", "ol", "dl", "blockquote", "pre", "hr", "form", "fieldset",
+        "h1", "h2", "h3", "h4", "h5", "h6", "section", "article", "header", "footer", "nav", "aside", "address", "body");
+    private static final ImmutableSet<String> CELL_TAGS = ImmutableSet.of("td", "th");
+
+    private final int maxLength;
+
+    public StreamingHtmlTextExtractor() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Conversion stops once more than maxLength characters were produced, letting callers detect truncation.
+     */
+    public StreamingHtmlTextExtractor(int maxLength) {
+        Preconditions.checkArgument(maxLength > 0, "'maxLength' should be strictly positive");
+        this.maxLength = maxLength;
+    }
+
+    @Override
+    public String toPlainText(String html) {
+        try {
+            return toPlainText(new StringReader(html));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public String toPlainText(Reader html) throws IOException {
+        return new Conversion(html, new TextOutput(maxLength)).run();
+    }
+
+    private static class TextOutput {
+        private final int maxLength;
+        private final StringBuilder text;
+        private boolean pendingSpace;
+        private int pendingLineBreaks;
+
+        private TextOutput(int maxLength) {
+            this.maxLength = maxLength;
+            this.text = new StringBuilder();
+        }
+
+        private boolean isFull() {
+            return text.length() > maxLength;
+        }
+
+        private void append(char c) {
+            if (Character.isWhitespace(c) || c == '\u00a0') {
+                pendingSpace = true;
+                return;
+            }
+            if (text.length() > 0) {
+                if (pendingLineBreaks > 0) {
+                    for (int i = 0; i < pendingLineBreaks; i++) {
+                        text.append('\n');
+                    }
+                } else if (pendingSpace) {
+                    text.append(' ');
+                }
+            }
+            pendingSpace = false;
+            pendingLineBreaks = 0;
+            text.append(c);
+        }
+
+        private void space() {
+            pendingSpace = true;
+        }
+
+        private void lineBreaks(int count) {
+            pendingLineBreaks = Math.max(pendingLineBreaks, count);
+        }
+
+        private String build() {
+            return text.toString();
+        }
+    }
+
+    private static class Conversion {
+        private static final int EOF = -1;
+
+        private final Reader reader;
+        private final TextOutput output;
+        private int pushedBack;
+        private boolean inHead;
+        private boolean inTitle;
+
+        private Conversion(Reader reader, TextOutput output) {
+            this.reader = reader;
+            this.output = output;
+            this.pushedBack = EOF;
+        }
+
+        private int read() throws IOException {
+            if (pushedBack != EOF) {
+                int c = pushedBack;
+                pushedBack = EOF;
+                return c;
+            }
+            return reader.read();
+        }
+
+        private void unread(int c) {
+            pushedBack = c;
+        }
+
+        private String run() throws IOException {
+            int c;
+            while (!output.isFull() && (c = read()) != EOF) {
+                if (c == '<') {
+                    readMarkup();
+                } else if (c == '&') {
+                    readCharacterReference();
+                } else {
+                    emit((char) c);
+                }
+            }
+            return output.build();
+        }
+
+        private void emit(char c) {
+            if (inTitle) {
+                return;
+            }
+            if (inHead) {
+                if (Character.isWhitespace(c)) {
+                    return;
+                }
+                inHead = false;
+            }
+            output.append(c);
+        }
+
+        private void readMarkup() throws IOException {
+            int c = read();
+            if (c == '!') {
+                skipDeclarationOrComment();
+                return;
+            }
+            if (c == '?') {
+                skipUntil('>');
+                return;
+            }
+            boolean closing = c == '/';
+            if (closing) {
+                c = read();
+            }
+            if (!isAsciiLetter(c)) {
+                emit('<');
+                if (closing) {
+                    emit('/');
+                }
+                unread(c);
+                return;
+            }
+            String tagName = readTagName(c);
+            skipAttributes();
+            onTag(tagName, closing);
+        }
+
+        private String readTagName(int first) throws IOException {
+            StringBuilder tagName = new StringBuilder();
+            int c = first;
+            while (c != EOF && (isAsciiLetter(c) || Character.isDigit(c))) {
+                if (tagName.length() < MAX_TAG_NAME_LENGTH) {
+                    tagName.append(Character.toLowerCase((char) c));
+                }
+                c = read();
+            }
+            unread(c);
+            return tagName.toString();
+        }
+
+        private void skipAttributes() throws IOException {
+            int c;
+            while ((c = read()) != EOF && c != '>') {
+                if (c == '"' || c == '\'') {
+                    skipUntil(c);
+                }
+            }
+        }
+
+        private void onTag(String tagName, boolean closing) throws IOException {
+            if (tagName.equals("head")) {
+                inHead = !closing;
+                return;
+            }
+            if (tagName.equals("title")) {
+                inTitle = !closing;
+                return;
+            }
+            if (inHead && !closing && !HEAD_CONTENT_TAGS.contains(tagName)) {
+                inHead = false;
+            }
+            if (!closing && SKIPPED_CONTENT_TAGS.contains(tagName)) {
+                skipContent(tagName);
+            } else if (LINE_BREAK_TAGS.contains(tagName)) {
+                output.lineBreaks(1);
+            } else if (PARAGRAPH_TAGS.contains(tagName)) {
+                output.lineBreaks(2);
+            } else if (CELL_TAGS.contains(tagName)) {
+                output.space();
+            }
+        }
+
+        /**
+         * Skips everything up to the matching end tag, markup included, as script and style contents are raw text.
+         */
+        private void skipContent(String tagName) throws IOException {
+            int c;
+            while ((c = read()) != EOF) {
+                if (c == '<') {
+                    c = read();
+                    if (c == '/') {
+                        c = read();
+                        if (isAsciiLetter(c) && readTagName(c).equals(tagName)) {
+                            skipUntil('>');
+                            return;
+                        }
+                    } else {
+                        unread(c);
+                    }
+                }
+            }
+        }
+
+        private void skipDeclarationOrComment() throws IOException {
+            int first = read();
+            int second = read();
+            if (first == '-' && second == '-') {
+                skipComment();
+                return;
+            }
+            unread(second);
+            if (first != '>') {
+                skipUntil('>');
+            }
+        }
+
+        private void skipComment() throws IOException {
+            int dashes = 0;
+            int c;
+            while ((c = read()) != EOF) {
+                if (c == '>' && dashes >= 2) {
+                    return;
+                }
+                dashes = c == '-' ? dashes + 1 : 0;
+            }
+        }
+
+        private void skipUntil(int end) throws IOException {
+            int c;
+            while ((c = read()) != EOF && c != end) {
+                // skipped
+            }
+        }
+
+        private void readCharacterReference() throws IOException {
+            StringBuilder reference = new StringBuilder();
+            int c;
+            while ((c = read()) != EOF && reference.length() < MAX_ENTITY_LENGTH
+                    && (isAsciiLetter(c) || Character.isDigit(c) || (c == '#' && reference.length() == 0) || ((c == 'x' || c == 'X') && reference.toString().equals("#")))) {
+                reference.append((char) c);
+            }
+            boolean terminated = c == ';';
+            if (!terminated) {
+                unread(c);
+            }
+            String decoded = decode(reference.toString(), terminated);
+            if (decoded == null) {
+                emit('&');
+                appendAll(reference);
+                if (terminated) {
+                    emit(';');
+                }
+                return;
+            }
+            appendAll(decoded);
+        }
+
+        private String decode(String reference, boolean terminated) {
+            if (reference.startsWith("#x") || reference.startsWith("#X")) {
+                return codePoint(reference.substring(2), 16);
+            }
+            if (reference.startsWith("#")) {
+                return codePoint(reference.substring(1), 10);
+            }
+            return namedReference(reference, terminated);
+        }
+
+        /**
+         * Named references are resolved by Jsoup, which only decodes the legacy ones when the semicolon is missing.
+         */
+        private String namedReference(String reference, boolean terminated) {
+            if (reference.isEmpty()) {
+                return null;
+            }
+            String escaped = "&" + reference + (terminated ? ";" : "");
+            String decoded = Parser.unescapeEntities(escaped, false);
+            if (decoded.equals(escaped)) {
+                return null;
+            }
+            return decoded;
+        }
+
+        private String codePoint(String digits, int radix) {
+            try {
+                int codePoint = Integer.parseInt(digits, radix);
+                if (!Character.isValidCodePoint(codePoint) || codePoint == 0) {
+                    return "\ufffd";
+                }
+                return new String(Character.toChars(codePoint));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        private void appendAll(CharSequence text) {
+            for (int i = 0; i < text.length(); i++) {
+                emit(text.charAt(i));
+            }
+        }
+
+        private boolean isAsciiLetter(int c) {
+            return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+package com.linagora.james.mailets.json;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.Optional;
+
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.MimeUtility;
+import javax.mail.internet.ParseException;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+
+/**
+ * Walks the javax.mail part tree of a message to find its main text/plain and text/html parts.
+ *
+ * Attachments and embedded messages are skipped without being read, and the walk stops as soon as a readable
+ * part is found, so that the cost of the extraction is close to the size of the text parts rather than the
+ * size of the whole message.
+ *
+ * Text and HTML parts can be given a maximum length, in characters. Reading stops once it is reached and the
+ * part is reported as truncated.
+ */
+public class TextContentExtractor {
+
+    private static final String TEXT_PLAIN = "text/plain";
+    private static final String TEXT_HTML = "text/html";
+    private static final String MULTIPART_ALTERNATIVE = "multipart/alternative";
+    private static final String MULTIPART = "multipart/*";
+    private static final int BUFFER_SIZE = 8192;
+
+    private static class Text {
+        private final String value;
+        private final boolean truncated;
+
+        private Text(String value, boolean truncated) {
+            this.value = value;
+            this.truncated = truncated;
+        }
+    }
+
+    public static class TextContent {
+        public static TextContent empty() {
+            return new TextContent(Optional.empty(), Optional.empty());
+        }
+
+        private final Optional<Text> textBody;
+        private final Optional<Text> htmlBody;
+
+        private TextContent(Optional<Text> textBody, Optional<Text> htmlBody) {
+            this.textBody = textBody;
+            this.htmlBody = htmlBody;
+        }
+
+        public Optional<String> getTextBody() {
+            return textBody.map(text -> text.value);
+        }
+
+        public boolean isTextBodyTruncated() {
+            return textBody.map(text -> text.truncated).orElse(false);
+        }
+
+        public Optional<String> getHtmlBody() {
+            return htmlBody.map(text -> text.value);
+        }
+
+        public boolean isHtmlBodyTruncated() {
+            return htmlBody.map(text -> text.truncated).orElse(false);
+        }
+
+        private boolean isEmpty() {
+            return !textBody.isPresent() && !htmlBody.isPresent();
+        }
+
+        private boolean isComplete() {
+            return textBody.isPresent() && htmlBody.isPresent();
+        }
+
+        private TextContent merge(TextContent other) {
+            return new TextContent(
+                textBody.map(Optional::of).orElse(other.textBody),
+                htmlBody.map(Optional::of).orElse(other.htmlBody));
+        }
+    }
+
+    private final int maxTextLength;
+    private final int maxHtmlLength;
+
+    public TextContentExtractor() {
+        this(Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    public TextContentExtractor(int maxTextLength, int maxHtmlLength) {
+        Preconditions.checkArgument(maxTextLength > 0, "'maxTextLength' should be strictly positive");
+        Preconditions.checkArgument(maxHtmlLength > 0, "'maxHtmlLength' should be strictly positive");
+        this.maxTextLength = maxTextLength;
+        this.maxHtmlLength = maxHtmlLength;
+    }
+
+    public TextContent extract(Part part) throws MessagingException, IOException {
+        if (isAttachment(part)) {
+            return TextContent.empty();
+        }
+        if (part.isMimeType(TEXT_PLAIN)) {
+            return new TextContent(Optional.of(readText(part, maxTextLength)), Optional.empty());
+        }
+        if (part.isMimeType(TEXT_HTML)) {
+            return new TextContent(Optional.empty(), Optional.of(readText(part, maxHtmlLength)));
+        }
+        if (part.isMimeType(MULTIPART_ALTERNATIVE)) {
+            return extractAlternative((Multipart) part.getContent());
+        }
+        if (part.isMimeType(MULTIPART)) {
+            return extractFirstReadablePart((Multipart) part.getContent());
+        }
+        return TextContent.empty();
+    }
+
+    private boolean isAttachment(Part part) throws MessagingException {
+        return Part.ATTACHMENT.equalsIgnoreCase(part.getDisposition());
+    }
+
+    private TextContent extractAlternative(Multipart multipart) throws MessagingException, IOException {
+        TextContent result = TextContent.empty();
+        for (int i = 0; i < multipart.getCount() && !result.isComplete(); i++) {
+            result = result.merge(extract(multipart.getBodyPart(i)));
+        }
+        return result;
+    }
+
+    private TextContent extractFirstReadablePart(Multipart multipart) throws MessagingException, IOException {
+        for (int i = 0; i < multipart.getCount(); i++) {
+            TextContent content = extract(multipart.getBodyPart(i));
+            if (!content.isEmpty()) {
+                return content;
+            }
+        }
+        return TextContent.empty();
+    }
+
+    private Text readText(Part part, int maxLength) throws MessagingException, IOException {
+        StringBuilder text = new StringBuilder(Math.min(Math.max(part.getSize(), 0), maxLength));
+        char[] buffer = new char[BUFFER_SIZE];
+        try (InputStream inputStream = part.getInputStream();
+             Reader reader = new InputStreamReader(inputStream, charset(part))) {
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                int remaining = maxLength - text.length();
+                if (read > remaining) {
+                    text.append(buffer, 0, remaining + 1);
+                    return new Text(truncate(text.toString(), maxLength), true);
+                }
+                text.append(buffer, 0, read);
+            }
+        }
+        return new Text(text.toString(), false);
+    }
+
+    /**
+     * Cuts the text to maxLength characters, without splitting a surrogate pair.
+     */
+    public static String truncate(String text, int maxLength) {
+        if (text.length() <= maxLength) {
+            return text;
+        }
+        int end = maxLength;
+        if (Character.isHighSurrogate(text.charAt(end - 1))) {
+            end--;
+        }
+        return text.substring(0, end);
+    }
+
+    private Charset charset(Part part) throws MessagingException {
+        try {
+            String charset = new ContentType(part.getContentType()).getParameter("charset");
+            if (Strings.isNullOrEmpty(charset)) {
+                return StandardCharsets.US_ASCII;
+            }
+            return Charset.forName(MimeUtility.javaCharset(charset));
+        } catch (ParseException | IllegalCharsetNameException | UnsupportedCharsetException e) {
+            return StandardCharsets.UTF_8;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+package com.linagora.james.mailets.json;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Optional;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/**
+ * Encodings of classification requests and answers. They share the same data model: the binary ones only spare the
+ * text encoding and decoding of JSON, and are more compact.
+ */
+public enum WireFormat {
+    JSON("application/json"),
+    SMILE("application/x-jackson-smile"),
+    CBOR("application/cbor");
+
+    public static Optional<WireFormat> parse(String value) {
+        return Arrays.stream(values())
+            .filter(wireFormat -> wireFormat.name().equalsIgnoreCase(value.trim()))
+            .findFirst();
+    }
+
+    /**
+     * Answers without a Content-Type, or with an unknown one, are read as JSON.
+     */
+    public static WireFormat fromContentType(Optional<String> contentType) {
+        Optional<String> mediaType = contentType
+            .map(value -> value.split(";")[0].trim().toLowerCase(Locale.US));
+        return Arrays.stream(values())
+            .filter(wireFormat -> mediaType.equals(Optional.of(wireFormat.mediaType)))
+            .findFirst()
+            .orElse(JSON);
+    }
+
+    private final String mediaType;
+
+    WireFormat(String mediaType) {
+        this.mediaType = mediaType;
+    }
+
+    public String getMediaType() {
+        return mediaType;
+    }
+
+    public boolean isBinary() {
+        return this != JSON;
+    }
+
+    /**
+     * A JsonFactory is bound to the ObjectMapper it is given to, hence a new one is created each time.
+     */
+    public ObjectMapper newObjectMapper() {
+        return new ObjectMapper(newFactory());
+    }
+
+    private JsonFactory newFactory() {
+        switch (this) {
+            case SMILE:
+                return new SmileFactory();
+            case CBOR:
+                return new CBORFactory();
+            default:
+                return new JsonFactory();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.james.metrics.api.NoopMetricFactory;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class AdmissionControlTest {
+
+    private static final long MAX_IN_FLIGHT_BYTES = 10 * 1024;
+    private static final long NO_WAIT = 0;
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private AdmissionControl testee;
+
+    @Before
+    public void setUp() {
+        testee = new AdmissionControl(MAX_IN_FLIGHT_BYTES, new ClassificationMetrics(new NoopMetricFactory()));
+    }
+
+    @Test
+    public void constructorShouldThrowWhenMaxInFlightBytesIsZero() {
+        expectedException.expect(IllegalArgumentException.class);
+
+        new AdmissionControl(0, new ClassificationMetrics(new NoopMetricFactory()));
+    }
+
+    @Test
+    public void estimatedWorkingSetShouldBeAMultipleOfMessageSize() {
+        assertThat(AdmissionControl.estimatedWorkingSet(1000)).isEqualTo(1000 * AdmissionControl.WORKING_SET_FACTOR);
+    }
+
+    @Test
+    public void tryAcquireShouldAdmitWithinBudget() throws Exception {
+        Optional<AdmissionControl.Permit> permit = testee.tryAcquire(4 * 1024, NO_WAIT);
+
+        assertThat(permit.isPresent()).isTrue();
+        assertThat(testee.getInFlightBytes()).isEqualTo(4 * 1024);
+        assertThat(testee.getAdmittedCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void tryAcquireShouldRejectWhenBudgetIsExhausted() throws Exception {
+        testee.tryAcquire(8 * 1024, NO_WAIT);
+
+        Optional<AdmissionControl.Permit> permit = testee.tryAcquire(4 * 1024, NO_WAIT);
+
+        assertThat(permit.isPresent()).isFalse();
+        assertThat(testee.getWaitCount()).isEqualTo(1);
+        assertThat(testee.getRejectedCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void tryAcquireShouldAdmitOnceBytesAreReleased() throws Exception {
+        AdmissionControl.Permit permit = testee.tryAcquire(8 * 1024, NO_WAIT).get();
+
+        new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            permit.release();
+        }).start();
+
+        assertThat(testee.tryAcquire(4 * 1024, 5000).isPresent()).isTrue();
+        assertThat(testee.getWaitCount()).isEqualTo(1);
+        assertThat(testee.getRejectedCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void tryAcquireShouldNotLetSmallerWorkingSetsOvertakeAWaitingOne() throws Exception {
+        AdmissionControl.Permit inFlight = testee.tryAcquire(1024, NO_WAIT).get();
+        CompletableFuture<Optional<AdmissionControl.Permit>> budgetSized = new CompletableFuture<>();
+        new Thread(() -> {
+            try {
+                budgetSized.complete(testee.tryAcquire(MAX_IN_FLIGHT_BYTES, 5000));
+            } catch (InterruptedException e) {
+                budgetSized.completeExceptionally(e);
+            }
+        }).start();
+        awaitWaitingCount(1);
+
+        for (int i = 0; i < 10; i++) {
+            testee.tryAcquire(1024, NO_WAIT);
+        }
+        inFlight.release();
+
+        assertThat(budgetSized.get().isPresent()).isTrue();
+        assertThat(testee.getAdmittedCount()).isEqualTo(2);
+        assertThat(testee.getRejectedCount()).isEqualTo(10);
+    }
+
+    @Test
+    public void tryAcquireShouldAdmitMailsLargerThanTheBudgetAlone() throws Exception {
+        Optional<AdmissionControl.Permit> permit = testee.tryAcquire(100 * 1024, NO_WAIT);
+
+        assertThat(permit.isPresent()).isTrue();
+        assertThat(testee.getInFlightBytes()).isEqualTo(testee.getMaxInFlightBytes());
+    }
+
+    @Test
+    public void releaseShouldOnlyGiveBytesBackOnce() throws Exception {
+        AdmissionControl.Permit permit = testee.tryAcquire(4 * 1024, NO_WAIT).get();
+
+        permit.release();
+        permit.release();
+
+        assertThat(testee.getInFlightBytes()).isEqualTo(0);
+        assertThat(testee.availableUnits()).isEqualTo(10);
+    }
+
+    @Test
+    public void tryAcquireShouldRoundUpToKilobytes() throws Exception {
+        testee.tryAcquire(1, NO_WAIT);
+
+        assertThat(testee.getInFlightBytes()).isEqualTo(1024);
+    }
+
+    private void awaitWaitingCount(int count) throws InterruptedException {
+        for (int i = 0; i < 500 && testee.waitingCount() < count; i++) {
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.james.core.MailAddress;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.linagora.james.mailets.json.ClassificationGuess;
+
+public class AffinityTableTest {
+
+    private static final long MAX_ENTRIES = 100;
+    private static final long TTL_IN_MS = TimeUnit.HOURS.toMillis(1);
+    private static final int MIN_HIT_STREAK = 2;
+    private static final double MIN_CONFIDENCE = 50.0;
+    private static final ClassificationGuess JAMES = ClassificationGuess.builder()
+        .mailboxId("cfe49390-f391-11e6-88e7-ddd22b16a7b9")
+        .mailboxName("JAMES")
+        .confidence(80.0)
+        .build();
+    private static final ClassificationGuess LINAGORA = ClassificationGuess.builder()
+        .mailboxId("1a1b1c1d-f391-11e6-88e7-ddd22b16a7b9")
+        .mailboxName("LINAGORA")
+        .confidence(80.0)
+        .build();
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private AffinityTable testee;
+    private MailAddress sender;
+    private MailAddress recipient;
+    private MailAddress otherRecipient;
+
+    @Before
+    public void setUp() throws Exception {
+        testee = new AffinityTable(MAX_ENTRIES, TTL_IN_MS, MIN_HIT_STREAK, MIN_CONFIDENCE, 0);
+        sender = new MailAddress("sender@james.org");
+        recipient = new MailAddress("user@james.org");
+        otherRecipient = new MailAddress("other@james.org");
+    }
+
+    @Test
+    public void constructorShouldThrowWhenMinHitStreakIsZero() {
+        expectedException.expect(IllegalArgumentException.class);
+
+        new AffinityTable(MAX_ENTRIES, TTL_IN_MS, 0, MIN_CONFIDENCE, 0);
+    }
+
+    @Test
+    public void constructorShouldThrowWhenVerificationPercentageIsNotAPercentage() {
+        expectedException.expect(IllegalArgumentException.class);
+
+        new AffinityTable(MAX_ENTRIES, TTL_IN_MS, MIN_HIT_STREAK, MIN_CONFIDENCE, 101);
+    }
+
+    @Test
+    public void guessShouldBeEmptyWhenNothingWasLearned() {
+        assertThat(testee.guess(sender, ImmutableList.of(recipient))).isEmpty();
+    }
+
+    @Test
+    public void guessShouldBeEmptyWhenHitStreakIsTooShort() {
+        testee.learn(sender, ImmutableMap.of("user@james.org", JAMES));
+
+        assertThat(testee.guess(sender, ImmutableList.of(recipient))).isEmpty();
+    }
+
+    @Test
+    public void guessShouldReturnTrustedAffinities() {
+        testee.learn(sender, ImmutableMap.of("user@james.org", JAMES));
+        testee.learn(sender, ImmutableMap.of("user@james.org", JAMES));
+
+        assertThat(testee.guess(sender, ImmutableList.of(recipient)))
+            .contains(ImmutableMap.of("user@james.org", JAMES));
+    }
+
+    @Test
+    public void guessShouldBeEmptyWhenConfidenceIsTooLow() {
+        ClassificationGuess unsure = ClassificationGuess.builder()
+            .mailboxId(JAMES.getMailboxId())
+            .mailboxName(JAMES.getMailboxName())
+            .confidence(10.0)
+            .build();
+        testee.learn(sender, ImmutableMap.of("user@james.org", JAMES));
+        testee.learn(sender, ImmutableMap.of("user@james.org", unsure));
+
+        assertThat(testee.guess(sender, ImmutableList.of(recipient))).isEmpty();
+    }
+
+    @Test
+    public void guessShouldBeEmptyWhenOneRecipientIsNotTrusted() {
+        testee.learn(sender, ImmutableMap.of("user@james.org", JAMES, "other@james.org", LINAGORA));
+        testee.learn(sender, ImmutableMap.of("user@james.org", JAMES));
+
+        assertThat(testee.guess(sender, ImmutableList.of(recipient, otherRecipient))).isEmpty();
+    }
+
+    @Test
+    public void guessShouldBeEmptyForAnotherSender() throws Exception {
+        testee.learn(sender, ImmutableMap.of("user@james.org", JAMES));
+        testee.learn(sender, ImmutableMap.of("user@james.org", JAMES));
+
+        assertThat(testee.guess(new MailAddress("another@james.org"), ImmutableList.of(recipient))).isEmpty();
+    }
+
+    @Test
+    public void guessShouldBeEmptyWithoutRecipients() {
+        assertThat(testee.guess(sender, ImmutableList.of())).isEmpty();
+    }
+
+    @Test
+    public void learnShouldResetHitStreakWhenMailboxChanges() {
+        testee.learn(sender, ImmutableMap.of("user@james.org", JAMES));
+        testee.learn(sender, ImmutableMap.of("user@james.org", JAMES));
+        testee.learn(sender, ImmutableMap.of("user@james.org", LINAGORA));
+
+        assertThat(testee.get(sender, recipient).get().getHitStreak()).isEqualTo(1);
+        assertThat(testee.get(sender, recipient).get().getMailboxId()).isEqualTo(LINAGORA.getMailboxId());
+        assertThat(testee.guess(sender, ImmutableList.of(recipient))).isEmpty();
+    }
+
+    @Test
+    public void learnShouldCountContradictionsOfTrustedAffinities() {
+        testee.learn(sender, ImmutableMap.of("user@james.org", JAMES));
+        testee.learn(sender, ImmutableMap.of("user@james.org", JAMES));
+
+        int contradictions = testee.learn(sender, ImmutableMap.of("user@james.org", LINAGORA));
+
+        assertThat(contradictions).isEqualTo(1);
+        assertThat(testee.getContradictionCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void learnShouldNotCountChangesOfUntrustedAffinitiesAsContradictions() {
+        testee.learn(sender, ImmutableMap.of("user@james.org", JAMES));
+
+        int contradictions = testee.learn(sender, ImmutableMap.of("user@james.org", LINAGORA));
+
+        assertThat(contradictions).isEqualTo(0);
+        assertThat(testee.getContradictionCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldVerifyShouldAlwaysBeFalseWhenPercentageIsZero() {
+        assertThat(testee.shouldVerify()).isFalse();
+        assertThat(testee.shouldVerify()).isFalse();
+        assertThat(testee.getHitCount()).isEqualTo(2);
+        assertThat(testee.getVerificationCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldVerifyShouldAlwaysBeTrueWhenPercentageIsHundred() {
+        AffinityTable testee = new AffinityTable(MAX_ENTRIES, TTL_IN_MS, MIN_HIT_STREAK, MIN_CONFIDENCE, 100);
+
+        assertThat(testee.shouldVerify()).isTrue();
+        assertThat(testee.shouldVerify()).isTrue();
+        assertThat(testee.getHitCount()).isEqualTo(0);
+        assertThat(testee.getVerificationCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void onModelVersionShouldInvalidateAffinitiesWhenVersionChanges() {
+        testee.onModelVersion("1");
+        testee.learn(sender, ImmutableMap.of("user@james.org", JAMES));
+
+        testee.onModelVersion("2");
+
+        assertThat(testee.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void onModelVersionShouldKeepAffinitiesWhenVersionIsUnchanged() {
+        testee.onModelVersion("1");
+        testee.learn(sender, ImmutableMap.of("user@james.org", JAMES));
+
+        testee.onModelVersion("1");
+
+        assertThat(testee.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void tableShouldBeBoundedByMaxEntries() {
+        AffinityTable testee = new AffinityTable(1, TTL_IN_MS, MIN_HIT_STREAK, MIN_CONFIDENCE, 0);
+
+        testee.learn(sender, ImmutableMap.of("user@james.org", JAMES, "other@james.org", LINAGORA));
+
+        assertThat(testee.size()).isEqualTo(1);
+    }
+}
@@ -0,0 +1,170 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import static com.linagora.james.mailets.GuessClassificationMailet.HEADER_NAME_DEFAULT_VALUE;
+import static com.linagora.james.mailets.GuessClassificationMailet.SERVICE_PASSWORD;
+import static com.linagora.james.mailets.GuessClassificationMailet.SERVICE_URL;
+import static com.linagora.james.mailets.GuessClassificationMailet.SERVICE_USERNAME;
+import static com.linagora.james.mailets.GuessClassificationMailet.TIMEOUT_IN_MS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.internet.InternetAddress;
+
+import org.apache.james.core.MailAddress;
+import org.apache.mailet.PerRecipientHeaders;
+import org.apache.mailet.base.test.FakeMail;
+import org.apache.mailet.base.test.FakeMailetConfig;
+import org.apache.mailet.base.test.MimeMessageBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockserver.client.server.MockServerClient;
+import org.mockserver.junit.MockServerRule;
+import org.mockserver.model.HttpRequest;
+import org.mockserver.model.HttpResponse;
+
+import com.linagora.james.mailets.json.FakeUUIDGenerator;
+
+public class AsyncGuessClassificationMailetTest {
+
+    private static final String RESPONSE = "{\"results\":" +
+        "{\"to@james.org\":{" +
+        "    \"mailboxId\":\"cfe49390-f391-11e6-88e7-ddd22b16a7b9\"," +
+        "    \"mailboxName\":\"JAMES\"," +
+        "    \"confidence\":50.07615280151367}" +
+        "}," +
+        "\"errors\":{}}";
+
+    @Rule
+    public MockServerRule mockServerRule = new MockServerRule(this);
+
+    private MockServerClient mockServerClient;
+    private InFlightClassifications inFlightClassifications;
+    private AsyncGuessClassificationMailet testee;
+    private AwaitClassificationMailet awaitMailet;
+
+    @Before
+    public void setUp() throws Exception {
+        mockServerClient
+            .when(HttpRequest.request()
+                .withMethod("POST")
+                .withPath("/email/classification/predict"))
+            .respond(HttpResponse.response(RESPONSE));
+        inFlightClassifications = new InFlightClassifications(TimeUnit.MINUTES.toMillis(1));
+        testee = new AsyncGuessClassificationMailet(new FakeUUIDGenerator(), inFlightClassifications);
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, "http://localhost:" + mockServerRule.getPort() + "/email/classification/predict")
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(TIMEOUT_IN_MS, "2000")
+            .build());
+        awaitMailet = new AwaitClassificationMailet(inFlightClassifications);
+        awaitMailet.init(FakeMailetConfig.builder().build());
+    }
+
+    @After
+    public void tearDown() {
+        testee.destroy();
+    }
+
+    @Test
+    public void serviceShouldTagTheMailWithItsClassificationId() throws Exception {
+        FakeMail mail = mail("mail1");
+
+        testee.service(mail);
+
+        assertThat(mail.getAttribute(InFlightClassifications.CLASSIFICATION_ID_ATTRIBUTE)).isNotNull();
+        assertThat(inFlightClassifications.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void awaitShouldApplyTheClassificationOfEachMailWhenNamesCollide() throws Exception {
+        FakeMail first = mail("mail1");
+        FakeMail second = mail("mail1");
+
+        testee.service(first);
+        testee.service(second);
+        assertThat(inFlightClassifications.size()).isEqualTo(2);
+        awaitMailet.service(first);
+        awaitMailet.service(second);
+
+        assertThat(first.getPerRecipientSpecificHeaders()).isEqualTo(expectedHeaders());
+        assertThat(second.getPerRecipientSpecificHeaders()).isEqualTo(expectedHeaders());
+        assertThat(inFlightClassifications.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void awaitShouldApplyTheClassificationOfRenamedMails() throws Exception {
+        FakeMail mail = mail("mail1");
+
+        testee.service(mail);
+        mail.setName("mail1-split");
+        awaitMailet.service(mail);
+
+        assertThat(mail.getPerRecipientSpecificHeaders()).isEqualTo(expectedHeaders());
+    }
+
+    @Test
+    public void awaitShouldRemoveTheClassificationIdAttribute() throws Exception {
+        FakeMail mail = mail("mail1");
+
+        testee.service(mail);
+        awaitMailet.service(mail);
+
+        assertThat(mail.getAttribute(InFlightClassifications.CLASSIFICATION_ID_ATTRIBUTE)).isNull();
+    }
+
+    @Test
+    public void awaitShouldNotAddHeadersWhenTheClassificationIsMissing() throws Exception {
+        FakeMail mail = mail("mail1");
+        mail.setAttribute(InFlightClassifications.CLASSIFICATION_ID_ATTRIBUTE, "expired-classification");
+
+        awaitMailet.service(mail);
+
+        assertThat(mail.getPerRecipientSpecificHeaders()).isEqualTo(new PerRecipientHeaders());
+        assertThat(mail.getAttribute(InFlightClassifications.CLASSIFICATION_ID_ATTRIBUTE)).isNull();
+    }
+
+    private PerRecipientHeaders expectedHeaders() throws Exception {
+        PerRecipientHeaders expected = new PerRecipientHeaders();
+        expected.addHeaderForRecipient(PerRecipientHeaders.Header.builder()
+                .name(HEADER_NAME_DEFAULT_VALUE)
+                .value("{\"mailboxId\":\"cfe49390-f391-11e6-88e7-ddd22b16a7b9\",\"mailboxName\":\"JAMES\",\"confidence\":50.07615280151367}")
+                .build(),
+            new MailAddress("to@james.org"));
+        return expected;
+    }
+
+    private FakeMail mail(String name) throws Exception {
+        return FakeMail.builder()
+            .name(name)
+            .mimeMessage(MimeMessageBuilder.mimeMessageBuilder()
+                .addFrom(new InternetAddress("from@james.org", "From"))
+                .addToRecipient("to@james.org")
+                .setSubject("my subject")
+                .setText("this is my body")
+                .build())
+            .recipients(new MailAddress("to@james.org"))
+            .build();
+    }
+}
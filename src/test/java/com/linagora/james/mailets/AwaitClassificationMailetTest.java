@@ -0,0 +1,167 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import static com.linagora.james.mailets.GuessClassificationMailet.HEADER_NAME_DEFAULT_VALUE;
+import static com.linagora.james.mailets.GuessClassificationMailet.SERVICE_PASSWORD;
+import static com.linagora.james.mailets.GuessClassificationMailet.SERVICE_URL;
+import static com.linagora.james.mailets.GuessClassificationMailet.SERVICE_USERNAME;
+import static com.linagora.james.mailets.GuessClassificationMailet.TIMEOUT_IN_MS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.internet.InternetAddress;
+
+import org.apache.james.core.MailAddress;
+import org.apache.mailet.PerRecipientHeaders;
+import org.apache.mailet.base.test.FakeMail;
+import org.apache.mailet.base.test.FakeMailetConfig;
+import org.apache.mailet.base.test.MimeMessageBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockserver.client.server.MockServerClient;
+import org.mockserver.junit.MockServerRule;
+import org.mockserver.matchers.Times;
+import org.mockserver.model.Delay;
+import org.mockserver.model.HttpRequest;
+import org.mockserver.model.HttpResponse;
+
+import com.linagora.james.mailets.json.FakeUUIDGenerator;
+
+public class AwaitClassificationMailetTest {
+
+    private static final String RESPONSE = "{\"results\":" +
+        "{\"to@james.org\":{" +
+        "    \"mailboxId\":\"cfe49390-f391-11e6-88e7-ddd22b16a7b9\"," +
+        "    \"mailboxName\":\"JAMES\"," +
+        "    \"confidence\":50.07615280151367}" +
+        "}," +
+        "\"errors\":{}}";
+
+    @Rule
+    public MockServerRule mockServerRule = new MockServerRule(this);
+
+    private MockServerClient mockServerClient;
+    private InFlightClassifications inFlightClassifications;
+    private AsyncGuessClassificationMailet asyncMailet;
+    private AwaitClassificationMailet testee;
+
+    @Before
+    public void setUp() throws Exception {
+        inFlightClassifications = new InFlightClassifications(TimeUnit.MINUTES.toMillis(1));
+        asyncMailet = new AsyncGuessClassificationMailet(new FakeUUIDGenerator(), inFlightClassifications);
+        asyncMailet.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, "http://localhost:" + mockServerRule.getPort() + "/email/classification/predict")
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(TIMEOUT_IN_MS, "2000")
+            .build());
+        testee = new AwaitClassificationMailet(inFlightClassifications);
+        testee.init(FakeMailetConfig.builder().build());
+    }
+
+    @After
+    public void tearDown() {
+        asyncMailet.destroy();
+    }
+
+    @Test
+    public void asyncServiceShouldNotWaitForTheAnswer() throws Exception {
+        mockServerClient
+            .when(HttpRequest.request()
+                    .withMethod("POST")
+                    .withPath("/email/classification/predict"),
+                Times.exactly(1))
+            .respond(HttpResponse.response(RESPONSE)
+                .withDelay(new Delay(TimeUnit.MILLISECONDS, 500)));
+        FakeMail mail = mail();
+
+        long start = System.currentTimeMillis();
+        asyncMailet.service(mail);
+
+        assertThat(System.currentTimeMillis() - start).isLessThan(500);
+        assertThat(mail.getPerRecipientSpecificHeaders()).isEqualTo(new PerRecipientHeaders());
+        assertThat(inFlightClassifications.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void serviceShouldAddHeadersOnceTheAnswerIsReceived() throws Exception {
+        mockServerClient
+            .when(HttpRequest.request()
+                    .withMethod("POST")
+                    .withPath("/email/classification/predict"),
+                Times.exactly(1))
+            .respond(HttpResponse.response(RESPONSE)
+                .withDelay(new Delay(TimeUnit.MILLISECONDS, 100)));
+        FakeMail mail = mail();
+
+        asyncMailet.service(mail);
+        testee.service(mail);
+
+        PerRecipientHeaders expected = new PerRecipientHeaders();
+        expected.addHeaderForRecipient(PerRecipientHeaders.Header.builder()
+                .name(HEADER_NAME_DEFAULT_VALUE)
+                .value("{\"mailboxId\":\"cfe49390-f391-11e6-88e7-ddd22b16a7b9\",\"mailboxName\":\"JAMES\",\"confidence\":50.07615280151367}")
+                .build(),
+            new MailAddress("to@james.org"));
+        assertThat(mail.getPerRecipientSpecificHeaders()).isEqualTo(expected);
+        assertThat(inFlightClassifications.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void serviceShouldNotAddHeadersWhenNoClassificationInProgress() throws Exception {
+        FakeMail mail = mail();
+
+        testee.service(mail);
+
+        assertThat(mail.getPerRecipientSpecificHeaders()).isEqualTo(new PerRecipientHeaders());
+    }
+
+    @Test
+    public void serviceShouldNotAddHeadersWhenClassificationFails() throws Exception {
+        mockServerClient
+            .when(HttpRequest.request()
+                    .withMethod("POST")
+                    .withPath("/email/classification/predict"),
+                Times.exactly(1))
+            .respond(HttpResponse.response().withStatusCode(500));
+        FakeMail mail = mail();
+
+        asyncMailet.service(mail);
+        testee.service(mail);
+
+        assertThat(mail.getPerRecipientSpecificHeaders()).isEqualTo(new PerRecipientHeaders());
+    }
+
+    private FakeMail mail() throws Exception {
+        return FakeMail.builder()
+            .name("mail1")
+            .mimeMessage(MimeMessageBuilder.mimeMessageBuilder()
+                .addFrom(new InternetAddress("from@james.org", "From"))
+                .addToRecipient("to@james.org")
+                .setSubject("my subject")
+                .setText("this is my body")
+                .build())
+            .recipients(new MailAddress("to@james.org"))
+            .build();
+    }
+}
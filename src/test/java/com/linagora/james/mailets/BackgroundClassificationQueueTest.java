@@ -0,0 +1,351 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.james.metrics.api.NoopMetricFactory;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
+import com.linagora.james.mailets.json.ClassificationRequestBody;
+import com.linagora.james.mailets.json.Emailer;
+import com.linagora.james.mailets.json.Recipients;
+
+public class BackgroundClassificationQueueTest {
+
+    private static final long NO_WAIT = 0;
+    private static final long ONE_HOUR_IN_MS = TimeUnit.HOURS.toMillis(1);
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private ClassificationMetrics metrics;
+    private Path overflowDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        metrics = new ClassificationMetrics(new NoopMetricFactory());
+        overflowDirectory = temporaryFolder.getRoot().toPath().resolve("jobs");
+    }
+
+    @Test
+    public void constructorShouldThrowWhenCapacityIsZero() throws Exception {
+        expectedException.expect(IllegalArgumentException.class);
+
+        new BackgroundClassificationQueue(0, Optional.empty(), metrics);
+    }
+
+    @Test
+    public void pollShouldReturnOfferedJobs() throws Exception {
+        BackgroundClassificationQueue testee = new BackgroundClassificationQueue(10, Optional.empty(), metrics);
+
+        testee.offer(job("mail1"));
+
+        assertThat(testee.poll(NO_WAIT).map(ClassificationJob::getMailName)).contains("mail1");
+        assertThat(testee.poll(NO_WAIT)).isEmpty();
+    }
+
+    @Test
+    public void offerShouldDropJobsExceedingCapacityWithoutOverflowDirectory() throws Exception {
+        BackgroundClassificationQueue testee = new BackgroundClassificationQueue(1, Optional.empty(), metrics);
+
+        assertThat(testee.offer(job("mail1"))).isTrue();
+        assertThat(testee.offer(job("mail2"))).isFalse();
+
+        assertThat(testee.getDroppedCount()).isEqualTo(1);
+        assertThat(testee.getMemorySize()).isEqualTo(1);
+    }
+
+    @Test
+    public void offerShouldWriteJobsExceedingCapacityToTheOverflowDirectory() throws Exception {
+        BackgroundClassificationQueue testee = new BackgroundClassificationQueue(1, Optional.of(overflowDirectory), metrics);
+
+        testee.offer(job("mail1"));
+        assertThat(testee.offer(job("mail2"))).isTrue();
+
+        assertThat(testee.getOverflowSize()).isEqualTo(1);
+        assertThat(testee.getOverflowFiles()).hasSize(1);
+    }
+
+    @Test
+    public void pollShouldServeOverflowedJobsOnceMemoryIsDrained() throws Exception {
+        BackgroundClassificationQueue testee = new BackgroundClassificationQueue(1, Optional.of(overflowDirectory), metrics);
+        testee.offer(job("mail1"));
+        testee.offer(job("mail2"));
+
+        assertThat(testee.poll(NO_WAIT).map(ClassificationJob::getMailName)).contains("mail1");
+        assertThat(testee.poll(NO_WAIT).map(ClassificationJob::getMailName)).contains("mail2");
+        assertThat(testee.poll(NO_WAIT)).isEmpty();
+        assertThat(testee.getOverflowFiles()).isEmpty();
+    }
+
+    @Test
+    public void pollShouldNotStarveOverflowedJobs() throws Exception {
+        BackgroundClassificationQueue testee = new BackgroundClassificationQueue(1, Optional.of(overflowDirectory), metrics);
+        testee.offer(job("mail1"));
+        testee.offer(job("mail2"));
+
+        assertThat(testee.poll(NO_WAIT).map(ClassificationJob::getMailName)).contains("mail1");
+        testee.offer(job("mail3"));
+        assertThat(testee.poll(NO_WAIT).map(ClassificationJob::getMailName)).contains("mail2");
+        assertThat(testee.poll(NO_WAIT).map(ClassificationJob::getMailName)).contains("mail3");
+    }
+
+    @Test
+    public void pollShouldKeepOverflowedJobsUntilAcknowledged() throws Exception {
+        BackgroundClassificationQueue testee = new BackgroundClassificationQueue(1, Optional.of(overflowDirectory), metrics);
+        testee.offer(job("mail1"));
+        testee.offer(job("mail2"));
+        testee.poll(NO_WAIT);
+
+        ClassificationJob overflowedJob = testee.poll(NO_WAIT).get();
+
+        assertThat(testee.getOverflowFiles()).isEmpty();
+        assertThat(overflowDirectory.toFile().list()).hasSize(1);
+        testee.acknowledge(overflowedJob);
+        assertThat(overflowDirectory.toFile().list()).isEmpty();
+    }
+
+    @Test
+    public void unacknowledgedJobsShouldSurviveARestart() throws Exception {
+        BackgroundClassificationQueue testee = new BackgroundClassificationQueue(1, Optional.of(overflowDirectory), metrics);
+        testee.offer(job("mail1"));
+        testee.offer(job("mail2"));
+        testee.poll(NO_WAIT);
+        testee.poll(NO_WAIT);
+
+        BackgroundClassificationQueue restarted = new BackgroundClassificationQueue(10, Optional.of(overflowDirectory), metrics);
+
+        assertThat(restarted.getOverflowSize()).isEqualTo(1);
+        assertThat(restarted.poll(NO_WAIT).map(ClassificationJob::getMailName)).contains("mail2");
+    }
+
+    @Test
+    public void acknowledgeShouldAcceptMemoryJobs() throws Exception {
+        BackgroundClassificationQueue testee = new BackgroundClassificationQueue(10, Optional.of(overflowDirectory), metrics);
+        testee.offer(job("mail1"));
+
+        testee.acknowledge(testee.poll(NO_WAIT).get());
+
+        assertThat(testee.poll(NO_WAIT)).isEmpty();
+    }
+
+    @Test
+    public void overflowedJobsShouldKeepTheirAttempts() throws Exception {
+        BackgroundClassificationQueue testee = new BackgroundClassificationQueue(1, Optional.of(overflowDirectory), metrics);
+        testee.offer(job("mail1"));
+        testee.offer(job("mail2").withFailedAttempt().withFailedAttempt());
+        testee.poll(NO_WAIT);
+
+        assertThat(testee.poll(NO_WAIT).map(ClassificationJob::getAttempts)).contains(2);
+    }
+
+    @Test
+    public void overflowedJobsShouldBeReadBackIdentical() throws Exception {
+        BackgroundClassificationQueue testee = new BackgroundClassificationQueue(1, Optional.of(overflowDirectory), metrics);
+        ClassificationJob job = job("mail2");
+        testee.offer(job("mail1"));
+        testee.offer(job);
+        testee.poll(NO_WAIT);
+
+        ClassificationJob readJob = testee.poll(NO_WAIT).get();
+
+        assertThat(readJob.getRecipients()).isEqualTo(job.getRecipients());
+        assertThat(readJob.getBody().getMessageId()).isEqualTo(job.getBody().getMessageId());
+        assertThat(readJob.getBody().getTextBody()).isEqualTo(job.getBody().getTextBody());
+        assertThat(readJob.getBody().getDate()).isEqualTo(job.getBody().getDate());
+        assertThat(readJob.getBody().getRecipients().getTo().get(0).getAddress()).isEqualTo("to@james.org");
+    }
+
+    @Test
+    public void closeShouldWriteMemoryJobsToTheOverflowDirectory() throws Exception {
+        BackgroundClassificationQueue testee = new BackgroundClassificationQueue(10, Optional.of(overflowDirectory), metrics);
+        testee.offer(job("mail1"));
+        testee.offer(job("mail2"));
+
+        assertThat(testee.close()).isEqualTo(0);
+
+        assertThat(testee.getOverflowFiles()).hasSize(2);
+    }
+
+    @Test
+    public void closeShouldReportLostJobsWithoutOverflowDirectory() throws Exception {
+        BackgroundClassificationQueue testee = new BackgroundClassificationQueue(10, Optional.empty(), metrics);
+        testee.offer(job("mail1"));
+
+        assertThat(testee.close()).isEqualTo(1);
+    }
+
+    @Test
+    public void closeShouldWriteJobsWaitingForTheirRetryToTheOverflowDirectory() throws Exception {
+        BackgroundClassificationQueue testee = new BackgroundClassificationQueue(10, Optional.of(overflowDirectory), metrics);
+        testee.retry(job("mail1").withFailedAttempt(), ONE_HOUR_IN_MS);
+
+        assertThat(testee.close()).isEqualTo(0);
+
+        assertThat(testee.getRetrySize()).isEqualTo(0);
+        assertThat(testee.getOverflowFiles()).hasSize(1);
+    }
+
+    @Test
+    public void retryShouldNotServeTheJobBeforeItsDelay() throws Exception {
+        BackgroundClassificationQueue testee = new BackgroundClassificationQueue(10, Optional.empty(), metrics);
+
+        assertThat(testee.retry(job("mail1"), ONE_HOUR_IN_MS)).isTrue();
+
+        assertThat(testee.poll(NO_WAIT)).isEmpty();
+        assertThat(testee.getRetrySize()).isEqualTo(1);
+    }
+
+    @Test
+    public void retryShouldServeTheJobOnceItsDelayElapsed() throws Exception {
+        BackgroundClassificationQueue testee = new BackgroundClassificationQueue(10, Optional.empty(), metrics);
+        testee.retry(job("mail1"), 50);
+
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        Optional<ClassificationJob> job = testee.poll(TimeUnit.MINUTES.toMillis(1));
+
+        assertThat(job.map(ClassificationJob::getMailName)).contains("mail1");
+        assertThat(stopwatch.elapsed(TimeUnit.SECONDS)).isLessThan(10);
+    }
+
+    @Test
+    public void retryShouldServeDueJobsBeforeNewOnes() throws Exception {
+        BackgroundClassificationQueue testee = new BackgroundClassificationQueue(10, Optional.empty(), metrics);
+        testee.offer(job("mail1"));
+        testee.retry(job("mail2"), 0);
+
+        assertThat(testee.poll(NO_WAIT).map(ClassificationJob::getMailName)).contains("mail2");
+        assertThat(testee.poll(NO_WAIT).map(ClassificationJob::getMailName)).contains("mail1");
+    }
+
+    @Test
+    public void retryShouldOfferJobsExceedingCapacity() throws Exception {
+        BackgroundClassificationQueue testee = new BackgroundClassificationQueue(1, Optional.empty(), metrics);
+        testee.retry(job("mail1"), ONE_HOUR_IN_MS);
+
+        assertThat(testee.retry(job("mail2"), ONE_HOUR_IN_MS)).isTrue();
+
+        assertThat(testee.getRetrySize()).isEqualTo(1);
+        assertThat(testee.poll(NO_WAIT).map(ClassificationJob::getMailName)).contains("mail2");
+    }
+
+    @Test
+    public void persistShouldWriteTheJobToTheOverflowDirectory() throws Exception {
+        BackgroundClassificationQueue testee = new BackgroundClassificationQueue(10, Optional.of(overflowDirectory), metrics);
+
+        assertThat(testee.persist(job("mail1"))).isTrue();
+
+        assertThat(testee.getMemorySize()).isEqualTo(0);
+        assertThat(testee.getOverflowFiles()).hasSize(1);
+    }
+
+    @Test
+    public void persistShouldReportLostJobsWithoutOverflowDirectory() throws Exception {
+        BackgroundClassificationQueue testee = new BackgroundClassificationQueue(10, Optional.empty(), metrics);
+
+        assertThat(testee.persist(job("mail1"))).isFalse();
+    }
+
+    @Test
+    public void overflowSizeShouldStayAccurateWhileJobsAreOverflowedAndPolled() throws Exception {
+        BackgroundClassificationQueue testee = new BackgroundClassificationQueue(1, Optional.of(overflowDirectory), metrics);
+        int jobCount = 200;
+        AtomicInteger polledCount = new AtomicInteger();
+        AtomicBoolean offering = new AtomicBoolean(true);
+        Thread poller = new Thread(() -> {
+            try {
+                while (offering.get()) {
+                    testee.poll(NO_WAIT).ifPresent(job -> polledCount.incrementAndGet());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        poller.start();
+
+        for (int i = 0; i < jobCount; i++) {
+            testee.offer(job("mail" + i));
+        }
+        offering.set(false);
+        poller.join();
+
+        assertThat(testee.getOverflowSize()).isEqualTo(testee.getOverflowFiles().size());
+        assertThat(polledCount.get() + testee.getMemorySize() + testee.getOverflowSize()).isEqualTo(jobCount);
+    }
+
+    @Test
+    public void jobsShouldSurviveARestart() throws Exception {
+        BackgroundClassificationQueue testee = new BackgroundClassificationQueue(10, Optional.of(overflowDirectory), metrics);
+        testee.offer(job("mail1"));
+        testee.close();
+
+        BackgroundClassificationQueue restarted = new BackgroundClassificationQueue(10, Optional.of(overflowDirectory), metrics);
+
+        assertThat(restarted.getOverflowSize()).isEqualTo(1);
+        assertThat(restarted.poll(NO_WAIT).map(ClassificationJob::getMailName)).contains("mail1");
+    }
+
+    @Test
+    public void pollShouldSetCorruptedJobsAside() throws Exception {
+        Files.createDirectories(overflowDirectory);
+        Files.write(overflowDirectory.resolve("0-0.json"), "{\"mailName\":".getBytes(StandardCharsets.UTF_8));
+        BackgroundClassificationQueue testee = new BackgroundClassificationQueue(10, Optional.of(overflowDirectory), metrics);
+
+        assertThat(testee.poll(NO_WAIT)).isEmpty();
+
+        assertThat(testee.getOverflowFiles()).isEmpty();
+        assertThat(overflowDirectory.resolve("0-0.json.corrupted").toFile()).exists();
+    }
+
+    private ClassificationJob job(String mailName) {
+        return ClassificationJob.builder()
+            .mailName(mailName)
+            .recipients(ImmutableList.of("to@james.org"))
+            .body(ClassificationRequestBody.builder()
+                .messageId(UUID.randomUUID())
+                .from(ImmutableList.of(Emailer.builder().name("From").address("from@james.org").build()))
+                .recipients(Recipients.builder()
+                    .to(ImmutableList.of(Emailer.builder().address("to@james.org").build()))
+                    .build())
+                .subject(ImmutableList.of("my subject"))
+                .textBody("this is my body")
+                .date(Optional.of(Instant.parse("2017-05-24T13:23:11Z")))
+                .build())
+            .build();
+    }
+}
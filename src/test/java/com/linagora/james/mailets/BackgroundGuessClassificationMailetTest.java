@@ -0,0 +1,365 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import static com.linagora.james.mailets.BackgroundGuessClassificationMailet.BACKGROUND_MAX_ATTEMPTS;
+import static com.linagora.james.mailets.BackgroundGuessClassificationMailet.BACKGROUND_OVERFLOW_DIRECTORY;
+import static com.linagora.james.mailets.BackgroundGuessClassificationMailet.BACKGROUND_QUEUE_CAPACITY;
+import static com.linagora.james.mailets.BackgroundGuessClassificationMailet.BACKGROUND_RETRY_DELAY_IN_MS;
+import static com.linagora.james.mailets.BackgroundGuessClassificationMailet.BACKGROUND_WORKERS;
+import static com.linagora.james.mailets.BackgroundGuessClassificationMailet.CLASSIFICATION_SINK;
+import static com.linagora.james.mailets.GuessClassificationMailet.SERVICE_PASSWORD;
+import static com.linagora.james.mailets.GuessClassificationMailet.SERVICE_URL;
+import static com.linagora.james.mailets.GuessClassificationMailet.SERVICE_USERNAME;
+import static com.linagora.james.mailets.GuessClassificationMailet.TIMEOUT_IN_MS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+
+import org.apache.james.core.MailAddress;
+import org.apache.mailet.PerRecipientHeaders;
+import org.apache.mailet.base.test.FakeMail;
+import org.apache.mailet.base.test.FakeMailetConfig;
+import org.apache.mailet.base.test.MimeMessageBuilder;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+import org.mockserver.client.server.MockServerClient;
+import org.mockserver.junit.MockServerRule;
+import org.mockserver.matchers.Times;
+import org.mockserver.model.Delay;
+import org.mockserver.model.HttpRequest;
+import org.mockserver.model.HttpResponse;
+import org.mockserver.verify.VerificationTimes;
+
+import com.jayway.awaitility.Awaitility;
+import com.jayway.awaitility.Duration;
+import com.linagora.james.mailets.json.ClassificationGuess;
+import com.linagora.james.mailets.json.FakeUUIDGenerator;
+
+public class BackgroundGuessClassificationMailetTest {
+
+    private static final String RESPONSE = "{\"results\":" +
+        "{\"to@james.org\":{" +
+        "    \"mailboxId\":\"cfe49390-f391-11e6-88e7-ddd22b16a7b9\"," +
+        "    \"mailboxName\":\"JAMES\"," +
+        "    \"confidence\":50.07615280151367}" +
+        "}," +
+        "\"errors\":{}}";
+
+    @Rule
+    public MockServerRule mockServerRule = new MockServerRule(this);
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private MockServerClient mockServerClient;
+    private BackgroundGuessClassificationMailet testee;
+
+    @After
+    public void tearDown() {
+        if (testee != null) {
+            testee.destroy();
+        }
+    }
+
+    @Test
+    public void initShouldThrowWhenClassificationSinkIsMissing() throws Exception {
+        expectedException.expect(MessagingException.class);
+
+        testee = new BackgroundGuessClassificationMailet();
+        testee.init(config().build());
+    }
+
+    @Test
+    public void initShouldThrowWhenClassificationSinkIsNotASink() throws Exception {
+        expectedException.expect(MessagingException.class);
+
+        testee = new BackgroundGuessClassificationMailet();
+        testee.init(config()
+            .setProperty(CLASSIFICATION_SINK, String.class.getName())
+            .build());
+    }
+
+    @Test
+    public void initShouldInstantiateTheConfiguredClassificationSink() throws Exception {
+        testee = new BackgroundGuessClassificationMailet();
+        testee.init(config()
+            .setProperty(CLASSIFICATION_SINK, InMemoryClassificationSink.class.getName())
+            .build());
+
+        assertThat(testee.getSink()).isInstanceOf(InMemoryClassificationSink.class);
+    }
+
+    @Test
+    public void initShouldThrowWhenBackgroundWorkersIsZero() throws Exception {
+        expectedException.expect(MessagingException.class);
+
+        testee = new BackgroundGuessClassificationMailet(new FakeUUIDGenerator(), new InMemoryClassificationSink());
+        testee.init(config()
+            .setProperty(BACKGROUND_WORKERS, "0")
+            .build());
+    }
+
+    @Test
+    public void serviceShouldNotWaitForTheClassification() throws Exception {
+        mockServerClient
+            .when(HttpRequest.request()
+                    .withMethod("POST")
+                    .withPath("/email/classification/predict"),
+                Times.exactly(1))
+            .respond(HttpResponse.response(RESPONSE)
+                .withDelay(new Delay(TimeUnit.MILLISECONDS, 500)));
+        InMemoryClassificationSink sink = new InMemoryClassificationSink();
+        testee = new BackgroundGuessClassificationMailet(new FakeUUIDGenerator(), sink);
+        testee.init(config().build());
+        FakeMail mail = mail();
+
+        long start = System.currentTimeMillis();
+        testee.service(mail);
+
+        assertThat(System.currentTimeMillis() - start).isLessThan(500);
+        assertThat(mail.getPerRecipientSpecificHeaders()).isEqualTo(new PerRecipientHeaders());
+    }
+
+    @Test
+    public void classificationShouldBeAppliedThroughTheSink() throws Exception {
+        mockServerClient
+            .when(HttpRequest.request()
+                    .withMethod("POST")
+                    .withPath("/email/classification/predict")
+                    .withQueryStringParameter("recipients", "to@james.org"),
+                Times.exactly(1))
+            .respond(HttpResponse.response(RESPONSE));
+        InMemoryClassificationSink sink = new InMemoryClassificationSink();
+        testee = new BackgroundGuessClassificationMailet(new FakeUUIDGenerator(), sink);
+        testee.init(config().build());
+
+        testee.service(mail());
+
+        Awaitility.await()
+            .atMost(Duration.FIVE_SECONDS)
+            .until(() -> sink.getClassificationGuesses("mail1").isPresent());
+        assertThat(sink.getClassificationGuesses("mail1").get())
+            .containsEntry("to@james.org", ClassificationGuess.builder()
+                .mailboxId("cfe49390-f391-11e6-88e7-ddd22b16a7b9")
+                .mailboxName("JAMES")
+                .confidence(50.07615280151367)
+                .build());
+    }
+
+    @Test
+    public void failedClassificationsShouldNotReachTheSink() throws Exception {
+        mockServerClient
+            .when(HttpRequest.request()
+                    .withMethod("POST")
+                    .withPath("/email/classification/predict"),
+                Times.exactly(1))
+            .respond(HttpResponse.response().withStatusCode(500));
+        InMemoryClassificationSink sink = new InMemoryClassificationSink();
+        testee = new BackgroundGuessClassificationMailet(new FakeUUIDGenerator(), sink);
+        testee.init(config()
+            .setProperty(BACKGROUND_MAX_ATTEMPTS, "1")
+            .build());
+
+        testee.service(mail());
+
+        Awaitility.await()
+            .atMost(Duration.FIVE_SECONDS)
+            .until(() -> testee.getQueue().getMemorySize() == 0);
+        Thread.sleep(200);
+        assertThat(sink.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void failedClassificationsShouldBeRetried() throws Exception {
+        HttpRequest classificationRequest = HttpRequest.request()
+            .withMethod("POST")
+            .withPath("/email/classification/predict");
+        mockServerClient
+            .when(classificationRequest, Times.exactly(1))
+            .respond(HttpResponse.response().withStatusCode(500));
+        mockServerClient
+            .when(classificationRequest, Times.exactly(1))
+            .respond(HttpResponse.response(RESPONSE));
+        InMemoryClassificationSink sink = new InMemoryClassificationSink();
+        testee = new BackgroundGuessClassificationMailet(new FakeUUIDGenerator(), sink);
+        testee.init(config()
+            .setProperty(BACKGROUND_RETRY_DELAY_IN_MS, "10")
+            .build());
+
+        testee.service(mail());
+
+        Awaitility.await()
+            .atMost(Duration.FIVE_SECONDS)
+            .until(() -> sink.getClassificationGuesses("mail1").isPresent());
+        mockServerClient.verify(classificationRequest, VerificationTimes.exactly(2));
+    }
+
+    @Test
+    public void failedClassificationsShouldBeGivenUpAfterMaxAttempts() throws Exception {
+        HttpRequest classificationRequest = HttpRequest.request()
+            .withMethod("POST")
+            .withPath("/email/classification/predict");
+        mockServerClient
+            .when(classificationRequest)
+            .respond(HttpResponse.response().withStatusCode(500));
+        InMemoryClassificationSink sink = new InMemoryClassificationSink();
+        testee = new BackgroundGuessClassificationMailet(new FakeUUIDGenerator(), sink);
+        testee.init(config()
+            .setProperty(BACKGROUND_MAX_ATTEMPTS, "3")
+            .setProperty(BACKGROUND_RETRY_DELAY_IN_MS, "10")
+            .build());
+
+        testee.service(mail());
+
+        Thread.sleep(500);
+        mockServerClient.verify(classificationRequest, VerificationTimes.exactly(3));
+        assertThat(sink.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void failedClassificationsShouldNotDelayOtherJobs() throws Exception {
+        HttpRequest classificationRequest = HttpRequest.request()
+            .withMethod("POST")
+            .withPath("/email/classification/predict");
+        mockServerClient
+            .when(classificationRequest, Times.exactly(1))
+            .respond(HttpResponse.response().withStatusCode(500));
+        mockServerClient
+            .when(classificationRequest)
+            .respond(HttpResponse.response(RESPONSE));
+        InMemoryClassificationSink sink = new InMemoryClassificationSink();
+        testee = new BackgroundGuessClassificationMailet(new FakeUUIDGenerator(), sink);
+        testee.init(config()
+            .setProperty(BACKGROUND_WORKERS, "1")
+            .setProperty(BACKGROUND_RETRY_DELAY_IN_MS, "3600000")
+            .build());
+
+        testee.service(mail("mail1"));
+        testee.service(mail("mail2"));
+
+        Awaitility.await()
+            .atMost(Duration.FIVE_SECONDS)
+            .until(() -> sink.getClassificationGuesses("mail2").isPresent());
+        assertThat(sink.getClassificationGuesses("mail1")).isEmpty();
+        assertThat(testee.getQueue().getRetrySize()).isEqualTo(1);
+    }
+
+    @Test
+    public void failingSinksShouldBeRetried() throws Exception {
+        mockServerClient
+            .when(HttpRequest.request()
+                .withMethod("POST")
+                .withPath("/email/classification/predict"))
+            .respond(HttpResponse.response(RESPONSE));
+        InMemoryClassificationSink sink = new InMemoryClassificationSink();
+        AtomicInteger calls = new AtomicInteger();
+        testee = new BackgroundGuessClassificationMailet(new FakeUUIDGenerator(), (job, guesses) -> {
+            if (calls.incrementAndGet() == 1) {
+                throw new MessagingException("mailbox unavailable");
+            }
+            sink.apply(job, guesses);
+        });
+        testee.init(config()
+            .setProperty(BACKGROUND_RETRY_DELAY_IN_MS, "10")
+            .build());
+
+        testee.service(mail());
+
+        Awaitility.await()
+            .atMost(Duration.FIVE_SECONDS)
+            .until(() -> sink.getClassificationGuesses("mail1").isPresent());
+        assertThat(calls.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void initShouldThrowWhenBackgroundMaxAttemptsIsZero() throws Exception {
+        expectedException.expect(MessagingException.class);
+
+        testee = new BackgroundGuessClassificationMailet(new FakeUUIDGenerator(), new InMemoryClassificationSink());
+        testee.init(config()
+            .setProperty(BACKGROUND_MAX_ATTEMPTS, "0")
+            .build());
+    }
+
+    @Test
+    public void queuedJobsShouldBeClassifiedAfterARestart() throws Exception {
+        mockServerClient
+            .when(HttpRequest.request()
+                    .withMethod("POST")
+                    .withPath("/email/classification/predict"))
+            .respond(HttpResponse.response(RESPONSE)
+                .withDelay(new Delay(TimeUnit.MILLISECONDS, 300)));
+        String overflowDirectory = temporaryFolder.getRoot().getAbsolutePath();
+        testee = new BackgroundGuessClassificationMailet(new FakeUUIDGenerator(), new InMemoryClassificationSink());
+        testee.init(config()
+            .setProperty(BACKGROUND_WORKERS, "1")
+            .setProperty(BACKGROUND_QUEUE_CAPACITY, "1")
+            .setProperty(BACKGROUND_OVERFLOW_DIRECTORY, overflowDirectory)
+            .build());
+        testee.service(mail("mail1"));
+        testee.service(mail("mail2"));
+        testee.service(mail("mail3"));
+        testee.destroy();
+
+        InMemoryClassificationSink sink = new InMemoryClassificationSink();
+        testee = new BackgroundGuessClassificationMailet(new FakeUUIDGenerator(), sink);
+        testee.init(config()
+            .setProperty(BACKGROUND_OVERFLOW_DIRECTORY, overflowDirectory)
+            .build());
+
+        Awaitility.await()
+            .atMost(Duration.FIVE_SECONDS)
+            .until(() -> sink.getClassificationGuesses("mail3").isPresent());
+        assertThat(sink.getClassificationGuesses("mail2")).isPresent();
+    }
+
+    private FakeMailetConfig.Builder config() {
+        return FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, "http://localhost:" + mockServerRule.getPort() + "/email/classification/predict")
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(TIMEOUT_IN_MS, "2000");
+    }
+
+    private FakeMail mail() throws Exception {
+        return mail("mail1");
+    }
+
+    private FakeMail mail(String name) throws Exception {
+        return FakeMail.builder()
+            .name(name)
+            .mimeMessage(MimeMessageBuilder.mimeMessageBuilder()
+                .addFrom(new InternetAddress("from@james.org", "From"))
+                .addToRecipient("to@james.org")
+                .setSubject("my subject")
+                .setText("this is my body")
+                .build())
+            .recipients(new MailAddress("to@james.org"))
+            .build();
+    }
+}
@@ -0,0 +1,265 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import com.linagora.james.mailets.CircuitBreaker.State;
+
+public class CircuitBreakerTest {
+
+    private static final long OPEN_DURATION_IN_MS = 1000;
+    private static final long SLOW_CALL_DURATION_IN_MS = 100;
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private FakeClock clock;
+    private CircuitBreaker testee;
+    private List<String> transitions;
+
+    @Before
+    public void setUp() {
+        clock = new FakeClock();
+        testee = CircuitBreaker.builder()
+            .failureRateThreshold(50)
+            .slowCallRateThreshold(80)
+            .slowCallDurationInMs(SLOW_CALL_DURATION_IN_MS)
+            .windowSize(10)
+            .minimumCalls(4)
+            .openDurationInMs(OPEN_DURATION_IN_MS)
+            .halfOpenCalls(2)
+            .clock(clock)
+            .build();
+        transitions = new ArrayList<>();
+        testee.addListener((from, to) -> transitions.add(from + "->" + to));
+    }
+
+    @Test
+    public void buildShouldThrowWhenMinimumCallsExceedsWindowSize() {
+        expectedException.expect(IllegalStateException.class);
+
+        CircuitBreaker.builder()
+            .failureRateThreshold(50)
+            .slowCallRateThreshold(80)
+            .slowCallDurationInMs(SLOW_CALL_DURATION_IN_MS)
+            .windowSize(10)
+            .minimumCalls(11)
+            .openDurationInMs(OPEN_DURATION_IN_MS)
+            .halfOpenCalls(2)
+            .build();
+    }
+
+    @Test
+    public void circuitBreakerShouldBeClosedByDefault() {
+        assertThat(testee.getState()).isEqualTo(State.CLOSED);
+        assertThat(testee.tryAcquirePermission()).isPresent();
+    }
+
+    @Test
+    public void circuitBreakerShouldStayClosedBeforeMinimumCalls() {
+        recordErrors(3);
+
+        assertThat(testee.getState()).isEqualTo(State.CLOSED);
+    }
+
+    @Test
+    public void circuitBreakerShouldStayClosedWhenFailureRateIsBelowThreshold() {
+        recordSuccesses(3);
+        recordErrors(2);
+
+        assertThat(testee.getState()).isEqualTo(State.CLOSED);
+    }
+
+    @Test
+    public void circuitBreakerShouldOpenWhenFailureRateReachesThreshold() {
+        recordSuccesses(2);
+        recordErrors(2);
+
+        assertThat(testee.getState()).isEqualTo(State.OPEN);
+        assertThat(testee.tryAcquirePermission()).isEmpty();
+        assertThat(transitions).containsExactly("CLOSED->OPEN");
+    }
+
+    @Test
+    public void circuitBreakerShouldOpenWhenSlowCallRateReachesThreshold() {
+        for (int i = 0; i < 4; i++) {
+            testee.onSuccess(testee.tryAcquirePermission().get(), SLOW_CALL_DURATION_IN_MS, TimeUnit.MILLISECONDS);
+        }
+
+        assertThat(testee.getState()).isEqualTo(State.OPEN);
+    }
+
+    @Test
+    public void circuitBreakerShouldOnlyConsiderTheLastCallsOfTheWindow() {
+        recordSuccesses(10);
+        recordErrors(4);
+        assertThat(testee.getState()).isEqualTo(State.CLOSED);
+
+        recordErrors(1);
+
+        assertThat(testee.getState()).isEqualTo(State.OPEN);
+    }
+
+    @Test
+    public void circuitBreakerShouldBeHalfOpenAfterOpenDuration() {
+        recordErrors(4);
+
+        clock.advance(OPEN_DURATION_IN_MS);
+
+        assertThat(testee.tryAcquirePermission()).isPresent();
+        assertThat(testee.getState()).isEqualTo(State.HALF_OPEN);
+    }
+
+    @Test
+    public void halfOpenCircuitBreakerShouldOnlyPermitProbeCalls() {
+        recordErrors(4);
+        clock.advance(OPEN_DURATION_IN_MS);
+
+        assertThat(testee.tryAcquirePermission()).isPresent();
+        assertThat(testee.tryAcquirePermission()).isPresent();
+        assertThat(testee.tryAcquirePermission()).isEmpty();
+    }
+
+    @Test
+    public void releasePermissionShouldAllowAnotherProbeCall() {
+        recordErrors(4);
+        clock.advance(OPEN_DURATION_IN_MS);
+        testee.tryAcquirePermission();
+        CircuitBreaker.Permission permission = testee.tryAcquirePermission().get();
+
+        testee.releasePermission(permission);
+
+        assertThat(testee.tryAcquirePermission()).isPresent();
+    }
+
+    @Test
+    public void releasePermissionShouldIgnorePermissionsOfAnOlderGeneration() {
+        CircuitBreaker.Permission closedPermission = testee.tryAcquirePermission().get();
+        recordErrors(4);
+        clock.advance(OPEN_DURATION_IN_MS);
+        testee.tryAcquirePermission();
+        testee.tryAcquirePermission();
+
+        testee.releasePermission(closedPermission);
+
+        assertThat(testee.tryAcquirePermission()).isEmpty();
+    }
+
+    @Test
+    public void halfOpenCircuitBreakerShouldIgnoreOutcomesOfCallsStartedWhileClosed() {
+        CircuitBreaker.Permission closedPermission = testee.tryAcquirePermission().get();
+        recordErrors(4);
+        clock.advance(OPEN_DURATION_IN_MS);
+        CircuitBreaker.Permission probePermission = testee.tryAcquirePermission().get();
+
+        testee.onError(closedPermission, 1, TimeUnit.MILLISECONDS);
+        testee.onSuccess(probePermission, 1, TimeUnit.MILLISECONDS);
+
+        assertThat(testee.getState()).isEqualTo(State.HALF_OPEN);
+        assertThat(transitions).containsExactly("CLOSED->OPEN", "OPEN->HALF_OPEN");
+    }
+
+    @Test
+    public void circuitBreakerShouldIgnoreOutcomesOfCallsStartedBeforeItClosedAgain() {
+        CircuitBreaker.Permission closedPermission = testee.tryAcquirePermission().get();
+        recordErrors(4);
+        clock.advance(OPEN_DURATION_IN_MS);
+        recordSuccesses(2);
+
+        for (int i = 0; i < 4; i++) {
+            testee.onError(closedPermission, 1, TimeUnit.MILLISECONDS);
+        }
+
+        assertThat(testee.getState()).isEqualTo(State.CLOSED);
+    }
+
+    @Test
+    public void halfOpenCircuitBreakerShouldCloseWhenProbesSucceed() {
+        recordErrors(4);
+        clock.advance(OPEN_DURATION_IN_MS);
+
+        recordSuccesses(2);
+
+        assertThat(testee.getState()).isEqualTo(State.CLOSED);
+        assertThat(transitions).containsExactly("CLOSED->OPEN", "OPEN->HALF_OPEN", "HALF_OPEN->CLOSED");
+    }
+
+    @Test
+    public void halfOpenCircuitBreakerShouldOpenAgainWhenProbesFail() {
+        recordErrors(4);
+        clock.advance(OPEN_DURATION_IN_MS);
+
+        recordSuccesses(1);
+        recordErrors(1);
+
+        assertThat(testee.getState()).isEqualTo(State.OPEN);
+        assertThat(testee.tryAcquirePermission()).isEmpty();
+    }
+
+    private void recordSuccesses(int count) {
+        for (int i = 0; i < count; i++) {
+            testee.tryAcquirePermission()
+                .ifPresent(permission -> testee.onSuccess(permission, 1, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    private void recordErrors(int count) {
+        for (int i = 0; i < count; i++) {
+            testee.tryAcquirePermission()
+                .ifPresent(permission -> testee.onError(permission, 1, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    private static class FakeClock extends Clock {
+        private Instant now = Instant.parse("2017-05-24T13:23:11Z");
+
+        void advance(long millis) {
+            now = now.plusMillis(millis);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+}
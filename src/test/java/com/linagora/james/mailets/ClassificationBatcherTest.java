@@ -0,0 +1,176 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.mailet.base.test.FakeMail;
+import org.apache.mailet.base.test.MimeMessageBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import com.github.steveash.guavate.Guavate;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.linagora.james.mailets.json.ClassificationGuess;
+import com.linagora.james.mailets.json.ClassificationGuesses;
+import com.linagora.james.mailets.json.ClassificationRequestBody;
+import com.linagora.james.mailets.json.ClassificationRequestBodySerializer;
+import com.linagora.james.mailets.json.UUIDGenerator;
+
+public class ClassificationBatcherTest {
+
+    private static final long LONG_WINDOW_IN_MS = TimeUnit.MINUTES.toMillis(1);
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private ScheduledExecutorService scheduler;
+    private List<List<ClassificationRequestBody>> sentBatches;
+
+    @Before
+    public void setUp() {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        sentBatches = new CopyOnWriteArrayList<>();
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void submitShouldSendWhenBatchSizeIsReached() throws Exception {
+        ClassificationBatcher testee = new ClassificationBatcher(2, LONG_WINDOW_IN_MS, this::answerWithMessageIdAsMailboxName, scheduler, MoreExecutors.directExecutor());
+
+        CompletableFuture<ClassificationGuesses> first = testee.submit(requestBody("11111111-2d2f-4927-ab98-bd7a2f689773"));
+        CompletableFuture<ClassificationGuesses> second = testee.submit(requestBody("22222222-2d2f-4927-ab98-bd7a2f689773"));
+
+        assertThat(sentBatches).hasSize(1);
+        assertThat(first.get(1, TimeUnit.SECONDS).getResults().get("user@james.org").getMailboxName())
+            .isEqualTo("11111111-2d2f-4927-ab98-bd7a2f689773");
+        assertThat(second.get(1, TimeUnit.SECONDS).getResults().get("user@james.org").getMailboxName())
+            .isEqualTo("22222222-2d2f-4927-ab98-bd7a2f689773");
+    }
+
+    @Test
+    public void submitShouldNotSendBeforeBatchSizeIsReached() throws Exception {
+        ClassificationBatcher testee = new ClassificationBatcher(2, LONG_WINDOW_IN_MS, this::answerWithMessageIdAsMailboxName, scheduler, MoreExecutors.directExecutor());
+
+        CompletableFuture<ClassificationGuesses> result = testee.submit(requestBody("11111111-2d2f-4927-ab98-bd7a2f689773"));
+
+        assertThat(sentBatches).isEmpty();
+        assertThat(result.isDone()).isFalse();
+    }
+
+    @Test
+    public void submitShouldSendWhenWindowElapsed() throws Exception {
+        ClassificationBatcher testee = new ClassificationBatcher(10, 10, this::answerWithMessageIdAsMailboxName, scheduler, MoreExecutors.directExecutor());
+
+        CompletableFuture<ClassificationGuesses> result = testee.submit(requestBody("11111111-2d2f-4927-ab98-bd7a2f689773"));
+
+        assertThat(result.get(1, TimeUnit.SECONDS).getResults().get("user@james.org").getMailboxName())
+            .isEqualTo("11111111-2d2f-4927-ab98-bd7a2f689773");
+        assertThat(sentBatches).hasSize(1);
+    }
+
+    @Test
+    public void flushShouldSendPendingRequests() throws Exception {
+        ClassificationBatcher testee = new ClassificationBatcher(10, LONG_WINDOW_IN_MS, this::answerWithMessageIdAsMailboxName, scheduler, MoreExecutors.directExecutor());
+
+        testee.submit(requestBody("11111111-2d2f-4927-ab98-bd7a2f689773"));
+        testee.submit(requestBody("22222222-2d2f-4927-ab98-bd7a2f689773"));
+        testee.flush();
+
+        assertThat(sentBatches).hasSize(1);
+        assertThat(sentBatches.get(0)).hasSize(2);
+    }
+
+    @Test
+    public void flushShouldNotSendWhenNoPendingRequests() throws Exception {
+        ClassificationBatcher testee = new ClassificationBatcher(10, LONG_WINDOW_IN_MS, this::answerWithMessageIdAsMailboxName, scheduler, MoreExecutors.directExecutor());
+
+        testee.flush();
+
+        assertThat(sentBatches).isEmpty();
+    }
+
+    @Test
+    public void submitShouldFailWhenMessageIdIsMissingFromTheAnswer() throws Exception {
+        ClassificationBatcher testee = new ClassificationBatcher(1, LONG_WINDOW_IN_MS, batch -> ImmutableMap.of(), scheduler, MoreExecutors.directExecutor());
+
+        expectedException.expect(ExecutionException.class);
+
+        testee.submit(requestBody("11111111-2d2f-4927-ab98-bd7a2f689773")).get(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void submitShouldFailAllRequestsOfTheBatchWhenSenderFails() throws Exception {
+        ClassificationBatcher testee = new ClassificationBatcher(2, LONG_WINDOW_IN_MS, batch -> {
+            throw new RuntimeException("classifier is down");
+        }, scheduler, MoreExecutors.directExecutor());
+
+        CompletableFuture<ClassificationGuesses> first = testee.submit(requestBody("11111111-2d2f-4927-ab98-bd7a2f689773"));
+        CompletableFuture<ClassificationGuesses> second = testee.submit(requestBody("22222222-2d2f-4927-ab98-bd7a2f689773"));
+
+        assertThat(first.isCompletedExceptionally()).isTrue();
+        assertThat(second.isCompletedExceptionally()).isTrue();
+    }
+
+    private Map<String, ClassificationGuesses> answerWithMessageIdAsMailboxName(List<ClassificationRequestBody> batch) {
+        sentBatches.add(batch);
+        return batch.stream()
+            .collect(Guavate.toImmutableMap(
+                body -> body.getMessageId().toString(),
+                body -> ClassificationGuesses.builder()
+                    .results(ImmutableMap.of("user@james.org", ClassificationGuess.builder()
+                        .mailboxId("cfe49390-f391-11e6-88e7-ddd22b16a7b9")
+                        .mailboxName(body.getMessageId().toString())
+                        .confidence(50.0)
+                        .build()))
+                    .errors(ImmutableMap.of())
+                    .build()));
+    }
+
+    private ClassificationRequestBody requestBody(String messageId) throws Exception {
+        FakeMail mail = FakeMail.from(MimeMessageBuilder.mimeMessageBuilder()
+            .setSubject("my subject")
+            .setText("this is my body")
+            .build());
+        return new ClassificationRequestBodySerializer(mail, new UUIDGenerator() {
+            @Override
+            public UUID random() {
+                return UUID.fromString(messageId);
+            }
+        }).toRequestBody();
+    }
+}
@@ -0,0 +1,112 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.james.metrics.api.Metric;
+import org.apache.james.metrics.api.MetricFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ClassificationMetricsTest {
+
+    private Map<String, Metric> metrics;
+    private ClassificationMetrics testee;
+
+    @Before
+    public void setUp() {
+        metrics = new HashMap<>();
+        MetricFactory metricFactory = mock(MetricFactory.class);
+        when(metricFactory.generate(anyString()))
+            .thenAnswer(invocation -> metrics.computeIfAbsent((String) invocation.getArguments()[0], name -> mock(Metric.class)));
+        testee = new ClassificationMetrics(metricFactory);
+    }
+
+    @Test
+    public void recordShouldIncrementTheSmallestMatchingBucket() {
+        testee.recordRecipientsPerMail(3);
+
+        verify(metrics.get(ClassificationMetrics.RECIPIENTS_PER_MAIL + "-le-4")).increment();
+        verify(metrics.get(ClassificationMetrics.RECIPIENTS_PER_MAIL + "-le-2"), never()).increment();
+        verify(metrics.get(ClassificationMetrics.RECIPIENTS_PER_MAIL + "-le-8"), never()).increment();
+    }
+
+    @Test
+    public void recordShouldIncludeUpperBound() {
+        testee.recordTextBodyLength(1024);
+
+        verify(metrics.get(ClassificationMetrics.TEXT_BODY_LENGTH + "-le-1024")).increment();
+    }
+
+    @Test
+    public void recordShouldUseFirstBucketForSmallValues() {
+        testee.recordRequestPayloadSize(0);
+
+        verify(metrics.get(ClassificationMetrics.REQUEST_PAYLOAD_SIZE + "-le-1024")).increment();
+    }
+
+    @Test
+    public void recordShouldUseOverflowBucketForLargeValues() {
+        testee.recordRecipientsPerMail(100000);
+
+        verify(metrics.get(ClassificationMetrics.RECIPIENTS_PER_MAIL + "-le-4096"), never()).increment();
+        verify(metrics.get(ClassificationMetrics.RECIPIENTS_PER_MAIL + "-le-inf")).increment();
+    }
+
+    @Test
+    public void onSkippedRecipientsShouldCountEachRecipientAtOnce() {
+        testee.onSkippedRecipients(3);
+
+        verify(metrics.get(ClassificationMetrics.SKIPPED_RECIPIENTS)).add(3);
+        verify(metrics.get(ClassificationMetrics.SKIPPED_RECIPIENTS), never()).increment();
+    }
+
+    @Test
+    public void onSkippedRecipientsShouldNotCountWhenNoneSkipped() {
+        testee.onSkippedRecipients(0);
+
+        verify(metrics.get(ClassificationMetrics.SKIPPED_RECIPIENTS), never()).add(anyInt());
+        verify(metrics.get(ClassificationMetrics.SKIPPED_RECIPIENTS), never()).increment();
+    }
+
+    @Test
+    public void onAffinityContradictionsShouldCountEachContradictionAtOnce() {
+        testee.onAffinityContradictions(2);
+
+        verify(metrics.get(ClassificationMetrics.AFFINITY_CONTRADICTION)).add(2);
+        verify(metrics.get(ClassificationMetrics.AFFINITY_CONTRADICTION), never()).increment();
+    }
+
+    @Test
+    public void onAffinityContradictionsShouldNotCountWhenNoneContradicted() {
+        testee.onAffinityContradictions(0);
+
+        verify(metrics.get(ClassificationMetrics.AFFINITY_CONTRADICTION), never()).add(anyInt());
+        verify(metrics.get(ClassificationMetrics.AFFINITY_CONTRADICTION), never()).increment();
+    }
+}
@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.internet.InternetAddress;
+
+import org.apache.mailet.base.test.FakeMail;
+import org.apache.mailet.base.test.MimeMessageBuilder;
+import org.junit.Test;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.linagora.james.mailets.json.ClassificationRequestBody;
+import com.linagora.james.mailets.json.ClassificationRequestBodySerializer;
+import com.linagora.james.mailets.json.FakeUUIDGenerator;
+
+public class ClassificationRequestEntityTest {
+
+    @Test
+    public void writeToShouldStreamTheSameJsonAsTheStringSerialization() throws Exception {
+        ClassificationRequestBody body = requestBody(Strings.repeat("this is my body ", 1000));
+        ClassificationRequestEntity testee = entity(outputStream -> ClassificationRequestBodySerializer.writeTo(body, outputStream));
+
+        ByteArrayOutputStream sentContent = new ByteArrayOutputStream();
+        testee.writeTo(sentContent);
+
+        assertThat(new String(sentContent.toByteArray(), StandardCharsets.UTF_8))
+            .isEqualTo(ClassificationRequestBodySerializer.toJsonAsString(body));
+    }
+
+    @Test
+    public void writeToShouldStreamBatches() throws Exception {
+        ImmutableList<ClassificationRequestBody> batch = ImmutableList.of(requestBody("first body"), requestBody("second body"));
+        ClassificationRequestEntity testee = entity(outputStream -> ClassificationRequestBodySerializer.writeTo(batch, outputStream));
+
+        ByteArrayOutputStream sentContent = new ByteArrayOutputStream();
+        testee.writeTo(sentContent);
+
+        assertThat(new String(sentContent.toByteArray(), StandardCharsets.UTF_8))
+            .isEqualTo(ClassificationRequestBodySerializer.toJsonAsString(batch));
+    }
+
+    @Test
+    public void writeToShouldNotCloseTheConnectionOutputStream() throws Exception {
+        ClassificationRequestBody body = requestBody("this is my body");
+        ClassificationRequestEntity testee = entity(outputStream -> ClassificationRequestBodySerializer.writeTo(body, outputStream));
+        CloseTrackingOutputStream connectionOutputStream = new CloseTrackingOutputStream();
+
+        testee.writeTo(connectionOutputStream);
+
+        assertThat(connectionOutputStream.closed).isFalse();
+    }
+
+    @Test
+    public void entityShouldBeChunkedAndRepeatable() throws Exception {
+        ClassificationRequestEntity testee = entity(outputStream -> outputStream.write('a'));
+
+        assertThat(testee.isChunked()).isTrue();
+        assertThat(testee.isRepeatable()).isTrue();
+        assertThat(testee.getContentLength()).isEqualTo(-1);
+        assertThat(testee.getContentType().getValue()).isEqualTo(GuessClassificationMailet.JSON_CONTENT_TYPE_UTF8);
+    }
+
+    @Test
+    public void bufferedEntityShouldHaveAContentLength() throws Exception {
+        ClassificationRequestBody body = requestBody("this is my body");
+        ClassificationRequestEntity testee = bufferedEntity(outputStream -> ClassificationRequestBodySerializer.writeTo(body, outputStream));
+
+        assertThat(testee.isChunked()).isFalse();
+        assertThat(testee.isRepeatable()).isTrue();
+        assertThat(testee.getContentLength())
+            .isEqualTo(ClassificationRequestBodySerializer.toJsonAsString(body).getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    @Test
+    public void bufferedEntityShouldWriteTheSameJsonAsTheStringSerialization() throws Exception {
+        ClassificationRequestBody body = requestBody("this is my body");
+        ClassificationRequestEntity testee = bufferedEntity(outputStream -> ClassificationRequestBodySerializer.writeTo(body, outputStream));
+
+        ByteArrayOutputStream sentContent = new ByteArrayOutputStream();
+        testee.writeTo(sentContent);
+
+        assertThat(new String(sentContent.toByteArray(), StandardCharsets.UTF_8))
+            .isEqualTo(ClassificationRequestBodySerializer.toJsonAsString(body));
+        assertThat((long) sentContent.size()).isEqualTo(testee.getContentLength());
+    }
+
+    @Test
+    public void bufferedEntityShouldBeSerializedOnce() throws Exception {
+        AtomicInteger serializations = new AtomicInteger();
+        ClassificationRequestEntity testee = bufferedEntity(outputStream -> {
+            serializations.incrementAndGet();
+            outputStream.write('a');
+        });
+
+        testee.getContentLength();
+        testee.writeTo(new ByteArrayOutputStream());
+        testee.writeTo(new ByteArrayOutputStream());
+
+        assertThat(serializations.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void bufferedEntityShouldFallBackToUnknownLengthWhenSerializationFails() throws Exception {
+        ClassificationRequestEntity testee = bufferedEntity(outputStream -> {
+            throw new IOException("serialization failure");
+        });
+
+        assertThat(testee.getContentLength()).isEqualTo(-1);
+    }
+
+    private ClassificationRequestEntity bufferedEntity(ClassificationRequestEntity.ContentWriter contentWriter) {
+        return new ClassificationRequestEntity(contentWriter, RequestCompression.Algorithm.NONE, (uncompressed, written) -> { }, false);
+    }
+
+    private ClassificationRequestEntity entity(ClassificationRequestEntity.ContentWriter contentWriter) {
+        return new ClassificationRequestEntity(contentWriter, RequestCompression.Algorithm.NONE, (uncompressed, written) -> { });
+    }
+
+    private ClassificationRequestBody requestBody(String textBody) throws Exception {
+        FakeMail mail = FakeMail.from(MimeMessageBuilder.mimeMessageBuilder()
+            .addFrom(new InternetAddress("from@james.org", "From"))
+            .addToRecipient("to@james.org")
+            .setSubject("my subject")
+            .setText(textBody)
+            .build());
+        return new ClassificationRequestBodySerializer(mail, new FakeUUIDGenerator()).toRequestBody();
+    }
+
+    private static class CloseTrackingOutputStream extends ByteArrayOutputStream {
+        private boolean closed;
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            super.close();
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.internet.InternetAddress;
+
+import org.apache.james.core.MailAddress;
+import org.apache.mailet.base.test.FakeMail;
+import org.apache.mailet.base.test.MimeMessageBuilder;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import com.linagora.james.mailets.json.ClassificationGuess;
+import com.linagora.james.mailets.json.ClassificationRequestBody;
+import com.linagora.james.mailets.json.ClassificationRequestBodySerializer;
+import com.linagora.james.mailets.json.UUIDGenerator;
+
+public class ClassificationResultCacheTest {
+
+    private static final long MAX_WEIGHT_IN_BYTES = 1024 * 1024;
+    private static final long TTL_IN_MS = TimeUnit.HOURS.toMillis(1);
+    private static final Map<String, ClassificationGuess> GUESSES = ImmutableMap.of("user@james.org",
+        ClassificationGuess.builder()
+            .mailboxId("cfe49390-f391-11e6-88e7-ddd22b16a7b9")
+            .mailboxName("JAMES")
+            .confidence(50.0)
+            .build());
+    private static final HashCode FINGERPRINT = HashCode.fromInt(42);
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private ClassificationResultCache testee;
+    private AtomicInteger loadCount;
+
+    @Before
+    public void setUp() {
+        testee = new ClassificationResultCache(MAX_WEIGHT_IN_BYTES, TTL_IN_MS);
+        loadCount = new AtomicInteger();
+    }
+
+    @Test
+    public void getShouldLoadOnMiss() throws Exception {
+        Map<String, ClassificationGuess> result = testee.get(FINGERPRINT, countingLoader(GUESSES)).get();
+
+        assertThat(result).isEqualTo(GUESSES);
+        assertThat(loadCount.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void getShouldNotLoadOnHit() throws Exception {
+        testee.get(FINGERPRINT, countingLoader(GUESSES)).get();
+
+        Map<String, ClassificationGuess> result = testee.get(FINGERPRINT, countingLoader(GUESSES)).get();
+
+        assertThat(result).isEqualTo(GUESSES);
+        assertThat(loadCount.get()).isEqualTo(1);
+        assertThat(testee.getStats().hitCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void getShouldShareInFlightCallsOfTheSameFingerprint() throws Exception {
+        CompletableFuture<Map<String, ClassificationGuess>> pendingCall = new CompletableFuture<>();
+        ClassificationResultCache.Loader loader = () -> {
+            loadCount.incrementAndGet();
+            return pendingCall;
+        };
+
+        CompletableFuture<Map<String, ClassificationGuess>> first = testee.get(FINGERPRINT, loader);
+        CompletableFuture<Map<String, ClassificationGuess>> second = testee.get(FINGERPRINT, loader);
+        pendingCall.complete(GUESSES);
+
+        assertThat(first.get()).isEqualTo(GUESSES);
+        assertThat(second.get()).isEqualTo(GUESSES);
+        assertThat(loadCount.get()).isEqualTo(1);
+        assertThat(testee.getCoalescedCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void getShouldNotCacheFailures() throws Exception {
+        CompletableFuture<Map<String, ClassificationGuess>> failedCall = new CompletableFuture<>();
+        failedCall.completeExceptionally(new RuntimeException("classifier is down"));
+        assertThat(testee.get(FINGERPRINT, () -> failedCall).isCompletedExceptionally()).isTrue();
+
+        Map<String, ClassificationGuess> result = testee.get(FINGERPRINT, countingLoader(GUESSES)).get();
+
+        assertThat(result).isEqualTo(GUESSES);
+        assertThat(loadCount.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void getShouldFailWhenLoaderThrows() throws Exception {
+        expectedException.expect(ExecutionException.class);
+
+        testee.get(FINGERPRINT, () -> {
+            throw new RuntimeException("classifier is down");
+        }).get();
+    }
+
+    @Test
+    public void getShouldNotCacheEmptyResults() throws Exception {
+        testee.get(FINGERPRINT, countingLoader(ImmutableMap.of())).get();
+
+        testee.get(FINGERPRINT, countingLoader(ImmutableMap.of())).get();
+
+        assertThat(loadCount.get()).isEqualTo(2);
+        assertThat(testee.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void onModelVersionShouldNotInvalidateWhenFirstSeen() throws Exception {
+        testee.get(FINGERPRINT, countingLoader(GUESSES)).get();
+
+        testee.onModelVersion("1");
+
+        assertThat(testee.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void onModelVersionShouldNotInvalidateWhenUnchanged() throws Exception {
+        testee.onModelVersion("1");
+        testee.get(FINGERPRINT, countingLoader(GUESSES)).get();
+
+        testee.onModelVersion("1");
+
+        assertThat(testee.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void onModelVersionShouldInvalidateWhenChanged() throws Exception {
+        testee.onModelVersion("1");
+        testee.get(FINGERPRINT, countingLoader(GUESSES)).get();
+
+        testee.onModelVersion("2");
+
+        assertThat(testee.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void getShouldNotCacheResultsLoadedBeforeAnInvalidation() throws Exception {
+        CompletableFuture<Map<String, ClassificationGuess>> pendingCall = new CompletableFuture<>();
+        CompletableFuture<Map<String, ClassificationGuess>> result = testee.get(FINGERPRINT, () -> pendingCall);
+
+        testee.invalidateAll();
+        pendingCall.complete(GUESSES);
+
+        assertThat(result.get()).isEqualTo(GUESSES);
+        assertThat(testee.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void getShouldEvictWhenMaxWeightIsExceeded() throws Exception {
+        ClassificationResultCache smallCache = new ClassificationResultCache(1, TTL_IN_MS);
+
+        smallCache.get(FINGERPRINT, countingLoader(GUESSES)).get();
+
+        assertThat(smallCache.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void fingerprintShouldBeEqualForIdenticalContent() throws Exception {
+        ImmutableList<MailAddress> recipients = ImmutableList.of(new MailAddress("user@james.org"));
+
+        assertThat(ClassificationResultCache.fingerprint(requestBody("my subject", "this is my body"), recipients))
+            .isEqualTo(ClassificationResultCache.fingerprint(requestBody("my subject", "this is my body"), recipients));
+    }
+
+    @Test
+    public void fingerprintShouldIgnoreMessageId() throws Exception {
+        ImmutableList<MailAddress> recipients = ImmutableList.of(new MailAddress("user@james.org"));
+
+        assertThat(ClassificationResultCache.fingerprint(requestBody("my subject", "this is my body", UUID.randomUUID()), recipients))
+            .isEqualTo(ClassificationResultCache.fingerprint(requestBody("my subject", "this is my body", UUID.randomUUID()), recipients));
+    }
+
+    @Test
+    public void fingerprintShouldDifferWhenTextBodyDiffers() throws Exception {
+        ImmutableList<MailAddress> recipients = ImmutableList.of(new MailAddress("user@james.org"));
+
+        assertThat(ClassificationResultCache.fingerprint(requestBody("my subject", "this is my body"), recipients))
+            .isNotEqualTo(ClassificationResultCache.fingerprint(requestBody("my subject", "this is another body"), recipients));
+    }
+
+    @Test
+    public void fingerprintShouldNotBeAmbiguousBetweenFields() throws Exception {
+        ImmutableList<MailAddress> recipients = ImmutableList.of(new MailAddress("user@james.org"));
+
+        assertThat(ClassificationResultCache.fingerprint(requestBody("ab", "c"), recipients))
+            .isNotEqualTo(ClassificationResultCache.fingerprint(requestBody("a", "bc"), recipients));
+    }
+
+    @Test
+    public void fingerprintShouldDifferWhenMailRecipientsDiffer() throws Exception {
+        ClassificationRequestBody body = requestBody("my subject", "this is my body");
+
+        assertThat(ClassificationResultCache.fingerprint(body, ImmutableList.of(new MailAddress("user@james.org"))))
+            .isNotEqualTo(ClassificationResultCache.fingerprint(body, ImmutableList.of(new MailAddress("other@james.org"))));
+    }
+
+    private ClassificationResultCache.Loader countingLoader(Map<String, ClassificationGuess> result) {
+        return () -> {
+            loadCount.incrementAndGet();
+            return CompletableFuture.completedFuture(result);
+        };
+    }
+
+    private ClassificationRequestBody requestBody(String subject, String textBody) throws Exception {
+        return requestBody(subject, textBody, UUID.fromString("524e4f85-2d2f-4927-ab98-bd7a2f689773"));
+    }
+
+    private ClassificationRequestBody requestBody(String subject, String textBody, UUID messageId) throws Exception {
+        FakeMail mail = FakeMail.from(MimeMessageBuilder.mimeMessageBuilder()
+            .addFrom(new InternetAddress("from@james.org", "From"))
+            .addToRecipient("to@james.org")
+            .setSubject(subject)
+            .setText(textBody)
+            .build());
+        return new ClassificationRequestBodySerializer(mail, new UUIDGenerator() {
+            @Override
+            public UUID random() {
+                return messageId;
+            }
+        }).toRequestBody();
+    }
+}
@@ -0,0 +1,118 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.james.metrics.api.MetricFactory;
+import org.apache.james.metrics.api.TimeMetric;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+
+public class ClassificationTraceTest {
+
+    static class FakeTicker extends Ticker {
+        private long nanos;
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+
+        void advance(long duration, TimeUnit unit) {
+            nanos += unit.toNanos(duration);
+        }
+    }
+
+    private MetricFactory metricFactory;
+    private TimeMetric timeMetric;
+    private FakeTicker ticker;
+    private ClassificationTrace testee;
+
+    @Before
+    public void setUp() {
+        metricFactory = mock(MetricFactory.class);
+        timeMetric = mock(TimeMetric.class);
+        when(metricFactory.timer(ClassificationMetrics.HTTP_ROUND_TRIP)).thenReturn(timeMetric);
+        when(metricFactory.timer(ClassificationMetrics.MIME_EXTRACTION)).thenReturn(mock(TimeMetric.class));
+        ticker = new FakeTicker();
+        testee = new ClassificationTrace(metricFactory, ticker);
+    }
+
+    @Test
+    public void timerShouldPublishToTheUnderlyingMetricFactory() {
+        testee.timer(ClassificationMetrics.HTTP_ROUND_TRIP).stopAndPublish();
+
+        verify(timeMetric).stopAndPublish();
+    }
+
+    @Test
+    public void getDurationsInMsShouldBeEmptyWhenNoPhaseRan() {
+        assertThat(testee.getDurationsInMs()).isEmpty();
+    }
+
+    @Test
+    public void getDurationsInMsShouldRecordPhaseDurations() {
+        TimeMetric timer = testee.timer(ClassificationMetrics.HTTP_ROUND_TRIP);
+        ticker.advance(42, TimeUnit.MILLISECONDS);
+        timer.stopAndPublish();
+
+        assertThat(testee.getDurationsInMs()).containsOnly(entry("httpRoundTrip", 42L));
+    }
+
+    @Test
+    public void getDurationsInMsShouldSumRepeatedPhases() {
+        TimeMetric first = testee.timer(ClassificationMetrics.HTTP_ROUND_TRIP);
+        TimeMetric second = testee.timer(ClassificationMetrics.HTTP_ROUND_TRIP);
+        ticker.advance(10, TimeUnit.MILLISECONDS);
+        first.stopAndPublish();
+        ticker.advance(5, TimeUnit.MILLISECONDS);
+        second.stopAndPublish();
+
+        assertThat(testee.getDurationsInMs()).containsOnly(entry("httpRoundTrip", 25L));
+    }
+
+    @Test
+    public void getDurationsInMsShouldFollowPhaseOrder() {
+        testee.timer(ClassificationMetrics.HTTP_ROUND_TRIP).stopAndPublish();
+        testee.timer(ClassificationMetrics.MIME_EXTRACTION).stopAndPublish();
+
+        assertThat(testee.getDurationsInMs().keySet()).containsExactly("mimeExtraction", "httpRoundTrip");
+    }
+
+    @Test
+    public void elapsedShouldBeMeasuredFromCreation() {
+        ticker.advance(3, TimeUnit.SECONDS);
+
+        assertThat(testee.elapsed(TimeUnit.MILLISECONDS)).isEqualTo(3000);
+    }
+
+    @Test
+    public void getTextBodyLengthShouldBeNegativeWhenNotRecorded() {
+        assertThat(testee.getTextBodyLength()).isEqualTo(-1);
+    }
+}
@@ -0,0 +1,168 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import com.linagora.james.mailets.ClassificationTraceTest.FakeTicker;
+
+public class EndpointHealthTest {
+
+    private static final int CONSECUTIVE_FAILURES_TO_EJECT = 2;
+    private static final long EJECTION_DURATION_IN_MS = 1000;
+    private static final long SLOW_START_IN_MS = 1000;
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private FakeTicker ticker;
+    private EndpointHealth testee;
+
+    @Before
+    public void setUp() {
+        ticker = new FakeTicker();
+        testee = new EndpointHealth(CONSECUTIVE_FAILURES_TO_EJECT, EJECTION_DURATION_IN_MS, SLOW_START_IN_MS, ticker);
+    }
+
+    @Test
+    public void constructorShouldThrowWhenConsecutiveFailuresToEjectIsZero() {
+        expectedException.expect(IllegalArgumentException.class);
+
+        new EndpointHealth(0, EJECTION_DURATION_IN_MS, SLOW_START_IN_MS, ticker);
+    }
+
+    @Test
+    public void endpointShouldBeAvailableWithFullWeightInitially() {
+        assertThat(testee.isAvailable()).isTrue();
+        assertThat(testee.weight()).isEqualTo(1);
+    }
+
+    @Test
+    public void onFailureShouldNotEjectBeforeConsecutiveFailuresThreshold() {
+        boolean ejected = testee.onFailure();
+
+        assertThat(ejected).isFalse();
+        assertThat(testee.isAvailable()).isTrue();
+    }
+
+    @Test
+    public void onFailureShouldEjectAfterConsecutiveFailures() {
+        testee.onFailure();
+        boolean ejected = testee.onFailure();
+
+        assertThat(ejected).isTrue();
+        assertThat(testee.isAvailable()).isFalse();
+        assertThat(testee.weight()).isEqualTo(0);
+        assertThat(testee.getEjectionCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void onSuccessShouldResetConsecutiveFailures() {
+        testee.onFailure();
+        testee.onSuccess();
+        testee.onFailure();
+
+        assertThat(testee.isAvailable()).isTrue();
+    }
+
+    @Test
+    public void onFailureShouldBeIgnoredWhileEjected() {
+        testee.onFailure();
+        testee.onFailure();
+
+        assertThat(testee.onFailure()).isFalse();
+        assertThat(testee.getEjectionCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void endpointShouldBeReadmittedWithMinimalWeightAfterEjectionDuration() {
+        testee.onFailure();
+        testee.onFailure();
+
+        ticker.advance(EJECTION_DURATION_IN_MS, TimeUnit.MILLISECONDS);
+
+        assertThat(testee.isAvailable()).isTrue();
+        assertThat(testee.weight()).isEqualTo(EndpointHealth.MIN_WEIGHT);
+    }
+
+    @Test
+    public void weightShouldGrowDuringSlowStart() {
+        testee.onFailure();
+        testee.onFailure();
+
+        ticker.advance(EJECTION_DURATION_IN_MS + SLOW_START_IN_MS / 2, TimeUnit.MILLISECONDS);
+
+        assertThat(testee.weight()).isEqualTo(0.5);
+    }
+
+    @Test
+    public void weightShouldBeFullAfterSlowStart() {
+        testee.onFailure();
+        testee.onFailure();
+
+        ticker.advance(EJECTION_DURATION_IN_MS + SLOW_START_IN_MS, TimeUnit.MILLISECONDS);
+
+        assertThat(testee.weight()).isEqualTo(1);
+    }
+
+    @Test
+    public void failedHealthCheckShouldEjectUntilHealthCheckSucceeds() {
+        boolean changed = testee.onHealthCheck(false);
+        ticker.advance(1, TimeUnit.HOURS);
+
+        assertThat(changed).isTrue();
+        assertThat(testee.isAvailable()).isFalse();
+        assertThat(testee.getEjectionCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void successfulHealthCheckShouldReadmitWithSlowStart() {
+        testee.onHealthCheck(false);
+
+        boolean changed = testee.onHealthCheck(true);
+
+        assertThat(changed).isTrue();
+        assertThat(testee.isAvailable()).isTrue();
+        assertThat(testee.weight()).isEqualTo(EndpointHealth.MIN_WEIGHT);
+    }
+
+    @Test
+    public void successfulHealthCheckShouldNotChangeHealthyEndpoint() {
+        assertThat(testee.onHealthCheck(true)).isFalse();
+        assertThat(testee.weight()).isEqualTo(1);
+    }
+
+    @Test
+    public void successfulHealthCheckShouldNotShortenPassiveEjection() {
+        testee.onFailure();
+        testee.onFailure();
+        testee.onHealthCheck(false);
+
+        testee.onHealthCheck(true);
+
+        assertThat(testee.isAvailable()).isFalse();
+    }
+}
@@ -0,0 +1,138 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.http.HttpHost;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.james.metrics.api.NoopMetricFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import com.google.common.collect.ImmutableList;
+
+public class EndpointSelectorTest {
+
+    private static final int SELECTION_COUNT = 100;
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private ServiceEndpoint first;
+    private ServiceEndpoint second;
+    private EndpointSelector testee;
+
+    @Before
+    public void setUp() {
+        first = endpoint("classifier1");
+        second = endpoint("classifier2");
+        testee = new EndpointSelector(ImmutableList.of(first, second));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        testee.close();
+    }
+
+    @Test
+    public void constructorShouldThrowWithoutEndpoints() {
+        expectedException.expect(IllegalArgumentException.class);
+
+        new EndpointSelector(ImmutableList.of());
+    }
+
+    @Test
+    public void selectShouldUseAllEndpoints() {
+        Set<ServiceEndpoint> selected = new HashSet<>();
+        for (int i = 0; i < SELECTION_COUNT; i++) {
+            selected.add(testee.select());
+        }
+
+        assertThat(selected).containsOnly(first, second);
+    }
+
+    @Test
+    public void selectShouldPreferTheEndpointWithFewerOutstandingRequests() {
+        first.onRequest();
+
+        for (int i = 0; i < SELECTION_COUNT; i++) {
+            assertThat(testee.select()).isEqualTo(second);
+        }
+    }
+
+    @Test
+    public void selectShouldSkipEjectedEndpoints() {
+        second.onHealthCheck(false);
+
+        for (int i = 0; i < SELECTION_COUNT; i++) {
+            assertThat(testee.select()).isEqualTo(first);
+        }
+    }
+
+    @Test
+    public void selectShouldConsiderAllEndpointsWhenNoneIsAvailable() {
+        first.onHealthCheck(false);
+        second.onHealthCheck(false);
+
+        assertThat(testee.select()).isIn(first, second);
+    }
+
+    @Test
+    public void onResponseShouldReleaseOutstandingRequest() {
+        first.onResponse(first.onRequest(), false);
+
+        assertThat(first.getOutstandingRequests()).isEqualTo(0);
+        assertThat(first.getRequestCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void onResponseShouldEjectAfterConsecutiveFailures() {
+        for (int i = 0; i < GuessClassificationMailet.DEFAULT_ENDPOINT_EJECTION_CONSECUTIVE_FAILURES; i++) {
+            first.onResponse(first.onRequest(), true);
+        }
+
+        assertThat(first.isAvailable()).isFalse();
+        assertThat(first.getFailureCount()).isEqualTo(GuessClassificationMailet.DEFAULT_ENDPOINT_EJECTION_CONSECUTIVE_FAILURES);
+    }
+
+    @Test
+    public void getConnectionPoolStatsShouldSumEndpointPools() {
+        assertThat(testee.getConnectionPoolStats().getMax())
+            .isEqualTo(first.getConnectionPoolStats().getMax() + second.getConnectionPoolStats().getMax());
+    }
+
+    private ServiceEndpoint endpoint(String hostName) {
+        return new ServiceEndpoint("http://" + hostName + ":9000/email/classification/predict",
+            new HttpHost(hostName, 9000),
+            new PoolingHttpClientConnectionManager(),
+            HttpClients.createMinimal(),
+            new EndpointHealth(GuessClassificationMailet.DEFAULT_ENDPOINT_EJECTION_CONSECUTIVE_FAILURES,
+                GuessClassificationMailet.DEFAULT_ENDPOINT_EJECTION_DURATION_IN_MS,
+                GuessClassificationMailet.DEFAULT_ENDPOINT_SLOW_START_IN_MS),
+            new NoopMetricFactory());
+    }
+}
@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+package com.linagora.james.mailets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.linagora.james.mailets.ClassificationTraceTest.FakeTicker;
+import com.linagora.james.mailets.json.FeatureHasher;
+
+public class FeaturePayloadTest {
+
+    private FakeTicker ticker;
+    private FeaturePayload testee;
+
+    @Before
+    public void setUp() {
+        ticker = new FakeTicker();
+        testee = new FeaturePayload(new FeatureHasher(1024), TimeUnit.MINUTES.toMillis(1), ticker);
+    }
+
+    @Test
+    public void featuresShouldBeAcceptedInitially() {
+        assertThat(testee.isAccepted()).isTrue();
+    }
+
+    @Test
+    public void featuresShouldNotBeAcceptedAfterRejection() {
+        testee.onRejected();
+
+        assertThat(testee.isAccepted()).isFalse();
+        assertThat(testee.getRejectionCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void featuresShouldBeTriedAgainAfterRetryInterval() {
+        testee.onRejected();
+
+        ticker.advance(1, TimeUnit.MINUTES);
+
+        assertThat(testee.isAccepted()).isTrue();
+    }
+
+    @Test
+    public void featuresShouldNotBeTriedAgainBeforeRetryInterval() {
+        testee.onRejected();
+
+        ticker.advance(59, TimeUnit.SECONDS);
+
+        assertThat(testee.isAccepted()).isFalse();
+    }
+
+    @Test
+    public void acceptanceShouldResetRejection() {
+        testee.onRejected();
+
+        testee.onAccepted();
+
+        assertThat(testee.isAccepted()).isTrue();
+    }
+
+    @Test
+    public void parseShouldBeCaseInsensitive() {
+        assertThat(FeaturePayload.Mode.parse(" Features ")).contains(FeaturePayload.Mode.FEATURES);
+    }
+
+    @Test
+    public void parseShouldReturnEmptyWhenUnknown() {
+        assertThat(FeaturePayload.Mode.parse("embeddings")).isEmpty();
+    }
+}
@@ -17,30 +17,93 @@
  *******************************************************************************/
 package com.linagora.james.mailets;
 
+import static com.linagora.james.mailets.GuessClassificationMailet.AFFINITY_MAX_ENTRIES;
+import static com.linagora.james.mailets.GuessClassificationMailet.AFFINITY_MIN_CONFIDENCE;
+import static com.linagora.james.mailets.GuessClassificationMailet.AFFINITY_MIN_HIT_STREAK;
+import static com.linagora.james.mailets.GuessClassificationMailet.AFFINITY_VERIFICATION_PERCENTAGE;
+import static com.linagora.james.mailets.GuessClassificationMailet.ADMISSION_WAIT_IN_MS;
+import static com.linagora.james.mailets.GuessClassificationMailet.BATCH_SERVICE_URL;
+import static com.linagora.james.mailets.GuessClassificationMailet.CACHE_MAX_WEIGHT_IN_BYTES;
+import static com.linagora.james.mailets.GuessClassificationMailet.BATCH_SIZE;
+import static com.linagora.james.mailets.GuessClassificationMailet.BATCH_WINDOW_IN_MS;
+import static com.linagora.james.mailets.GuessClassificationMailet.CIRCUIT_BREAKER_ENABLED;
+import static com.linagora.james.mailets.GuessClassificationMailet.CIRCUIT_BREAKER_FAILURE_RATE_THRESHOLD;
+import static com.linagora.james.mailets.GuessClassificationMailet.CIRCUIT_BREAKER_MINIMUM_CALLS;
+import static com.linagora.james.mailets.GuessClassificationMailet.CIRCUIT_BREAKER_WINDOW_SIZE;
+import static com.linagora.james.mailets.GuessClassificationMailet.CONNECTION_REQUEST_TIMEOUT_IN_MS;
+import static com.linagora.james.mailets.GuessClassificationMailet.CONNECTION_TTL_IN_MS;
+import static com.linagora.james.mailets.GuessClassificationMailet.DEFAULT_ADMISSION_WAIT_IN_MS;
+import static com.linagora.james.mailets.GuessClassificationMailet.DEFAULT_BATCH_SIZE;
+import static com.linagora.james.mailets.GuessClassificationMailet.DEFAULT_BATCH_WINDOW_IN_MS;
+import static com.linagora.james.mailets.GuessClassificationMailet.DEFAULT_KEEP_ALIVE_IN_MS;
+import static com.linagora.james.mailets.GuessClassificationMailet.DEFAULT_MAX_CONNECTIONS;
+import static com.linagora.james.mailets.GuessClassificationMailet.DEFAULT_TIME;
+import static com.linagora.james.mailets.GuessClassificationMailet.DOWNGRADED_TEXT_BODY_LENGTH;
+import static com.linagora.james.mailets.GuessClassificationMailet.ENDPOINT_EJECTION_CONSECUTIVE_FAILURES;
+import static com.linagora.james.mailets.GuessClassificationMailet.FEATURE_DIMENSION;
 import static com.linagora.james.mailets.GuessClassificationMailet.HEADER_NAME;
+import static com.linagora.james.mailets.GuessClassificationMailet.HEDGE_BUDGET_PERCENTAGE;
+import static com.linagora.james.mailets.GuessClassificationMailet.HEDGE_DELAY_IN_MS;
+import static com.linagora.james.mailets.GuessClassificationMailet.HEDGING;
 import static com.linagora.james.mailets.GuessClassificationMailet.HEADER_NAME_DEFAULT_VALUE;
+import static com.linagora.james.mailets.GuessClassificationMailet.HEALTH_CHECK_INTERVAL_IN_MS;
+import static com.linagora.james.mailets.GuessClassificationMailet.HEALTH_CHECK_PATH;
+import static com.linagora.james.mailets.GuessClassificationMailet.HTML_TEXT_EXTRACTOR;
+import static com.linagora.james.mailets.GuessClassificationMailet.HTTP2_MAX_CONNECTIONS_PER_ENDPOINT;
 import static com.linagora.james.mailets.GuessClassificationMailet.JSON_CONTENT_TYPE_UTF8;
+import static com.linagora.james.mailets.GuessClassificationMailet.KEEP_ALIVE_IN_MS;
+import static com.linagora.james.mailets.GuessClassificationMailet.MAX_CONNECTIONS;
+import static com.linagora.james.mailets.GuessClassificationMailet.MAX_CONNECTIONS_PER_ROUTE;
+import static com.linagora.james.mailets.GuessClassificationMailet.MAX_IDLE_TIME_IN_MS;
+import static com.linagora.james.mailets.GuessClassificationMailet.MAX_IN_FLIGHT_BYTES;
+import static com.linagora.james.mailets.GuessClassificationMailet.MAX_TEXT_BODY_LENGTH;
+import static com.linagora.james.mailets.GuessClassificationMailet.MODEL_VERSION_HEADER;
+import static com.linagora.james.mailets.GuessClassificationMailet.ONLY_LOCAL_RECIPIENTS;
+import static com.linagora.james.mailets.GuessClassificationMailet.RECIPIENTS_IN_BODY;
+import static com.linagora.james.mailets.GuessClassificationMailet.RECIPIENT_CHUNK_SIZE;
+import static com.linagora.james.mailets.GuessClassificationMailet.REQUEST_CHUNKING_THRESHOLD_IN_BYTES;
+import static com.linagora.james.mailets.GuessClassificationMailet.REQUEST_COMPRESSION;
+import static com.linagora.james.mailets.GuessClassificationMailet.REQUEST_COMPRESSION_THRESHOLD_IN_BYTES;
+import static com.linagora.james.mailets.GuessClassificationMailet.REQUEST_PAYLOAD;
 import static com.linagora.james.mailets.GuessClassificationMailet.SERVICE_PASSWORD;
 import static com.linagora.james.mailets.GuessClassificationMailet.SERVICE_URL;
 import static com.linagora.james.mailets.GuessClassificationMailet.SERVICE_USERNAME;
+import static com.linagora.james.mailets.GuessClassificationMailet.SLOW_CLASSIFICATION_ATTRIBUTE;
+import static com.linagora.james.mailets.GuessClassificationMailet.SLOW_CLASSIFICATION_THRESHOLD_IN_MS;
 import static com.linagora.james.mailets.GuessClassificationMailet.THREAD_COUNT;
 import static com.linagora.james.mailets.GuessClassificationMailet.TIMEOUT_IN_MS;
+import static com.linagora.james.mailets.GuessClassificationMailet.TRANSPORT;
+import static com.linagora.james.mailets.GuessClassificationMailet.WIRE_FORMAT;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.startsWith;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import javax.mail.MessagingException;
 import javax.mail.Session;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
 
+import org.apache.http.HttpHost;
+import org.apache.james.metrics.api.Metric;
+import org.apache.james.metrics.api.MetricFactory;
+import org.apache.james.metrics.api.TimeMetric;
 import org.apache.mailet.Mail;
 import org.apache.mailet.MailAddress;
+import org.apache.mailet.MailetContext;
 import org.apache.mailet.MailetException;
 import org.apache.mailet.PerRecipientHeaders;
 import org.apache.mailet.base.test.FakeMail;
@@ -52,15 +115,30 @@ import org.junit.rules.ExpectedException;
 import org.mockserver.client.server.MockServerClient;
 import org.mockserver.junit.MockServerRule;
 import org.mockserver.matchers.Times;
+import org.mockserver.model.BinaryBody;
+import org.mockserver.model.Delay;
 import org.mockserver.model.HttpCallback;
 import org.mockserver.model.HttpRequest;
 import org.mockserver.model.HttpResponse;
 import org.mockserver.model.Parameter;
 import org.mockserver.model.StringBody;
+import org.mockserver.verify.VerificationTimes;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Charsets;
 import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.jayway.awaitility.Awaitility;
+import com.jayway.awaitility.Duration;
+import com.linagora.james.mailets.json.ClassificationGuess;
+import com.linagora.james.mailets.json.ClassificationRequestBody;
+import com.linagora.james.mailets.json.Emailer;
 import com.linagora.james.mailets.json.FakeUUIDGenerator;
+import com.linagora.james.mailets.json.FeatureHasher;
+import com.linagora.james.mailets.json.HtmlTextExtractorType;
+import com.linagora.james.mailets.json.Recipients;
+import com.linagora.james.mailets.json.WireFormat;
 
 import ch.qos.logback.classic.Logger;
 import ch.qos.logback.classic.spi.ILoggingEvent;
@@ -68,6 +146,14 @@ import ch.qos.logback.core.AppenderBase;
 
 public class GuessClassificationMailetTest {
 
+    private static final String CLASSIFICATION_RESPONSE = "{\"results\":" +
+        "{\"user@james.org\":{" +
+        "    \"mailboxId\":\"cfe49390-f391-11e6-88e7-ddd22b16a7b9\"," +
+        "    \"mailboxName\":\"JAMES\"," +
+        "    \"confidence\":50.07615280151367}" +
+        "}," +
+        "\"errors\":{}}";
+
     public static final String VALID_SERVICE_URL = "https://service.linagora.com";
     @Rule
     public ExpectedException expectedException = ExpectedException.none();
@@ -353,6 +439,151 @@ public class GuessClassificationMailetTest {
         assertThat(testee.timeoutInMs).contains(timeout);
     }
 
+    @Test
+    public void initShouldThrowWhenMaxConnectionsIsZero() throws Exception {
+        expectedException.expect(MessagingException.class);
+
+        FakeMailetConfig config = FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, VALID_SERVICE_URL)
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(MAX_CONNECTIONS, "0")
+            .build();
+
+        GuessClassificationMailet testee = new GuessClassificationMailet();
+        testee.init(config);
+    }
+
+    @Test
+    public void initShouldThrowWhenKeepAliveInMsIsInvalid() throws Exception {
+        expectedException.expect(MessagingException.class);
+
+        FakeMailetConfig config = FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, VALID_SERVICE_URL)
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(KEEP_ALIVE_IN_MS, "invalid")
+            .build();
+
+        GuessClassificationMailet testee = new GuessClassificationMailet();
+        testee.init(config);
+    }
+
+    @Test
+    public void connectionPoolSettingsShouldHaveDefaultValues() throws Exception {
+        GuessClassificationMailet testee = new GuessClassificationMailet();
+
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, VALID_SERVICE_URL)
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .build());
+
+        assertThat(testee.maxConnections).isEqualTo(DEFAULT_MAX_CONNECTIONS);
+        assertThat(testee.maxConnectionsPerRoute).isEqualTo(DEFAULT_MAX_CONNECTIONS);
+        assertThat(testee.keepAliveInMs).isEqualTo(DEFAULT_KEEP_ALIVE_IN_MS);
+        assertThat(testee.maxIdleTimeInMs).isEqualTo(DEFAULT_KEEP_ALIVE_IN_MS);
+        assertThat(testee.connectionTtlInMs).isEmpty();
+        assertThat(testee.connectionRequestTimeoutInMs).isEqualTo(DEFAULT_TIME);
+    }
+
+    @Test
+    public void connectionPoolSettingsShouldEqualsPropertiesWhenGiven() throws Exception {
+        GuessClassificationMailet testee = new GuessClassificationMailet();
+
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, VALID_SERVICE_URL)
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(MAX_CONNECTIONS, "50")
+            .setProperty(MAX_CONNECTIONS_PER_ROUTE, "10")
+            .setProperty(KEEP_ALIVE_IN_MS, "1000")
+            .setProperty(CONNECTION_TTL_IN_MS, "60000")
+            .setProperty(MAX_IDLE_TIME_IN_MS, "500")
+            .setProperty(CONNECTION_REQUEST_TIMEOUT_IN_MS, "200")
+            .build());
+
+        assertThat(testee.maxConnections).isEqualTo(50);
+        assertThat(testee.maxConnectionsPerRoute).isEqualTo(10);
+        assertThat(testee.keepAliveInMs).isEqualTo(1000);
+        assertThat(testee.connectionTtlInMs).contains(60000);
+        assertThat(testee.maxIdleTimeInMs).isEqualTo(500);
+        assertThat(testee.connectionRequestTimeoutInMs).isEqualTo(200);
+        assertThat(testee.getConnectionPoolStats().getMax()).isEqualTo(50);
+    }
+
+    @Test
+    public void connectionRequestTimeoutShouldDefaultToTimeoutInMs() throws Exception {
+        GuessClassificationMailet testee = new GuessClassificationMailet();
+
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, VALID_SERVICE_URL)
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(TIMEOUT_IN_MS, "100")
+            .build());
+
+        assertThat(testee.connectionRequestTimeoutInMs).isEqualTo(100);
+    }
+
+    @Test
+    public void threadCountShouldDefaultToMaxConnections() throws Exception {
+        GuessClassificationMailet testee = new GuessClassificationMailet();
+
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, VALID_SERVICE_URL)
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(MAX_CONNECTIONS, "7")
+            .build());
+
+        assertThat(testee.threadCount).isEqualTo(7);
+    }
+
+    @Test
+    public void threadCountShouldEqualsPropertyWhenGiven() throws Exception {
+        GuessClassificationMailet testee = new GuessClassificationMailet();
+
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, VALID_SERVICE_URL)
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(THREAD_COUNT, "4")
+            .build());
+
+        assertThat(testee.threadCount).isEqualTo(4);
+    }
+
+    @Test
+    public void batchSettingsShouldHaveDefaultValues() throws Exception {
+        GuessClassificationMailet testee = new GuessClassificationMailet();
+
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, VALID_SERVICE_URL)
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .build());
+
+        assertThat(testee.batchSize).isEqualTo(DEFAULT_BATCH_SIZE);
+        assertThat(testee.batchWindowInMs).isEqualTo(DEFAULT_BATCH_WINDOW_IN_MS);
+        assertThat(testee.batchServiceUrl).isEqualTo(VALID_SERVICE_URL);
+    }
+
+    @Test
+    public void initShouldThrowWhenBatchSizeIsZero() throws Exception {
+        expectedException.expect(MessagingException.class);
+
+        FakeMailetConfig config = FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, VALID_SERVICE_URL)
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(BATCH_SIZE, "0")
+            .build();
+
+        GuessClassificationMailet testee = new GuessClassificationMailet();
+        testee.init(config);
+    }
+
     @Test
     public void headerNameShouldEqualsDefaultValueWhenNotGiven() throws Exception {
         FakeMailetConfig config = FakeMailetConfig.builder()
@@ -610,6 +841,121 @@ public class GuessClassificationMailetTest {
         assertThat(mail.getPerRecipientSpecificHeaders()).isEqualTo(expected);
     }
 
+    @Test
+    public void serviceShouldReleaseConnectionToThePool() throws Exception {
+        mockServerClient
+            .when(HttpRequest.request()
+                    .withMethod("POST")
+                    .withPath("/email/classification/predict"),
+                Times.exactly(1))
+            .respond(HttpResponse.response("{\"results\":{},\"errors\":{}}"));
+
+        FakeMailetConfig config = FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, "http://localhost:" + mockServerRule.getPort() + "/email/classification/predict")
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .build();
+        GuessClassificationMailet testee = new GuessClassificationMailet(new FakeUUIDGenerator());
+        testee.init(config);
+
+        FakeMail mail = FakeMail.builder()
+            .mimeMessage(MimeMessageBuilder.mimeMessageBuilder()
+                .addFrom(new InternetAddress("from@james.org", "From"))
+                .addToRecipient("to@james.org")
+                .setSubject("my subject")
+                .setText("this is my body")
+                .build())
+            .recipients(new MailAddress("to@james.org"))
+            .build();
+
+        testee.service(mail);
+
+        assertThat(testee.getConnectionPoolStats().getLeased()).isEqualTo(0);
+        assertThat(testee.getConnectionPoolStats().getPending()).isEqualTo(0);
+    }
+
+    @Test
+    public void serviceShouldNotAddHeaderWhenResponseIsMalformed() throws Exception {
+        mockServerClient
+            .when(HttpRequest.request()
+                    .withMethod("POST")
+                    .withPath("/email/classification/predict"),
+                Times.exactly(1))
+            .respond(HttpResponse.response("{\"results\":{\"to@james.org\":{\"mailboxName\":\"JAMES\""));
+
+        FakeMailetConfig config = FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, "http://localhost:" + mockServerRule.getPort() + "/email/classification/predict")
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .build();
+        GuessClassificationMailet testee = new GuessClassificationMailet(new FakeUUIDGenerator());
+        testee.init(config);
+
+        FakeMail mail = FakeMail.builder()
+            .mimeMessage(MimeMessageBuilder.mimeMessageBuilder()
+                .addFrom(new InternetAddress("from@james.org", "From"))
+                .addToRecipient("to@james.org")
+                .setSubject("my subject")
+                .setText("this is my body")
+                .build())
+            .recipients(new MailAddress("to@james.org"))
+            .build();
+
+        testee.service(mail);
+
+        assertThat(mail.getPerRecipientSpecificHeaders()).isEqualTo(new PerRecipientHeaders());
+        assertThat(testee.getConnectionPoolStats().getLeased()).isEqualTo(0);
+    }
+
+    @Test
+    public void serviceShouldAddHeaderWhenBatching() throws Exception {
+        String response = "{\"524e4f85-2d2f-4927-ab98-bd7a2f689773\":" +
+            "{\"results\":" +
+                "{\"to@james.org\":{" +
+                "    \"mailboxId\":\"cfe49390-f391-11e6-88e7-ddd22b16a7b9\"," +
+                "    \"mailboxName\":\"JAMES\"," +
+                "    \"confidence\":50.07615280151367}" +
+                "}," +
+            "\"errors\":{}}}";
+        mockServerClient
+            .when(HttpRequest.request()
+                    .withMethod("POST")
+                    .withPath("/email/classification/predict/batch"),
+                Times.exactly(1))
+            .respond(HttpResponse.response(response));
+
+        FakeMailetConfig config = FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, "http://localhost:" + mockServerRule.getPort() + "/email/classification/predict")
+            .setProperty(BATCH_SERVICE_URL, "http://localhost:" + mockServerRule.getPort() + "/email/classification/predict/batch")
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(BATCH_SIZE, "10")
+            .setProperty(BATCH_WINDOW_IN_MS, "20")
+            .build();
+        GuessClassificationMailet testee = new GuessClassificationMailet(new FakeUUIDGenerator());
+        testee.init(config);
+
+        FakeMail mail = FakeMail.builder()
+            .mimeMessage(MimeMessageBuilder.mimeMessageBuilder()
+                .addFrom(new InternetAddress("from@james.org", "From"))
+                .addToRecipient("to@james.org")
+                .setSubject("my subject")
+                .setText("this is my body")
+                .build())
+            .recipients(new MailAddress("to@james.org"))
+            .build();
+
+        testee.service(mail);
+
+        PerRecipientHeaders expected = new PerRecipientHeaders();
+        expected.addHeaderForRecipient(PerRecipientHeaders.Header.builder()
+                .name(HEADER_NAME_DEFAULT_VALUE)
+                .value("{\"mailboxId\":\"cfe49390-f391-11e6-88e7-ddd22b16a7b9\",\"mailboxName\":\"JAMES\",\"confidence\":50.07615280151367}")
+                .build(),
+            new MailAddress("to@james.org"));
+        assertThat(mail.getPerRecipientSpecificHeaders()).isEqualTo(expected);
+    }
+
     @Test
     public void serviceShouldNotAddHeadersWhenTimeoutExceeded() throws Exception {
         int timeoutInMs = 10;
@@ -654,46 +1000,1795 @@ public class GuessClassificationMailetTest {
         assertThat(mail.getPerRecipientSpecificHeaders()).isEqualTo(new PerRecipientHeaders());
     }
 
-    private static class AwaitCallback extends HttpCallback {
-        AwaitCallback(int timeoutInMs) {
-            try {
-                Thread.sleep(timeoutInMs);
-            } catch (InterruptedException e) {
-                Throwables.propagate(e);
-            }
-        }
-    }
-
     @Test
-    public void serviceShouldLogAndNotThrowWhenExceptionOccured() throws Exception {
+    public void serviceShouldEnforceTimeoutOnSlowResponsesAndReleaseConnection() throws Exception {
+        int timeoutInMs = 100;
+
+        mockServerClient
+            .when(HttpRequest.request()
+                    .withMethod("POST")
+                    .withPath("/email/classification/predict"),
+                Times.exactly(1))
+            .respond(HttpResponse.response("{\"results\":{},\"errors\":{}}")
+                .withDelay(new Delay(TimeUnit.SECONDS, 5)));
 
         FakeMailetConfig config = FakeMailetConfig.builder()
-                .setProperty(SERVICE_URL, "http://localhost:" + mockServerRule.getPort() + "/email/classification/predict")
-                .setProperty(SERVICE_USERNAME, "username")
-                .setProperty(SERVICE_PASSWORD, "password")
-                .build();
+            .setProperty(SERVICE_URL, "http://localhost:" + mockServerRule.getPort() + "/email/classification/predict")
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(TIMEOUT_IN_MS, String.valueOf(timeoutInMs))
+            .build();
         GuessClassificationMailet testee = new GuessClassificationMailet(new FakeUUIDGenerator());
         testee.init(config);
-        // Throws NPE in service method
-
-        MemoryAppender memoryAppender = new MemoryAppender();
-        ((Logger) GuessClassificationMailet.LOGGER).addAppender(memoryAppender);
-        memoryAppender.start();
 
         FakeMail mail = FakeMail.builder()
             .mimeMessage(MimeMessageBuilder.mimeMessageBuilder()
                 .addFrom(new InternetAddress("from@james.org", "From"))
                 .addToRecipient("to@james.org")
-                .addCcRecipient("cc@james.org")
                 .setSubject("my subject")
                 .setText("this is my body")
                 .build())
-            .recipients(new MailAddress("to@james.org"), new MailAddress("cc@james.org"))
+            .recipients(new MailAddress("to@james.org"))
             .build();
 
+        long start = System.currentTimeMillis();
         testee.service(mail);
-        
-        assertThat(memoryAppender.getEvents()).contains("Exception while calling Classification API");
+
+        assertThat(System.currentTimeMillis() - start).isLessThan(TimeUnit.SECONDS.toMillis(5));
+        assertThat(mail.getPerRecipientSpecificHeaders()).isEqualTo(new PerRecipientHeaders());
+        Awaitility.await()
+            .atMost(Duration.ONE_SECOND)
+            .until(() -> testee.getConnectionPoolStats().getLeased() == 0);
+    }
+
+    @Test
+    public void serviceShouldNotCallTheServerWhenCircuitBreakerIsOpen() throws Exception {
+        HttpRequest classificationRequest = HttpRequest.request()
+            .withMethod("POST")
+            .withPath("/email/classification/predict");
+        mockServerClient
+            .when(classificationRequest)
+            .respond(HttpResponse.response().withStatusCode(500));
+
+        FakeMailetConfig config = FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, "http://localhost:" + mockServerRule.getPort() + "/email/classification/predict")
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(CIRCUIT_BREAKER_WINDOW_SIZE, "2")
+            .setProperty(CIRCUIT_BREAKER_MINIMUM_CALLS, "2")
+            .build();
+        GuessClassificationMailet testee = new GuessClassificationMailet(new FakeUUIDGenerator());
+        testee.init(config);
+
+        for (int i = 0; i < 5; i++) {
+            testee.service(FakeMail.builder()
+                .mimeMessage(MimeMessageBuilder.mimeMessageBuilder()
+                    .addFrom(new InternetAddress("from@james.org", "From"))
+                    .addToRecipient("to@james.org")
+                    .setSubject("my subject")
+                    .setText("this is my body")
+                    .build())
+                .recipients(new MailAddress("to@james.org"))
+                .build());
+        }
+
+        mockServerClient.verify(classificationRequest, VerificationTimes.exactly(2));
+        assertThat(testee.getCircuitBreaker().get().getState()).isEqualTo(CircuitBreaker.State.OPEN);
+    }
+
+    @Test
+    public void circuitBreakerShouldBeDisabledWhenConfigured() throws Exception {
+        GuessClassificationMailet testee = new GuessClassificationMailet();
+
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, VALID_SERVICE_URL)
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(CIRCUIT_BREAKER_ENABLED, "false")
+            .build());
+
+        assertThat(testee.getCircuitBreaker()).isEmpty();
+    }
+
+    @Test
+    public void initShouldThrowWhenCircuitBreakerFailureRateThresholdIsNotAPercentage() throws Exception {
+        expectedException.expect(MessagingException.class);
+
+        GuessClassificationMailet testee = new GuessClassificationMailet();
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, VALID_SERVICE_URL)
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(CIRCUIT_BREAKER_FAILURE_RATE_THRESHOLD, "101")
+            .build());
+    }
+
+    @Test
+    public void resultCacheShouldBeDisabledByDefault() throws Exception {
+        GuessClassificationMailet testee = new GuessClassificationMailet();
+
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, VALID_SERVICE_URL)
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .build());
+
+        assertThat(testee.getResultCache()).isEmpty();
+    }
+
+    @Test
+    public void initShouldThrowWhenCacheMaxWeightInBytesIsZero() throws Exception {
+        expectedException.expect(MessagingException.class);
+
+        GuessClassificationMailet testee = new GuessClassificationMailet();
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, VALID_SERVICE_URL)
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(CACHE_MAX_WEIGHT_IN_BYTES, "0")
+            .build());
+    }
+
+    @Test
+    public void serviceShouldNotCallTheServerTwiceForIdenticalContentWhenCacheIsEnabled() throws Exception {
+        HttpRequest classificationRequest = HttpRequest.request()
+            .withMethod("POST")
+            .withPath("/email/classification/predict");
+        mockServerClient
+            .when(classificationRequest)
+            .respond(HttpResponse.response(CLASSIFICATION_RESPONSE));
+
+        GuessClassificationMailet testee = new GuessClassificationMailet(new FakeUUIDGenerator());
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, "http://localhost:" + mockServerRule.getPort() + "/email/classification/predict")
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(CACHE_MAX_WEIGHT_IN_BYTES, "1048576")
+            .build());
+
+        FakeMail firstMail = cacheableMail();
+        FakeMail secondMail = cacheableMail();
+        testee.service(firstMail);
+        testee.service(secondMail);
+
+        mockServerClient.verify(classificationRequest, VerificationTimes.exactly(1));
+        assertThat(secondMail.getPerRecipientSpecificHeaders()).isEqualTo(firstMail.getPerRecipientSpecificHeaders());
+        assertThat(testee.getResultCache().get().getStats().hitCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void serviceShouldInvalidateCachedResultsWhenModelVersionChanges() throws Exception {
+        HttpRequest classificationRequest = HttpRequest.request()
+            .withMethod("POST")
+            .withPath("/email/classification/predict");
+        mockServerClient
+            .when(classificationRequest, Times.exactly(1))
+            .respond(HttpResponse.response(CLASSIFICATION_RESPONSE).withHeader("X-Model-Version", "1"));
+        mockServerClient
+            .when(classificationRequest)
+            .respond(HttpResponse.response(CLASSIFICATION_RESPONSE).withHeader("X-Model-Version", "2"));
+
+        GuessClassificationMailet testee = new GuessClassificationMailet(new FakeUUIDGenerator());
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, "http://localhost:" + mockServerRule.getPort() + "/email/classification/predict")
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(CACHE_MAX_WEIGHT_IN_BYTES, "1048576")
+            .setProperty(MODEL_VERSION_HEADER, "X-Model-Version")
+            .build());
+
+        testee.service(cacheableMail());
+        testee.service(cacheableMail("another subject"));
+        testee.service(cacheableMail());
+
+        mockServerClient.verify(classificationRequest, VerificationTimes.exactly(3));
+    }
+
+    @Test
+    public void affinityTableShouldBeDisabledByDefault() throws Exception {
+        GuessClassificationMailet testee = new GuessClassificationMailet();
+
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, VALID_SERVICE_URL)
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .build());
+
+        assertThat(testee.getAffinityTable()).isEmpty();
+    }
+
+    @Test
+    public void initShouldThrowWhenAffinityVerificationPercentageIsNotAPercentage() throws Exception {
+        expectedException.expect(MessagingException.class);
+
+        GuessClassificationMailet testee = new GuessClassificationMailet();
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, VALID_SERVICE_URL)
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(AFFINITY_MAX_ENTRIES, "1000")
+            .setProperty(AFFINITY_VERIFICATION_PERCENTAGE, "101")
+            .build());
+    }
+
+    @Test
+    public void initShouldThrowWhenAffinityMinConfidenceIsNotANumber() throws Exception {
+        expectedException.expect(MessagingException.class);
+
+        GuessClassificationMailet testee = new GuessClassificationMailet();
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, VALID_SERVICE_URL)
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(AFFINITY_MAX_ENTRIES, "1000")
+            .setProperty(AFFINITY_MIN_CONFIDENCE, "high")
+            .build());
+    }
+
+    @Test
+    public void serviceShouldClassifyLocallyOnceAffinityIsTrusted() throws Exception {
+        HttpRequest classificationRequest = HttpRequest.request()
+            .withMethod("POST")
+            .withPath("/email/classification/predict");
+        mockServerClient
+            .when(classificationRequest)
+            .respond(HttpResponse.response(CLASSIFICATION_RESPONSE));
+
+        GuessClassificationMailet testee = new GuessClassificationMailet(new FakeUUIDGenerator());
+        testee.init(affinityConfig());
+
+        FakeMail firstMail = affinityMail("first");
+        testee.service(firstMail);
+        testee.service(affinityMail("second"));
+        FakeMail thirdMail = affinityMail("third");
+        testee.service(thirdMail);
+
+        mockServerClient.verify(classificationRequest, VerificationTimes.exactly(2));
+        assertThat(thirdMail.getPerRecipientSpecificHeaders()).isEqualTo(firstMail.getPerRecipientSpecificHeaders());
+        assertThat(testee.getAffinityTable().get().getHitCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void serviceShouldNotUseAffinitiesWithoutSender() throws Exception {
+        HttpRequest classificationRequest = HttpRequest.request()
+            .withMethod("POST")
+            .withPath("/email/classification/predict");
+        mockServerClient
+            .when(classificationRequest)
+            .respond(HttpResponse.response(CLASSIFICATION_RESPONSE));
+
+        GuessClassificationMailet testee = new GuessClassificationMailet(new FakeUUIDGenerator());
+        testee.init(affinityConfig());
+
+        testee.service(cacheableMail("first"));
+        testee.service(cacheableMail("second"));
+        testee.service(cacheableMail("third"));
+
+        mockServerClient.verify(classificationRequest, VerificationTimes.exactly(3));
+        assertThat(testee.getAffinityTable().get().size()).isEqualTo(0);
+    }
+
+    @Test
+    public void serviceShouldVerifyTrustedAffinitiesWhenSampled() throws Exception {
+        HttpRequest classificationRequest = HttpRequest.request()
+            .withMethod("POST")
+            .withPath("/email/classification/predict");
+        mockServerClient
+            .when(classificationRequest)
+            .respond(HttpResponse.response(CLASSIFICATION_RESPONSE));
+
+        GuessClassificationMailet testee = new GuessClassificationMailet(new FakeUUIDGenerator());
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, "http://localhost:" + mockServerRule.getPort() + "/email/classification/predict")
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(AFFINITY_MAX_ENTRIES, "1000")
+            .setProperty(AFFINITY_MIN_HIT_STREAK, "2")
+            .setProperty(AFFINITY_MIN_CONFIDENCE, "50")
+            .setProperty(AFFINITY_VERIFICATION_PERCENTAGE, "100")
+            .build());
+
+        testee.service(affinityMail("first"));
+        testee.service(affinityMail("second"));
+        testee.service(affinityMail("third"));
+
+        mockServerClient.verify(classificationRequest, VerificationTimes.exactly(3));
+        assertThat(testee.getAffinityTable().get().getVerificationCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void serviceShouldNotLearnAffinitiesFromCachedAnswers() throws Exception {
+        HttpRequest classificationRequest = HttpRequest.request()
+            .withMethod("POST")
+            .withPath("/email/classification/predict");
+        mockServerClient
+            .when(classificationRequest)
+            .respond(HttpResponse.response(CLASSIFICATION_RESPONSE));
+
+        GuessClassificationMailet testee = new GuessClassificationMailet(new FakeUUIDGenerator());
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, "http://localhost:" + mockServerRule.getPort() + "/email/classification/predict")
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(CACHE_MAX_WEIGHT_IN_BYTES, "1048576")
+            .setProperty(AFFINITY_MAX_ENTRIES, "1000")
+            .setProperty(AFFINITY_MIN_HIT_STREAK, "2")
+            .setProperty(AFFINITY_MIN_CONFIDENCE, "50")
+            .setProperty(AFFINITY_VERIFICATION_PERCENTAGE, "0")
+            .build());
+
+        testee.service(affinityMail("same"));
+        testee.service(affinityMail("same"));
+        testee.service(affinityMail("same"));
+
+        mockServerClient.verify(classificationRequest, VerificationTimes.exactly(1));
+        assertThat(testee.getResultCache().get().getStats().hitCount()).isEqualTo(2);
+        assertThat(testee.getAffinityTable().get().getHitCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void serviceShouldLearnAffinitiesFromFreshAnswersWhenCaching() throws Exception {
+        HttpRequest classificationRequest = HttpRequest.request()
+            .withMethod("POST")
+            .withPath("/email/classification/predict");
+        mockServerClient
+            .when(classificationRequest)
+            .respond(HttpResponse.response(CLASSIFICATION_RESPONSE));
+
+        GuessClassificationMailet testee = new GuessClassificationMailet(new FakeUUIDGenerator());
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, "http://localhost:" + mockServerRule.getPort() + "/email/classification/predict")
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(CACHE_MAX_WEIGHT_IN_BYTES, "1048576")
+            .setProperty(AFFINITY_MAX_ENTRIES, "1000")
+            .setProperty(AFFINITY_MIN_HIT_STREAK, "2")
+            .setProperty(AFFINITY_MIN_CONFIDENCE, "50")
+            .setProperty(AFFINITY_VERIFICATION_PERCENTAGE, "0")
+            .build());
+
+        testee.service(affinityMail("first"));
+        testee.service(affinityMail("second"));
+        testee.service(affinityMail("third"));
+
+        mockServerClient.verify(classificationRequest, VerificationTimes.exactly(2));
+        assertThat(testee.getAffinityTable().get().getHitCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void initShouldCreateOneEndpointPerServiceUrl() throws Exception {
+        GuessClassificationMailet testee = new GuessClassificationMailet();
+
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, "http://classifier1:9000/predict, http://classifier2:9000/predict")
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(MAX_CONNECTIONS, "10")
+            .build());
+
+        assertThat(testee.getServiceEndpoints())
+            .extracting(ServiceEndpoint::getUrl)
+            .containsExactly("http://classifier1:9000/predict", "http://classifier2:9000/predict");
+        assertThat(testee.getConnectionPoolStats().getMax()).isEqualTo(20);
+    }
+
+    @Test
+    public void initShouldThrowWhenServiceUrlContainsOnlySeparators() throws Exception {
+        expectedException.expect(MailetException.class);
+
+        GuessClassificationMailet testee = new GuessClassificationMailet();
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, " , ")
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .build());
+    }
+
+    @Test
+    public void initShouldThrowWhenEndpointEjectionConsecutiveFailuresIsZero() throws Exception {
+        expectedException.expect(MessagingException.class);
+
+        GuessClassificationMailet testee = new GuessClassificationMailet();
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, VALID_SERVICE_URL)
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(ENDPOINT_EJECTION_CONSECUTIVE_FAILURES, "0")
+            .build());
+    }
+
+    @Test
+    public void serviceShouldBalanceRequestsBetweenEndpoints() throws Exception {
+        mockServerClient
+            .when(HttpRequest.request()
+                .withMethod("POST")
+                .withPath("/first/predict"))
+            .respond(HttpResponse.response(CLASSIFICATION_RESPONSE));
+        mockServerClient
+            .when(HttpRequest.request()
+                .withMethod("POST")
+                .withPath("/second/predict"))
+            .respond(HttpResponse.response(CLASSIFICATION_RESPONSE));
+
+        GuessClassificationMailet testee = new GuessClassificationMailet(new FakeUUIDGenerator());
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, "http://localhost:" + mockServerRule.getPort() + "/first/predict,"
+                + "http://localhost:" + mockServerRule.getPort() + "/second/predict")
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .build());
+
+        for (int i = 0; i < 40; i++) {
+            testee.service(cacheableMail());
+        }
+
+        assertThat(testee.getServiceEndpoints())
+            .extracting(ServiceEndpoint::getRequestCount)
+            .doesNotContain(0L);
+        assertThat(testee.getServiceEndpoints().stream().mapToLong(ServiceEndpoint::getRequestCount).sum()).isEqualTo(40);
+    }
+
+    @Test
+    public void serviceShouldEjectFailingEndpoints() throws Exception {
+        mockServerClient
+            .when(HttpRequest.request()
+                .withMethod("POST")
+                .withPath("/failing/predict"))
+            .respond(HttpResponse.response().withStatusCode(503));
+        mockServerClient
+            .when(HttpRequest.request()
+                .withMethod("POST")
+                .withPath("/healthy/predict"))
+            .respond(HttpResponse.response(CLASSIFICATION_RESPONSE));
+
+        GuessClassificationMailet testee = new GuessClassificationMailet(new FakeUUIDGenerator());
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, "http://localhost:" + mockServerRule.getPort() + "/failing/predict,"
+                + "http://localhost:" + mockServerRule.getPort() + "/healthy/predict")
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(ENDPOINT_EJECTION_CONSECUTIVE_FAILURES, "1")
+            .setProperty(CIRCUIT_BREAKER_ENABLED, "false")
+            .build());
+
+        for (int i = 0; i < 20; i++) {
+            testee.service(cacheableMail());
+        }
+
+        assertThat(testee.getServiceEndpoints().get(0).getRequestCount()).isLessThanOrEqualTo(1);
+        assertThat(testee.getServiceEndpoints().get(1).getRequestCount()).isGreaterThanOrEqualTo(19);
+        assertThat(testee.getServiceEndpoints().get(1).getFailureCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void serviceShouldNotEjectEndpointsOnClientErrors() throws Exception {
+        mockServerClient
+            .when(HttpRequest.request()
+                .withMethod("POST")
+                .withPath("/email/classification/predict"))
+            .respond(HttpResponse.response().withStatusCode(400));
+
+        GuessClassificationMailet testee = new GuessClassificationMailet(new FakeUUIDGenerator());
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, "http://localhost:" + mockServerRule.getPort() + "/email/classification/predict")
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(ENDPOINT_EJECTION_CONSECUTIVE_FAILURES, "1")
+            .build());
+
+        testee.service(cacheableMail());
+
+        assertThat(testee.getServiceEndpoints().get(0).isAvailable()).isTrue();
+    }
+
+    @Test
+    public void healthChecksShouldEjectEndpointsNotAnsweringSuccessfully() throws Exception {
+        mockServerClient
+            .when(HttpRequest.request()
+                .withMethod("GET")
+                .withPath("/healthcheck"))
+            .respond(HttpResponse.response().withStatusCode(503));
+
+        GuessClassificationMailet testee = new GuessClassificationMailet(new FakeUUIDGenerator());
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, "http://localhost:" + mockServerRule.getPort() + "/email/classification/predict")
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(HEALTH_CHECK_PATH, "/healthcheck")
+            .setProperty(HEALTH_CHECK_INTERVAL_IN_MS, "10")
+            .build());
+
+        try {
+            Awaitility.await()
+                .atMost(Duration.FIVE_SECONDS)
+                .until(() -> !testee.getServiceEndpoints().get(0).isAvailable());
+        } finally {
+            testee.destroy();
+        }
+    }
+
+    @Test
+    public void hedgingShouldBeDisabledByDefault() throws Exception {
+        GuessClassificationMailet testee = new GuessClassificationMailet();
+
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, VALID_SERVICE_URL)
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .build());
+
+        assertThat(testee.getHedging()).isEmpty();
+    }
+
+    @Test
+    public void initShouldThrowWhenHedgingIsInvalid() throws Exception {
+        expectedException.expect(MailetException.class);
+
+        GuessClassificationMailet testee = new GuessClassificationMailet();
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, VALID_SERVICE_URL)
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(HEDGING, "p99")
+            .build());
+    }
+
+    @Test
+    public void serviceShouldUseHedgedRequestWhenFirstRequestIsSlow() throws Exception {
+        HttpRequest classificationRequest = HttpRequest.request()
+            .withMethod("POST")
+            .withPath("/email/classification/predict");
+        mockServerClient
+            .when(classificationRequest, Times.exactly(1))
+            .respond(HttpResponse.response(CLASSIFICATION_RESPONSE)
+                .withDelay(new Delay(TimeUnit.SECONDS, 5)));
+        mockServerClient
+            .when(classificationRequest)
+            .respond(HttpResponse.response(CLASSIFICATION_RESPONSE));
+
+        GuessClassificationMailet testee = new GuessClassificationMailet(new FakeUUIDGenerator());
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, "http://localhost:" + mockServerRule.getPort() + "/email/classification/predict")
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(HEDGING, "fixed")
+            .setProperty(HEDGE_DELAY_IN_MS, "50")
+            .setProperty(HEDGE_BUDGET_PERCENTAGE, "100")
+            .build());
+
+        FakeMail mail = cacheableMail();
+        long start = System.currentTimeMillis();
+        testee.service(mail);
+
+        assertThat(System.currentTimeMillis() - start).isLessThan(TimeUnit.SECONDS.toMillis(5));
+        assertThat(mail.getPerRecipientSpecificHeaders().getHeadersForRecipient(new MailAddress("user@james.org"))).isNotEmpty();
+        assertThat(testee.getHedging().get().getHedgeCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void cancelledHedgeLosersShouldNotBeAccountedToTheirEndpoint() throws Exception {
+        HttpRequest classificationRequest = HttpRequest.request()
+            .withMethod("POST")
+            .withPath("/email/classification/predict");
+        mockServerClient
+            .when(classificationRequest, Times.exactly(1))
+            .respond(HttpResponse.response(CLASSIFICATION_RESPONSE)
+                .withDelay(new Delay(TimeUnit.SECONDS, 5)));
+        mockServerClient
+            .when(classificationRequest)
+            .respond(HttpResponse.response(CLASSIFICATION_RESPONSE));
+
+        TimeMetric endpointLatency = mock(TimeMetric.class);
+        MetricFactory metricFactory = mock(MetricFactory.class);
+        when(metricFactory.generate(anyString())).thenReturn(mock(Metric.class));
+        when(metricFactory.timer(anyString())).thenReturn(mock(TimeMetric.class));
+        when(metricFactory.timer(startsWith(ClassificationMetrics.ENDPOINT_LATENCY))).thenReturn(endpointLatency);
+        GuessClassificationMailet testee = new GuessClassificationMailet(new FakeUUIDGenerator(), metricFactory);
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, "http://localhost:" + mockServerRule.getPort() + "/email/classification/predict")
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(HEDGING, "fixed")
+            .setProperty(HEDGE_DELAY_IN_MS, "50")
+            .setProperty(HEDGE_BUDGET_PERCENTAGE, "100")
+            .build());
+
+        testee.service(cacheableMail());
+        Thread.sleep(200);
+
+        verify(endpointLatency, times(1)).stopAndPublish();
+        assertThat(testee.getServiceEndpoints().get(0).getOutstandingRequests()).isEqualTo(0);
+        assertThat(testee.getServiceEndpoints().get(0).getFailureCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void admissionControlShouldBeDisabledByDefault() throws Exception {
+        GuessClassificationMailet testee = new GuessClassificationMailet();
+
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, VALID_SERVICE_URL)
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .build());
+
+        assertThat(testee.getAdmissionControl()).isEmpty();
+        assertThat(testee.admissionWaitInMs).isEqualTo(DEFAULT_ADMISSION_WAIT_IN_MS);
+    }
+
+    @Test
+    public void initShouldThrowWhenMaxInFlightBytesIsZero() throws Exception {
+        expectedException.expect(MessagingException.class);
+
+        GuessClassificationMailet testee = new GuessClassificationMailet();
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, VALID_SERVICE_URL)
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(MAX_IN_FLIGHT_BYTES, "0")
+            .build());
+    }
+
+    @Test
+    public void serviceShouldReleaseInFlightBytesOnceClassified() throws Exception {
+        mockServerClient
+            .when(HttpRequest.request()
+                .withMethod("POST")
+                .withPath("/email/classification/predict"))
+            .respond(HttpResponse.response(CLASSIFICATION_RESPONSE));
+
+        GuessClassificationMailet testee = new GuessClassificationMailet(new FakeUUIDGenerator());
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, "http://localhost:" + mockServerRule.getPort() + "/email/classification/predict")
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(MAX_IN_FLIGHT_BYTES, "1048576")
+            .build());
+
+        FakeMail mail = cacheableMail();
+        testee.service(mail);
+
+        assertThat(mail.getPerRecipientSpecificHeaders().getHeadersForRecipient(new MailAddress("user@james.org"))).isNotEmpty();
+        assertThat(testee.getAdmissionControl().get().getAdmittedCount()).isEqualTo(1);
+        assertThat(testee.getAdmissionControl().get().getInFlightBytes()).isEqualTo(0);
+    }
+
+    @Test
+    public void serviceShouldDowngradeMailsWhenInFlightBytesAreExhausted() throws Exception {
+        mockServerClient
+            .when(HttpRequest.request()
+                    .withMethod("POST")
+                    .withPath("/email/classification/predict")
+                    .withBody("{\"messageId\":\"524e4f85-2d2f-4927-ab98-bd7a2f689773\"," +
+                        "\"from\":[{\"name\":\"From\",\"address\":\"from@james.org\"}]," +
+                        "\"recipients\":{\"to\":[{\"name\":null,\"address\":\"to@james.org\"}]," +
+                        "\"cc\":[]," +
+                        "\"bcc\":[]}," +
+                        "\"subject\":[\"my subject\"]," +
+                        "\"textBody\":\"this is my\"," +
+                        "\"date\":null," +
+                        "\"textBodyTruncated\":true}"),
+                Times.exactly(1))
+            .respond(HttpResponse.response(CLASSIFICATION_RESPONSE));
+
+        GuessClassificationMailet testee = new GuessClassificationMailet(new FakeUUIDGenerator());
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, "http://localhost:" + mockServerRule.getPort() + "/email/classification/predict")
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(MAX_IN_FLIGHT_BYTES, "1024")
+            .setProperty(ADMISSION_WAIT_IN_MS, "1")
+            .setProperty(DOWNGRADED_TEXT_BODY_LENGTH, "10")
+            .build());
+        AdmissionControl.Permit heldPermit = testee.getAdmissionControl().get().tryAcquire(1024, 0).get();
+
+        FakeMail mail = cacheableMail();
+        try {
+            testee.service(mail);
+        } finally {
+            heldPermit.release();
+        }
+
+        assertThat(mail.getPerRecipientSpecificHeaders().getHeadersForRecipient(new MailAddress("user@james.org"))).isNotEmpty();
+        assertThat(testee.getAdmissionControl().get().getRejectedCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void maxTextBodyLengthShouldDefaultToEmpty() throws Exception {
+        GuessClassificationMailet testee = new GuessClassificationMailet();
+
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, VALID_SERVICE_URL)
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .build());
+
+        assertThat(testee.maxTextBodyLength).isEmpty();
+    }
+
+    @Test
+    public void maxTextBodyLengthShouldEqualsPropertyWhenGiven() throws Exception {
+        GuessClassificationMailet testee = new GuessClassificationMailet();
+
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, VALID_SERVICE_URL)
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(MAX_TEXT_BODY_LENGTH, "4096")
+            .build());
+
+        assertThat(testee.maxTextBodyLength).contains(4096);
+    }
+
+    @Test
+    public void initShouldThrowWhenMaxTextBodyLengthIsZero() throws Exception {
+        expectedException.expect(MessagingException.class);
+
+        GuessClassificationMailet testee = new GuessClassificationMailet();
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, VALID_SERVICE_URL)
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(MAX_TEXT_BODY_LENGTH, "0")
+            .build());
+    }
+
+    @Test
+    public void htmlTextExtractorShouldDefaultToJsoup() throws Exception {
+        GuessClassificationMailet testee = new GuessClassificationMailet();
+
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, VALID_SERVICE_URL)
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .build());
+
+        assertThat(testee.htmlTextExtractorType).isEqualTo(HtmlTextExtractorType.JSOUP);
+    }
+
+    @Test
+    public void htmlTextExtractorShouldEqualsPropertyWhenGiven() throws Exception {
+        GuessClassificationMailet testee = new GuessClassificationMailet();
+
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, VALID_SERVICE_URL)
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(HTML_TEXT_EXTRACTOR, "streaming")
+            .build());
+
+        assertThat(testee.htmlTextExtractorType).isEqualTo(HtmlTextExtractorType.STREAMING);
+    }
+
+    @Test
+    public void initShouldThrowWhenHtmlTextExtractorIsUnknown() throws Exception {
+        expectedException.expect(MessagingException.class);
+
+        GuessClassificationMailet testee = new GuessClassificationMailet();
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, VALID_SERVICE_URL)
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(HTML_TEXT_EXTRACTOR, "regex")
+            .build());
+    }
+
+    @Test
+    public void initShouldThrowWhenRequestCompressionIsUnknown() throws Exception {
+        expectedException.expect(MessagingException.class);
+
+        GuessClassificationMailet testee = new GuessClassificationMailet();
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, VALID_SERVICE_URL)
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(REQUEST_COMPRESSION, "brotli")
+            .build());
+    }
+
+    @Test
+    public void requestCompressionShouldBeDisabledByDefault() throws Exception {
+        GuessClassificationMailet testee = new GuessClassificationMailet();
+
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, VALID_SERVICE_URL)
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .build());
+
+        assertThat(testee.getRequestCompression().getAlgorithm()).isEqualTo(RequestCompression.Algorithm.NONE);
+    }
+
+    @Test
+    public void smallRequestBodiesShouldBeBufferedByDefault() throws Exception {
+        GuessClassificationMailet testee = new GuessClassificationMailet();
+
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, VALID_SERVICE_URL)
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .build());
+
+        assertThat(testee.getRequestCompression().getChunkingThresholdInBytes()).isEqualTo(64 * 1024);
+    }
+
+    @Test
+    public void estimatedSizeInBytesShouldCountAddresses() {
+        ClassificationRequestBody body = ClassificationRequestBody.builder()
+            .messageId(UUID.fromString("524e4f85-2d2f-4927-ab98-bd7a2f689773"))
+            .from(ImmutableList.of(Emailer.builder().name("From").address("from@james.org").build()))
+            .recipients(Recipients.builder()
+                .to(ImmutableList.of(Emailer.builder().address("to@james.org").build()))
+                .cc(ImmutableList.of(Emailer.builder().address("cc@james.org").build()))
+                .build())
+            .subject(ImmutableList.of("my subject"))
+            .textBody("this is my body")
+            .mailRecipients(ImmutableList.of("to@james.org", "cc@james.org"))
+            .build();
+
+        assertThat(GuessClassificationMailet.estimatedSizeInBytes(body))
+            .isEqualTo("From".length() + "from@james.org".length()
+                + "to@james.org".length() + "cc@james.org".length()
+                + "my subject".length() + "this is my body".length()
+                + "to@james.org".length() + "cc@james.org".length());
+    }
+
+    @Test
+    public void initShouldThrowWhenRequestChunkingThresholdIsZero() throws Exception {
+        expectedException.expect(MessagingException.class);
+
+        GuessClassificationMailet testee = new GuessClassificationMailet();
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, VALID_SERVICE_URL)
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(REQUEST_CHUNKING_THRESHOLD_IN_BYTES, "0")
+            .build());
+    }
+
+    @Test
+    public void serviceShouldSendGzippedBodyAboveThreshold() throws Exception {
+        // MockServer inflates request bodies and drops their Content-Encoding header before matching them
+        mockServerClient
+            .when(HttpRequest.request()
+                .withMethod("POST")
+                .withPath("/email/classification/predict")
+                .withBody(new StringBody(
+                    "{\"messageId\":\"524e4f85-2d2f-4927-ab98-bd7a2f689773\"," +
+                    "\"from\":[{\"name\":\"From\",\"address\":\"from@james.org\"}]," +
+                    "\"recipients\":{\"to\":[{\"name\":null,\"address\":\"to@james.org\"}],\"cc\":[],\"bcc\":[]}," +
+                    "\"subject\":[\"my subject\"]," +
+                    "\"textBody\":\"this is my body\"," +
+                    "\"date\":null}")))
+            .respond(HttpResponse.response(CLASSIFICATION_RESPONSE));
+
+        GuessClassificationMailet testee = new GuessClassificationMailet(new FakeUUIDGenerator());
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, "http://localhost:" + mockServerRule.getPort() + "/email/classification/predict")
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(REQUEST_COMPRESSION, "gzip")
+            .setProperty(REQUEST_COMPRESSION_THRESHOLD_IN_BYTES, "1")
+            .build());
+
+        FakeMail mail = cacheableMail();
+        testee.service(mail);
+
+        PerRecipientHeaders expected = new PerRecipientHeaders();
+        expected.addHeaderForRecipient(PerRecipientHeaders.Header.builder()
+                .name(HEADER_NAME_DEFAULT_VALUE)
+                .value("{\"mailboxId\":\"cfe49390-f391-11e6-88e7-ddd22b16a7b9\",\"mailboxName\":\"JAMES\",\"confidence\":50.07615280151367}")
+                .build(),
+            new MailAddress("user@james.org"));
+        assertThat(mail.getPerRecipientSpecificHeaders()).isEqualTo(expected);
+        assertThat(testee.getRequestCompression().getCompressedRequestCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void featurePayloadShouldBeDisabledByDefault() throws Exception {
+        GuessClassificationMailet testee = new GuessClassificationMailet();
+
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, VALID_SERVICE_URL)
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .build());
+
+        assertThat(testee.getFeaturePayload()).isEmpty();
+    }
+
+    @Test
+    public void initShouldThrowWhenRequestPayloadIsUnknown() throws Exception {
+        expectedException.expect(MessagingException.class);
+
+        GuessClassificationMailet testee = new GuessClassificationMailet();
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, VALID_SERVICE_URL)
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(REQUEST_PAYLOAD, "embeddings")
+            .build());
+    }
+
+    @Test
+    public void initShouldThrowWhenFeatureDimensionIsNotAPowerOfTwo() throws Exception {
+        expectedException.expect(MessagingException.class);
+
+        GuessClassificationMailet testee = new GuessClassificationMailet();
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, VALID_SERVICE_URL)
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(REQUEST_PAYLOAD, "features")
+            .setProperty(FEATURE_DIMENSION, "1000")
+            .build());
+    }
+
+    @Test
+    public void serviceShouldSendHashedFeaturesWhenFeaturePayload() throws Exception {
+        mockServerClient
+            .when(HttpRequest.request()
+                .withMethod("POST")
+                .withPath("/email/classification/predict")
+                .withHeader("Content-Type", FeatureHasher.MEDIA_TYPE))
+            .respond(HttpResponse.response(CLASSIFICATION_RESPONSE));
+
+        GuessClassificationMailet testee = new GuessClassificationMailet(new FakeUUIDGenerator());
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, "http://localhost:" + mockServerRule.getPort() + "/email/classification/predict")
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(REQUEST_PAYLOAD, "features")
+            .build());
+
+        FakeMail mail = cacheableMail();
+        testee.service(mail);
+
+        PerRecipientHeaders expected = new PerRecipientHeaders();
+        expected.addHeaderForRecipient(PerRecipientHeaders.Header.builder()
+                .name(HEADER_NAME_DEFAULT_VALUE)
+                .value("{\"mailboxId\":\"cfe49390-f391-11e6-88e7-ddd22b16a7b9\",\"mailboxName\":\"JAMES\",\"confidence\":50.07615280151367}")
+                .build(),
+            new MailAddress("user@james.org"));
+        assertThat(mail.getPerRecipientSpecificHeaders()).isEqualTo(expected);
+        assertThat(testee.getFeaturePayload().get().getRejectionCount()).isEqualTo(0);
+        mockServerClient.verify(HttpRequest.request()
+                .withPath("/email/classification/predict")
+                .withHeader("Content-Type", FeatureHasher.MEDIA_TYPE),
+            VerificationTimes.exactly(1));
+    }
+
+    @Test
+    public void serviceShouldFallBackToTextWhenFeaturePayloadIsRejected() throws Exception {
+        mockServerClient
+            .when(HttpRequest.request()
+                .withMethod("POST")
+                .withPath("/email/classification/predict")
+                .withHeader("Content-Type", FeatureHasher.MEDIA_TYPE))
+            .respond(HttpResponse.response().withStatusCode(415));
+        mockServerClient
+            .when(HttpRequest.request()
+                .withMethod("POST")
+                .withPath("/email/classification/predict"))
+            .respond(HttpResponse.response(CLASSIFICATION_RESPONSE));
+
+        Metric featurePayloadRejected = mock(Metric.class);
+        MetricFactory metricFactory = mock(MetricFactory.class);
+        when(metricFactory.generate(anyString())).thenReturn(mock(Metric.class));
+        when(metricFactory.generate(ClassificationMetrics.FEATURE_PAYLOAD_REJECTED)).thenReturn(featurePayloadRejected);
+        when(metricFactory.timer(anyString())).thenReturn(mock(TimeMetric.class));
+        GuessClassificationMailet testee = new GuessClassificationMailet(new FakeUUIDGenerator(), metricFactory);
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, "http://localhost:" + mockServerRule.getPort() + "/email/classification/predict")
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(REQUEST_PAYLOAD, "features")
+            .build());
+
+        FakeMail mail = cacheableMail();
+        testee.service(mail);
+        testee.service(cacheableMail("my other subject"));
+
+        PerRecipientHeaders expected = new PerRecipientHeaders();
+        expected.addHeaderForRecipient(PerRecipientHeaders.Header.builder()
+                .name(HEADER_NAME_DEFAULT_VALUE)
+                .value("{\"mailboxId\":\"cfe49390-f391-11e6-88e7-ddd22b16a7b9\",\"mailboxName\":\"JAMES\",\"confidence\":50.07615280151367}")
+                .build(),
+            new MailAddress("user@james.org"));
+        assertThat(mail.getPerRecipientSpecificHeaders()).isEqualTo(expected);
+        assertThat(testee.getFeaturePayload().get().getRejectionCount()).isEqualTo(1);
+        assertThat(testee.getFeaturePayload().get().isAccepted()).isFalse();
+        verify(featurePayloadRejected, times(1)).increment();
+        mockServerClient.verify(HttpRequest.request()
+                .withPath("/email/classification/predict")
+                .withHeader("Content-Type", FeatureHasher.MEDIA_TYPE),
+            VerificationTimes.exactly(1));
+    }
+
+    @Test
+    public void wireFormatShouldBeJsonByDefault() throws Exception {
+        GuessClassificationMailet testee = new GuessClassificationMailet();
+
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, VALID_SERVICE_URL)
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .build());
+
+        assertThat(testee.getWireFormat()).isEqualTo(WireFormat.JSON);
+    }
+
+    @Test
+    public void initShouldThrowWhenWireFormatIsUnknown() throws Exception {
+        expectedException.expect(MessagingException.class);
+
+        GuessClassificationMailet testee = new GuessClassificationMailet();
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, VALID_SERVICE_URL)
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(WIRE_FORMAT, "protobuf")
+            .build());
+    }
+
+    @Test
+    public void http2TransportShouldBeDisabledByDefault() throws Exception {
+        GuessClassificationMailet testee = new GuessClassificationMailet();
+
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, VALID_SERVICE_URL)
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .build());
+
+        assertThat(testee.getHttp2Transport()).isEmpty();
+    }
+
+    @Test
+    public void http2TransportShouldBeStartedWhenConfigured() throws Exception {
+        GuessClassificationMailet testee = new GuessClassificationMailet();
+
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, VALID_SERVICE_URL)
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(TRANSPORT, "HTTP2")
+            .build());
+
+        try {
+            assertThat(testee.getHttp2Transport()).isPresent();
+        } finally {
+            testee.destroy();
+        }
+    }
+
+    @Test
+    public void initShouldThrowWhenTransportIsUnknown() throws Exception {
+        expectedException.expect(MessagingException.class);
+
+        GuessClassificationMailet testee = new GuessClassificationMailet();
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, VALID_SERVICE_URL)
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(TRANSPORT, "spdy")
+            .build());
+    }
+
+    @Test
+    public void initShouldThrowWhenHttp2MaxConnectionsPerEndpointIsZero() throws Exception {
+        expectedException.expect(MessagingException.class);
+
+        GuessClassificationMailet testee = new GuessClassificationMailet();
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, VALID_SERVICE_URL)
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(TRANSPORT, "http2")
+            .setProperty(HTTP2_MAX_CONNECTIONS_PER_ENDPOINT, "0")
+            .build());
+    }
+
+    @Test
+    public void serviceShouldExchangeSmileWhenWireFormatIsSmile() throws Exception {
+        ObjectMapper smileObjectMapper = WireFormat.SMILE.newObjectMapper();
+        mockServerClient
+            .when(HttpRequest.request()
+                .withMethod("POST")
+                .withPath("/email/classification/predict")
+                .withHeader("Content-Type", WireFormat.SMILE.getMediaType()))
+            .respond(HttpResponse.response()
+                .withHeader("Content-Type", WireFormat.SMILE.getMediaType())
+                .withBody(new BinaryBody(smileObjectMapper.writeValueAsBytes(new ObjectMapper().readTree(CLASSIFICATION_RESPONSE)))));
+
+        GuessClassificationMailet testee = new GuessClassificationMailet(new FakeUUIDGenerator());
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, "http://localhost:" + mockServerRule.getPort() + "/email/classification/predict")
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(WIRE_FORMAT, "smile")
+            .build());
+
+        FakeMail mail = cacheableMail();
+        testee.service(mail);
+
+        PerRecipientHeaders expected = new PerRecipientHeaders();
+        expected.addHeaderForRecipient(PerRecipientHeaders.Header.builder()
+                .name(HEADER_NAME_DEFAULT_VALUE)
+                .value("{\"mailboxId\":\"cfe49390-f391-11e6-88e7-ddd22b16a7b9\",\"mailboxName\":\"JAMES\",\"confidence\":50.07615280151367}")
+                .build(),
+            new MailAddress("user@james.org"));
+        assertThat(mail.getPerRecipientSpecificHeaders()).isEqualTo(expected);
+        mockServerClient.verify(HttpRequest.request()
+                .withPath("/email/classification/predict")
+                .withHeader("Accept", WireFormat.SMILE.getMediaType() + ", application/json;q=0.5"),
+            VerificationTimes.exactly(1));
+    }
+
+    @Test
+    public void serviceShouldReadJsonAnswerToSmileRequest() throws Exception {
+        mockServerClient
+            .when(HttpRequest.request()
+                .withMethod("POST")
+                .withPath("/email/classification/predict")
+                .withHeader("Content-Type", WireFormat.SMILE.getMediaType()))
+            .respond(HttpResponse.response(CLASSIFICATION_RESPONSE)
+                .withHeader("Content-Type", JSON_CONTENT_TYPE_UTF8));
+
+        GuessClassificationMailet testee = new GuessClassificationMailet(new FakeUUIDGenerator());
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, "http://localhost:" + mockServerRule.getPort() + "/email/classification/predict")
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(WIRE_FORMAT, "smile")
+            .build());
+
+        FakeMail mail = cacheableMail();
+        testee.service(mail);
+
+        PerRecipientHeaders expected = new PerRecipientHeaders();
+        expected.addHeaderForRecipient(PerRecipientHeaders.Header.builder()
+                .name(HEADER_NAME_DEFAULT_VALUE)
+                .value("{\"mailboxId\":\"cfe49390-f391-11e6-88e7-ddd22b16a7b9\",\"mailboxName\":\"JAMES\",\"confidence\":50.07615280151367}")
+                .build(),
+            new MailAddress("user@james.org"));
+        assertThat(mail.getPerRecipientSpecificHeaders()).isEqualTo(expected);
+    }
+
+    @Test
+    public void serviceShouldFallBackToJsonWhenWireFormatIsRejected() throws Exception {
+        mockServerClient
+            .when(HttpRequest.request()
+                .withMethod("POST")
+                .withPath("/email/classification/predict")
+                .withHeader("Content-Type", WireFormat.CBOR.getMediaType()))
+            .respond(HttpResponse.response().withStatusCode(415));
+        mockServerClient
+            .when(HttpRequest.request()
+                .withMethod("POST")
+                .withPath("/email/classification/predict"))
+            .respond(HttpResponse.response(CLASSIFICATION_RESPONSE));
+
+        Metric wireFormatRejected = mock(Metric.class);
+        MetricFactory metricFactory = mock(MetricFactory.class);
+        when(metricFactory.generate(anyString())).thenReturn(mock(Metric.class));
+        when(metricFactory.generate(ClassificationMetrics.WIRE_FORMAT_REJECTED)).thenReturn(wireFormatRejected);
+        when(metricFactory.timer(anyString())).thenReturn(mock(TimeMetric.class));
+        GuessClassificationMailet testee = new GuessClassificationMailet(new FakeUUIDGenerator(), metricFactory);
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, "http://localhost:" + mockServerRule.getPort() + "/email/classification/predict")
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(WIRE_FORMAT, "cbor")
+            .build());
+
+        FakeMail mail = cacheableMail();
+        testee.service(mail);
+        testee.service(cacheableMail("my other subject"));
+
+        PerRecipientHeaders expected = new PerRecipientHeaders();
+        expected.addHeaderForRecipient(PerRecipientHeaders.Header.builder()
+                .name(HEADER_NAME_DEFAULT_VALUE)
+                .value("{\"mailboxId\":\"cfe49390-f391-11e6-88e7-ddd22b16a7b9\",\"mailboxName\":\"JAMES\",\"confidence\":50.07615280151367}")
+                .build(),
+            new MailAddress("user@james.org"));
+        assertThat(mail.getPerRecipientSpecificHeaders()).isEqualTo(expected);
+        assertThat(testee.getWireFormatNegotiation().getRejectionCount()).isEqualTo(1);
+        verify(wireFormatRejected, times(1)).increment();
+        mockServerClient.verify(HttpRequest.request()
+                .withPath("/email/classification/predict")
+                .withHeader("Content-Type", WireFormat.CBOR.getMediaType()),
+            VerificationTimes.exactly(1));
+    }
+
+    private FakeMail cacheableMail() throws Exception {
+        return cacheableMail("my subject");
+    }
+
+    private FakeMail cacheableMail(String subject) throws Exception {
+        return FakeMail.builder()
+            .mimeMessage(MimeMessageBuilder.mimeMessageBuilder()
+                .addFrom(new InternetAddress("from@james.org", "From"))
+                .addToRecipient("to@james.org")
+                .setSubject(subject)
+                .setText("this is my body")
+                .build())
+            .recipients(new MailAddress("user@james.org"))
+            .build();
+    }
+
+    private FakeMailetConfig affinityConfig() {
+        return FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, "http://localhost:" + mockServerRule.getPort() + "/email/classification/predict")
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(AFFINITY_MAX_ENTRIES, "1000")
+            .setProperty(AFFINITY_MIN_HIT_STREAK, "2")
+            .setProperty(AFFINITY_MIN_CONFIDENCE, "50")
+            .setProperty(AFFINITY_VERIFICATION_PERCENTAGE, "0")
+            .build();
+    }
+
+    private FakeMail affinityMail(String subject) throws Exception {
+        return FakeMail.builder()
+            .mimeMessage(MimeMessageBuilder.mimeMessageBuilder()
+                .addFrom(new InternetAddress("from@james.org", "From"))
+                .addToRecipient("to@james.org")
+                .setSubject(subject)
+                .setText("this is my body")
+                .build())
+            .sender(new MailAddress("from@james.org"))
+            .recipients(new MailAddress("user@james.org"))
+            .build();
+    }
+
+    private static class AwaitCallback extends HttpCallback {
+        AwaitCallback(int timeoutInMs) {
+            try {
+                Thread.sleep(timeoutInMs);
+            } catch (InterruptedException e) {
+                Throwables.propagate(e);
+            }
+        }
+    }
+
+    @Test
+    public void serviceShouldLogAndNotThrowWhenExceptionOccured() throws Exception {
+
+        FakeMailetConfig config = FakeMailetConfig.builder()
+                .setProperty(SERVICE_URL, "http://localhost:" + mockServerRule.getPort() + "/email/classification/predict")
+                .setProperty(SERVICE_USERNAME, "username")
+                .setProperty(SERVICE_PASSWORD, "password")
+                .build();
+        GuessClassificationMailet testee = new GuessClassificationMailet(new FakeUUIDGenerator());
+        testee.init(config);
+        // Throws NPE in service method
+
+        MemoryAppender memoryAppender = new MemoryAppender();
+        ((Logger) GuessClassificationMailet.LOGGER).addAppender(memoryAppender);
+        memoryAppender.start();
+
+        FakeMail mail = FakeMail.builder()
+            .mimeMessage(MimeMessageBuilder.mimeMessageBuilder()
+                .addFrom(new InternetAddress("from@james.org", "From"))
+                .addToRecipient("to@james.org")
+                .addCcRecipient("cc@james.org")
+                .setSubject("my subject")
+                .setText("this is my body")
+                .build())
+            .recipients(new MailAddress("to@james.org"), new MailAddress("cc@james.org"))
+            .build();
+
+        testee.service(mail);
+        
+        assertThat(memoryAppender.getEvents()).contains("Exception while calling Classification API");
+    }
+
+    @Test
+    public void recipientsInBodyShouldDefaultToFalse() throws Exception {
+        GuessClassificationMailet testee = new GuessClassificationMailet();
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, VALID_SERVICE_URL)
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .build());
+
+        assertThat(testee.recipientsInBody).isFalse();
+        assertThat(testee.recipientChunkSize).isEmpty();
+        assertThat(testee.onlyLocalRecipients).isFalse();
+    }
+
+    @Test
+    public void initShouldThrowWhenRecipientChunkSizeIsZero() throws Exception {
+        expectedException.expect(MessagingException.class);
+
+        GuessClassificationMailet testee = new GuessClassificationMailet();
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, VALID_SERVICE_URL)
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(RECIPIENT_CHUNK_SIZE, "0")
+            .build());
+    }
+
+    @Test
+    public void serviceShouldSendRecipientsInBodyWhenConfigured() throws Exception {
+        mockServerClient
+            .when(HttpRequest.request()
+                    .withMethod("POST")
+                    .withPath("/email/classification/predict")
+                    .withBody("{\"messageId\":\"524e4f85-2d2f-4927-ab98-bd7a2f689773\"," +
+                        "\"from\":[{\"name\":\"From\",\"address\":\"from@james.org\"}]," +
+                        "\"recipients\":{\"to\":[{\"name\":null,\"address\":\"to@james.org\"}]," +
+                        "\"cc\":[{\"name\":null,\"address\":\"cc@james.org\"}]," +
+                        "\"bcc\":[]}," +
+                        "\"subject\":[\"my subject\"]," +
+                        "\"textBody\":\"this is my body\"," +
+                        "\"date\":null," +
+                        "\"mailRecipients\":[\"to@james.org\",\"cc@james.org\"]}"),
+                Times.exactly(1))
+            .respond(HttpResponse.response(twoRecipientsResponse()));
+
+        GuessClassificationMailet testee = new GuessClassificationMailet(new FakeUUIDGenerator());
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, "http://localhost:" + mockServerRule.getPort() + "/email/classification/predict")
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(RECIPIENTS_IN_BODY, "true")
+            .build());
+
+        FakeMail mail = twoRecipientsMail();
+        testee.service(mail);
+
+        assertThat(mail.getPerRecipientSpecificHeaders()).isEqualTo(twoRecipientsHeaders());
+    }
+
+    @Test
+    public void serviceShouldSendRecipientsInBodyWhenTheUrlWouldBeTooLong() throws Exception {
+        mockServerClient
+            .when(HttpRequest.request()
+                    .withMethod("POST")
+                    .withPath("/email/classification/predict"),
+                Times.exactly(1))
+            .respond(HttpResponse.response("{\"results\":{},\"errors\":{}}"));
+
+        GuessClassificationMailet testee = new GuessClassificationMailet(new FakeUUIDGenerator());
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, "http://localhost:" + mockServerRule.getPort() + "/email/classification/predict")
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .build());
+
+        List<MailAddress> recipients = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            recipients.add(new MailAddress("user" + i + "@james.org"));
+        }
+        FakeMail mail = FakeMail.builder()
+            .mimeMessage(MimeMessageBuilder.mimeMessageBuilder()
+                .addFrom(new InternetAddress("from@james.org", "From"))
+                .setSubject("my subject")
+                .setText("this is my body")
+                .build())
+            .recipients(recipients.toArray(new MailAddress[0]))
+            .build();
+        testee.service(mail);
+
+        HttpRequest[] requests = mockServerClient.retrieveRecordedRequests(HttpRequest.request()
+            .withPath("/email/classification/predict"));
+        assertThat(requests).hasSize(1);
+        assertThat(requests[0].getQueryStringParameters()).isEmpty();
+        assertThat(requests[0].getBodyAsString())
+            .contains("\"mailRecipients\":[\"user0@james.org\",\"user1@james.org\",")
+            .contains("\"user99@james.org\"]");
+    }
+
+    @Test
+    public void serviceShouldClassifyRecipientChunksSeparately() throws Exception {
+        mockServerClient
+            .when(HttpRequest.request()
+                    .withMethod("POST")
+                    .withPath("/email/classification/predict")
+                    .withQueryStringParameter(new Parameter("recipients", "to@james.org")),
+                Times.exactly(1))
+            .respond(HttpResponse.response("{\"results\":{\"to@james.org\":{" +
+                "\"mailboxId\":\"cfe49390-f391-11e6-88e7-ddd22b16a7b9\"," +
+                "\"mailboxName\":\"JAMES\"," +
+                "\"confidence\":50.07615280151367}},\"errors\":{}}"));
+        mockServerClient
+            .when(HttpRequest.request()
+                    .withMethod("POST")
+                    .withPath("/email/classification/predict")
+                    .withQueryStringParameter(new Parameter("recipients", "cc@james.org")),
+                Times.exactly(1))
+            .respond(HttpResponse.response("{\"results\":{\"cc@james.org\":{" +
+                "\"mailboxId\":\"35131515-5455-5555-5555-488784511515\"," +
+                "\"mailboxName\":\"README\"," +
+                "\"confidence\":50.07615280151367}},\"errors\":{}}"));
+
+        GuessClassificationMailet testee = new GuessClassificationMailet(new FakeUUIDGenerator());
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, "http://localhost:" + mockServerRule.getPort() + "/email/classification/predict")
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(RECIPIENT_CHUNK_SIZE, "1")
+            .build());
+
+        FakeMail mail = twoRecipientsMail();
+        testee.service(mail);
+
+        assertThat(mail.getPerRecipientSpecificHeaders()).isEqualTo(twoRecipientsHeaders());
+    }
+
+    @Test
+    public void serviceShouldNotAddHeadersWhenARecipientChunkFails() throws Exception {
+        mockServerClient
+            .when(HttpRequest.request()
+                    .withMethod("POST")
+                    .withPath("/email/classification/predict")
+                    .withQueryStringParameter(new Parameter("recipients", "to@james.org")),
+                Times.exactly(1))
+            .respond(HttpResponse.response(twoRecipientsResponse()));
+        mockServerClient
+            .when(HttpRequest.request()
+                    .withMethod("POST")
+                    .withPath("/email/classification/predict")
+                    .withQueryStringParameter(new Parameter("recipients", "cc@james.org")),
+                Times.exactly(1))
+            .respond(HttpResponse.response().withStatusCode(500));
+
+        GuessClassificationMailet testee = new GuessClassificationMailet(new FakeUUIDGenerator());
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, "http://localhost:" + mockServerRule.getPort() + "/email/classification/predict")
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(RECIPIENT_CHUNK_SIZE, "1")
+            .build());
+
+        FakeMail mail = twoRecipientsMail();
+        testee.service(mail);
+
+        assertThat(mail.getPerRecipientSpecificHeaders()).isEqualTo(new PerRecipientHeaders());
+    }
+
+    @Test
+    public void serviceShouldOnlyClassifyLocalRecipientsWhenConfigured() throws Exception {
+        HttpRequest classificationRequest = HttpRequest.request()
+            .withMethod("POST")
+            .withPath("/email/classification/predict")
+            .withQueryStringParameter(new Parameter("recipients", "to@james.org"));
+        mockServerClient
+            .when(classificationRequest, Times.exactly(1))
+            .respond(HttpResponse.response(twoRecipientsResponse()));
+        MailetContext mailetContext = mock(MailetContext.class);
+        when(mailetContext.isLocalEmail(new MailAddress("to@james.org"))).thenReturn(true);
+        when(mailetContext.isLocalEmail(new MailAddress("cc@james.org"))).thenReturn(false);
+
+        GuessClassificationMailet testee = new GuessClassificationMailet(new FakeUUIDGenerator());
+        testee.init(FakeMailetConfig.builder()
+            .mailetContext(mailetContext)
+            .setProperty(SERVICE_URL, "http://localhost:" + mockServerRule.getPort() + "/email/classification/predict")
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(ONLY_LOCAL_RECIPIENTS, "true")
+            .build());
+
+        testee.service(twoRecipientsMail());
+
+        mockServerClient.verify(HttpRequest.request()
+                .withMethod("POST")
+                .withPath("/email/classification/predict")
+                .withQueryStringParameter(new Parameter("recipients", "cc@james.org")),
+            VerificationTimes.exactly(0));
+        mockServerClient.verify(classificationRequest, VerificationTimes.exactly(1));
+    }
+
+    @Test
+    public void serviceShouldNotCallTheServiceWhenNoRecipientIsLocal() throws Exception {
+        MailetContext mailetContext = mock(MailetContext.class);
+
+        GuessClassificationMailet testee = new GuessClassificationMailet(new FakeUUIDGenerator());
+        testee.init(FakeMailetConfig.builder()
+            .mailetContext(mailetContext)
+            .setProperty(SERVICE_URL, "http://localhost:" + mockServerRule.getPort() + "/email/classification/predict")
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(ONLY_LOCAL_RECIPIENTS, "true")
+            .build());
+
+        FakeMail mail = twoRecipientsMail();
+        testee.service(mail);
+
+        mockServerClient.verify(HttpRequest.request().withPath("/email/classification/predict"), VerificationTimes.exactly(0));
+        assertThat(mail.getPerRecipientSpecificHeaders()).isEqualTo(new PerRecipientHeaders());
+    }
+
+    @Test
+    public void addHeadersShouldShareTheHeaderOfIdenticalGuesses() throws Exception {
+        GuessClassificationMailet testee = new GuessClassificationMailet();
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, VALID_SERVICE_URL)
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .build());
+        ClassificationGuess guess = ClassificationGuess.builder()
+            .mailboxId("cfe49390-f391-11e6-88e7-ddd22b16a7b9")
+            .mailboxName("JAMES")
+            .confidence(50.07615280151367)
+            .build();
+        FakeMail mail = twoRecipientsMail();
+
+        testee.addHeaders(mail, ImmutableMap.of("to@james.org", guess, "cc@james.org", guess));
+
+        PerRecipientHeaders.Header header = PerRecipientHeaders.Header.builder()
+            .name(HEADER_NAME_DEFAULT_VALUE)
+            .value("{\"mailboxId\":\"cfe49390-f391-11e6-88e7-ddd22b16a7b9\",\"mailboxName\":\"JAMES\",\"confidence\":50.07615280151367}")
+            .build();
+        PerRecipientHeaders expected = new PerRecipientHeaders();
+        expected.addHeaderForRecipient(header, new MailAddress("to@james.org"));
+        expected.addHeaderForRecipient(header, new MailAddress("cc@james.org"));
+        assertThat(mail.getPerRecipientSpecificHeaders()).isEqualTo(expected);
+    }
+
+    @Test
+    public void serviceShouldPublishPhaseTimersAndSuccess() throws Exception {
+        mockServerClient
+            .when(HttpRequest.request()
+                    .withMethod("POST")
+                    .withPath("/email/classification/predict"),
+                Times.exactly(1))
+            .respond(HttpResponse.response(twoRecipientsResponse()));
+        Map<String, Metric> metrics = new HashMap<>();
+        Map<String, TimeMetric> timers = new HashMap<>();
+
+        GuessClassificationMailet testee = new GuessClassificationMailet(new FakeUUIDGenerator(), recordingMetricFactory(metrics, timers));
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, "http://localhost:" + mockServerRule.getPort() + "/email/classification/predict")
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .build());
+
+        testee.service(twoRecipientsMail());
+
+        assertThat(timers).containsOnlyKeys(ClassificationMetrics.MIME_EXTRACTION,
+            ClassificationMetrics.SERIALIZATION,
+            ClassificationMetrics.HTTP_ROUND_TRIP,
+            ClassificationMetrics.RESPONSE_PARSING,
+            ClassificationMetrics.HEADER_ATTACHMENT,
+            ClassificationMetrics.forEndpoint(ClassificationMetrics.ENDPOINT_LATENCY, new HttpHost("localhost", mockServerRule.getPort())));
+        timers.values().forEach(timer -> verify(timer).stopAndPublish());
+        verify(metrics.get(ClassificationMetrics.SUCCESS)).increment();
+        verify(metrics.get(ClassificationMetrics.RECIPIENTS_PER_MAIL + "-le-2")).increment();
+        verify(metrics.get(ClassificationMetrics.TEXT_BODY_LENGTH + "-le-256")).increment();
+        verify(metrics.get(ClassificationMetrics.REQUEST_PAYLOAD_SIZE + "-le-1024")).increment();
+    }
+
+    @Test
+    public void serviceShouldCountHttpErrors() throws Exception {
+        mockServerClient
+            .when(HttpRequest.request()
+                    .withMethod("POST")
+                    .withPath("/email/classification/predict"),
+                Times.exactly(1))
+            .respond(HttpResponse.response().withStatusCode(500));
+        Map<String, Metric> metrics = new HashMap<>();
+
+        GuessClassificationMailet testee = new GuessClassificationMailet(new FakeUUIDGenerator(), recordingMetricFactory(metrics, new HashMap<>()));
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, "http://localhost:" + mockServerRule.getPort() + "/email/classification/predict")
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .build());
+
+        testee.service(twoRecipientsMail());
+
+        verify(metrics.get(ClassificationMetrics.HTTP_ERROR)).increment();
+        verify(metrics.get(ClassificationMetrics.SUCCESS), never()).increment();
+    }
+
+    @Test
+    public void serviceShouldCountParseErrors() throws Exception {
+        mockServerClient
+            .when(HttpRequest.request()
+                    .withMethod("POST")
+                    .withPath("/email/classification/predict"),
+                Times.exactly(1))
+            .respond(HttpResponse.response("{\"results\":"));
+        Map<String, Metric> metrics = new HashMap<>();
+
+        GuessClassificationMailet testee = new GuessClassificationMailet(new FakeUUIDGenerator(), recordingMetricFactory(metrics, new HashMap<>()));
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, "http://localhost:" + mockServerRule.getPort() + "/email/classification/predict")
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .build());
+
+        testee.service(twoRecipientsMail());
+
+        verify(metrics.get(ClassificationMetrics.PARSE_ERROR)).increment();
+        verify(metrics.get(ClassificationMetrics.SUCCESS), never()).increment();
+    }
+
+    @Test
+    public void serviceShouldNotCacheUnparsableAnswers() throws Exception {
+        HttpRequest classificationRequest = HttpRequest.request()
+            .withMethod("POST")
+            .withPath("/email/classification/predict");
+        mockServerClient
+            .when(classificationRequest)
+            .respond(HttpResponse.response("{\"results\":"));
+
+        GuessClassificationMailet testee = new GuessClassificationMailet(new FakeUUIDGenerator());
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, "http://localhost:" + mockServerRule.getPort() + "/email/classification/predict")
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(CACHE_MAX_WEIGHT_IN_BYTES, "1048576")
+            .build());
+
+        testee.service(cacheableMail());
+        testee.service(cacheableMail());
+
+        mockServerClient.verify(classificationRequest, VerificationTimes.exactly(2));
+    }
+
+    @Test
+    public void serviceShouldCountTimeouts() throws Exception {
+        int timeoutInMs = 10;
+        mockServerClient
+            .when(HttpRequest.request()
+                    .withMethod("POST")
+                    .withPath("/email/classification/predict"),
+                Times.exactly(1))
+            .respond(HttpResponse.response("{\"results\":{},\"errors\":{}}")
+                .withDelay(new Delay(TimeUnit.SECONDS, 5)));
+        Map<String, Metric> metrics = new HashMap<>();
+
+        GuessClassificationMailet testee = new GuessClassificationMailet(new FakeUUIDGenerator(), recordingMetricFactory(metrics, new HashMap<>()));
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, "http://localhost:" + mockServerRule.getPort() + "/email/classification/predict")
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(TIMEOUT_IN_MS, String.valueOf(timeoutInMs))
+            .build());
+
+        testee.service(twoRecipientsMail());
+
+        verify(metrics.get(ClassificationMetrics.TIMEOUT)).increment();
+        verify(metrics.get(ClassificationMetrics.SUCCESS), never()).increment();
+    }
+
+    @Test
+    public void serviceShouldCountSkippedRecipients() throws Exception {
+        Map<String, Metric> metrics = new HashMap<>();
+
+        GuessClassificationMailet testee = new GuessClassificationMailet(new FakeUUIDGenerator(), recordingMetricFactory(metrics, new HashMap<>()));
+        testee.init(FakeMailetConfig.builder()
+            .mailetContext(mock(MailetContext.class))
+            .setProperty(SERVICE_URL, "http://localhost:" + mockServerRule.getPort() + "/email/classification/predict")
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(ONLY_LOCAL_RECIPIENTS, "true")
+            .build());
+
+        testee.service(twoRecipientsMail());
+
+        verify(metrics.get(ClassificationMetrics.SKIPPED_RECIPIENTS)).add(2);
+    }
+
+    @Test
+    public void initShouldThrowWhenSlowClassificationThresholdIsZero() throws Exception {
+        expectedException.expect(MessagingException.class);
+
+        GuessClassificationMailet testee = new GuessClassificationMailet();
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, VALID_SERVICE_URL)
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(SLOW_CLASSIFICATION_THRESHOLD_IN_MS, "0")
+            .build());
+    }
+
+    @Test
+    public void serviceShouldStoreSlowClassificationBreakdownWhenConfigured() throws Exception {
+        mockServerClient
+            .when(HttpRequest.request()
+                    .withMethod("POST")
+                    .withPath("/email/classification/predict"),
+                Times.exactly(1))
+            .respond(HttpResponse.response(twoRecipientsResponse())
+                .withDelay(new Delay(TimeUnit.MILLISECONDS, 50)));
+
+        GuessClassificationMailet testee = new GuessClassificationMailet(new FakeUUIDGenerator());
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, "http://localhost:" + mockServerRule.getPort() + "/email/classification/predict")
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(SLOW_CLASSIFICATION_THRESHOLD_IN_MS, "20")
+            .setProperty(SLOW_CLASSIFICATION_ATTRIBUTE, "classification-timings")
+            .build());
+
+        FakeMail mail = twoRecipientsMail();
+        testee.service(mail);
+
+        assertThat(mail.getPerRecipientSpecificHeaders()).isEqualTo(twoRecipientsHeaders());
+        @SuppressWarnings("unchecked")
+        Map<String, Long> breakdown = (Map<String, Long>) mail.getAttribute("classification-timings");
+        assertThat(breakdown).containsKeys("total", "mimeExtraction", "serialization", "httpRoundTrip", "responseParsing", "headerAttachment");
+        assertThat(breakdown.get("httpRoundTrip")).isGreaterThanOrEqualTo(50);
+    }
+
+    @Test
+    public void serviceShouldNotStoreBreakdownOfFastClassifications() throws Exception {
+        mockServerClient
+            .when(HttpRequest.request()
+                    .withMethod("POST")
+                    .withPath("/email/classification/predict"),
+                Times.exactly(1))
+            .respond(HttpResponse.response(twoRecipientsResponse()));
+
+        GuessClassificationMailet testee = new GuessClassificationMailet(new FakeUUIDGenerator());
+        testee.init(FakeMailetConfig.builder()
+            .setProperty(SERVICE_URL, "http://localhost:" + mockServerRule.getPort() + "/email/classification/predict")
+            .setProperty(SERVICE_USERNAME, "username")
+            .setProperty(SERVICE_PASSWORD, "password")
+            .setProperty(SLOW_CLASSIFICATION_THRESHOLD_IN_MS, "10000")
+            .setProperty(SLOW_CLASSIFICATION_ATTRIBUTE, "classification-timings")
+            .build());
+
+        FakeMail mail = twoRecipientsMail();
+        testee.service(mail);
+
+        assertThat(mail.getAttribute("classification-timings")).isNull();
+    }
+
+    private MetricFactory recordingMetricFactory(Map<String, Metric> metrics, Map<String, TimeMetric> timers) {
+        MetricFactory metricFactory = mock(MetricFactory.class);
+        when(metricFactory.generate(anyString()))
+            .thenAnswer(invocation -> metrics.computeIfAbsent((String) invocation.getArguments()[0], name -> mock(Metric.class)));
+        when(metricFactory.timer(anyString()))
+            .thenAnswer(invocation -> timers.computeIfAbsent((String) invocation.getArguments()[0], name -> mock(TimeMetric.class)));
+        return metricFactory;
+    }
+
+    private String twoRecipientsResponse() {
+        return "{\"results\":" +
+            "{\"to@james.org\":{" +
+            "    \"mailboxId\":\"cfe49390-f391-11e6-88e7-ddd22b16a7b9\"," +
+            "    \"mailboxName\":\"JAMES\"," +
+            "    \"confidence\":50.07615280151367}," +
+            "\"cc@james.org\":{" +
+            "    \"mailboxId\":\"35131515-5455-5555-5555-488784511515\"," +
+            "    \"mailboxName\":\"README\"," +
+            "    \"confidence\":50.07615280151367}" +
+            "}," +
+            "\"errors\":{}}";
+    }
+
+    private FakeMail twoRecipientsMail() throws Exception {
+        return FakeMail.builder()
+            .mimeMessage(MimeMessageBuilder.mimeMessageBuilder()
+                .addFrom(new InternetAddress("from@james.org", "From"))
+                .addToRecipient("to@james.org")
+                .addCcRecipient("cc@james.org")
+                .setSubject("my subject")
+                .setText("this is my body")
+                .build())
+            .recipients(new MailAddress("to@james.org"), new MailAddress("cc@james.org"))
+            .build();
+    }
+
+    private PerRecipientHeaders twoRecipientsHeaders() throws Exception {
+        PerRecipientHeaders expected = new PerRecipientHeaders();
+        expected.addHeaderForRecipient(PerRecipientHeaders.Header.builder()
+                .name(HEADER_NAME_DEFAULT_VALUE)
+                .value("{\"mailboxId\":\"cfe49390-f391-11e6-88e7-ddd22b16a7b9\",\"mailboxName\":\"JAMES\",\"confidence\":50.07615280151367}")
+                .build(),
+            new MailAddress("to@james.org"));
+        expected.addHeaderForRecipient(PerRecipientHeaders.Header.builder()
+                .name(HEADER_NAME_DEFAULT_VALUE)
+                .value("{\"mailboxId\":\"35131515-5455-5555-5555-488784511515\",\"mailboxName\":\"README\",\"confidence\":50.07615280151367}")
+                .build(),
+            new MailAddress("cc@james.org"));
+        return expected;
     }
 
     private static class MemoryAppender extends AppenderBase<ILoggingEvent> {
@@ -0,0 +1,213 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.james.metrics.api.NoopMetricFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import com.jayway.awaitility.Awaitility;
+import com.jayway.awaitility.Duration;
+
+public class HedgingTest {
+
+    private static final long DELAY_IN_MS = 10;
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private ScheduledExecutorService scheduler;
+    private Hedging testee;
+
+    @Before
+    public void setUp() {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        testee = hedging(Hedging.Mode.FIXED, 100);
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void constructorShouldThrowWhenModeIsNone() {
+        expectedException.expect(IllegalArgumentException.class);
+
+        hedging(Hedging.Mode.NONE, 100);
+    }
+
+    @Test
+    public void executeShouldUseHedgeWhenPrimaryDoesNotAnswer() throws Exception {
+        CompletableFuture<String> primary = new CompletableFuture<>();
+
+        String result = testee.execute(primary, () -> CompletableFuture.completedFuture("hedge"))
+            .get(1, TimeUnit.SECONDS);
+
+        assertThat(result).isEqualTo("hedge");
+        assertThat(testee.getHedgeCount()).isEqualTo(1);
+        Awaitility.await()
+            .atMost(Duration.ONE_SECOND)
+            .until(primary::isCancelled);
+    }
+
+    @Test
+    public void executeShouldNotHedgeWhenPrimaryAnswersInTime() throws Exception {
+        CompletableFuture<String> primary = CompletableFuture.completedFuture("primary");
+
+        String result = testee.execute(primary, () -> CompletableFuture.completedFuture("hedge")).get();
+        Thread.sleep(DELAY_IN_MS * 5);
+
+        assertThat(result).isEqualTo("primary");
+        assertThat(testee.getHedgeCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void executeShouldCancelHedgeWhenPrimaryAnswersFirst() throws Exception {
+        CompletableFuture<String> primary = new CompletableFuture<>();
+        CompletableFuture<String> hedge = new CompletableFuture<>();
+        CompletableFuture<String> result = testee.execute(primary, () -> hedge);
+        Awaitility.await()
+            .atMost(Duration.ONE_SECOND)
+            .until(() -> testee.getHedgeCount() == 1);
+
+        primary.complete("primary");
+
+        assertThat(result.get()).isEqualTo("primary");
+        assertThat(hedge.isCancelled()).isTrue();
+    }
+
+    @Test
+    public void executeShouldWaitForHedgeWhenPrimaryFails() throws Exception {
+        CompletableFuture<String> primary = new CompletableFuture<>();
+        CompletableFuture<String> hedge = new CompletableFuture<>();
+        CompletableFuture<String> result = testee.execute(primary, () -> hedge);
+        Awaitility.await()
+            .atMost(Duration.ONE_SECOND)
+            .until(() -> testee.getHedgeCount() == 1);
+
+        primary.completeExceptionally(new IOException("failure"));
+        hedge.complete("hedge");
+
+        assertThat(result.get()).isEqualTo("hedge");
+    }
+
+    @Test
+    public void executeShouldFailWhenBothAttemptsFail() throws Exception {
+        CompletableFuture<String> primary = new CompletableFuture<>();
+        CompletableFuture<String> hedge = new CompletableFuture<>();
+        CompletableFuture<String> result = testee.execute(primary, () -> hedge);
+        Awaitility.await()
+            .atMost(Duration.ONE_SECOND)
+            .until(() -> testee.getHedgeCount() == 1);
+
+        primary.completeExceptionally(new IOException("primary failure"));
+        hedge.completeExceptionally(new IOException("hedge failure"));
+
+        expectedException.expect(ExecutionException.class);
+        expectedException.expectMessage("primary failure");
+        result.get();
+    }
+
+    @Test
+    public void executeShouldFailWithoutWaitingForHedgeWhenPrimaryTimesOut() throws Exception {
+        CompletableFuture<String> primary = new CompletableFuture<>();
+        CompletableFuture<String> hedge = new CompletableFuture<>();
+        CompletableFuture<String> result = testee.execute(primary, () -> hedge);
+        Awaitility.await()
+            .atMost(Duration.ONE_SECOND)
+            .until(() -> testee.getHedgeCount() == 1);
+
+        primary.completeExceptionally(new TimeoutException());
+
+        assertThat(result.isCompletedExceptionally()).isTrue();
+        assertThat(hedge.isCancelled()).isTrue();
+    }
+
+    @Test
+    public void executeShouldNotHedgeMoreThanBudget() throws Exception {
+        Hedging testee = hedging(Hedging.Mode.FIXED, 10);
+
+        for (int i = 0; i < 100; i++) {
+            testee.execute(new CompletableFuture<String>(), () -> CompletableFuture.completedFuture("hedge"));
+        }
+
+        Thread.sleep(DELAY_IN_MS * 10);
+        assertThat(testee.getHedgeCount()).isEqualTo(10);
+    }
+
+    @Test
+    public void hedgeDelayShouldBeFixedDelayUntilEnoughLatenciesWereObserved() {
+        Hedging testee = hedging(Hedging.Mode.P95, 100);
+
+        assertThat(testee.hedgeDelayInMs()).isEqualTo(DELAY_IN_MS);
+    }
+
+    @Test
+    public void p95ShouldBeTheNinetyFifthPercentileOfObservedLatencies() {
+        Hedging.LatencyWindow latencies = new Hedging.LatencyWindow();
+
+        for (int i = 1; i <= 200; i++) {
+            latencies.record(i);
+        }
+
+        assertThat(latencies.p95().getAsLong()).isEqualTo(190);
+    }
+
+    @Test
+    public void p95ShouldBeEmptyWithTooFewSamples() {
+        Hedging.LatencyWindow latencies = new Hedging.LatencyWindow();
+
+        latencies.record(10);
+
+        assertThat(latencies.p95().isPresent()).isFalse();
+    }
+
+    @Test
+    public void budgetShouldCapSavedUpHedges() {
+        Hedging.Budget budget = new Hedging.Budget(100);
+
+        for (int i = 0; i < 100; i++) {
+            budget.onRequest();
+        }
+
+        long acquired = 0;
+        while (budget.tryAcquire()) {
+            acquired++;
+        }
+        assertThat(acquired).isEqualTo(Hedging.Budget.MAX_BURST);
+    }
+
+    private Hedging hedging(Hedging.Mode mode, int budgetPercentage) {
+        return new Hedging(mode, DELAY_IN_MS, budgetPercentage, scheduler, new ClassificationMetrics(new NoopMetricFactory()));
+    }
+}
@@ -0,0 +1,422 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+package com.linagora.james.mailets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.internet.InternetAddress;
+import javax.net.ssl.SSLHandshakeException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
+import org.apache.mailet.MailAddress;
+import org.apache.mailet.PerRecipientHeaders;
+import org.apache.mailet.base.test.FakeMail;
+import org.apache.mailet.base.test.FakeMailetConfig;
+import org.apache.mailet.base.test.MimeMessageBuilder;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.io.Connection;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Resources;
+import com.linagora.james.mailets.json.FakeUUIDGenerator;
+
+public class Http2TransportTest {
+
+    private static final String CLASSIFICATION_RESPONSE = "{\"results\":" +
+        "{\"user@james.org\":{" +
+        "    \"mailboxId\":\"cfe49390-f391-11e6-88e7-ddd22b16a7b9\"," +
+        "    \"mailboxName\":\"JAMES\"," +
+        "    \"confidence\":50.07615280151367}" +
+        "}," +
+        "\"errors\":{}}";
+    private static final int TIMEOUT_IN_MS = 500;
+    private static final String LOCALHOST_KEYSTORE = "localhost-keystore";
+    private static final String LOCALHOST_KEYSTORE_PASSWORD = "localhost-password";
+
+    private Server server;
+    private ServerConnector connector;
+    private AtomicInteger openedConnections;
+    private List<String> protocols;
+    private List<String> authorizations;
+    private CountDownLatch slowRequestsRelease;
+    private CountDownLatch handlerCalls;
+    private AtomicBoolean handlerCalledBeforeAnswerEnd;
+    private ExecutorService executor;
+    private Http2Transport testee;
+
+    @Before
+    public void setUp() throws Exception {
+        openedConnections = new AtomicInteger();
+        protocols = new CopyOnWriteArrayList<>();
+        authorizations = new CopyOnWriteArrayList<>();
+        slowRequestsRelease = new CountDownLatch(1);
+        handlerCalls = new CountDownLatch(1);
+        handlerCalledBeforeAnswerEnd = new AtomicBoolean();
+
+        server = new Server();
+        connector = new ServerConnector(server, new HTTP2CServerConnectionFactory(new HttpConfiguration()));
+        connector.setPort(0);
+        connector.addBean(new Connection.Listener.Adapter() {
+            @Override
+            public void onOpened(Connection connection) {
+                openedConnections.incrementAndGet();
+            }
+        });
+        server.addConnector(connector);
+        server.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+                protocols.add(request.getProtocol());
+                authorizations.add(request.getHeader("Authorization"));
+                long requestLength = ByteStreams.copy(request.getInputStream(), ByteStreams.nullOutputStream());
+                if (target.equals("/slow")) {
+                    awaitRelease();
+                }
+                if (target.equals("/length")) {
+                    response.getWriter().print(requestLength);
+                    baseRequest.setHandled(true);
+                    return;
+                }
+                if (target.equals("/empty")) {
+                    baseRequest.setHandled(true);
+                    return;
+                }
+                response.setContentType("application/json");
+                if (target.equals("/streamed")) {
+                    response.getOutputStream().write(CLASSIFICATION_RESPONSE.substring(0, 1).getBytes(StandardCharsets.UTF_8));
+                    response.flushBuffer();
+                    handlerCalledBeforeAnswerEnd.set(awaitHandlerCall());
+                    response.getOutputStream().write(CLASSIFICATION_RESPONSE.substring(1).getBytes(StandardCharsets.UTF_8));
+                    baseRequest.setHandled(true);
+                    return;
+                }
+                response.getOutputStream().write(CLASSIFICATION_RESPONSE.getBytes(StandardCharsets.UTF_8));
+                baseRequest.setHandled(true);
+            }
+        });
+        server.start();
+
+        executor = Executors.newCachedThreadPool();
+        testee = new Http2Transport(1, TIMEOUT_IN_MS, "username", "password", executor);
+    }
+
+    private boolean awaitHandlerCall() {
+        try {
+            return handlerCalls.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void awaitRelease() {
+        try {
+            slowRequestsRelease.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        slowRequestsRelease.countDown();
+        testee.close();
+        executor.shutdownNow();
+        server.stop();
+    }
+
+    @Test
+    public void executeShouldReturnTheHandledAnswer() throws Exception {
+        String answer = testee.execute(post("/predict"), response -> EntityUtils.toString(response.getEntity())).get();
+
+        assertThat(answer).isEqualTo(CLASSIFICATION_RESPONSE);
+    }
+
+    @Test
+    public void executeShouldStreamLargeRequestBodies() throws Exception {
+        int length = 10 * 1024 * 1024;
+        HttpPost post = new HttpPost("http://localhost:" + connector.getLocalPort() + "/length");
+        post.setEntity(new ByteArrayEntity(new byte[length], ContentType.APPLICATION_OCTET_STREAM));
+
+        String receivedLength;
+        try (Http2Transport patientTransport = new Http2Transport(1, TimeUnit.SECONDS.toMillis(30), "username", "password", executor)) {
+            receivedLength = patientTransport.execute(post, response -> EntityUtils.toString(response.getEntity())).get();
+        }
+
+        assertThat(receivedLength).isEqualTo(String.valueOf(length));
+    }
+
+    @Test
+    public void executeShouldHandleTheAnswerWhileItIsReceived() throws Exception {
+        String answer = testee.execute(post("/streamed"), response -> {
+            handlerCalls.countDown();
+            return EntityUtils.toString(response.getEntity());
+        }).get();
+
+        assertThat(answer).isEqualTo(CLASSIFICATION_RESPONSE);
+        assertThat(handlerCalledBeforeAnswerEnd.get()).isTrue();
+    }
+
+    @Test
+    public void executeShouldNotExposeAnEntityWhenTheAnswerIsEmpty() throws Exception {
+        boolean hasEntity = testee.execute(post("/empty"), response -> response.getEntity() != null).get();
+
+        assertThat(hasEntity).isFalse();
+    }
+
+    @Test
+    public void executeShouldTalkHttp2WithoutUpgrade() throws Exception {
+        testee.execute(post("/predict"), response -> response.getStatusLine().getProtocolVersion()).get();
+
+        assertThat(protocols).containsExactly("HTTP/2.0");
+    }
+
+    @Test
+    public void executeShouldAuthenticatePreemptively() throws Exception {
+        testee.execute(post("/predict"), response -> response.getStatusLine().getStatusCode()).get();
+
+        assertThat(authorizations).containsExactly("Basic dXNlcm5hbWU6cGFzc3dvcmQ=");
+    }
+
+    @Test
+    public void executeShouldExposeAnswerContentType() throws Exception {
+        String contentType = testee.execute(post("/predict"), response -> response.getEntity().getContentType().getValue()).get();
+
+        assertThat(contentType).startsWith("application/json");
+    }
+
+    @Test
+    public void concurrentRequestsShouldShareOneConnection() throws Exception {
+        ImmutableList.Builder<CompletableFuture<Integer>> responses = ImmutableList.builder();
+        for (int i = 0; i < 50; i++) {
+            responses.add(testee.execute(post("/predict"), response -> response.getStatusLine().getStatusCode()));
+        }
+
+        for (CompletableFuture<Integer> response : responses.build()) {
+            assertThat(response.get()).isEqualTo(200);
+        }
+        assertThat(openedConnections.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void executeShouldFailWhenNoAnswerWithinTimeout() throws Exception {
+        CompletableFuture<Integer> slow = testee.execute(post("/slow"), response -> response.getStatusLine().getStatusCode());
+
+        Throwable failure = null;
+        try {
+            slow.get();
+        } catch (ExecutionException e) {
+            failure = e.getCause();
+        }
+
+        assertThat(failure).isInstanceOf(TimeoutException.class);
+    }
+
+    @Test
+    public void timeoutShouldOnlyResetTheStream() throws Exception {
+        CompletableFuture<Integer> slow = testee.execute(post("/slow"), response -> response.getStatusLine().getStatusCode());
+        try {
+            slow.get();
+        } catch (ExecutionException e) {
+            // expected, the stream has been reset
+        }
+
+        Integer status = testee.execute(post("/predict"), response -> response.getStatusLine().getStatusCode()).get();
+
+        assertThat(status).isEqualTo(200);
+        assertThat(openedConnections.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void cancellationShouldAbortTheRequest() throws Exception {
+        CompletableFuture<Integer> slow = testee.execute(post("/slow"), response -> response.getStatusLine().getStatusCode());
+
+        slow.cancel(true);
+
+        Integer status = testee.execute(post("/predict"), response -> response.getStatusLine().getStatusCode()).get();
+        assertThat(status).isEqualTo(200);
+        assertThat(openedConnections.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void mailetShouldClassifyOverHttp2() throws Exception {
+        GuessClassificationMailet mailet = new GuessClassificationMailet(new FakeUUIDGenerator());
+        mailet.init(FakeMailetConfig.builder()
+            .setProperty(GuessClassificationMailet.SERVICE_URL, "http://localhost:" + connector.getLocalPort() + "/email/classification/predict")
+            .setProperty(GuessClassificationMailet.SERVICE_USERNAME, "username")
+            .setProperty(GuessClassificationMailet.SERVICE_PASSWORD, "password")
+            .setProperty(GuessClassificationMailet.TRANSPORT, "http2")
+            .build());
+        FakeMail mail = FakeMail.builder()
+            .mimeMessage(MimeMessageBuilder.mimeMessageBuilder()
+                .addFrom(new InternetAddress("from@james.org", "From"))
+                .addToRecipient("to@james.org")
+                .setSubject("my subject")
+                .setText("this is my body")
+                .build())
+            .recipients(new MailAddress("user@james.org"))
+            .build();
+
+        try {
+            mailet.service(mail);
+        } finally {
+            mailet.destroy();
+        }
+
+        PerRecipientHeaders expected = new PerRecipientHeaders();
+        expected.addHeaderForRecipient(PerRecipientHeaders.Header.builder()
+                .name(GuessClassificationMailet.HEADER_NAME_DEFAULT_VALUE)
+                .value("{\"mailboxId\":\"cfe49390-f391-11e6-88e7-ddd22b16a7b9\",\"mailboxName\":\"JAMES\",\"confidence\":50.07615280151367}")
+                .build(),
+            new MailAddress("user@james.org"));
+        assertThat(mail.getPerRecipientSpecificHeaders()).isEqualTo(expected);
+        assertThat(protocols).containsExactly("HTTP/2.0");
+    }
+
+    @Test
+    public void mailetShouldNotAddHeadersWhenHttp2AnswerIsLate() throws Exception {
+        GuessClassificationMailet mailet = new GuessClassificationMailet(new FakeUUIDGenerator());
+        mailet.init(FakeMailetConfig.builder()
+            .setProperty(GuessClassificationMailet.SERVICE_URL, "http://localhost:" + connector.getLocalPort() + "/slow")
+            .setProperty(GuessClassificationMailet.SERVICE_USERNAME, "username")
+            .setProperty(GuessClassificationMailet.SERVICE_PASSWORD, "password")
+            .setProperty(GuessClassificationMailet.TRANSPORT, "http2")
+            .setProperty(GuessClassificationMailet.TIMEOUT_IN_MS, "200")
+            .build());
+        FakeMail mail = FakeMail.builder()
+            .mimeMessage(MimeMessageBuilder.mimeMessageBuilder()
+                .addFrom(new InternetAddress("from@james.org", "From"))
+                .addToRecipient("to@james.org")
+                .setSubject("my subject")
+                .setText("this is my body")
+                .build())
+            .recipients(new MailAddress("user@james.org"))
+            .build();
+
+        long start = System.nanoTime();
+        try {
+            mailet.service(mail);
+        } finally {
+            mailet.destroy();
+        }
+
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isLessThan(5000);
+        assertThat(mail.getPerRecipientSpecificHeaders()).isEqualTo(new PerRecipientHeaders());
+    }
+
+    @Test
+    public void sslContextFactoryShouldAcceptTheCertificateOfTheRequestedHost() throws Exception {
+        Server tlsServer = startLocalhostTlsServer();
+        HttpClient httpClient = startClientTrustingLocalhost();
+        try {
+            int status = httpClient.GET("https://localhost:" + localPort(tlsServer) + "/predict").getStatus();
+
+            assertThat(status).isEqualTo(200);
+        } finally {
+            httpClient.stop();
+            tlsServer.stop();
+        }
+    }
+
+    @Test
+    public void sslContextFactoryShouldRejectACertificateIssuedForAnotherHost() throws Exception {
+        Server tlsServer = startLocalhostTlsServer();
+        HttpClient httpClient = startClientTrustingLocalhost();
+        Throwable failure = null;
+        try {
+            httpClient.GET("https://127.0.0.1:" + localPort(tlsServer) + "/predict");
+        } catch (ExecutionException e) {
+            failure = e.getCause();
+        } finally {
+            httpClient.stop();
+            tlsServer.stop();
+        }
+
+        assertThat(failure).isInstanceOf(SSLHandshakeException.class);
+    }
+
+    private Server startLocalhostTlsServer() throws Exception {
+        SslContextFactory sslContextFactory = new SslContextFactory();
+        sslContextFactory.setKeyStorePath(Resources.getResource(LOCALHOST_KEYSTORE).toString());
+        sslContextFactory.setKeyStorePassword(LOCALHOST_KEYSTORE_PASSWORD);
+        // Jetty 9.4.7 predates TLS 1.3, which recent Java 8 updates negotiate by default
+        sslContextFactory.setIncludeProtocols("TLSv1.2");
+        Server tlsServer = new Server();
+        ServerConnector tlsConnector = new ServerConnector(tlsServer, sslContextFactory);
+        tlsConnector.setPort(0);
+        tlsServer.addConnector(tlsConnector);
+        tlsServer.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) {
+                baseRequest.setHandled(true);
+            }
+        });
+        tlsServer.start();
+        return tlsServer;
+    }
+
+    private HttpClient startClientTrustingLocalhost() throws Exception {
+        SslContextFactory sslContextFactory = Http2Transport.sslContextFactory();
+        sslContextFactory.setTrustStorePath(Resources.getResource(LOCALHOST_KEYSTORE).toString());
+        sslContextFactory.setTrustStorePassword(LOCALHOST_KEYSTORE_PASSWORD);
+        HttpClient httpClient = new HttpClient(sslContextFactory);
+        httpClient.start();
+        return httpClient;
+    }
+
+    private int localPort(Server server) {
+        return ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+    }
+
+    private HttpPost post(String path) {
+        HttpPost post = new HttpPost("http://localhost:" + connector.getLocalPort() + path);
+        post.setEntity(new StringEntity("{}", ContentType.APPLICATION_JSON));
+        return post;
+    }
+}
@@ -0,0 +1,164 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.util.EntityUtils;
+import org.junit.Test;
+
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+
+public class RequestCompressionTest {
+
+    private static final String LARGE_JSON = "{\"textBody\":\"" + Strings.repeat("this is my body ", 200) + "\"}";
+    private static final String SMALL_JSON = "{\"textBody\":\"this is my body\"}";
+
+    @Test
+    public void parseShouldBeCaseInsensitive() {
+        assertThat(RequestCompression.Algorithm.parse("GZip")).contains(RequestCompression.Algorithm.GZIP);
+    }
+
+    @Test
+    public void parseShouldReturnEmptyWhenUnknown() {
+        assertThat(RequestCompression.Algorithm.parse("brotli")).isEmpty();
+    }
+
+    @Test
+    public void toEntityShouldNotCompressWhenNone() throws Exception {
+        RequestCompression testee = new RequestCompression(RequestCompression.Algorithm.NONE, 0);
+
+        HttpEntity entity = testee.toEntity(writer(LARGE_JSON), LARGE_JSON.length());
+
+        assertThat(entity.getContentEncoding()).isNull();
+        assertThat(EntityUtils.toString(entity, StandardCharsets.UTF_8)).isEqualTo(LARGE_JSON);
+        assertThat(testee.getCompressedRequestCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void toEntityShouldNotCompressBelowThreshold() throws Exception {
+        RequestCompression testee = new RequestCompression(RequestCompression.Algorithm.GZIP, 1024);
+
+        HttpEntity entity = testee.toEntity(writer(SMALL_JSON), SMALL_JSON.length());
+
+        assertThat(entity.getContentEncoding()).isNull();
+        assertThat(EntityUtils.toString(entity, StandardCharsets.UTF_8)).isEqualTo(SMALL_JSON);
+    }
+
+    @Test
+    public void toEntityShouldGzipAboveThreshold() throws Exception {
+        RequestCompression testee = new RequestCompression(RequestCompression.Algorithm.GZIP, 1024);
+
+        HttpEntity entity = testee.toEntity(writer(LARGE_JSON), LARGE_JSON.length());
+
+        assertThat(entity.getContentEncoding().getValue()).isEqualTo("gzip");
+        assertThat(entity.getContentType().getValue()).isEqualTo(GuessClassificationMailet.JSON_CONTENT_TYPE_UTF8);
+        assertThat(decode(new GZIPInputStream(entity.getContent()))).isEqualTo(LARGE_JSON);
+    }
+
+    @Test
+    public void toEntityShouldDeflateAboveThreshold() throws Exception {
+        RequestCompression testee = new RequestCompression(RequestCompression.Algorithm.DEFLATE, 1024);
+
+        HttpEntity entity = testee.toEntity(writer(LARGE_JSON), LARGE_JSON.length());
+
+        assertThat(entity.getContentEncoding().getValue()).isEqualTo("deflate");
+        assertThat(decode(new InflaterInputStream(entity.getContent()))).isEqualTo(LARGE_JSON);
+    }
+
+    @Test
+    public void toEntityShouldBufferBodiesBelowChunkingThreshold() throws Exception {
+        RequestCompression testee = new RequestCompression(RequestCompression.Algorithm.NONE, 1024, 1024);
+
+        HttpEntity entity = testee.toEntity(writer(SMALL_JSON), SMALL_JSON.length());
+
+        assertThat(entity.isChunked()).isFalse();
+        assertThat(entity.getContentLength()).isEqualTo(SMALL_JSON.getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    @Test
+    public void toEntityShouldStreamBodiesAboveChunkingThreshold() throws Exception {
+        RequestCompression testee = new RequestCompression(RequestCompression.Algorithm.NONE, 1024, 1024);
+
+        HttpEntity entity = testee.toEntity(writer(LARGE_JSON), LARGE_JSON.length());
+
+        assertThat(entity.isChunked()).isTrue();
+        assertThat(entity.getContentLength()).isEqualTo(-1);
+    }
+
+    @Test
+    public void toEntityShouldGiveTheCompressedLengthOfBufferedBodies() throws Exception {
+        RequestCompression testee = new RequestCompression(RequestCompression.Algorithm.GZIP, 1024, Integer.MAX_VALUE);
+
+        HttpEntity entity = testee.toEntity(writer(LARGE_JSON), LARGE_JSON.length());
+        ByteArrayOutputStream sentContent = new ByteArrayOutputStream();
+        entity.writeTo(sentContent);
+
+        assertThat(entity.getContentLength()).isEqualTo(sentContent.size());
+        assertThat(decode(new GZIPInputStream(entity.getContent()))).isEqualTo(LARGE_JSON);
+        assertThat(testee.getCompressedRequestCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void compressionRatioShouldBeOneWhenNothingWasCompressed() {
+        RequestCompression testee = new RequestCompression(RequestCompression.Algorithm.GZIP, 1024);
+
+        assertThat(testee.getCompressionRatio()).isEqualTo(1.0);
+    }
+
+    @Test
+    public void compressionRatioShouldReflectCompressedRequests() throws Exception {
+        RequestCompression testee = new RequestCompression(RequestCompression.Algorithm.GZIP, 1024);
+
+        ByteArrayOutputStream sentContent = new ByteArrayOutputStream();
+        testee.toEntity(writer(LARGE_JSON), LARGE_JSON.length()).writeTo(sentContent);
+
+        assertThat(testee.getCompressedRequestCount()).isEqualTo(1);
+        assertThat(testee.getUncompressedBytes()).isEqualTo(LARGE_JSON.getBytes(StandardCharsets.UTF_8).length);
+        assertThat(testee.getCompressedBytes()).isEqualTo(sentContent.size());
+        assertThat(testee.getCompressionRatio()).isLessThan(0.1);
+    }
+
+    @Test
+    public void compressedRequestsShouldBeRecordedWhenSentOnly() throws Exception {
+        RequestCompression testee = new RequestCompression(RequestCompression.Algorithm.GZIP, 1024);
+
+        testee.toEntity(writer(LARGE_JSON), LARGE_JSON.length());
+
+        assertThat(testee.getCompressedRequestCount()).isEqualTo(0);
+    }
+
+    private ClassificationRequestEntity.ContentWriter writer(String json) {
+        return outputStream -> outputStream.write(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String decode(InputStream inputStream) throws Exception {
+        try (InputStream decoded = inputStream) {
+            return new String(ByteStreams.toByteArray(decoded), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.internet.InternetAddress;
+
+import org.apache.james.metrics.api.MetricFactory;
+import org.apache.james.metrics.api.TimeMetric;
+import org.apache.mailet.MailAddress;
+import org.apache.mailet.base.test.FakeMail;
+import org.apache.mailet.base.test.MimeMessageBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.linagora.james.mailets.ClassificationTraceTest.FakeTicker;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.AppenderBase;
+
+public class SlowClassificationLogTest {
+
+    private static final String ATTRIBUTE = "classification-timings";
+
+    private static class MemoryAppender extends AppenderBase<ILoggingEvent> {
+        private final List<String> events = new ArrayList<>();
+
+        @Override
+        protected void append(ILoggingEvent event) {
+            events.add(event.getFormattedMessage());
+        }
+    }
+
+    private MemoryAppender memoryAppender;
+    private FakeTicker ticker;
+    private ClassificationTrace trace;
+    private FakeMail mail;
+
+    @Before
+    public void setUp() throws Exception {
+        memoryAppender = new MemoryAppender();
+        ((Logger) SlowClassificationLog.LOGGER).addAppender(memoryAppender);
+        memoryAppender.start();
+
+        MetricFactory metricFactory = mock(MetricFactory.class);
+        when(metricFactory.timer(ClassificationMetrics.HTTP_ROUND_TRIP)).thenReturn(mock(TimeMetric.class));
+        ticker = new FakeTicker();
+        trace = new ClassificationTrace(metricFactory, ticker);
+        mail = FakeMail.builder()
+            .name("mail1")
+            .mimeMessage(MimeMessageBuilder.mimeMessageBuilder()
+                .addFrom(new InternetAddress("from@james.org", "From"))
+                .addToRecipient("to@james.org")
+                .setSubject("my subject")
+                .setText("this is my body")
+                .build())
+            .recipients(new MailAddress("to@james.org"), new MailAddress("cc@james.org"))
+            .build();
+    }
+
+    @After
+    public void tearDown() {
+        ((Logger) SlowClassificationLog.LOGGER).detachAppender(memoryAppender);
+    }
+
+    @Test
+    public void onClassifiedShouldNotLogFastClassifications() {
+        SlowClassificationLog testee = new SlowClassificationLog(100, 1, Optional.of(ATTRIBUTE));
+        ticker.advance(99, TimeUnit.MILLISECONDS);
+
+        testee.onClassified(mail, trace, true);
+
+        assertThat(memoryAppender.events).isEmpty();
+        assertThat(mail.getAttribute(ATTRIBUTE)).isNull();
+    }
+
+    @Test
+    public void onClassifiedShouldLogPhaseBreakdownOfSlowClassifications() {
+        SlowClassificationLog testee = new SlowClassificationLog(100, 1, Optional.empty());
+        trace.recordTextBodyLength(15);
+        TimeMetric roundTrip = trace.timer(ClassificationMetrics.HTTP_ROUND_TRIP);
+        ticker.advance(120, TimeUnit.MILLISECONDS);
+        roundTrip.stopAndPublish();
+        ticker.advance(30, TimeUnit.MILLISECONDS);
+
+        testee.onClassified(mail, trace, false);
+
+        assertThat(memoryAppender.events).hasSize(1);
+        assertThat(memoryAppender.events.get(0))
+            .startsWith("Slow classification: mail=mail1 outcome=failure ")
+            .contains(" recipients=2 textLength=15 totalInMs=150 httpRoundTripInMs=120");
+    }
+
+    @Test
+    public void onClassifiedShouldStoreBreakdownAsAttributeWhenConfigured() {
+        SlowClassificationLog testee = new SlowClassificationLog(100, 1, Optional.of(ATTRIBUTE));
+        TimeMetric roundTrip = trace.timer(ClassificationMetrics.HTTP_ROUND_TRIP);
+        ticker.advance(120, TimeUnit.MILLISECONDS);
+        roundTrip.stopAndPublish();
+
+        testee.onClassified(mail, trace, true);
+
+        assertThat(mail.getAttribute(ATTRIBUTE)).isEqualTo(ImmutableMap.of("total", 120L, "httpRoundTrip", 120L));
+    }
+
+    @Test
+    public void onClassifiedShouldSampleLogLines() {
+        SlowClassificationLog testee = new SlowClassificationLog(100, 1, Optional.of(ATTRIBUTE));
+        ticker.advance(120, TimeUnit.MILLISECONDS);
+
+        testee.onClassified(mail, trace, true);
+        testee.onClassified(mail, trace, true);
+        testee.onClassified(mail, trace, true);
+
+        assertThat(memoryAppender.events).hasSize(1);
+        assertThat(testee.getSuppressedCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void onClassifiedShouldStoreAttributeEvenWhenLogIsSampledOut() {
+        SlowClassificationLog testee = new SlowClassificationLog(100, 1, Optional.of(ATTRIBUTE));
+        ticker.advance(120, TimeUnit.MILLISECONDS);
+        testee.onClassified(mail, trace, true);
+        mail.removeAttribute(ATTRIBUTE);
+
+        testee.onClassified(mail, trace, true);
+
+        assertThat(mail.getAttribute(ATTRIBUTE)).isNotNull();
+    }
+}
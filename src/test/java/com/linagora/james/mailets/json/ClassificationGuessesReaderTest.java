@@ -0,0 +1,201 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets.json;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class ClassificationGuessesReaderTest {
+
+    private static final ClassificationGuess USER_GUESS = ClassificationGuess.builder()
+        .mailboxId("cfe49390-f391-11e6-88e7-ddd22b16a7b9")
+        .mailboxName("JAMES")
+        .confidence(50.07615280151367)
+        .build();
+    private static final ClassificationGuess USER2_GUESS = ClassificationGuess.builder()
+        .mailboxId("1ea2f400-f391-11e6-88e7-ddd22b16a7b9")
+        .mailboxName("INBOX")
+        .confidence(12.5)
+        .build();
+    private static final String RESPONSE = "{\"results\":{" +
+        "\"user@james.org\":{" +
+        "    \"mailboxId\":\"cfe49390-f391-11e6-88e7-ddd22b16a7b9\"," +
+        "    \"mailboxName\":\"JAMES\"," +
+        "    \"confidence\":50.07615280151367}," +
+        "\"user2@james.org\":{" +
+        "    \"mailboxId\":\"1ea2f400-f391-11e6-88e7-ddd22b16a7b9\"," +
+        "    \"mailboxName\":\"INBOX\"," +
+        "    \"confidence\":12.5}" +
+        "}," +
+        "\"errors\":{" +
+        "\"user3@james.org\":{" +
+        "    \"message\":\"this is a message\"," +
+        "    \"details\":[1, {\"nested\":true}]}" +
+        "}}";
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    public void readShouldReturnResults() throws Exception {
+        ClassificationGuesses guesses = new ClassificationGuessesReader(objectMapper, false).read(asStream(RESPONSE));
+
+        assertThat(guesses.getResults()).containsExactly(
+            entry("user@james.org", USER_GUESS),
+            entry("user2@james.org", USER2_GUESS));
+    }
+
+    @Test
+    public void readShouldSkipErrorsWhenNotRequested() throws Exception {
+        ClassificationGuesses guesses = new ClassificationGuessesReader(objectMapper, false).read(asStream(RESPONSE));
+
+        assertThat(guesses.getErrors()).isEmpty();
+    }
+
+    @Test
+    public void readShouldReturnErrorsWhenRequested() throws Exception {
+        ClassificationGuesses guesses = new ClassificationGuessesReader(objectMapper, true).read(asStream(RESPONSE));
+
+        assertThat(guesses.getErrors()).containsOnlyKeys("user3@james.org");
+    }
+
+    @Test
+    public void readShouldMatchObjectMapperDeserialization() throws Exception {
+        ClassificationGuesses guesses = new ClassificationGuessesReader(objectMapper, true).read(asStream(RESPONSE));
+
+        assertThat(guesses).isEqualTo(objectMapper.readValue(RESPONSE, ClassificationGuesses.class));
+    }
+
+    @Test
+    public void readShouldNotifyGuessesInOrder() throws Exception {
+        List<String> recipients = new ArrayList<>();
+
+        new ClassificationGuessesReader(objectMapper, false)
+            .read(asStream(RESPONSE), (recipient, guess) -> recipients.add(recipient));
+
+        assertThat(recipients).containsExactly("user@james.org", "user2@james.org");
+    }
+
+    @Test
+    public void readShouldAcceptErrorsBeforeResults() throws Exception {
+        String response = "{\"errors\":{\"user3@james.org\":{\"message\":\"oops\"}}," +
+            "\"results\":{\"user@james.org\":{" +
+            "    \"mailboxId\":\"cfe49390-f391-11e6-88e7-ddd22b16a7b9\"," +
+            "    \"mailboxName\":\"JAMES\"," +
+            "    \"confidence\":50.07615280151367}}}";
+
+        ClassificationGuesses guesses = new ClassificationGuessesReader(objectMapper, false).read(asStream(response));
+
+        assertThat(guesses.getResults()).containsExactly(entry("user@james.org", USER_GUESS));
+    }
+
+    @Test
+    public void readShouldIgnoreUnknownFields() throws Exception {
+        String response = "{\"results\":{},\"errors\":{},\"model\":{\"version\":\"2\"}}";
+
+        ClassificationGuesses guesses = new ClassificationGuessesReader(objectMapper, false).read(asStream(response));
+
+        assertThat(guesses.getResults()).isEmpty();
+    }
+
+    @Test
+    public void readShouldThrowWhenResultsAreMissing() throws Exception {
+        expectedException.expect(JsonProcessingException.class);
+
+        new ClassificationGuessesReader(objectMapper, false).read(asStream("{\"errors\":{}}"));
+    }
+
+    @Test
+    public void readShouldThrowWhenEmpty() throws Exception {
+        expectedException.expect(JsonProcessingException.class);
+
+        new ClassificationGuessesReader(objectMapper, false).read(asStream(""));
+    }
+
+    @Test
+    public void readShouldThrowWhenGuessIsInvalid() throws Exception {
+        expectedException.expect(JsonProcessingException.class);
+
+        new ClassificationGuessesReader(objectMapper, false)
+            .read(asStream("{\"results\":{\"user@james.org\":{\"mailboxName\":\"JAMES\"}},\"errors\":{}}"));
+    }
+
+    @Test
+    public void readShouldThrowWhenTruncated() throws Exception {
+        expectedException.expect(JsonProcessingException.class);
+
+        new ClassificationGuessesReader(objectMapper, false).read(asStream(RESPONSE.substring(0, RESPONSE.length() / 2)));
+    }
+
+    @Test
+    public void readBatchShouldReturnResultsByMessageId() throws Exception {
+        String response = "{\"id1\":" + RESPONSE + ",\"id2\":{\"results\":{},\"errors\":{}}}";
+
+        Map<String, ClassificationGuesses> guesses = new ClassificationGuessesReader(objectMapper, false).readBatch(asStream(response));
+
+        assertThat(guesses).containsOnlyKeys("id1", "id2");
+        assertThat(guesses.get("id1").getResults()).containsOnlyKeys("user@james.org", "user2@james.org");
+        assertThat(guesses.get("id2").getResults()).isEmpty();
+    }
+
+    @Test
+    public void readShouldReturnResultsWhenSmile() throws Exception {
+        ObjectMapper smileObjectMapper = WireFormat.SMILE.newObjectMapper();
+        byte[] response = smileObjectMapper.writeValueAsBytes(objectMapper.readTree(RESPONSE));
+
+        ClassificationGuesses guesses = new ClassificationGuessesReader(smileObjectMapper, true).read(new ByteArrayInputStream(response));
+
+        assertThat(guesses.getResults()).containsExactly(
+            entry("user@james.org", USER_GUESS),
+            entry("user2@james.org", USER2_GUESS));
+        assertThat(guesses.getErrors()).containsOnlyKeys("user3@james.org");
+    }
+
+    @Test
+    public void readShouldReturnResultsWhenCbor() throws Exception {
+        ObjectMapper cborObjectMapper = WireFormat.CBOR.newObjectMapper();
+        byte[] response = cborObjectMapper.writeValueAsBytes(objectMapper.readTree(RESPONSE));
+
+        ClassificationGuesses guesses = new ClassificationGuessesReader(cborObjectMapper, false).read(new ByteArrayInputStream(response));
+
+        assertThat(guesses.getResults()).containsExactly(
+            entry("user@james.org", USER_GUESS),
+            entry("user2@james.org", USER2_GUESS));
+    }
+
+    private static InputStream asStream(String json) {
+        return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+    }
+}
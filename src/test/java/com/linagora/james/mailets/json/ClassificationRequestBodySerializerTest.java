@@ -19,6 +19,9 @@ package com.linagora.james.mailets.json;
 
 import static net.javacrumbs.jsonunit.fluent.JsonFluentAssert.assertThatJson;
 
+import java.io.ByteArrayOutputStream;
+import java.util.Optional;
+
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
 
@@ -210,4 +213,110 @@ public class ClassificationRequestBodySerializerTest {
             "\"date\": null," +
             "\"textBody\":\"\"}");
     }
+
+    @Test
+    public void toJsonAsStringShouldTruncateTextBodyWhenLongerThanMaxTextBodyLength() throws Exception {
+        MimeMessage message = MimeMessageBuilder.mimeMessageBuilder()
+            .setText("this is my body")
+            .addHeader("Date", "Wed, 24 May 2017 06:23:11 -0700")
+            .build();
+        FakeMail mail = FakeMail.from(message);
+
+        ClassificationRequestBodySerializer testee = new ClassificationRequestBodySerializer(mail, new FakeUUIDGenerator(), Optional.of(7));
+        String jsonAsString = testee.toJsonAsString();
+
+        assertThatJson(jsonAsString)
+            .isEqualTo("{\"messageId\":\"524e4f85-2d2f-4927-ab98-bd7a2f689773\"," +
+                "\"from\":[]," +
+                "\"recipients\":{\"to\":[],\"cc\":[],\"bcc\":[]}," +
+                "\"subject\":[\"\"]," +
+                "\"date\":\"2017-05-24T13:23:11Z\"," +
+                "\"textBody\":\"this is\"," +
+                "\"textBodyTruncated\":true}");
+    }
+
+    @Test
+    public void toJsonAsStringShouldNotMarkTextBodyAsTruncatedWhenWithinMaxTextBodyLength() throws Exception {
+        MimeMessage message = MimeMessageBuilder.mimeMessageBuilder()
+            .setText("this is my body")
+            .addHeader("Date", "Wed, 24 May 2017 06:23:11 -0700")
+            .build();
+        FakeMail mail = FakeMail.from(message);
+
+        ClassificationRequestBodySerializer testee = new ClassificationRequestBodySerializer(mail, new FakeUUIDGenerator(), Optional.of(15));
+        String jsonAsString = testee.toJsonAsString();
+
+        assertThatJson(jsonAsString)
+            .isEqualTo("{\"messageId\":\"524e4f85-2d2f-4927-ab98-bd7a2f689773\"," +
+                "\"from\":[]," +
+                "\"recipients\":{\"to\":[],\"cc\":[],\"bcc\":[]}," +
+                "\"subject\":[\"\"]," +
+                "\"date\":\"2017-05-24T13:23:11Z\"," +
+                "\"textBody\":\"this is my body\"}");
+    }
+
+    @Test
+    public void toJsonAsStringShouldTruncateTextConvertedFromHtml() throws Exception {
+        MimeMessage message = MimeMessageBuilder.mimeMessageBuilder()
+            .setMultipartWithBodyParts(
+                MimeMessageBuilder.bodyPartBuilder()
+                    .data("<p>this is my body</p>")
+                    .type("text/html")
+                    .build())
+            .addHeader("Date", "Wed, 24 May 2017 06:23:11 -0700")
+            .build();
+        FakeMail mail = FakeMail.from(message);
+
+        ClassificationRequestBodySerializer testee = new ClassificationRequestBodySerializer(mail, new FakeUUIDGenerator(), Optional.of(7));
+        String jsonAsString = testee.toJsonAsString();
+
+        assertThatJson(jsonAsString)
+            .isEqualTo("{\"messageId\":\"524e4f85-2d2f-4927-ab98-bd7a2f689773\"," +
+                "\"from\":[]," +
+                "\"recipients\":{\"to\":[],\"cc\":[],\"bcc\":[]}," +
+                "\"subject\":[\"\"]," +
+                "\"date\":\"2017-05-24T13:23:11Z\"," +
+                "\"textBody\":\"this is\"," +
+                "\"textBodyTruncated\":true}");
+    }
+
+    @Test
+    public void toJsonAsStringShouldReplaceSubjectAndTextBodyByHashedFeatures() throws Exception {
+        MimeMessage message = MimeMessageBuilder.mimeMessageBuilder()
+            .setSubject("my subject")
+            .setText("this is my body")
+            .addHeader("Date", "Wed, 24 May 2017 06:23:11 -0700")
+            .build();
+        FakeMail mail = FakeMail.from(message);
+        ClassificationRequestBody body = new ClassificationRequestBodySerializer(mail, new FakeUUIDGenerator()).toRequestBody();
+
+        String jsonAsString = ClassificationRequestBodySerializer.toJsonAsString(FeatureRequestBody.from(body, new FeatureHasher(1024)));
+
+        assertThatJson(jsonAsString)
+            .isEqualTo("{\"messageId\":\"524e4f85-2d2f-4927-ab98-bd7a2f689773\"," +
+                "\"from\":[]," +
+                "\"recipients\":{\"to\":[],\"cc\":[],\"bcc\":[]}," +
+                "\"date\":\"2017-05-24T13:23:11Z\"," +
+                "\"features\":{\"version\":1,\"dimension\":1024," +
+                    "\"indices\":[66,156,803,925,942,988]," +
+                    "\"values\":[1,1,-1,-1,1,1]}}");
+    }
+
+    @Test
+    public void writeToShouldEncodeTheSameContentInBinaryWireFormats() throws Exception {
+        MimeMessage message = MimeMessageBuilder.mimeMessageBuilder()
+            .setSubject("my subject")
+            .setText("this is my body")
+            .addHeader("Date", "Wed, 24 May 2017 06:23:11 -0700")
+            .build();
+        ClassificationRequestBody body = new ClassificationRequestBodySerializer(FakeMail.from(message), new FakeUUIDGenerator()).toRequestBody();
+
+        for (WireFormat wireFormat : WireFormat.values()) {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            ClassificationRequestBodySerializer.writeTo(body, outputStream, wireFormat);
+
+            assertThatJson(wireFormat.newObjectMapper().readTree(outputStream.toByteArray()).toString())
+                .isEqualTo(ClassificationRequestBodySerializer.toJsonAsString(body));
+        }
+    }
 }
@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+package com.linagora.james.mailets.json;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import com.google.common.collect.ImmutableList;
+
+public class FeatureHasherTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    @Test
+    public void constructorShouldThrowWhenDimensionIsNotAPowerOfTwo() {
+        expectedException.expect(IllegalArgumentException.class);
+
+        new FeatureHasher(1000);
+    }
+
+    @Test
+    public void constructorShouldThrowWhenDimensionIsZero() {
+        expectedException.expect(IllegalArgumentException.class);
+
+        new FeatureHasher(0);
+    }
+
+    @Test
+    public void tokensShouldBeLowerCasedAndStrippedOfAccents() {
+        assertThat(FeatureHasher.tokens("Héllo, WORLD! a été 42 x"))
+            .containsExactly("hello", "world", "ete", "42");
+    }
+
+    @Test
+    public void tokensShouldIgnoreTooLongTokens() {
+        String longToken = "abcdefghijklmnopqrstuvwxyzabcdefghijklmno";
+
+        assertThat(FeatureHasher.tokens("short " + longToken)).containsExactly("short");
+    }
+
+    @Test
+    public void tokensShouldBeEmptyWhenNoLetterNorDigit() {
+        assertThat(FeatureHasher.tokens(" -- !! ")).isEmpty();
+    }
+
+    @Test
+    public void hashShouldMatchVersionOneOfTheScheme() {
+        HashedFeatures features = new FeatureHasher(1024).hash(ImmutableList.of("my subject"), "this is my body");
+
+        assertThat(features.getVersion()).isEqualTo(1);
+        assertThat(features.getDimension()).isEqualTo(1024);
+        assertThat(features.getIndices()).containsExactly(66, 156, 803, 925, 942, 988);
+        assertThat(features.getValues()).containsExactly(1, 1, -1, -1, 1, 1);
+    }
+
+    @Test
+    public void hashShouldBeDeterministic() {
+        FeatureHasher testee = new FeatureHasher(FeatureHasher.DEFAULT_DIMENSION);
+
+        HashedFeatures first = testee.hash(ImmutableList.of("my subject"), "this is my body");
+        HashedFeatures second = testee.hash(ImmutableList.of("my subject"), "this is my body");
+
+        assertThat(first.getIndices()).isEqualTo(second.getIndices());
+        assertThat(first.getValues()).isEqualTo(second.getValues());
+    }
+
+    @Test
+    public void hashShouldReturnSortedIndicesWithinDimension() {
+        HashedFeatures features = new FeatureHasher(16).hash(ImmutableList.of("a rather long subject"),
+            "with a body containing quite a few distinct tokens to provoke some collisions");
+
+        int[] sorted = features.getIndices();
+        Arrays.sort(sorted);
+        assertThat(features.getIndices()).isEqualTo(sorted);
+        assertThat(features.getIndices()).doesNotHaveDuplicates();
+        assertThat(Arrays.stream(features.getIndices()).allMatch(index -> index >= 0 && index < 16)).isTrue();
+        assertThat(features.getValues()).doesNotContain(0);
+    }
+
+    @Test
+    public void hashShouldSeparateSubjectAndBodyTokens() {
+        FeatureHasher testee = new FeatureHasher(FeatureHasher.DEFAULT_DIMENSION);
+
+        HashedFeatures inSubject = testee.hash(ImmutableList.of("hello"), "");
+        HashedFeatures inBody = testee.hash(ImmutableList.of(), "hello");
+
+        assertThat(inSubject.getIndices()).isNotEqualTo(inBody.getIndices());
+    }
+
+    @Test
+    public void hashShouldCountRepeatedTokens() {
+        HashedFeatures features = new FeatureHasher(FeatureHasher.DEFAULT_DIMENSION).hash(ImmutableList.of(), "hello hello hello");
+
+        assertThat(features.size()).isEqualTo(1);
+        assertThat(Math.abs(features.getValues()[0])).isEqualTo(3);
+    }
+
+    @Test
+    public void hashShouldBeEmptyWhenNoToken() {
+        HashedFeatures features = new FeatureHasher(FeatureHasher.DEFAULT_DIMENSION).hash(ImmutableList.of(""), "");
+
+        assertThat(features.size()).isEqualTo(0);
+    }
+}
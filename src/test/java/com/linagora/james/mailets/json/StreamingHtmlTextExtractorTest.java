@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+package com.linagora.james.mailets.json;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.james.jmap.utils.JsoupHtmlTextExtractor;
+import org.junit.Test;
+
+import com.google.common.io.ByteStreams;
+
+public class StreamingHtmlTextExtractorTest {
+
+    private final StreamingHtmlTextExtractor testee = new StreamingHtmlTextExtractor();
+
+    @Test
+    public void toPlainTextShouldDropTags() {
+        assertThat(testee.toPlainText("<p>this is <b>my</b> body</p>")).isEqualTo("this is my body");
+    }
+
+    @Test
+    public void toPlainTextShouldDropScriptAndStyleContent() {
+        assertThat(testee.toPlainText("<style>p { color: red }</style><script>var a = '<p>x</p>';</script>text"))
+            .isEqualTo("text");
+    }
+
+    @Test
+    public void toPlainTextShouldDropHeadContent() {
+        assertThat(testee.toPlainText("<html><head><title>Subject</title><meta charset=\"utf-8\"></head><body><p>body</p></body></html>"))
+            .isEqualTo("body");
+    }
+
+    @Test
+    public void toPlainTextShouldKeepBodyWhenHeadEndTagIsMissing() {
+        assertThat(testee.toPlainText("<html><head><title>Subject</title><meta charset=\"utf-8\"><body><p>body</p></body></html>"))
+            .isEqualTo("body");
+    }
+
+    @Test
+    public void toPlainTextShouldEndHeadOnText() {
+        assertThat(testee.toPlainText("<head><title>Subject</title>this is my body")).isEqualTo("this is my body");
+    }
+
+    @Test
+    public void toPlainTextShouldDropComments() {
+        assertThat(testee.toPlainText("before<!-- <p>comment</p> -- > -->after")).isEqualTo("beforeafter");
+    }
+
+    @Test
+    public void toPlainTextShouldDecodeNamedCharacterReferences() {
+        assertThat(testee.toPlainText("caf&eacute; &amp; cr&egrave;me &lt;3&gt;")).isEqualTo("café & crème <3>");
+    }
+
+    @Test
+    public void toPlainTextShouldDecodeEuropeanCharacterReferences() {
+        assertThat(testee.toPlainText("&aacute; &oacute; &ntilde; &uuml; &Ntilde; &oelig; &atilde;"))
+            .isEqualTo("\u00e1 \u00f3 \u00f1 \u00fc \u00d1 \u0153 \u00e3");
+    }
+
+    @Test
+    public void toPlainTextShouldDecodeLegacyCharacterReferencesWithoutSemicolon() {
+        assertThat(testee.toPlainText("caf&eacute cr&egrave;me &copy 2017")).isEqualTo("caf\u00e9 cr\u00e8me \u00a9 2017");
+    }
+
+    @Test
+    public void toPlainTextShouldDecodeNumericCharacterReferences() {
+        assertThat(testee.toPlainText("&#8364;3 &#x41;")).isEqualTo("€3 A");
+    }
+
+    @Test
+    public void toPlainTextShouldKeepUnknownCharacterReferences() {
+        assertThat(testee.toPlainText("AT&T &unknown; &")).isEqualTo("AT&T &unknown; &");
+    }
+
+    @Test
+    public void toPlainTextShouldCollapseWhitespaces() {
+        assertThat(testee.toPlainText("  many\n\n   spaces&nbsp;&nbsp;here  ")).isEqualTo("many spaces here");
+    }
+
+    @Test
+    public void toPlainTextShouldBreakLinesOnBlocks() {
+        assertThat(testee.toPlainText("<p>first</p><p>second<br>third</p>")).isEqualTo("first\n\nsecond\nthird");
+    }
+
+    @Test
+    public void toPlainTextShouldSeparateTableCells() {
+        assertThat(testee.toPlainText("<table><tr><td>a</td><td>b</td></tr><tr><td>c</td></tr></table>"))
+            .isEqualTo("a b\nc");
+    }
+
+    @Test
+    public void toPlainTextShouldIgnoreGreaterThanSignsInAttributeValues() {
+        assertThat(testee.toPlainText("<a href=\"a>b\" title='c>d'>link</a>")).isEqualTo("link");
+    }
+
+    @Test
+    public void toPlainTextShouldKeepLessThanSignsWhichAreNotMarkup() {
+        assertThat(testee.toPlainText("1 < 2 and 3 <= 4")).isEqualTo("1 < 2 and 3 <= 4");
+    }
+
+    @Test
+    public void toPlainTextShouldStopOnceMaxLengthIsExceeded() {
+        String text = new StreamingHtmlTextExtractor(5).toPlainText("<p>hello world, this is a long text</p>");
+
+        assertThat(text).startsWith("hello");
+        assertThat(text.length()).isGreaterThan(5).isLessThan(10);
+    }
+
+    @Test
+    public void toPlainTextShouldMatchJsoupOnNewsletter() throws Exception {
+        assertSameTextAsJsoup("html/newsletter.html");
+    }
+
+    @Test
+    public void toPlainTextShouldMatchJsoupOnSimpleMessage() throws Exception {
+        assertSameTextAsJsoup("html/simple.html");
+    }
+
+    @Test
+    public void toPlainTextShouldMatchJsoupOnLayoutTables() throws Exception {
+        assertSameTextAsJsoup("html/layout.html");
+    }
+
+    @Test
+    public void toPlainTextShouldMatchJsoupWhenHeadEndTagIsMissing() throws Exception {
+        assertSameTextAsJsoup("html/unclosed-head.html");
+    }
+
+    @Test
+    public void toPlainTextShouldMatchJsoupOnCharacterReferences() throws Exception {
+        assertSameTextAsJsoup("html/entities.html");
+    }
+
+    private void assertSameTextAsJsoup(String resource) throws Exception {
+        String html = read(resource);
+
+        assertThat(normalize(testee.toPlainText(html)))
+            .isEqualTo(normalize(new JsoupHtmlTextExtractor().toPlainText(html)));
+    }
+
+    /**
+     * Both converters agree on the text and its order. They differ on the whitespaces separating blocks and cells.
+     */
+    private String normalize(String text) {
+        return text.replace('\u00a0', ' ')
+            .replaceAll("\\s+", "");
+    }
+
+    private String read(String resource) throws Exception {
+        try (InputStream inputStream = ClassLoader.getSystemResourceAsStream(resource)) {
+            return new String(ByteStreams.toByteArray(inputStream), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+package com.linagora.james.mailets.json;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+
+import org.apache.mailet.base.test.MimeMessageBuilder;
+import org.junit.Test;
+
+import com.linagora.james.mailets.json.TextContentExtractor.TextContent;
+
+public class TextContentExtractorTest {
+
+    private final TextContentExtractor testee = new TextContentExtractor();
+
+    @Test
+    public void extractShouldReturnTextBodyWhenTextPlainMessage() throws Exception {
+        MimeMessage message = MimeMessageBuilder.mimeMessageBuilder()
+            .setText("this is my body")
+            .build();
+
+        TextContent textContent = testee.extract(message);
+
+        assertThat(textContent.getTextBody()).contains("this is my body");
+        assertThat(textContent.getHtmlBody()).isEmpty();
+    }
+
+    @Test
+    public void extractShouldDecodeTextUsingTheCharsetOfThePart() throws Exception {
+        MimeMessage message = MimeMessageBuilder.mimeMessageBuilder()
+            .setText("éééààà", "text/plain; charset=UTF-8")
+            .build();
+
+        TextContent textContent = testee.extract(message);
+
+        assertThat(textContent.getTextBody()).contains("éééààà");
+    }
+
+    @Test
+    public void extractShouldReturnHtmlBodyWhenTextHtmlMessage() throws Exception {
+        MimeMessage message = MimeMessageBuilder.mimeMessageBuilder()
+            .setText("<p>this is my body</p>", "text/html")
+            .build();
+
+        TextContent textContent = testee.extract(message);
+
+        assertThat(textContent.getTextBody()).isEmpty();
+        assertThat(textContent.getHtmlBody()).contains("<p>this is my body</p>");
+    }
+
+    @Test
+    public void extractShouldReturnBothBodiesWhenMultipartAlternative() throws Exception {
+        MimeMultipart alternative = new MimeMultipart("alternative");
+        alternative.addBodyPart(textPart("this is my body", "text/plain"));
+        alternative.addBodyPart(textPart("<p>this is my body</p>", "text/html"));
+
+        TextContent textContent = testee.extract(message(alternative));
+
+        assertThat(textContent.getTextBody()).contains("this is my body");
+        assertThat(textContent.getHtmlBody()).contains("<p>this is my body</p>");
+    }
+
+    @Test
+    public void extractShouldLookIntoNestedMultiparts() throws Exception {
+        MimeMultipart alternative = new MimeMultipart("alternative");
+        alternative.addBodyPart(textPart("this is my body", "text/plain"));
+        alternative.addBodyPart(textPart("<p>this is my body</p>", "text/html"));
+        MimeBodyPart alternativePart = new MimeBodyPart();
+        alternativePart.setContent(alternative);
+        MimeMultipart mixed = new MimeMultipart("mixed");
+        mixed.addBodyPart(attachment());
+        mixed.addBodyPart(alternativePart);
+
+        TextContent textContent = testee.extract(message(mixed));
+
+        assertThat(textContent.getTextBody()).contains("this is my body");
+        assertThat(textContent.getHtmlBody()).contains("<p>this is my body</p>");
+    }
+
+    @Test
+    public void extractShouldReturnFirstReadablePartWhenMultipartMixed() throws Exception {
+        MimeMultipart mixed = new MimeMultipart("mixed");
+        mixed.addBodyPart(textPart("first body", "text/plain"));
+        mixed.addBodyPart(textPart("second body", "text/plain"));
+
+        TextContent textContent = testee.extract(message(mixed));
+
+        assertThat(textContent.getTextBody()).contains("first body");
+    }
+
+    @Test
+    public void extractShouldReturnEmptyWhenOnlyAttachments() throws Exception {
+        MimeMultipart mixed = new MimeMultipart("mixed");
+        mixed.addBodyPart(attachment());
+
+        TextContent textContent = testee.extract(message(mixed));
+
+        assertThat(textContent.getTextBody()).isEmpty();
+        assertThat(textContent.getHtmlBody()).isEmpty();
+    }
+
+    @Test
+    public void extractShouldNotReadAttachments() throws Exception {
+        MimeMultipart mixed = new MimeMultipart("mixed");
+        mixed.addBodyPart(new UnreadableAttachment());
+        mixed.addBodyPart(textPart("this is my body", "text/plain"));
+
+        TextContent textContent = testee.extract(message(mixed));
+
+        assertThat(textContent.getTextBody()).contains("this is my body");
+    }
+
+    @Test
+    public void extractShouldStopOnceAReadablePartIsFound() throws Exception {
+        MimeMultipart mixed = new MimeMultipart("mixed");
+        mixed.addBodyPart(textPart("this is my body", "text/plain"));
+        mixed.addBodyPart(new UnreadableTextPart());
+
+        TextContent textContent = testee.extract(message(mixed));
+
+        assertThat(textContent.getTextBody()).contains("this is my body");
+    }
+
+    @Test
+    public void extractShouldStopReadingTextOnceMaxLengthIsReached() throws Exception {
+        MimeMessage message = MimeMessageBuilder.mimeMessageBuilder()
+            .setText("this is my body")
+            .build();
+
+        TextContent textContent = new TextContentExtractor(7, 100).extract(message);
+
+        assertThat(textContent.getTextBody()).contains("this is");
+        assertThat(textContent.isTextBodyTruncated()).isTrue();
+    }
+
+    @Test
+    public void extractShouldNotMarkTextAsTruncatedWhenExactlyMaxLength() throws Exception {
+        MimeMessage message = MimeMessageBuilder.mimeMessageBuilder()
+            .setText("this is my body")
+            .build();
+
+        TextContent textContent = new TextContentExtractor(15, 100).extract(message);
+
+        assertThat(textContent.getTextBody()).contains("this is my body");
+        assertThat(textContent.isTextBodyTruncated()).isFalse();
+    }
+
+    @Test
+    public void extractShouldApplyHtmlMaxLengthToHtmlParts() throws Exception {
+        MimeMessage message = MimeMessageBuilder.mimeMessageBuilder()
+            .setText("<p>this is my body</p>", "text/html")
+            .build();
+
+        TextContent textContent = new TextContentExtractor(100, 10).extract(message);
+
+        assertThat(textContent.getHtmlBody()).contains("<p>this is");
+        assertThat(textContent.isHtmlBodyTruncated()).isTrue();
+    }
+
+    @Test
+    public void truncateShouldNotSplitSurrogatePairs() {
+        String text = "ab\uD83D\uDE00";
+
+        assertThat(TextContentExtractor.truncate(text, 3)).isEqualTo("ab");
+    }
+
+    private MimeMessage message(MimeMultipart multipart) throws MessagingException {
+        MimeMessage message = new MimeMessage(Session.getDefaultInstance(new Properties()));
+        message.setContent(multipart);
+        message.saveChanges();
+        return message;
+    }
+
+    private MimeBodyPart textPart(String text, String mimeType) throws MessagingException {
+        MimeBodyPart part = new MimeBodyPart();
+        part.setContent(text, mimeType + "; charset=UTF-8");
+        return part;
+    }
+
+    private MimeBodyPart attachment() throws MessagingException {
+        MimeBodyPart part = textPart("attached text", "text/plain");
+        part.setDisposition(MimeBodyPart.ATTACHMENT);
+        part.setFileName("attachment.txt");
+        return part;
+    }
+
+    private static class UnreadableAttachment extends MimeBodyPart {
+        UnreadableAttachment() throws MessagingException {
+            setContent("attached text", "text/plain");
+            setDisposition(ATTACHMENT);
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            throw new IOException("attachments should not be read");
+        }
+    }
+
+    private static class UnreadableTextPart extends MimeBodyPart {
+        UnreadableTextPart() throws MessagingException {
+            setContent("second body", "text/plain");
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            throw new IOException("parts after the first readable one should not be read");
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+package com.linagora.james.mailets.json;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Optional;
+
+import org.junit.Test;
+
+public class WireFormatTest {
+
+    @Test
+    public void parseShouldBeCaseInsensitive() {
+        assertThat(WireFormat.parse(" Smile ")).contains(WireFormat.SMILE);
+    }
+
+    @Test
+    public void parseShouldReturnEmptyWhenUnknown() {
+        assertThat(WireFormat.parse("protobuf")).isEmpty();
+    }
+
+    @Test
+    public void fromContentTypeShouldRecognizeBinaryFormats() {
+        assertThat(WireFormat.fromContentType(Optional.of("application/x-jackson-smile"))).isEqualTo(WireFormat.SMILE);
+        assertThat(WireFormat.fromContentType(Optional.of("application/cbor"))).isEqualTo(WireFormat.CBOR);
+    }
+
+    @Test
+    public void fromContentTypeShouldIgnoreParametersAndCase() {
+        assertThat(WireFormat.fromContentType(Optional.of("Application/X-Jackson-Smile; charset=UTF-8"))).isEqualTo(WireFormat.SMILE);
+    }
+
+    @Test
+    public void fromContentTypeShouldDefaultToJson() {
+        assertThat(WireFormat.fromContentType(Optional.of("application/json; charset=UTF-8"))).isEqualTo(WireFormat.JSON);
+        assertThat(WireFormat.fromContentType(Optional.of("text/plain"))).isEqualTo(WireFormat.JSON);
+        assertThat(WireFormat.fromContentType(Optional.empty())).isEqualTo(WireFormat.JSON);
+    }
+
+    @Test
+    public void onlyJsonShouldNotBeBinary() {
+        assertThat(WireFormat.JSON.isBinary()).isFalse();
+        assertThat(WireFormat.SMILE.isBinary()).isTrue();
+        assertThat(WireFormat.CBOR.isBinary()).isTrue();
+    }
+}